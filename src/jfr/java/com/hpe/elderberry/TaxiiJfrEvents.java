@@ -0,0 +1,154 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.net.URI;
+import java.util.Objects;
+
+/**
+ * the Java Flight Recorder events of the library. This class is compiled only by JDKs that have
+ * <code>jdk.jfr</code>, and {@link TaxiiEvents} loads it reflectively after it checked that the JVM has JFR, so the
+ * library still builds and runs on JVMs without it
+ */
+final class TaxiiJfrEvents implements TaxiiEvents.Recorder {
+    @Override
+    public boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+
+    @Override
+    public Object beginRequest() {
+        RequestEvent event = new RequestEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitRequest(Object started, String operation, URI endpoint, String collection, TaxiiEvents.Call call,
+                              int contentBlocks, Throwable failure) {
+        RequestEvent event = (RequestEvent) started;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+
+        event.operation = operation;
+        event.endpoint = Objects.toString(endpoint, null);
+        event.collection = collection;
+        event.responseBytes = call.bytes;
+        event.contentBlocks = contentBlocks;
+        event.rateLimitWait = call.rateLimitNanos;
+        event.responseWait = call.responseWaitNanos;
+        event.bodyRead = call.bodyReadNanos;
+        event.processing = call.processingNanos();
+        event.failure = failure == null ? null : failure.getClass().getName() + ": " + failure.getMessage();
+        event.commit();
+    }
+
+    @Override
+    public Object beginLifecycle() {
+        LifecycleEvent event = new LifecycleEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitLifecycle(Object started, String step, URI discoveryUrl, Throwable failure) {
+        LifecycleEvent event = (LifecycleEvent) started;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+
+        event.step = step;
+        event.discoveryUrl = Objects.toString(discoveryUrl, null);
+        event.failure = failure == null ? null : failure.getClass().getName() + ": " + failure.getMessage();
+        event.commit();
+    }
+
+    @Name("com.hpe.elderberry.TaxiiRequest")
+    @Label("TAXII Request")
+    @Description("A TAXII template call, from the request to the unmarshalled response")
+    @Category({"TAXII"})
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Endpoint")
+        String endpoint;
+
+        @Label("Collection")
+        @Description("The collection, or TAXII 1.0 feed, name")
+        String collection;
+
+        @Label("Response Bytes")
+        @DataAmount
+        long responseBytes;
+
+        @Label("Content Blocks")
+        int contentBlocks;
+
+        @Label("Rate Limit Wait")
+        @Description("Time spent waiting for the rate limiter")
+        @Timespan(Timespan.NANOSECONDS)
+        long rateLimitWait;
+
+        @Label("Response Wait")
+        @Description("Time from sending the request, including the connection lease and connect, to the response headers")
+        @Timespan(Timespan.NANOSECONDS)
+        long responseWait;
+
+        @Label("Body Read")
+        @Description("Time spent waiting for response body data")
+        @Timespan(Timespan.NANOSECONDS)
+        long bodyRead;
+
+        @Label("Processing")
+        @Description("Time spent unmarshalling and journaling the response")
+        @Timespan(Timespan.NANOSECONDS)
+        long processing;
+
+        @Label("Failure")
+        String failure;
+    }
+
+    @Name("com.hpe.elderberry.TaxiiConnectionLifecycle")
+    @Label("TAXII Connection Lifecycle")
+    @Description("A TaxiiConnection initialization step, like loading a key store or creating the marshaller")
+    @Category({"TAXII"})
+    static class LifecycleEvent extends Event {
+        @Label("Step")
+        String step;
+
+        @Label("Discovery URL")
+        String discoveryUrl;
+
+        @Label("Failure")
+        String failure;
+    }
+}
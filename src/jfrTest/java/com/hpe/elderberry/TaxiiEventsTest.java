@@ -0,0 +1,83 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TaxiiEventsTest {
+    private static final byte[] DISCOVERY_RESPONSE = ("<taxii_11:Discovery_Response " +
+            "xmlns:taxii_11=\"http://taxii.mitre.org/messages/taxii_xml_binding-1.1\" message_id=\"1\" " +
+            "in_response_to=\"1\"/>").getBytes(UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsRequestAndLifecycleEvents() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(200, DISCOVERY_RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(DISCOVERY_RESPONSE);
+            }
+        });
+        server.start();
+
+        File dump = folder.newFile("taxii.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.hpe.elderberry.TaxiiRequest");
+            recording.enable("com.hpe.elderberry.TaxiiConnectionLifecycle");
+            recording.start();
+
+            TaxiiConnection conn = new TaxiiConnection();
+            conn.setDiscoveryUri(new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/taxii/discovery"));
+            Taxii11Template template = new Taxii11Template();
+            template.setTaxiiConnection(conn);
+            assertThat(template.discover()).isNotNull();
+
+            recording.stop();
+            recording.dump(dump.toPath());
+        } finally {
+            server.stop(0);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump.toPath());
+        List<RecordedEvent> requests = events.stream()
+                .filter(e -> e.getEventType().getName().equals("com.hpe.elderberry.TaxiiRequest"))
+                .collect(Collectors.toList());
+        assertThat(requests).hasSize(1);
+        assertThat(requests.get(0).getString("operation")).isEqualTo("discover");
+        assertThat(requests.get(0).getLong("responseBytes")).isEqualTo(DISCOVERY_RESPONSE.length);
+        assertThat(requests.get(0).getString("failure")).isNull();
+
+        List<String> steps = events.stream()
+                .filter(e -> e.getEventType().getName().equals("com.hpe.elderberry.TaxiiConnectionLifecycle"))
+                .map(e -> e.getString("step"))
+                .collect(Collectors.toList());
+        assertThat(steps).contains("marshaller", "ssl context", "rest template");
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * the delay the {@link SimulatedTaxiiServer} adds before each response, parsed from text:
+ * <ul>
+ * <li><code>none</code>: no delay</li>
+ * <li><code>fixed:5</code>: 5ms</li>
+ * <li><code>uniform:2-20</code>: 2 to 20ms, uniformly distributed</li>
+ * <li><code>tail:5,1%,500</code>: 5ms, and 500ms for 1% of the responses</li>
+ * </ul>
+ */
+final class LatencyProfile {
+    private final String text;
+
+    private final long minMillis;
+
+    private final long maxMillis;
+
+    private final double tailRatio;
+
+    private final long tailMillis;
+
+    private LatencyProfile(String text, long minMillis, long maxMillis, double tailRatio, long tailMillis) {
+        this.text = text;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.tailRatio = tailRatio;
+        this.tailMillis = tailMillis;
+    }
+
+    static LatencyProfile parse(String text) {
+        String[] kind = text.trim().split(":", 2);
+        try {
+            switch (kind[0]) {
+                case "none":
+                    return new LatencyProfile(text, 0, 0, 0, 0);
+                case "fixed":
+                    long fixed = Long.parseLong(kind[1].trim());
+                    return new LatencyProfile(text, fixed, fixed, 0, 0);
+                case "uniform":
+                    String[] range = kind[1].split("-");
+                    return new LatencyProfile(text, Long.parseLong(range[0].trim()), Long.parseLong(range[1].trim()),
+                            0, 0);
+                case "tail":
+                    String[] tail = kind[1].split(",");
+                    long base = Long.parseLong(tail[0].trim());
+                    return new LatencyProfile(text, base, base,
+                            Double.parseDouble(tail[1].trim().replace("%", "")) / 100, Long.parseLong(tail[2].trim()));
+                default:
+                    throw new IllegalArgumentException("unknown latency profile " + kind[0]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("invalid latency profile " + text + ", " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the delay of the next response
+     */
+    long nextMillis() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (tailRatio > 0 && random.nextDouble() < tailRatio) {
+            return tailMillis;
+        }
+
+        return minMillis == maxMillis ? minMillis : random.nextLong(minMillis, maxMillis + 1);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.lang.management.MemoryType.HEAP;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * <p>Polls a {@link SimulatedTaxiiServer} with a {@link Taxii11Template} from several threads for a fixed time, and
+ * reports the end-to-end throughput and latency of the polls with the heap, allocation and GC activity of the JVM. Run
+ * it with <code>gradle loadTest</code>, configured by system properties:</p>
+ * <ul>
+ * <li><code>loadTest.connections</code>: the connection pool size, defaults to 16</li>
+ * <li><code>loadTest.concurrency</code>: the number of polling threads, defaults to 16</li>
+ * <li><code>loadTest.collections</code>: the number of collections, defaults to 8</li>
+ * <li><code>loadTest.parts</code>: the number of result parts of each poll, defaults to 1</li>
+ * <li><code>loadTest.blocks</code>: the number of content blocks of each result part, defaults to 100</li>
+ * <li><code>loadTest.payloadBytes</code>: the approximate size of each content block's payload, defaults to 2048</li>
+ * <li><code>loadTest.latency</code>: the server latency profile, see {@link LatencyProfile}, defaults to none</li>
+ * <li><code>loadTest.coalesce</code>: whether identical concurrent polls are coalesced, defaults to false</li>
+ * <li><code>loadTest.executor</code>: <code>platform</code> or <code>virtual</code>, the threads the polls run on and
+ * the template's executor, see {@link TaxiiExecutors}, defaults to platform</li>
+ * <li><code>loadTest.xmlInputFactory</code>: the <code>XMLInputFactory</code> class of the connection's marshaller, see
+ * {@link TaxiiConnection#setXmlInputFactoryClassName(String)}, defaults to the JDK's</li>
+ * <li><code>loadTest.warmupSeconds</code>: the time polled before measuring, defaults to 10</li>
+ * <li><code>loadTest.durationSeconds</code>: the time measured, defaults to 30</li>
+ * <li><code>loadTest.label</code>: a label of the run, like the version tested</li>
+ * <li><code>loadTest.report</code>: the JSON report file, defaults to <code>loadTest.json</code></li>
+ * </ul>
+ * <p>A poll is all result parts of a collection, retrieved with
+ * {@link Taxii11Template#pollStream(URL, String, String, Date, Date)}. A poll that doesn't return every content
+ * block of the collection counts as an error. The allocation is that of the polling threads, the client's share of
+ * the work. The JVM doesn't count the allocation of virtual threads, it's reported as -1 with the virtual executor. GC pauses are the stop-the-world collections, concurrent cycles aren't counted.</p>
+ */
+public final class LoadTest {
+    private final int connections = Integer.getInteger("loadTest.connections", 16);
+    private final int concurrency = Integer.getInteger("loadTest.concurrency", 16);
+    private final int collections = Integer.getInteger("loadTest.collections", 8);
+    private final int parts = Integer.getInteger("loadTest.parts", 1);
+    private final int blocks = Integer.getInteger("loadTest.blocks", 100);
+    private final int payloadBytes = Integer.getInteger("loadTest.payloadBytes", 2048);
+    private final LatencyProfile latency = LatencyProfile.parse(System.getProperty("loadTest.latency", "none"));
+    private final boolean coalesce = Boolean.getBoolean("loadTest.coalesce");
+    private final boolean virtual = "virtual".equals(System.getProperty("loadTest.executor", "platform"));
+    private final String xmlInputFactory = System.getProperty("loadTest.xmlInputFactory");
+    private final int warmupSeconds = Integer.getInteger("loadTest.warmupSeconds", 10);
+    private final int durationSeconds = Integer.getInteger("loadTest.durationSeconds", 30);
+    private final String label = System.getProperty("loadTest.label", "");
+    private final File report = new File(System.getProperty("loadTest.report", "loadTest.json"));
+
+    private final ConcurrentLinkedQueue<Long> gcPauses = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean measuring;
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest().run();
+    }
+
+    private void run() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        // before the marshaller is created, the simulated server shares it
+        conn.setXmlInputFactoryClassName(xmlInputFactory);
+        ExecutorService executor = virtual ? TaxiiExecutors.newVirtualThreadPerTaskExecutor() : null;
+        try (SimulatedTaxiiServer server = new SimulatedTaxiiServer(conn.getMarshaller(), collections, parts, blocks,
+                payloadBytes, latency, concurrency * 2)) {
+            conn.setDiscoveryUri(server.getDiscoveryUrl().toURI());
+            conn.setMaxConnections(connections);
+            conn.setMaxConnectionsPerRoute(connections);
+            conn.setCoalesceRequests(coalesce);
+
+            Taxii11Template template = new Taxii11Template();
+            template.setTaxiiConnection(conn);
+            template.setExecutor(executor);
+
+            listenToGc();
+            System.out.println("load test: " + concurrency + " threads, " + connections + " connections, " +
+                    collections + " collections of " + parts + " x " + blocks + " blocks of " + payloadBytes +
+                    " bytes, latency " + latency + ", " + (virtual ? "virtual" : "platform") + " threads, " +
+                    (xmlInputFactory == null ? "default" : xmlInputFactory) + " parser, " + warmupSeconds +
+                    "s warm up, " + durationSeconds + "s");
+
+            Worker[] workers = new Worker[concurrency];
+            CountDownLatch done = new CountDownLatch(concurrency);
+            long start = nanoTime();
+            long measureStart = start + SECONDS.toNanos(warmupSeconds);
+            long measureEnd = measureStart + SECONDS.toNanos(durationSeconds);
+            for (int i = 0; i < concurrency; i++) {
+                workers[i] = new Worker(template, server.getPollUrl(), measureStart, measureEnd, done);
+                if (executor != null) {
+                    executor.execute(workers[i]);
+                } else {
+                    Thread thread = new Thread(workers[i], "load-test-" + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+
+            NANOSECONDS.sleep(measureStart - nanoTime());
+            Snapshot before = new Snapshot(server);
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            measuring = true;
+            done.await();
+            measuring = false;
+            Snapshot after = new Snapshot(server);
+
+            write(results(workers, before, after));
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private Map<String, Object> results(Worker[] workers, Snapshot before, Snapshot after) {
+        long errors = 0;
+        long contentBlocks = 0;
+        long allocated = 0;
+        int count = 0;
+        for (Worker worker : workers) {
+            count += worker.count;
+            errors += worker.errors;
+            contentBlocks += worker.contentBlocks;
+            allocated = allocated < 0 || worker.allocatedBytes < 0 ? -1 : allocated + worker.allocatedBytes;
+        }
+        long[] latencies = new long[count];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            offset += worker.count;
+        }
+        Arrays.sort(latencies);
+        long requests = latencies.length;
+
+        double seconds = (after.nanos - before.nanos) / 1e9;
+        long bytes = after.bytesSent - before.bytesSent;
+
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("p50", percentile(latencies, 0.5));
+        latency.put("p90", percentile(latencies, 0.9));
+        latency.put("p99", percentile(latencies, 0.99));
+        latency.put("p999", percentile(latencies, 0.999));
+        latency.put("max", latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1e6);
+        latency.put("mean", latencies.length == 0 ? 0 : Arrays.stream(latencies).average().orElse(0) / 1e6);
+
+        Map<String, Object> heap = new LinkedHashMap<>();
+        MemoryUsage usage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        heap.put("usedBytes", usage.getUsed());
+        heap.put("committedBytes", usage.getCommitted());
+        heap.put("maxBytes", usage.getMax());
+        heap.put("peakUsedBytes", peakHeapUsed());
+
+        Map<String, Object> allocation = new LinkedHashMap<>();
+        allocation.put("bytes", allocated);
+        allocation.put("megabytesPerSecond", allocated < 0 ? -1 : allocated / seconds / 1e6);
+        allocation.put("bytesPerRequest", allocated < 0 || requests == 0 ? -1 : allocated / requests);
+
+        List<Long> pauses = new ArrayList<>(gcPauses);
+        Map<String, Object> gc = new LinkedHashMap<>();
+        gc.put("pauses", pauses.size());
+        gc.put("totalMillis", pauses.stream().mapToLong(Long::longValue).sum());
+        gc.put("maxMillis", pauses.stream().mapToLong(Long::longValue).max().orElse(0));
+        gc.put("collections", after.gcCount - before.gcCount);
+        gc.put("collectionMillis", after.gcMillis - before.gcMillis);
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("requests", requests);
+        results.put("errors", errors);
+        results.put("contentBlocks", contentBlocks);
+        results.put("httpRequests", after.requests - before.requests);
+        results.put("seconds", seconds);
+        results.put("requestsPerSecond", requests / seconds);
+        results.put("megabytesPerSecond", bytes / seconds / 1e6);
+        results.put("latencyMillis", latency);
+        results.put("heap", heap);
+        results.put("allocation", allocation);
+        results.put("gc", gc);
+        return results;
+    }
+
+    private void write(Map<String, Object> results) throws Exception {
+        Map<String, Object> configuration = new LinkedHashMap<>();
+        configuration.put("connections", connections);
+        configuration.put("concurrency", concurrency);
+        configuration.put("collections", collections);
+        configuration.put("parts", parts);
+        configuration.put("blocks", blocks);
+        configuration.put("payloadBytes", payloadBytes);
+        configuration.put("latency", latency.toString());
+        configuration.put("coalesce", coalesce);
+        configuration.put("executor", virtual ? "virtual" : "platform");
+        configuration.put("xmlInputFactory", xmlInputFactory == null ? "default" : xmlInputFactory);
+        configuration.put("warmupSeconds", warmupSeconds);
+        configuration.put("durationSeconds", durationSeconds);
+
+        Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("java", System.getProperty("java.version"));
+        environment.put("vm", System.getProperty("java.vm.name"));
+        environment.put("processors", Runtime.getRuntime().availableProcessors());
+        environment.put("virtualThreads", TaxiiExecutors.isVirtualThreadSupported());
+        environment.put("gc", collectorNames());
+
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("label", label);
+        root.put("timestamp", Instant.now().toString());
+        root.put("configuration", configuration);
+        root.put("environment", environment);
+        root.put("results", results);
+
+        File directory = report.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("unable to create report directory " + directory);
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.writerWithDefaultPrettyPrinter().writeValue(report, root);
+        System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(results));
+        System.out.println("load test report written to " + report.getAbsolutePath());
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 when the JVM doesn't tell
+     */
+    private static long allocatedByCurrentThread() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean &&
+                ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return -1;
+    }
+
+    private static long peakHeapUsed() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    private static List<String> collectorNames() {
+        List<String> names = new ArrayList<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            names.add(collector.getName());
+        }
+
+        return names;
+    }
+
+    private void listenToGc() {
+        NotificationListener listener = (Notification notification, Object handback) -> {
+            if (measuring && GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // concurrent cycles run alongside the application, they're not pauses
+                if (!info.getGcName().contains("Concurrent") && !info.getGcName().contains("Cycles")) {
+                    gcPauses.add(info.getGcInfo().getDuration());
+                }
+            }
+        };
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+
+    /**
+     * polls random collections until the end of the measurement, recording the latency of the polls that started
+     * after the warm up
+     */
+    private class Worker implements Runnable {
+        private final Taxii11Template template;
+        private final URL pollUrl;
+        private final long measureStart;
+        private final long measureEnd;
+        private final CountDownLatch done;
+
+        private long[] latencies = new long[4096];
+        private int count;
+        private long errors;
+        private long contentBlocks;
+        private long allocatedBytes = -1;
+
+        Worker(Taxii11Template template, URL pollUrl, long measureStart, long measureEnd, CountDownLatch done) {
+            this.template = template;
+            this.pollUrl = pollUrl;
+            this.measureStart = measureStart;
+            this.measureEnd = measureEnd;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            long allocatedAtStart = -1;
+            try {
+                long start;
+                while ((start = nanoTime()) < measureEnd) {
+                    if (allocatedAtStart < 0 && start >= measureStart) {
+                        allocatedAtStart = allocatedByCurrentThread();
+                    }
+
+                    int collection = ThreadLocalRandom.current().nextInt(collections);
+                    // distinct time windows, so polls aren't coalesced unless they really are identical
+                    Date end = new Date(currentTimeMillis());
+                    long received;
+                    try {
+                        received = template.pollStream(pollUrl, SimulatedTaxiiServer.collectionName(collection),
+                                (String) null, new Date(end.getTime() - 3600000), end).count();
+                    } catch (RuntimeException e) {
+                        received = -1;
+                    }
+
+                    if (start >= measureStart) {
+                        record(nanoTime() - start);
+                        if (received == (long) parts * blocks) {
+                            contentBlocks += received;
+                        } else {
+                            errors++;
+                        }
+                    }
+                }
+
+                long allocatedAtEnd = allocatedByCurrentThread();
+                if (allocatedAtStart >= 0 && allocatedAtEnd >= 0) {
+                    allocatedBytes = allocatedAtEnd - allocatedAtStart;
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+
+    /**
+     * the counters at the start or end of the measurement
+     */
+    private static class Snapshot {
+        private final long nanos = nanoTime();
+        private final long requests;
+        private final long bytesSent;
+        private long gcCount;
+        private long gcMillis;
+
+        Snapshot(SimulatedTaxiiServer server) {
+            requests = server.getRequests();
+            bytesSent = server.getBytesSent();
+
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += Math.max(0, collector.getCollectionCount());
+                gcMillis += Math.max(0, collector.getCollectionTime());
+            }
+        }
+    }
+}
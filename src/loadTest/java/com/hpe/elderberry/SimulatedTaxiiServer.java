@@ -0,0 +1,264 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.AnyMixedContentType;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.ContentInstanceType;
+import org.mitre.taxii.messages.xml11.PollFulfillment;
+import org.mitre.taxii.messages.xml11.PollRequest;
+import org.mitre.taxii.messages.xml11.PollResponse;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hpe.elderberry.TaxiiExecutors.newVirtualThreadPerTaskExecutorOrPool;
+import static com.hpe.elderberry.TaxiiTimestamps.toXmlGregorianCalendar;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.mitre.taxii.Versions.VID_TAXII_XML_11;
+
+/**
+ * <p>A TAXII 1.1 poll service on the loopback interface, answering polls of its collections with generated STIX-like
+ * content. Every collection's result has the same number of parts and content blocks per part, and result parts are
+ * retrieved by poll fulfillment.</p>
+ * <p>The responses are marshalled once when the server is created, and each response is delayed by the latency
+ * profile, so the load test measures the client rather than the server.</p>
+ */
+class SimulatedTaxiiServer implements Closeable {
+    static final String STIX = "http://stix.mitre.org/stix-1";
+
+    private Log log = getLog(getClass());
+
+    private final Jaxb2Marshaller marshaller;
+
+    private final LatencyProfile latency;
+
+    private final int parts;
+
+    /**
+     * the marshalled result parts by collection and part number
+     */
+    private final byte[][][] responses;
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder bytesSent = new LongAdder();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param marshaller    the marshaller of the TAXII messages
+     * @param collections   the number of collections, named <code>collection-0</code> and on
+     * @param parts         the number of result parts of each poll
+     * @param blocksPerPart the number of content blocks of each result part
+     * @param payloadBytes  the approximate size of each content block's payload
+     * @param latency       the delay of each response
+     * @param threads       the platform threads serving requests when virtual threads aren't supported, at least the
+     *                      number of concurrent polls
+     */
+    SimulatedTaxiiServer(Jaxb2Marshaller marshaller, int collections, int parts, int blocksPerPart, int payloadBytes,
+                         LatencyProfile latency, int threads) throws IOException {
+        this.marshaller = marshaller;
+        this.latency = latency;
+        this.parts = parts;
+
+        responses = new byte[collections][parts][];
+        for (int collection = 0; collection < collections; collection++) {
+            for (int part = 0; part < parts; part++) {
+                responses[collection][part] = marshal(collection, part + 1, blocksPerPart, payloadBytes);
+            }
+        }
+
+        executor = newVirtualThreadPerTaskExecutorOrPool(threads);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/taxii/poll", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return the URL of the poll service
+     */
+    URL getPollUrl() {
+        try {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/taxii/poll");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the URL of a (non-existing) discovery service, to configure a connection with
+     */
+    URL getDiscoveryUrl() {
+        try {
+            return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/taxii/discovery");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String collectionName(int collection) {
+        return "collection-" + collection;
+    }
+
+    /**
+     * @param collection the collection
+     * @return the size of all parts of a poll result of the collection
+     */
+    long getResultBytes(int collection) {
+        long bytes = 0;
+        for (byte[] part : responses[collection]) {
+            bytes += part.length;
+        }
+
+        return bytes;
+    }
+
+    long getRequests() {
+        return requests.sum();
+    }
+
+    long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Object message = marshaller.unmarshal(new StreamSource(exchange.getRequestBody()));
+            byte[] body;
+            if (message instanceof PollRequest) {
+                body = part(((PollRequest) message).getCollectionName(), 1);
+            } else if (message instanceof PollFulfillment) {
+                PollFulfillment fulfillment = (PollFulfillment) message;
+                body = part(fulfillment.getCollectionName(), fulfillment.getResultPartNumber().intValue());
+            } else {
+                body = null;
+            }
+
+            if (body == null) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            long delay = latency.nextMillis();
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.getResponseHeaders().add("X-TAXII-Content-Type", VID_TAXII_XML_11);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            requests.increment();
+            bytesSent.add(body.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("unable to answer request, " + e.getMessage(), e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] part(String collectionName, int partNumber) {
+        int collection;
+        try {
+            collection = Integer.parseInt(collectionName.substring(collectionName.lastIndexOf('-') + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (collection < 0 || collection >= responses.length || partNumber < 1 || partNumber > parts) {
+            return null;
+        }
+
+        return responses[collection][partNumber - 1];
+    }
+
+    private byte[] marshal(int collection, int partNumber, int blocksPerPart, int payloadBytes) {
+        Document document = newDocument();
+        Instant now = Instant.now();
+        PollResponse response = new PollResponse()
+                .withMessageId(String.valueOf(partNumber))
+                .withInResponseTo("0")
+                .withCollectionName(collectionName(collection))
+                .withMore(partNumber < parts)
+                .withResultId("result-" + collection)
+                .withResultPartNumber(BigInteger.valueOf(partNumber));
+        for (int block = 0; block < blocksPerPart; block++) {
+            response.getContentBlocks().add(new ContentBlock()
+                    .withContentBinding(new ContentInstanceType().withBindingId(PollFilter.STIX_12))
+                    .withTimestampLabel(toXmlGregorianCalendar(now.minusSeconds(block)))
+                    .withContent(new AnyMixedContentType().withContent(stixPackage(document, collection, block,
+                            payloadBytes))));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        marshaller.marshal(response, new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * a STIX package of about <code>payloadBytes</code>, made of observables of about 100 bytes each
+     */
+    private static Element stixPackage(Document document, int collection, int block, int payloadBytes) {
+        Element stixPackage = document.createElementNS(STIX, "stix:STIX_Package");
+        stixPackage.setAttribute("id", "package-" + collection + "-" + block);
+        for (int observable = 0; observable * 100 < payloadBytes; observable++) {
+            Element indicator = document.createElementNS(STIX, "stix:Observable");
+            indicator.setTextContent(String.format("%d.%d.%d.%d/%064x", collection & 0xff, block & 0xff,
+                    observable >> 8 & 0xff, observable & 0xff, (long) collection << 40 ^ (long) block << 20 ^ observable));
+            stixPackage.appendChild(indicator);
+        }
+
+        return stixPackage;
+    }
+
+    private static Document newDocument() {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("unable to create document, " + e.getMessage(), e);
+        }
+    }
+}
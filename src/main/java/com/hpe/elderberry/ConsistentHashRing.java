@@ -0,0 +1,102 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * <p>An immutable consistent hash ring of node IDs. Each node is placed at a number of virtual points on a 64 bit ring,
+ * a key belongs to the node of the first point at or after the key's hash. When a node leaves only its keys move, to
+ * the nodes that follow its points, and when a node joins it only takes keys from the others. With enough virtual
+ * points the keys spread evenly.</p>
+ * <p>Hashes depend only on the bytes of the IDs and keys, so all nodes agree on the owner of a key as long as they
+ * agree on the members.</p>
+ */
+@SuppressWarnings("unused")
+public final class ConsistentHashRing {
+    private final Set<String> nodes;
+
+    private final long[] points;
+
+    private final String[] owners;
+
+    /**
+     * @param nodes         the node IDs
+     * @param virtualNodes  the number of points per node, at least 1. 100 to 200 points keep the load of each node
+     *                      within about 10% of the average
+     */
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtual nodes must be positive: " + virtualNodes);
+        }
+
+        this.nodes = unmodifiableSet(new TreeSet<>(nodes));
+        long[][] entries = new long[this.nodes.size() * virtualNodes][];
+        String[] ids = this.nodes.toArray(new String[this.nodes.size()]);
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                entries[n++] = new long[]{hash(ids[i] + "#" + v), i};
+            }
+        }
+
+        // ties, which are rare, go to the lower node ID on every node
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[entries.length];
+        owners = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = ids[(int) entries[i][1]];
+        }
+    }
+
+    /**
+     * @return the node IDs on the ring
+     */
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param key a key
+     * @return the ID of the node that owns the key, or null when the ring is empty
+     */
+    public String nodeFor(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        // past the last point the ring wraps around to the first
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * a 64 bit FNV-1a hash of the UTF-8 bytes, finalized to spread similar strings over the whole ring
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return LongHashSet.mix(hash);
+    }
+}
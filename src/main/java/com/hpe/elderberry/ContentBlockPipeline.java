@@ -0,0 +1,407 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.PollResponse;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Processes polled content blocks in parallel. Each content block goes through two stages:</p>
+ * <ul>
+ * <li><b>process</b>: the processor, for example parsing the STIX payload or extracting indicators, runs on a
+ * work-stealing fork-join pool. The blocks of a submission are split recursively, so idle workers steal the rest of a
+ * large poll response</li>
+ * <li><b>deliver</b>: the sink receives each processed block. When ordered (the default), the sink receives the
+ * blocks of a collection in submission order, one at a time per collection, while different collections are
+ * delivered concurrently. When not ordered, the sink receives each block right after it was processed, from any
+ * worker</li>
+ * </ul>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     ContentBlockPipeline<List<String>> pipeline = new ContentBlockPipeline<>(this::extractHashes,
+ *             (collection, hashes) -> store.addAll(collection, hashes));
+ *     pipeline.submit(collection.getCollectionName(), template.pollStream(collection, null, lastPoll, null)).join();
+ * }
+ * </pre>
+ * Streams are consumed in batches on the submitting thread, so the next result part is retrieved while the previous
+ * batches are processed. A block that fails a stage is logged, counted and skipped, it doesn't fail the other blocks.
+ * {@link #getStatistics()} reports the throughput of each stage.
+ *
+ * @param <T> the result type of the processor
+ */
+@SuppressWarnings("unused")
+public class ContentBlockPipeline<T> implements Closeable {
+    /**
+     * the stage that runs the processor
+     */
+    public static final String PROCESS = "process";
+
+    /**
+     * the stage that runs the sink
+     */
+    public static final String DELIVER = "deliver";
+
+    private Log log = getLog(getClass());
+
+    private final Function<ContentBlock, T> processor;
+
+    private final BiConsumer<String, T> sink;
+
+    private ForkJoinPool pool;
+
+    private boolean ownPool;
+
+    // a lock rather than synchronized, so virtual threads submitting to the pipeline don't pin their carrier
+    private final ReentrantLock poolLock = new ReentrantLock();
+
+    private boolean ordered = true;
+
+    private int batchSize = 256;
+
+    private int splitThreshold = 8;
+
+    private final ConcurrentMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    private final AtomicLong started = new AtomicLong();
+
+    /**
+     * @param processor processes a content block, it runs concurrently on the pool's workers
+     * @param sink      receives the collection name and the result of each processed block, a null result is not
+     *                  delivered
+     */
+    public ContentBlockPipeline(Function<ContentBlock, T> processor, BiConsumer<String, T> sink) {
+        this.processor = processor;
+        this.sink = sink;
+        stages.put(PROCESS, new Stage());
+        stages.put(DELIVER, new Stage());
+    }
+
+    /**
+     * an optional pool, the pipeline doesn't shut it down
+     *
+     * @param pool the fork-join pool to process on, when not set the pipeline creates a pool with one worker per
+     *             core, see {@link #setParallelism(int)}
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        ownPool = false;
+    }
+
+    /**
+     * @param parallelism the number of workers of the pool the pipeline creates, defaults to the number of cores. It
+     *                    has no effect when a pool was set with {@link #setPool(ForkJoinPool)}
+     */
+    public void setParallelism(int parallelism) {
+        if (pool == null || ownPool) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(parallelism);
+            ownPool = true;
+        }
+    }
+
+    /**
+     * @param ordered true to deliver the blocks of a collection in submission order, defaults to true. When false the
+     *                sink must be thread safe
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * @param batchSize the number of blocks taken from a stream for each submission, defaults to 256
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param splitThreshold the number of blocks below which a worker processes blocks itself rather than splitting
+     *                       them, defaults to 8. Raise it for processors that take microseconds per block
+     */
+    public void setSplitThreshold(int splitThreshold) {
+        this.splitThreshold = splitThreshold;
+    }
+
+    /**
+     * processes the content blocks of a poll response
+     *
+     * @param collectionName the collection the response belongs to
+     * @param response       the poll response, may be null. It's not modified, so coalesced responses can be
+     *                       submitted
+     * @return a future that completes when all blocks were delivered
+     */
+    public CompletableFuture<Void> submit(String collectionName, PollResponse response) {
+        return response == null ? completedFuture(null) : submit(collectionName, response.getContentBlocks());
+    }
+
+    /**
+     * processes content blocks
+     *
+     * @param collectionName the collection the blocks belong to
+     * @param blocks         the blocks to process, the list is copied
+     * @return a future that completes when all blocks were delivered
+     */
+    public CompletableFuture<Void> submit(String collectionName, List<ContentBlock> blocks) {
+        started.compareAndSet(0, nanoTime());
+        ContentBlock[] batch = blocks.toArray(new ContentBlock[blocks.size()]);
+        Object[] results = new Object[batch.length];
+        CompletableFuture<Void> processed = runAsync(() -> new Process(collectionName, batch, results, 0, batch.length)
+                .invoke(), getPool());
+
+        if (!ordered) {
+            return processed;
+        }
+
+        CompletableFuture<Void> delivered = new CompletableFuture<>();
+        CompletableFuture<Void> previous = tails.put(collectionName, delivered);
+        // deliver after the previous submission of the collection was delivered, even if it failed
+        (previous == null ? processed : previous.handle((v, e) -> null).thenCombine(processed, (v, p) -> null))
+                .whenComplete((v, e) -> {
+                    if (e == null) {
+                        for (Object result : results) {
+                            deliver(collectionName, result);
+                        }
+                        delivered.complete(null);
+                    } else {
+                        delivered.completeExceptionally(e);
+                    }
+                    tails.remove(collectionName, delivered);
+                });
+
+        return delivered;
+    }
+
+    /**
+     * processes a stream of content blocks, typically from
+     * {@link Taxii11Template#pollStream(java.net.URL, String, String, java.util.Date, java.util.Date)}. The stream is
+     * consumed on the calling thread, a batch at a time
+     *
+     * @param collectionName the collection the blocks belong to
+     * @param blocks         the blocks to process
+     * @return a future that completes when all blocks were delivered
+     */
+    public CompletableFuture<Void> submit(String collectionName, Stream<ContentBlock> blocks) {
+        List<CompletableFuture<Void>> submissions = new ArrayList<>();
+        List<ContentBlock> batch = new ArrayList<>(batchSize);
+        Iterator<ContentBlock> iterator = blocks.iterator();
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+            if (batch.size() >= batchSize || !iterator.hasNext()) {
+                submissions.add(submit(collectionName, batch));
+                batch.clear();
+            }
+        }
+
+        return allOf(submissions.toArray(new CompletableFuture[submissions.size()]));
+    }
+
+    /**
+     * @return the statistics of each stage by name, see {@link #PROCESS} and {@link #DELIVER}
+     */
+    public Map<String, StageStatistics> getStatistics() {
+        long start = started.get();
+        long elapsed = start == 0 ? 0 : nanoTime() - start;
+        Map<String, StageStatistics> result = new LinkedHashMap<>();
+        stages.forEach((name, stage) -> result.put(name, new StageStatistics(stage.blocks.sum(), stage.failures.sum(),
+                stage.busyNanos.sum(), elapsed)));
+        return result;
+    }
+
+    /**
+     * shuts down the pool the pipeline created, a pool set with {@link #setPool(ForkJoinPool)} is left running
+     */
+    @Override
+    public void close() {
+        poolLock.lock();
+        try {
+            if (ownPool && pool != null) {
+                pool.shutdown();
+            }
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    private ForkJoinPool getPool() {
+        poolLock.lock();
+        try {
+            if (pool == null) {
+                pool = new ForkJoinPool();
+                ownPool = true;
+            }
+            return pool;
+        } finally {
+            poolLock.unlock();
+        }
+    }
+
+    private Object process(ContentBlock block) {
+        Stage stage = stages.get(PROCESS);
+        long start = nanoTime();
+        try {
+            T result = processor.apply(block);
+            stage.blocks.increment();
+            return result;
+        } catch (RuntimeException e) {
+            stage.failures.increment();
+            log.warn("unable to process content block, skipping it, " + e.getMessage(), e);
+            return null;
+        } finally {
+            stage.busyNanos.add(nanoTime() - start);
+        }
+    }
+
+    private void deliver(String collectionName, Object result) {
+        if (result == null) {
+            return;
+        }
+
+        Stage stage = stages.get(DELIVER);
+        long start = nanoTime();
+        try {
+            //noinspection unchecked
+            sink.accept(collectionName, (T) result);
+            stage.blocks.increment();
+        } catch (RuntimeException e) {
+            stage.failures.increment();
+            log.warn("unable to deliver content block of " + collectionName + ", skipping it, " + e.getMessage(), e);
+        } finally {
+            stage.busyNanos.add(nanoTime() - start);
+        }
+    }
+
+    /**
+     * processes a range of blocks, splitting it in halves until it's small enough
+     */
+    private class Process extends RecursiveAction {
+        private final String collectionName;
+        private final ContentBlock[] blocks;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+
+        Process(String collectionName, ContentBlock[] blocks, Object[] results, int from, int to) {
+            this.collectionName = collectionName;
+            this.blocks = blocks;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > splitThreshold) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Process(collectionName, blocks, results, from, middle),
+                        new Process(collectionName, blocks, results, middle, to));
+                return;
+            }
+
+            for (int i = from; i < to; i++) {
+                Object result = process(blocks[i]);
+                // release the block, only the result is kept until delivery
+                blocks[i] = null;
+                if (ordered) {
+                    results[i] = result;
+                } else {
+                    deliver(collectionName, result);
+                }
+            }
+        }
+    }
+
+    private static class Stage {
+        private final LongAdder blocks = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+    }
+
+    /**
+     * the counters of a pipeline stage
+     */
+    public static class StageStatistics {
+        private final long blocks;
+        private final long failures;
+        private final long busyNanos;
+        private final long elapsedNanos;
+
+        StageStatistics(long blocks, long failures, long busyNanos, long elapsedNanos) {
+            this.blocks = blocks;
+            this.failures = failures;
+            this.busyNanos = busyNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return the number of blocks that completed the stage
+         */
+        public long getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * @return the number of blocks that failed the stage
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the time spent in the stage, summed over all threads
+         */
+        public long getBusyMillis() {
+            return NANOSECONDS.toMillis(busyNanos);
+        }
+
+        /**
+         * @return the blocks per second that completed the stage since the first submission
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : blocks * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return blocks + " blocks, " + failures + " failures, " + getBusyMillis() + "ms busy, " +
+                    String.format("%.1f", getThroughput()) + " blocks/s";
+        }
+    }
+}
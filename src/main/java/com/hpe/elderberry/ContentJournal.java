@@ -0,0 +1,507 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.Math.max;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.readAllLines;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>An append-only, segmented local journal of polled content blocks. Each content block is appended as-is to the
+ * current data segment, and a fixed size index entry (collection, timestamp, offset, length) is appended to the
+ * segment's index file. When a segment reaches the configured size a new segment is started, existing segments are
+ * never modified.</p>
+ * <p>Reads are served from memory-mapped segments, the payloads returned by {@link #read(String, long, long)} are
+ * read-only views of the mapped files, so no copy is made until the consumer decides to decode the payload. Closing
+ * the journal unmaps the segments, payloads must not be used after the journal is closed.</p>
+ * <p>The journal is version agnostic, it stores whatever bytes it's given. When set on {@link Taxii11Template} or
+ * {@link Taxii10Template} using {@code setContentJournal} the templates append every polled content block as XML.</p>
+ * <br>
+ * The journal directory layout is:
+ * <ul>
+ * <li>{@code collections} - the collection names, one per line, with backslashes, line feeds and carriage returns
+ * escaped as {@code \\}, {@code \n} and {@code \r}. The line number is the collection ID</li>
+ * <li>{@code <segment>.dat} - the content block payloads, appended back to back</li>
+ * <li>{@code <segment>.idx} - 24 bytes per content block: collection ID, timestamp, offset in the data file and
+ * length</li>
+ * </ul>
+ */
+@SuppressWarnings("unused")
+public class ContentJournal implements Closeable {
+    /**
+     * the default size of a data segment, 64MB
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int INDEX_ENTRY_SIZE = 24;
+
+    private Log log = getLog(getClass());
+
+    private final Path directory;
+    private final long segmentSize;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+    private final List<String> collectionNames = new ArrayList<>();
+    private final Map<String, Integer> collectionIds = new ConcurrentHashMap<>();
+    private final Map<Integer, CollectionIndex> indexes = new ConcurrentHashMap<>();
+    private final Map<Integer, MappedByteBuffer> sealedSegments = new ConcurrentHashMap<>();
+
+    private FileChannel collectionsFile;
+    private FileChannel data;
+    private FileChannel index;
+    private volatile int segment;
+    private volatile long segmentPosition;
+    private volatile ActiveMapping active;
+    private volatile boolean closed;
+
+    /**
+     * opens, or creates, a journal with the {@link #DEFAULT_SEGMENT_SIZE}
+     *
+     * @param directory the journal directory, created when it doesn't exist
+     */
+    public ContentJournal(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * opens, or creates, a journal
+     *
+     * @param directory   the journal directory, created when it doesn't exist
+     * @param segmentSize the size after which a new data segment is started. A single content block larger than this
+     *                    size is still written, into a segment of its own. Segments are memory-mapped for reading, so
+     *                    the segment size can't exceed 2GB
+     */
+    public ContentJournal(File directory, long segmentSize) {
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segment size must be positive and no larger than 2GB: " + segmentSize);
+        }
+
+        this.directory = directory.toPath();
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("unable to create journal directory " + directory);
+        }
+
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException("unable to open journal in " + directory + ", " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * appends a content block to the journal
+     *
+     * @param collection the collection (or feed) name the content block was polled from
+     * @param timestamp  the content block timestamp label, in milliseconds since the epoch
+     * @param payload    the content block
+     */
+    public void append(String collection, long timestamp, byte[] payload) {
+        writeLock.lock();
+        try {
+            int collectionId = collectionId(collection);
+
+            if (segmentPosition > 0 && segmentPosition + payload.length > segmentSize) {
+                roll();
+            }
+
+            long offset = segmentPosition;
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            while (buffer.hasRemaining()) {
+                data.write(buffer);
+            }
+
+            indexEntry.clear();
+            indexEntry.putInt(collectionId).putLong(timestamp).putLong(offset).putInt(payload.length).flip();
+            while (indexEntry.hasRemaining()) {
+                index.write(indexEntry);
+            }
+
+            segmentPosition = offset + payload.length;
+            indexes.computeIfAbsent(collectionId, id -> new CollectionIndex()).add(timestamp, segment, offset, payload.length);
+        } catch (IOException e) {
+            throw new RuntimeException("unable to append to journal in " + directory + ", " + e.getMessage(), e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * reads the content blocks of a collection in the order they were appended
+     *
+     * @param collection the collection (or feed) name
+     * @param fromMillis exclusive begin timestamp, in milliseconds since the epoch
+     * @param toMillis   inclusive end timestamp, in milliseconds since the epoch
+     * @return the matching journal entries, their payloads are read-only views of the memory-mapped journal files
+     */
+    public List<Entry> read(String collection, long fromMillis, long toMillis) {
+        if (closed) {
+            throw new IllegalStateException("the journal in " + directory + " is closed");
+        }
+
+        Integer collectionId = collectionIds.get(collection);
+        CollectionIndex collectionIndex = collectionId == null ? null : indexes.get(collectionId);
+        if (collectionIndex == null) {
+            return emptyList();
+        }
+
+        List<Entry> result = new ArrayList<>();
+        try {
+            collectionIndex.forEach((timestamp, segment, offset, length) -> {
+                if (timestamp > fromMillis && timestamp <= toMillis) {
+                    ByteBuffer payload = mapped(segment, offset + length).duplicate();
+                    payload.position((int) offset).limit((int) (offset + length));
+                    result.add(new Entry(collection, timestamp, payload.slice().asReadOnlyBuffer()));
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("unable to read journal in " + directory + ", " + e.getMessage(), e);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the names of all collections that have content in the journal
+     */
+    public List<String> getCollections() {
+        writeLock.lock();
+        try {
+            return unmodifiableList(new ArrayList<>(collectionNames));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * forces all appended content to the storage device
+     */
+    public void flush() {
+        writeLock.lock();
+        try {
+            data.force(false);
+            index.force(false);
+            collectionsFile.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("unable to flush journal in " + directory + ", " + e.getMessage(), e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * closes the journal files and unmaps the sealed segments and the latest mapping of the active segment, rather
+     * than leaving them mapped until they're garbage collected. Payloads read from the journal must not be used once it's closed, and reads must not run concurrently
+     * with closing it
+     *
+     * @throws IOException when a journal file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            data.close();
+            index.close();
+            collectionsFile.close();
+            sealedSegments.values().forEach(this::unmap);
+            sealedSegments.clear();
+            if (active != null) {
+                unmap(active.buffer);
+                active = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private int collectionId(String collection) throws IOException {
+        Integer id = collectionIds.get(collection);
+        if (id == null) {
+            id = collectionNames.size();
+            ByteBuffer line = ByteBuffer.wrap((escape(collection) + "\n").getBytes(UTF_8));
+            while (line.hasRemaining()) {
+                collectionsFile.write(line);
+            }
+            collectionNames.add(collection);
+            collectionIds.put(collection, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * escapes the characters that would break a collection name over several lines of the collections file
+     */
+    private static String escape(String collection) {
+        return collection.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String line) {
+        if (line.indexOf('\\') < 0) {
+            return line;
+        }
+
+        StringBuilder name = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                c = line.charAt(++i);
+                name.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            } else {
+                name.append(c);
+            }
+        }
+
+        return name.toString();
+    }
+
+    /**
+     * releases a mapping now rather than when it's garbage collected. Best effort, when the JVM doesn't allow it the
+     * mapping is left to the garbage collector
+     */
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            log.debug("unable to unmap journal segment, leaving it to the garbage collector, " + e.getMessage(), e);
+        }
+    }
+
+    private ByteBuffer mapped(int segment, long end) throws IOException {
+        if (segment != this.segment) {
+            MappedByteBuffer sealed = sealedSegments.get(segment);
+            if (sealed == null) {
+                try (FileChannel channel = FileChannel.open(segmentFile(segment, "dat"), READ)) {
+                    sealed = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                sealedSegments.put(segment, sealed);
+            }
+            return sealed;
+        }
+
+        // the active segment keeps growing, map what it holds now and remap only for an entry appended since. A
+        // replaced mapping may still back payloads that were read, it's left to the garbage collector
+        ActiveMapping current = active;
+        if (current == null || current.segment != segment || current.buffer.capacity() < end) {
+            try (FileChannel channel = FileChannel.open(segmentFile(segment, "dat"), READ)) {
+                current = new ActiveMapping(segment, channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        max(end, channel.size())));
+            }
+            active = current;
+        }
+        return current.buffer;
+    }
+
+    private void roll() throws IOException {
+        data.close();
+        index.close();
+        segment++;
+        segmentPosition = 0;
+        openSegment();
+    }
+
+    private void openSegment() throws IOException {
+        data = FileChannel.open(segmentFile(segment, "dat"), CREATE, WRITE, APPEND);
+        index = FileChannel.open(segmentFile(segment, "idx"), CREATE, WRITE, APPEND);
+    }
+
+    private Path segmentFile(int segment, String extension) {
+        return directory.resolve(String.format("%010d.%s", segment, extension));
+    }
+
+    private void recover() throws IOException {
+        Path collections = directory.resolve("collections");
+        if (collections.toFile().exists()) {
+            for (String line : readAllLines(collections, UTF_8)) {
+                String name = unescape(line);
+                collectionIds.put(name, collectionNames.size());
+                collectionNames.add(name);
+            }
+        }
+        collectionsFile = FileChannel.open(collections, CREATE, WRITE, APPEND);
+
+        File[] indexFiles = directory.toFile().listFiles((dir, name) -> name.endsWith(".idx"));
+        if (indexFiles != null) {
+            Arrays.sort(indexFiles);
+            for (File indexFile : indexFiles) {
+                segment = Integer.parseInt(indexFile.getName().substring(0, indexFile.getName().indexOf('.')));
+                segmentPosition = recoverSegment(indexFile.toPath());
+            }
+        }
+
+        openSegment();
+        log.info("opened journal in " + directory + ", segment: " + segment + ", collections: " + collectionNames.size());
+    }
+
+    private long recoverSegment(Path indexFile) throws IOException {
+        long end = 0;
+        try (FileChannel channel = FileChannel.open(indexFile, READ, WRITE)) {
+            // a partially written index entry at the end of the file is the result of a crash, drop it
+            long entries = channel.size() / INDEX_ENTRY_SIZE;
+            channel.truncate(entries * INDEX_ENTRY_SIZE);
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, entries * INDEX_ENTRY_SIZE);
+            while (buffer.hasRemaining()) {
+                int collectionId = buffer.getInt();
+                long timestamp = buffer.getLong();
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                indexes.computeIfAbsent(collectionId, id -> new CollectionIndex()).add(timestamp, segment, offset, length);
+                end = offset + length;
+            }
+        }
+
+        // content that was appended to the data file without a matching index entry is unreachable, drop it
+        try (FileChannel channel = FileChannel.open(segmentFile(segment, "dat"), CREATE, WRITE)) {
+            if (channel.size() > end) {
+                log.warn("dropping " + (channel.size() - end) + " unindexed bytes from journal segment " + segment);
+                channel.truncate(end);
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * a single journaled content block
+     */
+    public static class Entry {
+        private final String collection;
+        private final long timestamp;
+        private final ByteBuffer payload;
+
+        Entry(String collection, long timestamp, ByteBuffer payload) {
+            this.collection = collection;
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * @return the content block timestamp label, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return a read-only view of the content block, backed by the memory-mapped journal file
+         */
+        public ByteBuffer getPayload() {
+            return payload.duplicate();
+        }
+    }
+
+    /**
+     * the latest mapping of the active segment, shared by reads
+     */
+    private static class ActiveMapping {
+        private final int segment;
+        private final MappedByteBuffer buffer;
+
+        ActiveMapping(int segment, MappedByteBuffer buffer) {
+            this.segment = segment;
+            this.buffer = buffer;
+        }
+    }
+
+    private interface EntryVisitor {
+        void visit(long timestamp, int segment, long offset, int length) throws IOException;
+    }
+
+    /**
+     * an in-memory, per collection index using parallel primitive arrays. Appended by the single writer, reads see a
+     * consistent prefix since the size is published last and grown arrays are published before the size
+     */
+    private static class CollectionIndex {
+        private volatile long[] timestamps = new long[64];
+        private volatile long[] positions = new long[64];
+        private volatile int[] lengths = new int[64];
+        private volatile int size;
+
+        void add(long timestamp, int segment, long offset, int length) {
+            if (size == timestamps.length) {
+                int capacity = size * 2;
+                long[] newTimestamps = Arrays.copyOf(timestamps, capacity);
+                long[] newPositions = Arrays.copyOf(positions, capacity);
+                int[] newLengths = Arrays.copyOf(lengths, capacity);
+                timestamps = newTimestamps;
+                positions = newPositions;
+                lengths = newLengths;
+            }
+
+            timestamps[size] = timestamp;
+            // segments are limited to 2GB by mapping, so the offset fits in the lower 32 bits
+            positions[size] = ((long) segment << 32) | offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        void forEach(EntryVisitor visitor) throws IOException {
+            int count = size;
+            long[] timestamps = this.timestamps;
+            long[] positions = this.positions;
+            int[] lengths = this.lengths;
+
+            for (int i = 0; i < count; i++) {
+                visitor.visit(timestamps[i], (int) (positions[i] >>> 32), positions[i] & 0xFFFFFFFFL, lengths[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>An open addressing set of fixed width binary digests, like MD5 or SHA-256 file hashes. The digests are stored
+ * back to back in a single byte array, a 32 byte SHA-256 takes 32 bytes per slot rather than a 64 character string
+ * and its object headers. Digests are uniformly distributed, so their first 8 bytes pick the slot. The all zero digest
+ * can't be stored.</p>
+ * <p>Like {@link LongHashSet}, one thread at a time may add while any number of threads read without locking. A
+ * digest is copied into its slot before the slot's bit in an atomic bitmap is set, and readers only compare slots
+ * whose bit they see set, so a reader never sees a digest half written.</p>
+ */
+final class DigestSet {
+    /**
+     * the digests and the bitmap of the slots in use, replaced together when the set grows
+     */
+    private static final class Table {
+        private final byte[] digests;
+        private final AtomicIntegerArray used;
+        private final int mask;
+
+        Table(int slots, int width) {
+            digests = new byte[slots * width];
+            used = new AtomicIntegerArray((slots + 31) / 32);
+            mask = slots - 1;
+        }
+
+        boolean isUsed(int slot) {
+            return (used.get(slot >>> 5) & (1 << slot)) != 0;
+        }
+
+        void use(int slot) {
+            // a single writer, the volatile write publishes the digest copied before it
+            used.set(slot >>> 5, used.get(slot >>> 5) | (1 << slot));
+        }
+    }
+
+    private final int width;
+
+    private volatile Table table;
+
+    private volatile int size;
+
+    /**
+     * @param width the digest length in bytes, at least 8
+     */
+    DigestSet(int width) {
+        if (width < 8) {
+            throw new IllegalArgumentException("digests must be at least 8 bytes: " + width);
+        }
+
+        this.width = width;
+        table = new Table(16, width);
+    }
+
+    int width() {
+        return width;
+    }
+
+    /**
+     * @param digest the digest to add, exactly {@link #width()} bytes
+     * @return true when the digest was added, false when it was already in the set or it's all zeros
+     */
+    boolean add(byte[] digest) {
+        checkWidth(digest);
+        if (isZero(digest)) {
+            return false;
+        }
+
+        Table current = table;
+        int slots = current.mask + 1;
+        if ((size + 1) * 2 > slots) {
+            current = rehash(current, slots * 2);
+            table = current;
+        }
+
+        if (!insert(current, digest, 0)) {
+            return false;
+        }
+
+        size++;
+        return true;
+    }
+
+    boolean contains(byte[] digest) {
+        checkWidth(digest);
+        Table current = table;
+        for (int i = slot(digest, 0, current.mask); ; i = (i + 1) & current.mask) {
+            if (!current.isUsed(i)) {
+                return false;
+            }
+            if (equals(current.digests, i * width, digest, 0)) {
+                return true;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private boolean insert(Table table, byte[] digest, int offset) {
+        for (int i = slot(digest, offset, table.mask); ; i = (i + 1) & table.mask) {
+            if (!table.isUsed(i)) {
+                System.arraycopy(digest, offset, table.digests, i * width, width);
+                table.use(i);
+                return true;
+            }
+            if (equals(table.digests, i * width, digest, offset)) {
+                return false;
+            }
+        }
+    }
+
+    private Table rehash(Table table, int slots) {
+        Table result = new Table(slots, width);
+        for (int i = 0; i <= table.mask; i++) {
+            if (table.isUsed(i)) {
+                insert(result, table.digests, i * width);
+            }
+        }
+        return result;
+    }
+
+    private int slot(byte[] digest, int offset, int mask) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (digest[offset + i] & 0xff);
+        }
+        return (int) LongHashSet.mix(prefix) & mask;
+    }
+
+    private boolean equals(byte[] table, int slotOffset, byte[] digest, int offset) {
+        for (int i = 0; i < width; i++) {
+            if (table[slotOffset + i] != digest[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isZero(byte[] digest) {
+        for (byte b : digest) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkWidth(byte[] digest) {
+        if (digest.length != width) {
+            throw new IllegalArgumentException("expected a " + width + " byte digest, got " + digest.length);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.context.SmartLifecycle;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>A {@link Membership} kept as lease files in a shared directory, for local testing and for nodes that share a file
+ * system. Every node writes <code>&lt;node ID&gt;.lease</code> with the time its lease expires and renews it three
+ * times per lease. A node whose lease expired is no longer a member. The leases are read at most once per renewal, so
+ * frequent ownership checks don't scan the directory, and a crashed node drops out after at most one lease and a
+ * renewal. A node that stops deletes its lease, the others see it leave within a renewal.</p>
+ * <p>The node clocks have to roughly agree, lease expiry is compared with the local clock.</p>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     <bean name="membership" class="DirectoryLeaseMembership"
+ *          p:directory="/mnt/shared/taxii-pollers"
+ *          p:leaseMillis="30000"
+ *     />
+ * }
+ * </pre>
+ */
+@SuppressWarnings("unused")
+public class DirectoryLeaseMembership implements Membership, SmartLifecycle {
+    private static final String SUFFIX = ".lease";
+
+    private Log log = getLog(getClass());
+
+    private File directory;
+
+    private String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    private long leaseMillis = 30000;
+
+    private int phase;
+
+    private volatile boolean running;
+
+    private ScheduledExecutorService renewer;
+
+    // the members as last read from the leases, see getMembers
+    private volatile Members members;
+
+    /**
+     * @param directory the shared directory of the lease files, it's created when missing
+     */
+    @Required
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param nodeId the ID of this node, unique in the group. Defaults to <code>pid@hostname</code>
+     */
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * @param leaseMillis how long a lease lasts without renewal, defaults to 30 seconds
+     */
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * @param phase the lifecycle phase, defaults to 0. Start before the pollers that use the membership
+     */
+    public void setPhase(int phase) {
+        this.phase = phase;
+    }
+
+    @Override
+    public String getLocalNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the nodes with a live lease, read from the lease files at most once per renewal
+     */
+    @Override
+    public Set<String> getMembers() {
+        Members current = members;
+        long now = nanoTime();
+        if (current == null || now - current.readNanos >= MILLISECONDS.toNanos(leaseMillis / 3)) {
+            current = new Members(readMembers(), now);
+            members = current;
+        }
+
+        return current.nodes;
+    }
+
+    private Set<String> readMembers() {
+        Set<String> members = new TreeSet<>();
+        long now = currentTimeMillis();
+        try (DirectoryStream<Path> leases = Files.newDirectoryStream(directory.toPath(), "*" + SUFFIX)) {
+            for (Path lease : leases) {
+                String name = lease.getFileName().toString();
+                if (expiry(lease) > now) {
+                    members.add(name.substring(0, name.length() - SUFFIX.length()));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("unable to read leases in " + directory + ", " + e.getMessage(), e);
+        }
+
+        return unmodifiableSet(members);
+    }
+
+    @Override
+    public void start() {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new RuntimeException("unable to create lease directory " + directory);
+        }
+
+        renew();
+        members = null;
+        renewer = newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "taxii-lease-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewer.scheduleWithFixedDelay(this::renewQuietly, leaseMillis / 3, leaseMillis / 3, MILLISECONDS);
+        running = true;
+        log.info("node " + nodeId + " joined " + directory);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (renewer != null) {
+            renewer.shutdownNow();
+            renewer = null;
+        }
+
+        try {
+            if (Files.deleteIfExists(leaseFile())) {
+                log.info("node " + nodeId + " left " + directory);
+            }
+            members = null;
+        } catch (IOException e) {
+            log.warn("unable to delete lease " + leaseFile() + ", it expires in " + leaseMillis + "ms, " +
+                    e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return phase;
+    }
+
+    private void renew() {
+        // written aside and moved into place, so readers never see a partial lease
+        Path lease = leaseFile();
+        Path next = lease.resolveSibling(lease.getFileName() + ".tmp");
+        try {
+            Files.write(next, Long.toString(currentTimeMillis() + leaseMillis).getBytes(UTF_8));
+            try {
+                Files.move(next, lease, ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (IOException e) {
+                Files.move(next, lease, REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("unable to renew lease " + lease + ", " + e.getMessage(), e);
+        }
+    }
+
+    private void renewQuietly() {
+        try {
+            renew();
+        } catch (RuntimeException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private long expiry(Path lease) {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(lease), UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            // deleted while listing, or being replaced on a file system without atomic moves
+            return 0;
+        }
+    }
+
+    private Path leaseFile() {
+        return directory.toPath().resolve(nodeId + SUFFIX);
+    }
+
+    /**
+     * the members read from the leases, and when they were read
+     */
+    private static class Members {
+        private final Set<String> nodes;
+        private final long readNanos;
+
+        Members(Set<String> nodes, long readNanos) {
+            this.nodes = nodes;
+            this.readNanos = readNanos;
+        }
+    }
+}
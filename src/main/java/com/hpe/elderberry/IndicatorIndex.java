@@ -0,0 +1,414 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.PollResponse;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>An in-memory index of STIX indicators for matching network events: IP addresses and CIDR blocks, domain names,
+ * URLs and file hashes. It's built incrementally as polls arrive, for example:</p>
+ * <pre>
+ * {@code
+ *
+ *     IndicatorIndex index = new IndicatorIndex();
+ *     template.pollStream(collection, null, lastPoll, null).forEach(index::add);
+ *     ...
+ *     if (index.matchesAddress(event.getDestinationIp()) || index.matchesDomain(event.getHost())) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * <p>The index is built for millions of indicators in a small heap, nothing is stored as a string or a boxed
+ * value:</p>
+ * <ul>
+ * <li>single addresses are longs in open addressing hash sets, IPv6 addresses are stored as a 64 bit hash</li>
+ * <li>CIDR blocks are in binary radix tries, one for IPv4 and one for IPv6</li>
+ * <li>domains and URLs are stored as 64 bit hashes of their normalized form. A lookup may falsely match with a
+ * probability of about one in 2<sup>64</sup> divided by the number of indicators</li>
+ * <li>file hashes are stored as raw bytes, 16, 20 or 32 bytes each</li>
+ * </ul>
+ * <p>Lookups don't lock and can run on any number of threads while polls add indicators. Adding is serialized. A
+ * lookup sees every indicator added before it started.</p>
+ * <p>Indicators are never removed, build a new index to expire old indicators.</p>
+ */
+@SuppressWarnings("unused")
+public class IndicatorIndex {
+    /**
+     * the indicator types
+     */
+    public enum Type {
+        /**
+         * an IPv4 or IPv6 address, or a CIDR block
+         */
+        ADDRESS,
+
+        /**
+         * a domain name, it matches the domain and its subdomains
+         */
+        DOMAIN,
+
+        /**
+         * a URL, it's compared without its scheme and fragment, and with a lower case host
+         */
+        URL,
+
+        /**
+         * an MD5, SHA-1 or SHA-256 file hash in hex
+         */
+        HASH
+    }
+
+    private Log log = getLog(getClass());
+
+    private final StixIndicatorExtractor extractor;
+
+    private final LongHashSet ipv4 = new LongHashSet();
+
+    private final LongHashSet ipv6 = new LongHashSet();
+
+    private final PrefixTrie ipv4Blocks = new PrefixTrie(32);
+
+    private final PrefixTrie ipv6Blocks = new PrefixTrie(128);
+
+    private final LongHashSet domains = new LongHashSet();
+
+    private final LongHashSet urls = new LongHashSet();
+
+    private final DigestSet md5 = new DigestSet(16);
+
+    private final DigestSet sha1 = new DigestSet(20);
+
+    private final DigestSet sha256 = new DigestSet(32);
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public IndicatorIndex() {
+        this(new StixIndicatorExtractor());
+    }
+
+    /**
+     * @param extractor the extractor to read content blocks with
+     */
+    public IndicatorIndex(StixIndicatorExtractor extractor) {
+        this.extractor = extractor;
+    }
+
+    /**
+     * adds the indicators of a poll response
+     *
+     * @param response a poll response, may be null
+     */
+    public void add(PollResponse response) {
+        if (response != null) {
+            response.getContentBlocks().forEach(this::add);
+        }
+    }
+
+    /**
+     * adds the indicators of a content block
+     *
+     * @param block a STIX content block
+     */
+    public void add(ContentBlock block) {
+        // parse outside of the lock, content blocks of concurrent polls are extracted in parallel
+        List<Type> types = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        extractor.extract(block, (type, value) -> {
+            types.add(type);
+            values.add(value);
+        });
+
+        writeLock.lock();
+        try {
+            for (int i = 0; i < types.size(); i++) {
+                addLocked(types.get(i), values.get(i));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * adds a single indicator
+     *
+     * @param type  the indicator type
+     * @param value the indicator value
+     * @return true when the indicator was added, false when it was already in the index or it's not valid
+     */
+    public boolean add(Type type, String value) {
+        writeLock.lock();
+        try {
+            return addLocked(type, value);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @param address an IPv4 or IPv6 address literal, host names are never resolved
+     * @return true when the address or a block containing it is in the index
+     */
+    public boolean matchesAddress(String address) {
+        long[] parsed = parseAddress(address);
+        return parsed != null && matches(parsed);
+    }
+
+    /**
+     * @param address an IPv4 or IPv6 address
+     * @return true when the address or a block containing it is in the index
+     */
+    public boolean matchesAddress(InetAddress address) {
+        return matches(toLongs(address.getAddress()));
+    }
+
+    /**
+     * @param domain a domain name
+     * @return true when the domain or one of its parent domains is in the index
+     */
+    public boolean matchesDomain(String domain) {
+        String normalized = normalizeDomain(domain);
+        for (int start = 0; start >= 0 && start < normalized.length(); ) {
+            if (domains.contains(hash(normalized, start))) {
+                return true;
+            }
+            int dot = normalized.indexOf('.', start);
+            start = dot < 0 ? -1 : dot + 1;
+        }
+        return false;
+    }
+
+    /**
+     * @param url a URL
+     * @return true when the URL is in the index, compared without its scheme and fragment
+     */
+    public boolean matchesUrl(String url) {
+        return urls.contains(hash(normalizeUrl(url), 0));
+    }
+
+    /**
+     * @param hash an MD5, SHA-1 or SHA-256 hash in hex
+     * @return true when the hash is in the index
+     */
+    public boolean matchesHash(String hash) {
+        byte[] digest = parseHex(hash);
+        DigestSet set = digest == null ? null : digestSet(digest.length);
+        return set != null && set.contains(digest);
+    }
+
+    /**
+     * @param type an indicator type
+     * @return the number of indicators of this type in the index
+     */
+    public int getIndicatorCount(Type type) {
+        switch (type) {
+            case ADDRESS:
+                return ipv4.size() + ipv6.size() + ipv4Blocks.size() + ipv6Blocks.size();
+            case DOMAIN:
+                return domains.size();
+            case URL:
+                return urls.size();
+            default:
+                return md5.size() + sha1.size() + sha256.size();
+        }
+    }
+
+    private boolean addLocked(Type type, String value) {
+        switch (type) {
+            case ADDRESS:
+                return addAddress(value);
+            case DOMAIN:
+                String domain = normalizeDomain(value);
+                return !domain.isEmpty() && domains.add(hash(domain, 0));
+            case URL:
+                String url = normalizeUrl(value);
+                return !url.isEmpty() && urls.add(hash(url, 0));
+            default:
+                byte[] digest = parseHex(value);
+                DigestSet set = digest == null ? null : digestSet(digest.length);
+                if (set == null) {
+                    log.debug("ignoring unsupported file hash: " + value);
+                    return false;
+                }
+                return set.add(digest);
+        }
+    }
+
+    private boolean addAddress(String value) {
+        int slash = value.indexOf('/');
+        long[] address = parseAddress(slash < 0 ? value : value.substring(0, slash));
+        if (address == null) {
+            log.debug("ignoring invalid address: " + value);
+            return false;
+        }
+
+        boolean v4 = address.length == 1;
+        int bits = v4 ? 32 : 128;
+        int prefixLength = bits;
+        if (slash >= 0) {
+            try {
+                prefixLength = Integer.parseInt(value.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                prefixLength = -1;
+            }
+            if (prefixLength < 0 || prefixLength > bits) {
+                log.debug("ignoring invalid address block: " + value);
+                return false;
+            }
+        }
+
+        if (prefixLength == bits) {
+            return v4 ? ipv4.add(address[0]) : ipv6.add(hash(address[0], address[1]));
+        }
+
+        return v4 ? ipv4Blocks.add(address[0] << 32, 0, prefixLength) :
+                ipv6Blocks.add(address[0], address[1], prefixLength);
+    }
+
+    private boolean matches(long[] address) {
+        if (address.length == 1) {
+            return ipv4.contains(address[0]) || ipv4Blocks.contains(address[0] << 32, 0);
+        }
+
+        return ipv6.contains(hash(address[0], address[1])) || ipv6Blocks.contains(address[0], address[1]);
+    }
+
+    private DigestSet digestSet(int length) {
+        return length == 16 ? md5 : length == 20 ? sha1 : length == 32 ? sha256 : null;
+    }
+
+    /**
+     * @return an IPv4 address as one long, an IPv6 address as two longs, or null when it's not an address literal
+     */
+    static long[] parseAddress(String address) {
+        String value = address == null ? "" : address.trim();
+        if (value.indexOf(':') >= 0) {
+            // an IPv6 literal, a name with a colon is rejected without a lookup
+            try {
+                return toLongs(InetAddress.getByName(value.startsWith("[") ? value : "[" + value + "]").getAddress());
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        long result = 0;
+        int octets = 0;
+        int octet = -1;
+        for (int i = 0; i <= value.length(); i++) {
+            char c = i < value.length() ? value.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return null;
+                }
+            } else if (c == '.' && octet >= 0 && octets < 4) {
+                result = (result << 8) | octet;
+                octets++;
+                octet = -1;
+            } else {
+                return null;
+            }
+        }
+
+        return octets == 4 ? new long[]{result} : null;
+    }
+
+    private static long[] toLongs(byte[] address) {
+        if (address.length == 4) {
+            return new long[]{((address[0] & 0xffL) << 24) | ((address[1] & 0xffL) << 16) |
+                    ((address[2] & 0xffL) << 8) | (address[3] & 0xffL)};
+        }
+
+        long hi = 0;
+        long lo = 0;
+        for (int i = 0; i < 8; i++) {
+            hi = (hi << 8) | (address[i] & 0xff);
+            lo = (lo << 8) | (address[i + 8] & 0xff);
+        }
+
+        // an IPv4-mapped IPv6 address is the IPv4 address
+        if (hi == 0 && (lo >>> 32) == 0xffffL) {
+            return new long[]{lo & 0xffffffffL};
+        }
+
+        return new long[]{hi, lo};
+    }
+
+    static String normalizeDomain(String domain) {
+        String result = domain == null ? "" : domain.trim().toLowerCase(Locale.ROOT);
+        if (result.startsWith("*.")) {
+            result = result.substring(2);
+        }
+        if (result.endsWith(".")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    static String normalizeUrl(String url) {
+        String result = url == null ? "" : url.trim();
+        int fragment = result.indexOf('#');
+        if (fragment >= 0) {
+            result = result.substring(0, fragment);
+        }
+
+        int scheme = result.indexOf("://");
+        if (scheme >= 0) {
+            result = result.substring(scheme + 3);
+        }
+
+        int path = result.indexOf('/');
+        String authority = path < 0 ? result : result.substring(0, path);
+        String rest = path < 0 || path == result.length() - 1 ? "" : result.substring(path);
+        return authority.toLowerCase(Locale.ROOT) + rest;
+    }
+
+    /**
+     * a 64 bit FNV-1a hash of the string from an offset, finalized for a uniform distribution
+     */
+    private static long hash(String value, int start) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return LongHashSet.mix(hash);
+    }
+
+    private static long hash(long hi, long lo) {
+        return LongHashSet.mix(hi ^ LongHashSet.mix(lo));
+    }
+
+    private static byte[] parseHex(String hex) {
+        String value = hex == null ? "" : hex.trim();
+        if (value.isEmpty() || value.length() % 2 != 0) {
+            return null;
+        }
+
+        byte[] result = new byte[value.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            int high = Character.digit(value.charAt(2 * i), 16);
+            int low = Character.digit(value.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            result[i] = (byte) ((high << 4) | low);
+        }
+        return result;
+    }
+}
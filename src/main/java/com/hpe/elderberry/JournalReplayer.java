@@ -0,0 +1,185 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import static javax.xml.bind.JAXBIntrospector.getValue;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Reads content blocks back from a {@link ContentJournal} and unmarshals them into their JAXB TAXII types. This is
+ * the engine behind {@link ReplayTaxii11Template} and {@link ReplayTaxii10Template}, and it can also be used directly
+ * to reprocess many collections at disk speed with {@link #replay(Collection, long, long, Class, BiConsumer)}, which
+ * replays each collection as a separate partition in parallel.</p>
+ * <p>Within a collection content blocks are always delivered in the order they were journaled.</p>
+ */
+@SuppressWarnings("unused")
+public class JournalReplayer {
+    private Log log = getLog(getClass());
+
+    private ContentJournal journal;
+
+    private volatile Jaxb2Marshaller marshaller;
+
+    // a lock rather than synchronized, so virtual threads waiting for the lazy initialization don't pin their carrier
+    private final ReentrantLock initLock = new ReentrantLock();
+
+    private Executor executor = ForkJoinPool.commonPool();
+
+    /**
+     * the journal to replay
+     *
+     * @param journal a journal previously populated by polling with a template that had a journal set
+     */
+    @Required
+    public void setContentJournal(ContentJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * an optional <code>Jaxb2Marshaller</code>
+     *
+     * @param marshaller if not provided then a default marshaller for the TAXII messages is created. Set this to the
+     *                   marshaller of your {@link TaxiiConnection} to share it
+     */
+    public void setMarshaller(Jaxb2Marshaller marshaller) {
+        this.marshaller = marshaller;
+    }
+
+    /**
+     * an optional executor to replay collections on
+     *
+     * @param executor the executor running the per collection partitions, defaults to the common fork join pool
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the collections that have content in the journal
+     */
+    public List<String> getCollections() {
+        return journal.getCollections();
+    }
+
+    /**
+     * reads a collection's content blocks from the journal
+     *
+     * @param collection the collection (or feed) name
+     * @param fromMillis exclusive begin timestamp, in milliseconds since the epoch
+     * @param toMillis   inclusive end timestamp, in milliseconds since the epoch
+     * @param blockType  the content block type, either the TAXII 1.1 or the TAXII 1.0 <code>ContentBlock</code>
+     * @param <T>        the content block type
+     * @return the content blocks in the order they were journaled
+     */
+    public <T> List<T> read(String collection, long fromMillis, long toMillis, Class<T> blockType) {
+        List<ContentJournal.Entry> entries = journal.read(collection, fromMillis, toMillis);
+        List<T> blocks = new ArrayList<>(entries.size());
+        Jaxb2Marshaller marshaller = getMarshaller();
+
+        for (ContentJournal.Entry entry : entries) {
+            Object block = getValue(marshaller.unmarshal(new StreamSource(new ByteBufferInputStream(entry.getPayload()))));
+            if (blockType.isInstance(block)) {
+                blocks.add(blockType.cast(block));
+            } else {
+                log.warn("skipping journaled " + block.getClass().getName() + " in collection " + collection +
+                        ", expecting " + blockType.getName());
+            }
+        }
+
+        return blocks;
+    }
+
+    /**
+     * replays collections in parallel, one partition per collection. This method returns when all collections were
+     * replayed
+     *
+     * @param collections the collections (or feeds) to replay
+     * @param fromMillis  exclusive begin timestamp, in milliseconds since the epoch
+     * @param toMillis    inclusive end timestamp, in milliseconds since the epoch
+     * @param blockType   the content block type, either the TAXII 1.1 or the TAXII 1.0 <code>ContentBlock</code>
+     * @param consumer    receives the collection name and its content blocks. It's called concurrently for different
+     *                    collections
+     * @param <T>         the content block type
+     */
+    public <T> void replay(Collection<String> collections, long fromMillis, long toMillis, Class<T> blockType,
+                           BiConsumer<String, List<T>> consumer) {
+        // create the marshaller once before fanning out
+        getMarshaller();
+
+        List<CompletableFuture<Void>> partitions = new ArrayList<>(collections.size());
+        for (String collection : collections) {
+            partitions.add(CompletableFuture.runAsync(() ->
+                    consumer.accept(collection, read(collection, fromMillis, toMillis, blockType)), executor));
+        }
+
+        CompletableFuture.allOf(partitions.toArray(new CompletableFuture[partitions.size()])).join();
+    }
+
+    private Jaxb2Marshaller getMarshaller() {
+        Jaxb2Marshaller result = marshaller;
+        if (result == null) {
+            initLock.lock();
+            try {
+                if (marshaller == null) {
+                    marshaller = TaxiiConnection.createDefaultMarshaller();
+                }
+                result = marshaller;
+            } finally {
+                initLock.unlock();
+            }
+        }
+
+        return result;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>An open addressing set of primitive longs, 8 bytes per slot with no boxing and no entry objects.</p>
+ * <p>One thread at a time may add, any number of threads may read without locking. A reader sees every key that was
+ * added before it started, and possibly keys being added concurrently. The table is replaced, never resized in place,
+ * so a reader always probes a complete table.</p>
+ */
+final class LongHashSet {
+    private static final long EMPTY = 0;
+
+    private volatile AtomicLongArray table;
+
+    private volatile boolean containsEmpty;
+
+    private volatile int size;
+
+    LongHashSet() {
+        this(16);
+    }
+
+    LongHashSet(int expectedSize) {
+        table = new AtomicLongArray(capacityFor(expectedSize));
+    }
+
+    /**
+     * @param key the key to add
+     * @return true when the key was added, false when it was already in the set
+     */
+    boolean add(long key) {
+        if (key == EMPTY) {
+            if (containsEmpty) {
+                return false;
+            }
+            containsEmpty = true;
+            size++;
+            return true;
+        }
+
+        AtomicLongArray current = table;
+        if ((size + 1) * 2 > current.length()) {
+            current = rehash(current, current.length() * 2);
+            table = current;
+        }
+
+        if (!insert(current, key)) {
+            return false;
+        }
+
+        size++;
+        return true;
+    }
+
+    boolean contains(long key) {
+        if (key == EMPTY) {
+            return containsEmpty;
+        }
+
+        AtomicLongArray current = table;
+        int mask = current.length() - 1;
+        for (int i = (int) mix(key) & mask; ; i = (i + 1) & mask) {
+            long slot = current.get(i);
+            if (slot == key) {
+                return true;
+            }
+            if (slot == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the table size in slots, for memory estimates
+     */
+    int capacity() {
+        return table.length();
+    }
+
+    /**
+     * a 64 bit finalizer that spreads keys over the table, from MurmurHash3
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static boolean insert(AtomicLongArray table, long key) {
+        int mask = table.length() - 1;
+        for (int i = (int) mix(key) & mask; ; i = (i + 1) & mask) {
+            long slot = table.get(i);
+            if (slot == key) {
+                return false;
+            }
+            if (slot == EMPTY) {
+                table.set(i, key);
+                return true;
+            }
+        }
+    }
+
+    private static AtomicLongArray rehash(AtomicLongArray table, int capacity) {
+        AtomicLongArray result = new AtomicLongArray(capacity);
+        for (int i = 0; i < table.length(); i++) {
+            long key = table.get(i);
+            if (key != EMPTY) {
+                insert(result, key);
+            }
+        }
+        return result;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.util.Set;
+
+/**
+ * the live nodes of a group of pollers sharing their collections, see {@link ShardedPoller}. Implement it over any
+ * coordination service, {@link DirectoryLeaseMembership} uses lease files in a shared directory
+ */
+public interface Membership {
+    /**
+     * @return the ID of this node
+     */
+    String getLocalNodeId();
+
+    /**
+     * @return the IDs of the live nodes, including this node while it's a member
+     */
+    Set<String> getMembers();
+}
@@ -0,0 +1,152 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.mitre.taxii.messages.xml11.ContentBindingIDType;
+import org.mitre.taxii.messages.xml11.PollParametersType;
+import org.mitre.taxii.messages.xml11.QueryType;
+import org.mitre.taxii.messages.xml11.ResponseTypeEnum;
+import org.mitre.taxii.messages.xml11.SubscriptionParametersType;
+import org.mitre.taxii.query.DefaultQuery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * <p>A server-side filter for TAXII 1.1 polls. The filter is sent as the poll parameters of the poll request, so the
+ * server only returns content blocks with the requested content bindings that match the query, instead of the client
+ * downloading and discarding everything else.</p>
+ * <br>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     PollFilter filter = new PollFilter()
+ *             .withContentBinding(PollFilter.STIX_12)
+ *             .withContentBinding(PollFilter.STIX_111)
+ *             .withDefaultQuery(query);
+ *
+ *     PollResponse response = template.poll(pollUrl, "system.Default", filter, begin, end);
+ * }
+ * </pre>
+ * The query is any query the server supports, typically a TAXII default query built with the
+ * <code>org.mitre.taxii.query</code> classes of the TAXII-java project, see {@link #withDefaultQuery(DefaultQuery)}.
+ */
+@SuppressWarnings("unused")
+public class PollFilter {
+    public static final String STIX_10 = "urn:stix.mitre.org:xml:1.0";
+    public static final String STIX_101 = "urn:stix.mitre.org:xml:1.0.1";
+    public static final String STIX_11 = "urn:stix.mitre.org:xml:1.1";
+    public static final String STIX_111 = "urn:stix.mitre.org:xml:1.1.1";
+    public static final String STIX_12 = "urn:stix.mitre.org:xml:1.2";
+    public static final String CYBOX_20 = "urn:cybox.mitre.org:xml:2.0";
+    public static final String CYBOX_201 = "urn:cybox.mitre.org:xml:2.0.1";
+    public static final String CYBOX_21 = "urn:cybox.mitre.org:xml:2.1";
+
+    /**
+     * the format ID of the TAXII default query
+     */
+    public static final String DEFAULT_QUERY_FORMAT = "urn:taxii.mitre.org:query:default:1.0";
+
+    private final Set<String> contentBindings = new LinkedHashSet<>();
+
+    private QueryType query;
+
+    /**
+     * adds an accepted content binding. When no content binding is added the server returns all content bindings
+     *
+     * @param bindingId the content binding ID, for example {@link #STIX_12}
+     * @return this filter
+     */
+    public PollFilter withContentBinding(String bindingId) {
+        contentBindings.add(bindingId);
+        return this;
+    }
+
+    /**
+     * sets the query
+     *
+     * @param query a query in any format the poll service supports
+     * @return this filter
+     */
+    public PollFilter withQuery(QueryType query) {
+        this.query = query;
+        return this;
+    }
+
+    /**
+     * sets a TAXII default query
+     *
+     * @param defaultQuery the default query
+     * @return this filter
+     */
+    public PollFilter withDefaultQuery(DefaultQuery defaultQuery) {
+        return withQuery(new QueryType().withFormatId(DEFAULT_QUERY_FORMAT).withAny(defaultQuery));
+    }
+
+    /**
+     * @return the accepted content bindings, empty when all content bindings are accepted
+     */
+    public Set<String> getContentBindings() {
+        return unmodifiableSet(contentBindings);
+    }
+
+    public QueryType getQuery() {
+        return query;
+    }
+
+    /**
+     * checks whether a collection can serve this filter
+     *
+     * @param collection a collection record, as returned by collection information
+     * @return true when the collection advertises at least one of the accepted content bindings, or doesn't restrict
+     * its content bindings at all
+     */
+    public boolean isSupportedBy(CollectionRecordType collection) {
+        if (contentBindings.isEmpty() || collection.getContentBindings().isEmpty()) {
+            return true;
+        }
+
+        for (ContentBindingIDType binding : collection.getContentBindings()) {
+            if (contentBindings.contains(binding.getBindingId())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    PollParametersType toPollParameters(ResponseTypeEnum responseType) {
+        return new PollParametersType()
+                .withResponseType(responseType)
+                .withContentBindings(toContentBindingIds())
+                .withQuery(query);
+    }
+
+    SubscriptionParametersType toSubscriptionParameters(ResponseTypeEnum responseType) {
+        return new SubscriptionParametersType()
+                .withResponseType(responseType)
+                .withContentBindings(toContentBindingIds())
+                .withQuery(query);
+    }
+
+    private List<ContentBindingIDType> toContentBindingIds() {
+        List<ContentBindingIDType> bindings = new ArrayList<>(contentBindings.size());
+        for (String bindingId : contentBindings) {
+            bindings.add(new ContentBindingIDType().withBindingId(bindingId));
+        }
+
+        return bindings;
+    }
+}
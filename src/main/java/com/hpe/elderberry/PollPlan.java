@@ -0,0 +1,146 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.net.URL;
+import java.util.Date;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * the result of {@link PollPlanner#plan(URL, String, Date, Date)}: how to poll a collection and in which time windows
+ */
+@SuppressWarnings("unused")
+public class PollPlan {
+    /**
+     * how the content of a plan should be retrieved
+     */
+    public enum Strategy {
+        /**
+         * the content is small enough to hold each window in memory: all result parts of a window can be retrieved
+         * before its content is processed
+         */
+        IN_MEMORY,
+
+        /**
+         * the content is large, or its size is unknown, stream each window with
+         * {@link Taxii11Template#pollStream(URL, String, String, Date, Date)}
+         */
+        STREAMING,
+
+        /**
+         * the content is too large to be polled now, the poll should be deferred or rescheduled
+         */
+        DEFER
+    }
+
+    private final URL pollUrl;
+    private final String collectionName;
+    private final Strategy strategy;
+    private final List<Window> windows;
+    private final long estimatedCount;
+    private final boolean partialCount;
+
+    PollPlan(URL pollUrl, String collectionName, Strategy strategy, List<Window> windows, long estimatedCount,
+             boolean partialCount) {
+        this.pollUrl = pollUrl;
+        this.collectionName = collectionName;
+        this.strategy = strategy;
+        this.windows = unmodifiableList(windows);
+        this.estimatedCount = estimatedCount;
+        this.partialCount = partialCount;
+    }
+
+    public URL getPollUrl() {
+        return pollUrl;
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return the time windows to poll, in chronological order, covering the planned time range without overlap
+     */
+    public List<Window> getWindows() {
+        return windows;
+    }
+
+    /**
+     * @return the total number of content blocks the server reported for the planned time range, or -1 when the server
+     * couldn't count
+     */
+    public long getEstimatedCount() {
+        return estimatedCount;
+    }
+
+    /**
+     * @return true when at least one of the counts was partial, so the actual number of content blocks is higher than
+     * the estimate
+     */
+    public boolean isPartialCount() {
+        return partialCount;
+    }
+
+    @Override
+    public String toString() {
+        return strategy + " " + collectionName + ", " + windows.size() + " windows, " + estimatedCount +
+                (partialCount ? "+" : "") + " blocks";
+    }
+
+    /**
+     * a single poll time window
+     */
+    public static class Window {
+        private final Date exclusiveBegin;
+        private final Date inclusiveEnd;
+        private final long count;
+        private final boolean partialCount;
+
+        Window(Date exclusiveBegin, Date inclusiveEnd, long count, boolean partialCount) {
+            this.exclusiveBegin = exclusiveBegin;
+            this.inclusiveEnd = inclusiveEnd;
+            this.count = count;
+            this.partialCount = partialCount;
+        }
+
+        public Date getExclusiveBegin() {
+            return exclusiveBegin;
+        }
+
+        public Date getInclusiveEnd() {
+            return inclusiveEnd;
+        }
+
+        /**
+         * @return the number of content blocks the server reported for this window, or -1 when unknown
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return true when the server reported a partial count, so the window holds at least {@link #getCount()}
+         * content blocks
+         */
+        public boolean isPartialCount() {
+            return partialCount;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + exclusiveBegin.getTime() + ", " + inclusiveEnd.getTime() + "]: " + count + (partialCount ? "+" : "");
+        }
+    }
+}
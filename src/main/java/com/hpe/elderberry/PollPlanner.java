@@ -0,0 +1,227 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.RecordCountType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static com.hpe.elderberry.PollPlan.Strategy.DEFER;
+import static com.hpe.elderberry.PollPlan.Strategy.IN_MEMORY;
+import static com.hpe.elderberry.PollPlan.Strategy.STREAMING;
+import static java.lang.Boolean.TRUE;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Plans large TAXII 1.1 polls before downloading them. The planner asks the server how many content blocks the poll
+ * would return using {@link Taxii11Template#count(URL, String, Date, Date)}, then:</p>
+ * <ul>
+ * <li>splits the time range in halves, recursively, until each window holds no more than
+ * {@link #setMaxWindowCount(long)} content blocks, the window reaches {@link #setMinWindowMillis(long)} or the
+ * {@link #setMaxProbes(int)} budget is spent</li>
+ * <li>picks {@link PollPlan.Strategy#IN_MEMORY} when every window is small, {@link PollPlan.Strategy#STREAMING} when
+ * a window is larger than {@link #setStreamingThreshold(long)} or its size is unknown, and
+ * {@link PollPlan.Strategy#DEFER} when the whole range is larger than {@link #setDeferThreshold(long)}</li>
+ * </ul>
+ * Splitting a window probes its first half only when the window count is exact, the second half is the difference.
+ */
+@SuppressWarnings("unused")
+public class PollPlanner {
+    private Log log = getLog(getClass());
+
+    private Taxii11Template template;
+
+    private long streamingThreshold = 10000;
+
+    private long maxWindowCount = 50000;
+
+    private long deferThreshold = Long.MAX_VALUE;
+
+    private long minWindowMillis = 60000;
+
+    private int maxProbes = 32;
+
+    /**
+     * the template used to count and poll
+     *
+     * @param template a valid, non-null {@link Taxii11Template}
+     */
+    @Autowired
+    @Required
+    public void setTemplate(Taxii11Template template) {
+        this.template = template;
+    }
+
+    /**
+     * @param streamingThreshold a window with more content blocks than this is streamed rather than polled into
+     *                           memory, defaults to 10,000
+     */
+    public void setStreamingThreshold(long streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    /**
+     * @param maxWindowCount windows with more content blocks than this are split, defaults to 50,000
+     */
+    public void setMaxWindowCount(long maxWindowCount) {
+        this.maxWindowCount = maxWindowCount;
+    }
+
+    /**
+     * @param deferThreshold polls with more content blocks than this are planned as {@link PollPlan.Strategy#DEFER},
+     *                       by default polls are never deferred
+     */
+    public void setDeferThreshold(long deferThreshold) {
+        this.deferThreshold = deferThreshold;
+    }
+
+    /**
+     * @param minWindowMillis windows shorter than twice this duration are not split, defaults to 1 minute
+     */
+    public void setMinWindowMillis(long minWindowMillis) {
+        this.minWindowMillis = minWindowMillis;
+    }
+
+    /**
+     * @param maxProbes the maximum number of count requests for a single plan, including the initial count, defaults
+     *                  to 32
+     */
+    public void setMaxProbes(int maxProbes) {
+        this.maxProbes = maxProbes;
+    }
+
+    /**
+     * plans a poll
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection name to poll
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return the plan
+     * @throws URISyntaxException when the poll URL cannot be converted to a URI
+     */
+    public PollPlan plan(URL pollUrl, String collectionName, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException {
+        Planning planning = new Planning(pollUrl, collectionName);
+        PollPlan.Window total = planning.probe(exclusiveBegin.getTime(), inclusiveEnd.getTime());
+
+        PollPlan plan;
+        if (total.getCount() < 0) {
+            plan = new PollPlan(pollUrl, collectionName, STREAMING, singletonList(total), -1, false);
+        } else if (total.getCount() > deferThreshold) {
+            plan = new PollPlan(pollUrl, collectionName, DEFER, singletonList(total), total.getCount(), planning.partial);
+        } else {
+            planning.split(total);
+
+            boolean small = !planning.partial;
+            for (PollPlan.Window window : planning.windows) {
+                small &= window.getCount() >= 0 && window.getCount() <= streamingThreshold;
+            }
+
+            plan = new PollPlan(pollUrl, collectionName, small ? IN_MEMORY : STREAMING, planning.windows,
+                    total.getCount(), planning.partial);
+        }
+
+        log.debug("planned " + plan + " using " + planning.probes + " count requests");
+        return plan;
+    }
+
+    /**
+     * polls the windows of a plan in order, using the plan's strategy. All result parts of each window are retrieved,
+     * with either strategy
+     *
+     * @param plan           a plan created by {@link #plan(URL, String, Date, Date)}
+     * @param subscriptionId an optional subscription ID. Some services require it, even if they ignore it (like hail a
+     *                       taxii)
+     * @param consumer       receives the content blocks
+     * @return the number of content blocks consumed
+     * @throws URISyntaxException    when the poll URL cannot be converted to a URI
+     * @throws IllegalStateException when the plan's strategy is {@link PollPlan.Strategy#DEFER}
+     */
+    public long execute(PollPlan plan, String subscriptionId, Consumer<ContentBlock> consumer) throws URISyntaxException {
+        if (plan.getStrategy() == DEFER) {
+            throw new IllegalStateException("the poll was planned to be deferred: " + plan);
+        }
+
+        long count = 0;
+        for (PollPlan.Window window : plan.getWindows()) {
+            try (Stream<ContentBlock> stream = template.pollStream(plan.getPollUrl(), plan.getCollectionName(),
+                    subscriptionId, window.getExclusiveBegin(), window.getInclusiveEnd())) {
+                // an in memory window has all its parts retrieved before the consumer receives its first block
+                Iterator<ContentBlock> blocks = plan.getStrategy() == IN_MEMORY ? stream.collect(toList()).iterator() :
+                        stream.iterator();
+                while (blocks.hasNext()) {
+                    consumer.accept(blocks.next());
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * the state of a single plan
+     */
+    private class Planning {
+        private final URL pollUrl;
+        private final String collectionName;
+        private final List<PollPlan.Window> windows = new ArrayList<>();
+        private int probes;
+        private boolean partial;
+
+        Planning(URL pollUrl, String collectionName) {
+            this.pollUrl = pollUrl;
+            this.collectionName = collectionName;
+        }
+
+        PollPlan.Window probe(long exclusiveBegin, long inclusiveEnd) throws URISyntaxException {
+            probes++;
+            RecordCountType count = template.count(pollUrl, collectionName, new Date(exclusiveBegin), new Date(inclusiveEnd));
+            long value = count == null || count.getValue() == null ? -1 : count.getValue().longValue();
+            boolean partialCount = count != null && TRUE.equals(count.isPartialCount());
+            partial |= partialCount;
+            return new PollPlan.Window(new Date(exclusiveBegin), new Date(inclusiveEnd), value, partialCount);
+        }
+
+        void split(PollPlan.Window window) throws URISyntaxException {
+            long begin = window.getExclusiveBegin().getTime();
+            long end = window.getInclusiveEnd().getTime();
+            boolean exact = !window.isPartialCount();
+
+            // splitting an exact window takes one probe, a partial window takes two
+            if (window.getCount() <= maxWindowCount || window.getCount() < 0 || end - begin < 2 * minWindowMillis ||
+                    probes + (exact ? 1 : 2) > maxProbes) {
+                windows.add(window);
+                return;
+            }
+
+            long middle = begin + (end - begin) / 2;
+            PollPlan.Window first = probe(begin, middle);
+            PollPlan.Window second = exact && first.getCount() >= 0 && !first.isPartialCount() ?
+                    new PollPlan.Window(new Date(middle), new Date(end), window.getCount() - first.getCount(), false) :
+                    probe(middle, end);
+
+            split(first);
+            split(second);
+        }
+    }
+}
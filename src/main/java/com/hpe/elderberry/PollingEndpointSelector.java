@@ -0,0 +1,413 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.hpe.elderberry.TaxiiExecutors.newVirtualThreadPerTaskExecutorOrPool;
+import static java.lang.System.nanoTime;
+import static java.util.Comparator.comparingDouble;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Chooses among the polling services a collection or feed lists, instead of always using the first one. The
+ * selector tracks an exponentially weighted moving average (EWMA) of the latency and of the error rate of each polling
+ * service address:</p>
+ * <ul>
+ * <li>a call goes to the healthy endpoint with the lowest average latency. Endpoints without samples yet rank first,
+ * in the order they're listed, so every mirror gets measured</li>
+ * <li>when a call fails, or returns nothing, the next endpoint is tried</li>
+ * <li>an endpoint whose error rate goes over {@link #setMaxErrorRate(double)} is ejected for
+ * {@link #setEjectionMillis(long)} and only tried when all healthy endpoints failed. After the ejection it gets
+ * traffic again, a success clears it</li>
+ * <li>with {@link #setHedgeDelayMillis(long)} set, a call that didn't complete within the delay is also sent to the
+ * next endpoint, and the first result wins. Only use hedging with idempotent calls, polls are. The losing call is
+ * canceled: its thread is interrupted, which doesn't stop a blocked HTTP read, so a loser that already sent its request
+ * runs to completion in the background, or until the deadline of the template call aborts it. The templates journal
+ * only the winning result, see {@link Taxii11Template#setContentJournal(ContentJournal)}</li>
+ * </ul>
+ * Set the selector on {@link Taxii11Template#setEndpointSelector(PollingEndpointSelector)} or
+ * {@link Taxii10Template#setEndpointSelector(PollingEndpointSelector)}. One selector can be shared by many templates.
+ */
+@SuppressWarnings("unused")
+public class PollingEndpointSelector {
+    /**
+     * a call to one endpoint
+     *
+     * @param <T> the result type
+     */
+    public interface EndpointCall<T> {
+        /**
+         * @param endpoint the endpoint to call
+         * @return the result, or null when the endpoint had an error
+         * @throws Exception when the call failed
+         */
+        T call(URL endpoint) throws Exception;
+    }
+
+    private Log log = getLog(getClass());
+
+    private final ConcurrentMap<String, EndpointStatistics> statistics = new ConcurrentHashMap<>();
+
+    private final LongAdder hedged = new LongAdder();
+
+    private double alpha = 0.2;
+
+    private double maxErrorRate = 0.5;
+
+    private long ejectionMillis = 30000;
+
+    private long hedgeDelayMillis;
+
+    private ExecutorService executor;
+
+    /**
+     * @param alpha the weight of the latest sample in the moving averages, between 0 and 1, defaults to 0.2. Higher
+     *              values react faster to changes and are noisier
+     */
+    public void setAlpha(double alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]: " + alpha);
+        }
+        this.alpha = alpha;
+    }
+
+    /**
+     * @param maxErrorRate the average error rate over which an endpoint is ejected, defaults to 0.5
+     */
+    public void setMaxErrorRate(double maxErrorRate) {
+        this.maxErrorRate = maxErrorRate;
+    }
+
+    /**
+     * @param ejectionMillis how long an unhealthy endpoint is ejected, defaults to 30 seconds
+     */
+    public void setEjectionMillis(long ejectionMillis) {
+        this.ejectionMillis = ejectionMillis;
+    }
+
+    /**
+     * @param hedgeDelayMillis how long to wait for an endpoint before also sending the call to the next one, when 0 or
+     *                         not set calls aren't hedged. A delay around the 95th percentile latency hedges about 5%
+     *                         of the calls
+     */
+    public void setHedgeDelayMillis(long hedgeDelayMillis) {
+        this.hedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    /**
+     * an optional executor for hedged calls
+     *
+     * @param executor when not set, each hedged call runs on a new virtual thread per task executor, or on a small
+     *                 pool of platform threads before Java 21. See {@link TaxiiExecutors}
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * orders endpoints for a call: healthy endpoints by average latency, then ejected endpoints by the end of their
+     * ejection
+     *
+     * @param addresses the endpoint addresses, in the order the server listed them
+     * @return the addresses in the order to try them
+     */
+    public List<String> order(Collection<String> addresses) {
+        long now = nanoTime();
+        List<String> healthy = new ArrayList<>(addresses.size());
+        List<String> ejected = new ArrayList<>();
+        for (String address : addresses) {
+            (statistics(address).isEjected(now) ? ejected : healthy).add(address);
+        }
+
+        // stable sorts, endpoints with equal ranks stay in the listed order
+        healthy.sort(comparingDouble(address -> statistics(address).latencyNanos));
+        ejected.sort(comparingDouble(address -> statistics(address).ejectedUntilNanos));
+        healthy.addAll(ejected);
+        return healthy;
+    }
+
+    /**
+     * calls the best endpoint, failing over to the next endpoints until one returns a result
+     *
+     * @param addresses the endpoint addresses, in the order the server listed them
+     * @param call      the call to make
+     * @param <T>       the result type
+     * @return the first result, or null when all endpoints returned null
+     * @throws RuntimeException when all endpoints failed, with the last failure as its cause
+     */
+    public <T> T call(Collection<String> addresses, EndpointCall<T> call) {
+        return call(addresses, call, TaxiiDeadline.currentOr(0));
+    }
+
+    /**
+     * calls the endpoints within a deadline: no further endpoint is tried, and no attempt is waited for, once it expired
+     *
+     * @throws TaxiiTimeoutException when the deadline expired while waiting for a hedged call
+     */
+    <T> T call(Collection<String> addresses, EndpointCall<T> call, TaxiiDeadline deadline) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("no polling service to call");
+        }
+
+        List<String> ordered = order(addresses);
+        return hedgeDelayMillis > 0 && ordered.size() > 1 ? callHedged(ordered, call, deadline) :
+                callInTurn(ordered, call, deadline);
+    }
+
+    /**
+     * records the outcome of a call that wasn't made through {@link #call(Collection, EndpointCall)}
+     *
+     * @param address      the endpoint address
+     * @param elapsedNanos how long the call took
+     * @param success      whether the call returned a result
+     */
+    public void record(String address, long elapsedNanos, boolean success) {
+        EndpointStatistics endpoint = statistics(address);
+        if (endpoint.record(elapsedNanos, success, alpha, maxErrorRate, ejectionMillis) && !success) {
+            log.warn("polling service " + address + " is failing, ejecting it for " + ejectionMillis + "ms");
+        }
+    }
+
+    /**
+     * @param address the endpoint address
+     * @return the average latency in milliseconds, or -1 when there were no successful calls yet
+     */
+    public double getLatencyMillis(String address) {
+        double latency = statistics(address).latencyNanos;
+        return latency == 0 ? -1 : latency / 1e6;
+    }
+
+    /**
+     * @param address the endpoint address
+     * @return the average error rate, between 0 and 1
+     */
+    public double getErrorRate(String address) {
+        return statistics(address).errorRate;
+    }
+
+    /**
+     * @param address the endpoint address
+     * @return false while the endpoint is ejected
+     */
+    public boolean isHealthy(String address) {
+        return !statistics(address).isEjected(nanoTime());
+    }
+
+    /**
+     * @return the number of calls that were hedged to a second endpoint
+     */
+    public long getHedgedCount() {
+        return hedged.sum();
+    }
+
+    /**
+     * polls with a selector within a deadline, or at the first polling service without one, throwing the address errors
+     * the templates declare
+     */
+    static <T> T poll(PollingEndpointSelector selector, List<String> addresses, TaxiiDeadline deadline, EndpointCall<T> poll) throws URISyntaxException, MalformedURLException {
+        try {
+            if (selector == null) {
+                return poll.call(new URL(addresses.get(0)));
+            }
+            return selector.call(addresses, poll, deadline);
+        } catch (URISyntaxException | MalformedURLException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof URISyntaxException) {
+                throw (URISyntaxException) e.getCause();
+            }
+            if (e.getCause() instanceof MalformedURLException) {
+                throw (MalformedURLException) e.getCause();
+            }
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("unable to poll, " + e.getMessage(), e);
+        }
+    }
+
+    private <T> T callInTurn(List<String> ordered, EndpointCall<T> call, TaxiiDeadline deadline) {
+        Exception failure = null;
+        for (String address : ordered) {
+            if (failure != null && deadline.remaining() <= 0) {
+                break;
+            }
+
+            try {
+                T result = attempt(address, call);
+                if (result != null) {
+                    return result;
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        return failed(failure);
+    }
+
+    private <T> T callHedged(List<String> ordered, EndpointCall<T> call, TaxiiDeadline deadline) {
+        ExecutorService hedgeExecutor = executor != null ? executor : newVirtualThreadPerTaskExecutorOrPool(2);
+        CompletionService<T> completions = new ExecutorCompletionService<>(hedgeExecutor);
+        List<Future<T>> attempts = new ArrayList<>(ordered.size());
+        Exception failure = null;
+        try {
+            int next = 0;
+            int inFlight = 0;
+            boolean hedging = true;
+            attempts.add(completions.submit(() -> attempt(ordered.get(0), call)));
+            next++;
+            inFlight++;
+
+            long hedgeDelayNanos = MILLISECONDS.toNanos(hedgeDelayMillis);
+            while (inFlight > 0) {
+                long remaining = deadline.remaining();
+                if (remaining <= 0) {
+                    throw TaxiiDeadline.expiredWhile("the polling services");
+                }
+
+                // hedge once, after that the remaining endpoints are only tried in turn on failure
+                boolean hedge = hedging && next < ordered.size() && hedgeDelayNanos < remaining;
+                Future<T> done = completions.poll(hedge ? hedgeDelayNanos : remaining, NANOSECONDS);
+                if (done == null) {
+                    if (!hedge) {
+                        continue;
+                    }
+
+                    hedging = false;
+                    hedged.increment();
+                    String address = ordered.get(next++);
+                    attempts.add(completions.submit(() -> attempt(address, call)));
+                    inFlight++;
+                    continue;
+                }
+
+                inFlight--;
+                try {
+                    T result = done.get();
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+
+                if (inFlight == 0 && next < ordered.size() && deadline.remaining() > 0) {
+                    String address = ordered.get(next++);
+                    attempts.add(completions.submit(() -> attempt(address, call)));
+                    inFlight++;
+                }
+            }
+
+            return failed(failure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while calling polling services", e);
+        } finally {
+            // the losing attempt's result isn't needed anymore, an attempt that didn't start yet never runs
+            attempts.forEach(attempt -> attempt.cancel(true));
+            if (hedgeExecutor != executor) {
+                hedgeExecutor.shutdown();
+            }
+        }
+    }
+
+    private <T> T attempt(String address, EndpointCall<T> call) throws Exception {
+        long start = nanoTime();
+        boolean success = false;
+        try {
+            URL endpoint = new URL(address);
+            T result = call.call(endpoint);
+            success = result != null;
+            return result;
+        } finally {
+            // a canceled hedge is neither a success nor a failure of its endpoint
+            if (success || !Thread.currentThread().isInterrupted()) {
+                record(address, nanoTime() - start, success);
+            }
+        }
+    }
+
+    private <T> T failed(Exception failure) {
+        if (failure == null) {
+            return null;
+        }
+
+        throw failure instanceof RuntimeException ? (RuntimeException) failure :
+                new RuntimeException("unable to call any polling service, " + failure.getMessage(), failure);
+    }
+
+    private EndpointStatistics statistics(String address) {
+        return statistics.computeIfAbsent(address, a -> new EndpointStatistics());
+    }
+
+    /**
+     * the moving averages of one endpoint. Updates are rare compared to reads, they take a lock and the fields are
+     * volatile for the lock-free ordering. A lock rather than synchronized, so virtual threads recording a poll don't
+     * pin their carrier
+     */
+    private static class EndpointStatistics {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile double latencyNanos;
+        private volatile double errorRate;
+        private volatile long ejectedUntilNanos;
+        private volatile boolean ejected;
+
+        /**
+         * @return true when the endpoint's ejection state changed
+         */
+        boolean record(long elapsedNanos, boolean success, double alpha, double maxErrorRate, long ejectionMillis) {
+            lock.lock();
+            try {
+                errorRate += alpha * ((success ? 0 : 1) - errorRate);
+                if (success) {
+                    latencyNanos = latencyNanos == 0 ? elapsedNanos :
+                            latencyNanos + alpha * (elapsedNanos - latencyNanos);
+                    boolean changed = ejected;
+                    ejected = false;
+                    return changed;
+                }
+
+                if (errorRate > maxErrorRate) {
+                    // a failed probe after the ejection ejects the endpoint again
+                    boolean changed = !isEjected(nanoTime());
+                    ejected = true;
+                    ejectedUntilNanos = nanoTime() + NANOSECONDS.convert(ejectionMillis, MILLISECONDS);
+                    return changed;
+                }
+
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isEjected(long now) {
+            return ejected && now - ejectedUntilNanos < 0;
+        }
+    }
+}
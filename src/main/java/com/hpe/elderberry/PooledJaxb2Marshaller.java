@@ -0,0 +1,167 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.springframework.beans.BeanUtils;
+import org.springframework.oxm.UnmarshallingFailureException;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+import org.springframework.oxm.mime.MimeContainer;
+import org.springframework.util.ClassUtils;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A <code>Jaxb2Marshaller</code> tuned for unmarshalling large volumes of TAXII messages:</p>
+ * <ul>
+ * <li>stream sources, which is what the rest template's message converter passes, are parsed with a configurable StAX
+ * <code>XMLInputFactory</code>, for example Woodstox (<code>com.ctc.wstx.stax.WstxInputFactory</code>) or Aalto
+ * (<code>com.fasterxml.aalto.stax.InputFactoryImpl</code>), instead of the JDK default parser stack</li>
+ * <li>the factory is configured once: no DTDs, no external entities and no validation</li>
+ * <li>unmarshallers are pooled and reused instead of being created for every message</li>
+ * </ul>
+ * Any other source, and MTOM unmarshalling, is handled by <code>Jaxb2Marshaller</code> itself.
+ */
+@SuppressWarnings("unused")
+public class PooledJaxb2Marshaller extends Jaxb2Marshaller {
+    private final Queue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private int maxPooledUnmarshallers = 64;
+
+    private volatile XMLInputFactory inputFactory;
+
+    private String inputFactoryClassName;
+
+    /**
+     * an optional StAX input factory
+     *
+     * @param inputFactory the factory to create stream readers with. It's configured by this marshaller, don't share
+     *                     it. When not set the JDK default factory is used
+     */
+    public void setXmlInputFactory(XMLInputFactory inputFactory) {
+        this.inputFactory = configure(inputFactory);
+    }
+
+    /**
+     * an optional StAX input factory class name, see {@link #setXmlInputFactory(XMLInputFactory)}
+     *
+     * @param className for example <code>com.ctc.wstx.stax.WstxInputFactory</code>. The class has to be on the
+     *                  class path
+     */
+    public void setXmlInputFactoryClassName(String className) {
+        this.inputFactoryClassName = className;
+        this.inputFactory = null;
+    }
+
+    /**
+     * @param maxPooledUnmarshallers the maximum number of idle unmarshallers kept for reuse, defaults to 64
+     */
+    public void setMaxPooledUnmarshallers(int maxPooledUnmarshallers) {
+        this.maxPooledUnmarshallers = maxPooledUnmarshallers;
+    }
+
+    @Override
+    public Object unmarshal(Source source, MimeContainer mimeContainer) {
+        if (!(source instanceof StreamSource) || mimeContainer != null ||
+                (((StreamSource) source).getInputStream() == null && ((StreamSource) source).getReader() == null)) {
+            return super.unmarshal(source, mimeContainer);
+        }
+
+        StreamSource streamSource = (StreamSource) source;
+        Unmarshaller unmarshaller = borrowUnmarshaller();
+        XMLStreamReader reader = null;
+        try {
+            reader = streamSource.getInputStream() != null ?
+                    getXmlInputFactory().createXMLStreamReader(streamSource.getSystemId(), streamSource.getInputStream()) :
+                    getXmlInputFactory().createXMLStreamReader(streamSource.getSystemId(), streamSource.getReader());
+            return unmarshaller.unmarshal(reader);
+        } catch (XMLStreamException e) {
+            throw new UnmarshallingFailureException("unable to parse XML, " + e.getMessage(), e);
+        } catch (JAXBException e) {
+            throw convertJaxbException(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // the underlying stream belongs to the caller, nothing to release
+                }
+            }
+            returnUnmarshaller(unmarshaller);
+        }
+    }
+
+    int getPooledUnmarshallerCount() {
+        return pooled.get();
+    }
+
+    private Unmarshaller borrowUnmarshaller() {
+        Unmarshaller unmarshaller = unmarshallers.poll();
+        if (unmarshaller != null) {
+            pooled.decrementAndGet();
+            return unmarshaller;
+        }
+
+        return createUnmarshaller();
+    }
+
+    private void returnUnmarshaller(Unmarshaller unmarshaller) {
+        if (pooled.incrementAndGet() <= maxPooledUnmarshallers) {
+            unmarshallers.offer(unmarshaller);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    private XMLInputFactory getXmlInputFactory() {
+        XMLInputFactory result = inputFactory;
+        if (result == null) {
+            if (inputFactoryClassName == null) {
+                result = configure(XMLInputFactory.newFactory());
+            } else {
+                try {
+                    result = configure((XMLInputFactory) BeanUtils.instantiateClass(
+                            ClassUtils.forName(inputFactoryClassName, getClass().getClassLoader())));
+                } catch (Exception e) {
+                    throw new RuntimeException("unable to create XML input factory " + inputFactoryClassName + ", " +
+                            e.getMessage(), e);
+                }
+            }
+            // racing threads may each configure a factory, any of them will do
+            inputFactory = result;
+        }
+
+        return result;
+    }
+
+    private static XMLInputFactory configure(XMLInputFactory factory) {
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            factory.setProperty(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (IllegalArgumentException e) {
+            // not all StAX implementations know this feature, they don't resolve external resources anyway
+        }
+
+        return factory;
+    }
+}
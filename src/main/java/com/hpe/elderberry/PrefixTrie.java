@@ -0,0 +1,140 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>A binary radix trie of address prefixes (CIDR blocks). It answers whether any stored prefix covers an
+ * address. Addresses are up to 128 bits, passed as two longs, the high bits first. IPv4 addresses are passed in the
+ * top 32 bits of the high long.</p>
+ * <p>Nodes are pairs of child indexes in a single atomic int array, 8 bytes per node. A prefix that covers a node's whole
+ * subtree replaces the subtree, so adding <code>10.0.0.0/8</code> after <code>10.1.0.0/16</code> frees nothing but
+ * stops walking at the /8.</p>
+ * <p>One thread at a time may add, any number of threads may read without locking. Nodes are appended before they are
+ * linked, links and covered marks are volatile writes, and the array is replaced rather than grown in place, so a
+ * reader always follows links to initialized nodes, like {@link LongHashSet}.</p>
+ */
+final class PrefixTrie {
+    /**
+     * marks a node whose whole subtree is covered by a stored prefix
+     */
+    private static final int COVERED = -1;
+
+    private final int bits;
+
+    private volatile AtomicIntegerArray nodes = new AtomicIntegerArray(64);
+
+    private volatile int nodeCount = 1;
+
+    private volatile int size;
+
+    /**
+     * @param bits the address length: 32 for IPv4, 128 for IPv6
+     */
+    PrefixTrie(int bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * @param hi           the high 64 bits of the prefix
+     * @param lo           the low 64 bits of the prefix
+     * @param prefixLength the number of significant bits
+     * @return true when the prefix was added, false when an added prefix already covers it
+     */
+    boolean add(long hi, long lo, int prefixLength) {
+        if (prefixLength < 0 || prefixLength > bits) {
+            throw new IllegalArgumentException("invalid prefix length " + prefixLength + " for " + bits + " bit addresses");
+        }
+
+        AtomicIntegerArray current = nodes;
+        int node = 0;
+        for (int depth = 0; depth < prefixLength; depth++) {
+            if (isCovered(current, node)) {
+                return false;
+            }
+
+            int link = 2 * node + bit(hi, lo, depth);
+            int child = current.get(link);
+            if (child == 0) {
+                if (2 * nodeCount + 2 > current.length()) {
+                    current = grow(current);
+                    nodes = current;
+                }
+                child = nodeCount;
+                // the new node's slots are already zero, publish the count before linking the node
+                nodeCount = child + 1;
+                current.set(link, child);
+            }
+            node = child;
+        }
+
+        if (isCovered(current, node)) {
+            return false;
+        }
+
+        current.set(2 * node + 1, COVERED);
+        current.set(2 * node, COVERED);
+        size++;
+        return true;
+    }
+
+    /**
+     * @param hi the high 64 bits of the address
+     * @param lo the low 64 bits of the address
+     * @return true when a stored prefix covers the address
+     */
+    boolean contains(long hi, long lo) {
+        AtomicIntegerArray current = nodes;
+        int node = 0;
+        for (int depth = 0; depth < bits; depth++) {
+            if (isCovered(current, node)) {
+                return true;
+            }
+
+            node = current.get(2 * node + bit(hi, lo, depth));
+            if (node == 0) {
+                return false;
+            }
+        }
+
+        return isCovered(current, node);
+    }
+
+    /**
+     * @return the number of added prefixes
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of trie nodes, for memory estimates
+     */
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    private static boolean isCovered(AtomicIntegerArray nodes, int node) {
+        return nodes.get(2 * node) == COVERED || nodes.get(2 * node + 1) == COVERED;
+    }
+
+    private static AtomicIntegerArray grow(AtomicIntegerArray nodes) {
+        // readers see the copy only once it's published to the nodes field
+        AtomicIntegerArray result = new AtomicIntegerArray(nodes.length() * 2);
+        for (int i = 0; i < nodes.length(); i++) {
+            result.lazySet(i, nodes.get(i));
+        }
+        return result;
+    }
+
+    private static int bit(long hi, long lo, int index) {
+        return (int) (index < 64 ? (hi >>> (63 - index)) & 1 : (lo >>> (127 - index)) & 1);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+
+/**
+ * <p>Limits the request rate to each TAXII host with a token bucket per host. Every host allows a burst of requests,
+ * then one request per <code>1 / requestsPerMinute</code> minute. A request over the limit waits for its turn, it's
+ * never rejected.</p>
+ * <p>The buckets are lock-free, each one is a single atomic timestamp. {@link #acquire(String)} parks the calling
+ * thread, which is cheap on a virtual thread (see {@link TaxiiExecutors}), and {@link #acquireAsync(String)} doesn't
+ * hold a thread at all while waiting. <code>pollAll</code> waits for each poll's first request asynchronously, so
+ * polls over the limit don't hold the threads of a platform thread pool, see
+ * {@link Taxii11Template#setExecutor(java.util.concurrent.ExecutorService)}.</p>
+ * <p>When a server says it's busy, either with a TAXII <code>RETRY</code> status message or with an HTTP 429 or 503
+ * response, {@link #penalize(String, long)} holds back all requests to that host for the requested time.</p>
+ * <p>A {@link TaxiiConnection} with {@link TaxiiConnection#setRequestsPerMinute(int)} set installs its limiter on the
+ * rest template it creates.</p>
+ */
+@SuppressWarnings("unused")
+public class RateLimiter implements ClientHttpRequestInterceptor {
+    private static final ScheduledExecutorService SCHEDULER = newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "taxii-rate-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the host whose next request on this thread was already allowed by acquireAsync
+    private static final ThreadLocal<String> ACQUIRED = new ThreadLocal<>();
+
+    private Log log = getLog(getClass());
+
+    private final long intervalNanos;
+
+    private final long burstNanos;
+
+    private final long defaultPenaltyMillis;
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param requestsPerMinute    the sustained number of requests per minute to a single host
+     * @param burst                the number of requests that can be sent to a host at once after it was idle, at
+     *                             least 1
+     * @param defaultPenaltyMillis how long to hold back requests to a busy host that didn't say how long to wait
+     */
+    public RateLimiter(int requestsPerMinute, int burst, long defaultPenaltyMillis) {
+        if (requestsPerMinute <= 0) {
+            throw new IllegalArgumentException("requests per minute must be positive: " + requestsPerMinute);
+        }
+
+        intervalNanos = MINUTES.toNanos(1) / requestsPerMinute;
+        burstNanos = intervalNanos * (max(1, burst) - 1);
+        this.defaultPenaltyMillis = defaultPenaltyMillis;
+    }
+
+    /**
+     * waits until a request to the host is allowed. Within a template call, a request that isn't allowed before the
+     * call's deadline fails right away, see {@link TaxiiDeadline}
+     *
+     * @param host the TAXII host
+     * @throws InterruptedException  when the thread was interrupted while waiting
+     * @throws TaxiiTimeoutException when the deadline of the template call expires before the request is allowed
+     */
+    public void acquire(String host) throws InterruptedException {
+        if (host != null && host.equals(ACQUIRED.get())) {
+            ACQUIRED.remove();
+            return;
+        }
+
+        // a request that would wait past the deadline fails without taking a request from the bucket
+        long reserved = bucket(host).reserve(nanoTime(), TaxiiDeadline.remainingNanos());
+        if (reserved < 0) {
+            throw TaxiiDeadline.expiredWhile("the rate limit of " + host);
+        }
+
+        long deadline = nanoTime() + reserved;
+        for (long wait = deadline - nanoTime(); wait > 0; wait = deadline - nanoTime()) {
+            parkNanos(this, wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedException("interrupted while waiting for the rate limit of " + host);
+            }
+        }
+    }
+
+    /**
+     * reserves a request to the host without blocking
+     *
+     * @param host the TAXII host
+     * @return a future that completes when the request is allowed
+     */
+    public CompletableFuture<Void> acquireAsync(String host) {
+        return acquireAsync(host, Long.MAX_VALUE);
+    }
+
+    /**
+     * reserves a request to the host without blocking, unless it has to wait longer than a deadline allows
+     *
+     * @param host         the TAXII host
+     * @param maxWaitNanos the longest wait the caller's deadline allows
+     * @return a future that completes when the request is allowed, or that fails with a {@link TaxiiTimeoutException}
+     * right away when the request would wait longer
+     */
+    CompletableFuture<Void> acquireAsync(String host, long maxWaitNanos) {
+        long reserved = bucket(host).reserve(nanoTime(), maxWaitNanos);
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        if (reserved < 0) {
+            permit.completeExceptionally(TaxiiDeadline.expiredWhile("the rate limit of " + host));
+        } else if (reserved == 0) {
+            permit.complete(null);
+        } else {
+            SCHEDULER.schedule(() -> permit.complete(null), reserved, NANOSECONDS);
+        }
+        return permit;
+    }
+
+    /**
+     * makes a call whose first request to the host was already allowed by {@link #acquireAsync(String)}, so it isn't
+     * counted twice
+     *
+     * @param host the TAXII host the permit was acquired for
+     * @param call the call
+     * @param <T>  the result type
+     * @return the result
+     */
+    static <T> T acquired(String host, Supplier<T> call) {
+        ACQUIRED.set(host);
+        try {
+            return call.get();
+        } finally {
+            ACQUIRED.remove();
+        }
+    }
+
+    /**
+     * holds back requests to a busy host
+     *
+     * @param host         the TAXII host
+     * @param penaltyMillis how long to hold back requests, when not positive the default penalty is used
+     */
+    public void penalize(String host, long penaltyMillis) {
+        long penalty = penaltyMillis > 0 ? penaltyMillis : defaultPenaltyMillis;
+        log.warn(host + " is busy, holding back requests for " + penalty + "ms");
+        bucket(host).penalize(nanoTime(), MILLISECONDS.toNanos(penalty));
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        String host = request.getURI().getHost();
+        long start = nanoTime();
+        try {
+            acquire(host);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            TaxiiEvents.rateLimitWait(nanoTime() - start);
+        }
+
+        ClientHttpResponse response = execution.execute(request, body);
+        int status = response.getRawStatusCode();
+        if (status == 429 || status == SERVICE_UNAVAILABLE.value()) {
+            penalize(host, retryAfterMillis(response.getHeaders().getFirst("Retry-After")));
+        }
+
+        return response;
+    }
+
+    private long retryAfterMillis(String retryAfter) {
+        try {
+            return retryAfter == null ? 0 : Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            // an HTTP date, use the default penalty
+            return 0;
+        }
+    }
+
+    private TokenBucket bucket(String host) {
+        return buckets.computeIfAbsent(host == null ? "" : host, h -> new TokenBucket(intervalNanos, burstNanos));
+    }
+
+    /**
+     * a token bucket kept as its theoretical arrival time: the time at which the bucket would be full again. A request
+     * is allowed when the arrival time is at most a burst ahead of now, and it moves the arrival time one interval
+     * further
+     */
+    static class TokenBucket {
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+        TokenBucket(long intervalNanos, long burstNanos) {
+            this.intervalNanos = intervalNanos;
+            this.burstNanos = burstNanos;
+        }
+
+        /**
+         * reserves the next request
+         *
+         * @param now the current time, in nanoseconds
+         * @return how long the request has to wait, in nanoseconds
+         */
+        long reserve(long now) {
+            return reserve(now, Long.MAX_VALUE);
+        }
+
+        /**
+         * reserves the next request, unless it has to wait too long
+         *
+         * @param now          the current time, in nanoseconds
+         * @param maxWaitNanos the longest wait allowed
+         * @return how long the request has to wait, in nanoseconds, or -1 when it would wait at least
+         * <code>maxWaitNanos</code> and nothing was reserved
+         */
+        long reserve(long now, long maxWaitNanos) {
+            while (true) {
+                long current = arrival.get();
+                long start = current == Long.MIN_VALUE ? now : max(current, now);
+                long wait = max(0, start - burstNanos - now);
+                if (wait > 0 && wait >= maxWaitNanos) {
+                    return -1;
+                }
+                if (arrival.compareAndSet(current, start + intervalNanos)) {
+                    return wait;
+                }
+            }
+        }
+
+        void penalize(long now, long penaltyNanos) {
+            long penalized = now + penaltyNanos + burstNanos;
+            arrival.accumulateAndGet(penalized, (current, p) -> current == Long.MIN_VALUE ? p : max(current, p));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.mitre.taxii.messages.xml10.ContentBlock;
+import org.mitre.taxii.messages.xml10.PollRequest;
+import org.mitre.taxii.messages.xml10.PollResponse;
+import org.springframework.beans.factory.annotation.Required;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static com.hpe.elderberry.TaxiiTimestamps.toEpochMillis;
+
+/**
+ * <p>A {@link Taxii10Template} that answers polls from a {@link ContentJournal} instead of the TAXII server. Since it's
+ * a {@link Taxii10Template} it can replace the live template wherever one is injected, and the consumers receive the
+ * same <code>PollResponse</code> objects they receive from a live poll. Every poll of the template is replayed, none
+ * of them is sent to the server. The poll URL and subscription ID are ignored, content is selected by feed name and
+ * time window only.</p>
+ * <p>Discovery and feed information requests are not replayed, they're still sent to the server when a
+ * {@link TaxiiConnection} is set.</p>
+ * <br>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     <bean name="journal" class="ContentJournal">
+ *         <constructor-arg value="/var/lib/taxii/journal"/>
+ *     </bean>
+ *
+ *     <bean name="replayer" class="JournalReplayer"
+ *          p:contentJournal-ref="journal"
+ *     />
+ *
+ *     <bean name="taxiiTemplate" class="ReplayTaxii10Template"
+ *          p:replayer-ref="replayer"
+ *     />
+ * }
+ *    </pre>
+ */
+@SuppressWarnings("unused")
+public class ReplayTaxii10Template extends Taxii10Template {
+    private JournalReplayer replayer;
+
+    /**
+     * the replayer reading the journal
+     *
+     * @param replayer a valid, non-null {@link JournalReplayer}
+     */
+    @Required
+    public void setReplayer(JournalReplayer replayer) {
+        this.replayer = replayer;
+    }
+
+    /**
+     * replays a feed from the journal
+     *
+     * @param feedName       feed name to replay
+     * @param exclusiveBegin begin time to replay
+     * @param inclusiveEnd   end time to replay
+     * @return a poll response with the journaled content blocks
+     */
+    public PollResponse poll(String feedName, Date exclusiveBegin, Date inclusiveEnd) {
+        return toPollResponse(feedName, replayer.read(feedName, exclusiveBegin.getTime(),
+                inclusiveEnd.getTime(), ContentBlock.class));
+    }
+
+    /**
+     * replays several feeds in parallel, one partition per feed, and returns when all feeds were replayed
+     *
+     * @param feedNames      the feeds to replay
+     * @param exclusiveBegin begin time to replay
+     * @param inclusiveEnd   end time to replay
+     * @param consumer       receives a poll response per feed. It's called concurrently for different feeds
+     */
+    public void replayAll(Collection<String> feedNames, Date exclusiveBegin, Date inclusiveEnd,
+                          Consumer<PollResponse> consumer) {
+        replayer.replay(feedNames, exclusiveBegin.getTime(), inclusiveEnd.getTime(), ContentBlock.class,
+                (feedName, blocks) -> consumer.accept(toPollResponse(feedName, blocks)));
+    }
+
+    /**
+     * replays a poll request from the journal, instead of sending it to the server
+     *
+     * @param uri         ignored
+     * @param pollRequest the poll request
+     * @return a poll response with the journaled content blocks
+     */
+    @Override
+    protected PollResponse send(URI uri, PollRequest pollRequest) {
+        XMLGregorianCalendar exclusiveBegin = pollRequest.getExclusiveBeginTimestamp();
+        XMLGregorianCalendar inclusiveEnd = pollRequest.getInclusiveEndTimestamp();
+        return toPollResponse(pollRequest.getFeedName(), replayer.read(pollRequest.getFeedName(),
+                exclusiveBegin == null ? Long.MIN_VALUE : toEpochMillis(exclusiveBegin),
+                inclusiveEnd == null ? Long.MAX_VALUE : toEpochMillis(inclusiveEnd), ContentBlock.class));
+    }
+
+    private PollResponse toPollResponse(String feedName, List<ContentBlock> blocks) {
+        return new PollResponse()
+                .withFeedName(feedName)
+                .withContentBlocks(blocks);
+    }
+}
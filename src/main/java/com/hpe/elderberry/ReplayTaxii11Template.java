@@ -0,0 +1,165 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.mitre.taxii.messages.xml11.ContentBindingIDType;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.PollFulfillment;
+import org.mitre.taxii.messages.xml11.PollParametersType;
+import org.mitre.taxii.messages.xml11.PollRequest;
+import org.mitre.taxii.messages.xml11.PollResponse;
+import org.mitre.taxii.messages.xml11.RecordCountType;
+import org.springframework.beans.factory.annotation.Required;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.hpe.elderberry.TaxiiTimestamps.toEpochMillis;
+import static java.util.Collections.emptyList;
+import static org.mitre.taxii.messages.xml11.ResponseTypeEnum.COUNT_ONLY;
+
+/**
+ * <p>A {@link Taxii11Template} that answers polls from a {@link ContentJournal} instead of the TAXII server. Since it's
+ * a {@link Taxii11Template} it can replace the live template wherever one is injected, and the consumers receive the
+ * same <code>PollResponse</code> objects they receive from a live poll. Every poll, count, fulfillment and stream of
+ * the template is replayed, none of them is sent to the server. The poll URL and subscription ID are ignored, content
+ * is selected by collection name, time window and the content bindings of a {@link PollFilter}. A filter's query
+ * isn't evaluated. A replayed poll result has a single part.</p>
+ * <p>Discovery and collection information requests are not replayed, they're still sent to the server when a
+ * {@link TaxiiConnection} is set.</p>
+ * <br>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     <bean name="journal" class="ContentJournal">
+ *         <constructor-arg value="/var/lib/taxii/journal"/>
+ *     </bean>
+ *
+ *     <bean name="replayer" class="JournalReplayer"
+ *          p:contentJournal-ref="journal"
+ *     />
+ *
+ *     <bean name="taxiiTemplate" class="ReplayTaxii11Template"
+ *          p:replayer-ref="replayer"
+ *     />
+ * }
+ *    </pre>
+ */
+@SuppressWarnings("unused")
+public class ReplayTaxii11Template extends Taxii11Template {
+    private JournalReplayer replayer;
+
+    /**
+     * the replayer reading the journal
+     *
+     * @param replayer a valid, non-null {@link JournalReplayer}
+     */
+    @Required
+    public void setReplayer(JournalReplayer replayer) {
+        this.replayer = replayer;
+    }
+
+    /**
+     * replays a collection from the journal
+     *
+     * @param collectionName collection name to replay
+     * @param exclusiveBegin begin time to replay
+     * @param inclusiveEnd   end time to replay
+     * @return a poll response with the journaled content blocks
+     */
+    public PollResponse poll(String collectionName, Date exclusiveBegin, Date inclusiveEnd) {
+        return toPollResponse(collectionName, replayer.read(collectionName, exclusiveBegin.getTime(),
+                inclusiveEnd.getTime(), ContentBlock.class));
+    }
+
+    /**
+     * replays several collections in parallel, one partition per collection, and returns when all collections were
+     * replayed
+     *
+     * @param collectionNames the collections to replay
+     * @param exclusiveBegin  begin time to replay
+     * @param inclusiveEnd    end time to replay
+     * @param consumer        receives a poll response per collection. It's called concurrently for different
+     *                        collections
+     */
+    public void replayAll(Collection<String> collectionNames, Date exclusiveBegin, Date inclusiveEnd,
+                          Consumer<PollResponse> consumer) {
+        replayer.replay(collectionNames, exclusiveBegin.getTime(), inclusiveEnd.getTime(), ContentBlock.class,
+                (collectionName, blocks) -> consumer.accept(toPollResponse(collectionName, blocks)));
+    }
+
+    /**
+     * replays a poll request from the journal, instead of sending it to the server
+     *
+     * @param uri         ignored
+     * @param pollRequest the poll request
+     * @return a poll response with the journaled content blocks, or with their count for a <code>COUNT_ONLY</code>
+     * poll
+     */
+    @Override
+    protected PollResponse send(URI uri, PollRequest pollRequest) {
+        String collectionName = pollRequest.getCollectionName();
+        List<ContentBlock> blocks = replayer.read(collectionName, fromMillis(pollRequest.getExclusiveBeginTimestamp()),
+                toMillis(pollRequest.getInclusiveEndTimestamp()), ContentBlock.class);
+
+        PollParametersType parameters = pollRequest.getPollParameters();
+        if (parameters != null && !parameters.getContentBindings().isEmpty()) {
+            Set<String> bindings = parameters.getContentBindings().stream()
+                    .map(ContentBindingIDType::getBindingId)
+                    .collect(Collectors.toSet());
+            blocks = blocks.stream()
+                    .filter(block -> block.getContentBinding() != null &&
+                            bindings.contains(block.getContentBinding().getBindingId()))
+                    .collect(Collectors.toList());
+        }
+
+        if (parameters != null && parameters.getResponseType() == COUNT_ONLY) {
+            return toPollResponse(collectionName, emptyList()).withRecordCount(new RecordCountType()
+                    .withValue(BigInteger.valueOf(blocks.size()))
+                    .withPartialCount(false));
+        }
+
+        return toPollResponse(collectionName, blocks);
+    }
+
+    /**
+     * answers a poll fulfillment without content, a replayed poll result has a single part
+     *
+     * @param uri         ignored
+     * @param fulfillment the poll fulfillment request
+     * @return an empty poll response
+     */
+    @Override
+    protected PollResponse send(URI uri, PollFulfillment fulfillment) {
+        return toPollResponse(fulfillment.getCollectionName(), emptyList());
+    }
+
+    private static long fromMillis(XMLGregorianCalendar exclusiveBegin) {
+        return exclusiveBegin == null ? Long.MIN_VALUE : toEpochMillis(exclusiveBegin);
+    }
+
+    private static long toMillis(XMLGregorianCalendar inclusiveEnd) {
+        return inclusiveEnd == null ? Long.MAX_VALUE : toEpochMillis(inclusiveEnd);
+    }
+
+    private PollResponse toPollResponse(String collectionName, List<ContentBlock> blocks) {
+        return new PollResponse()
+                .withCollectionName(collectionName)
+                .withMore(false)
+                .withContentBlocks(blocks);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * <p>A budget of response bytes in flight, for admission control. A response reserves its size before it's parsed and
+ * releases it when it's closed, a response that doesn't fit waits until earlier responses are released. Parsing a TAXII
+ * response builds an object tree several times the size of its body, so bounding the bytes being parsed at once bounds
+ * the heap they need.</p>
+ * <p>Budgets nest: a connection's budget reserves from the {@link #global()} budget as well, so one connection can't
+ * take the whole process budget and all connections together stay under it. See
+ * {@link TaxiiConnection#setResponseBudgetBytes(long)} and {@link ResponseSizeGuard}.</p>
+ */
+@SuppressWarnings("unused")
+public class ResponseBudget {
+    private static final ResponseBudget GLOBAL = new ResponseBudget(Long.MAX_VALUE, null);
+
+    private final ResponseBudget parent;
+
+    // a lock rather than synchronized, so virtual threads waiting for the budget don't pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition released = lock.newCondition();
+
+    private volatile long maxBytes;
+
+    private long inFlightBytes;
+
+    /**
+     * @param maxBytes the maximum number of response bytes in flight
+     * @param parent   an enclosing budget to reserve from as well, or null
+     */
+    public ResponseBudget(long maxBytes, ResponseBudget parent) {
+        this.maxBytes = maxBytes;
+        this.parent = parent;
+    }
+
+    /**
+     * @return the budget shared by all connections, unlimited until {@link #setMaxBytes(long)} is called on it
+     */
+    public static ResponseBudget global() {
+        return GLOBAL;
+    }
+
+    /**
+     * @param maxBytes the maximum number of response bytes in flight. Lowering it doesn't affect responses already
+     *                 admitted
+     */
+    public void setMaxBytes(long maxBytes) {
+        lock.lock();
+        try {
+            this.maxBytes = maxBytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of bytes reserved by responses that weren't released yet
+     */
+    public long getInFlightBytes() {
+        lock.lock();
+        try {
+            return inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * reserves bytes from this budget and its parents
+     *
+     * @param bytes      the number of bytes to reserve
+     * @param waitMillis the maximum time to wait for enough bytes to be released. Within a template call, the wait ends
+     *                   when the call's deadline expires as well, see {@link TaxiiDeadline}
+     * @return true when the bytes were reserved, false when they didn't become available in time or can never fit
+     * @throws InterruptedException when the thread was interrupted while waiting
+     */
+    public boolean reserve(long bytes, long waitMillis) throws InterruptedException {
+        long deadline = nanoTime() + min(MILLISECONDS.toNanos(waitMillis), TaxiiDeadline.remainingNanos());
+        if (!reserveHere(bytes, deadline)) {
+            return false;
+        }
+
+        if (parent != null && !parent.reserve(bytes, NANOSECONDS.toMillis(deadline - nanoTime()))) {
+            release(bytes, false);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * releases bytes reserved with {@link #reserve(long, long)}
+     *
+     * @param bytes the number of bytes to release
+     */
+    public void release(long bytes) {
+        release(bytes, true);
+    }
+
+    private boolean reserveHere(long bytes, long deadline) throws InterruptedException {
+        lock.lock();
+        try {
+            while (bytes > maxBytes - inFlightBytes) {
+                long remaining = deadline - nanoTime();
+                // a response larger than the whole budget would wait forever
+                if (bytes > maxBytes || remaining <= 0) {
+                    return false;
+                }
+                released.awaitNanos(remaining);
+            }
+
+            inFlightBytes += bytes;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(long bytes, boolean releaseParent) {
+        // the parent first, so a waiter woken here finds the bytes free in the parent too
+        if (releaseParent && parent != null) {
+            parent.release(bytes);
+        }
+
+        lock.lock();
+        try {
+            inFlightBytes -= bytes;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
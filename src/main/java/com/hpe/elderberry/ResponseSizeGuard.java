@@ -0,0 +1,390 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.Math.min;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Protects the JVM from oversized TAXII responses. Some providers occasionally return poll responses of several
+ * gigabytes, unmarshalling them at once can exhaust the heap. For every response the guard:</p>
+ * <ul>
+ * <li>aborts the response when it's larger than {@link #setMaxResponseBytes(long)}, 256MB by default, without
+ * reading the rest of it. The request fails with a {@link ResponseTooLargeException}</li>
+ * <li>spills the body to a temporary file when it's larger than {@link #setSpillThresholdBytes(long)}, the parser
+ * then reads it from disk as it goes instead of from a memory buffer or from a socket held open while parsing. The file
+ * is deleted when the response is closed</li>
+ * <li>reserves the body size from a {@link ResponseBudget} before the body is parsed, and releases it when the
+ * response is closed. A response that doesn't fit waits for {@link #setBudgetWaitMillis(long)} and is then
+ * rejected</li>
+ * </ul>
+ * Bodies with a <code>Content-Length</code> are checked before they're read, small ones stream through untouched.
+ * Bodies without a length are buffered, in memory up to the spill threshold, to learn their size. Every abort, spill
+ * and rejection is logged and counted.<br>
+ * Spilling and the budget don't bound the heap a single response takes: a spilled response is still unmarshalled
+ * into one object tree, several times the size of its body. Only the maximum response size bounds it, which is why the
+ * guard has a finite maximum unless it's explicitly turned off.<br>
+ * A {@link TaxiiConnection} installs a guard on the rest template it creates when
+ * {@link TaxiiConnection#setMaxResponseBytes(long)}, {@link TaxiiConnection#setResponseSpillThresholdBytes(long)} or
+ * {@link TaxiiConnection#setResponseBudgetBytes(long)} is set.
+ */
+@SuppressWarnings("unused")
+public class ResponseSizeGuard implements ClientHttpRequestInterceptor {
+    /**
+     * thrown when a response is aborted for its size, or rejected because it doesn't fit the response budget
+     */
+    public static class ResponseTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long size;
+
+        private final long limit;
+
+        ResponseTooLargeException(String message, long size, long limit) {
+            super(message);
+            this.size = size;
+            this.limit = limit;
+        }
+
+        /**
+         * @return the size of the response, or the number of bytes read before it was aborted
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the limit the response exceeded
+         */
+        public long getLimit() {
+            return limit;
+        }
+    }
+
+    /**
+     * the default maximum response size, 256MB
+     */
+    public static final long DEFAULT_MAX_RESPONSE_BYTES = 256 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Log log = getLog(getClass());
+
+    private long maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+
+    private long spillThresholdBytes = 16 * 1024 * 1024;
+
+    private File tempDirectory;
+
+    private ResponseBudget budget = ResponseBudget.global();
+
+    private long budgetWaitMillis = 30000;
+
+    private final LongAdder aborted = new LongAdder();
+
+    private final LongAdder spilled = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxResponseBytes the size over which responses are aborted, defaults to
+     *                         {@link #DEFAULT_MAX_RESPONSE_BYTES}. When 0 or negative responses of any size are read,
+     *                         and the object tree of a single response can take the whole heap
+     */
+    public void setMaxResponseBytes(long maxResponseBytes) {
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    public long getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    /**
+     * @param spillThresholdBytes the size over which bodies are spilled to a temporary file, defaults to 16MB
+     */
+    public void setSpillThresholdBytes(long spillThresholdBytes) {
+        this.spillThresholdBytes = spillThresholdBytes;
+    }
+
+    /**
+     * @param tempDirectory the directory of the spill files, defaults to <code>java.io.tmpdir</code>
+     */
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * @param budget the budget responses reserve their size from, defaults to the {@link ResponseBudget#global()}
+     *               budget
+     */
+    public void setBudget(ResponseBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param budgetWaitMillis how long a response waits for the budget before it's rejected, defaults to 30 seconds
+     */
+    public void setBudgetWaitMillis(long budgetWaitMillis) {
+        this.budgetWaitMillis = budgetWaitMillis;
+    }
+
+    /**
+     * @return the number of responses aborted for exceeding the maximum response size
+     */
+    public long getAbortedCount() {
+        return aborted.sum();
+    }
+
+    /**
+     * @return the number of responses spilled to a temporary file
+     */
+    public long getSpilledCount() {
+        return spilled.sum();
+    }
+
+    /**
+     * @return the number of responses rejected because they didn't fit the budget in time
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        ClientHttpResponse response = execution.execute(request, body);
+        try {
+            return guard(request.getURI(), response);
+        } catch (IOException | RuntimeException e) {
+            abort(response);
+            throw e;
+        }
+    }
+
+    private ClientHttpResponse guard(URI uri, ClientHttpResponse response) throws IOException {
+        long length = response.getHeaders().getContentLength();
+        if (length >= 0) {
+            checkSize(uri, length);
+            if (length <= spillThresholdBytes) {
+                // small enough to parse from the socket, the length was checked
+                return admit(uri, new GuardedResponse(response, null, null, length));
+            }
+        }
+
+        // buffer to learn the size, or spill because of it, enforcing the maximum as the body is read. The HTTP
+        // client's stream isn't closed on failure, that would read the rest of the body, see abort
+        InputStream in = response.getBody();
+        ByteArrayOutputStream memory = new ByteArrayOutputStream((int) min(BUFFER_SIZE, spillThresholdBytes));
+        File file = null;
+        OutputStream out = memory;
+        long size = 0;
+        boolean complete = false;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                size += read;
+                checkSize(uri, size);
+                if (file == null && size > spillThresholdBytes) {
+                    file = File.createTempFile("taxii-response-", ".xml", tempDirectory);
+                    out = new FileOutputStream(file);
+                    memory.writeTo(out);
+                    memory = null;
+                }
+                out.write(buffer, 0, read);
+            }
+            in.close();
+            complete = true;
+        } finally {
+            if (file != null) {
+                try {
+                    out.close();
+                } finally {
+                    if (!complete) {
+                        delete(file);
+                    }
+                }
+            }
+        }
+
+        if (file != null) {
+            spilled.increment();
+            log.warn("response from " + uri + " is " + size + " bytes, spilled to " + file);
+        }
+
+        return admit(uri, new GuardedResponse(response, memory == null ? null : memory.toByteArray(), file, size));
+    }
+
+    private ClientHttpResponse admit(URI uri, GuardedResponse response) throws IOException {
+        boolean admitted;
+        try {
+            admitted = budget.reserve(response.size, budgetWaitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response.discard();
+            throw new InterruptedIOException("interrupted while waiting for the response budget");
+        }
+
+        if (!admitted && TaxiiDeadline.remainingNanos() <= 0) {
+            response.discard();
+            throw TaxiiDeadline.expiredWhile("the response budget");
+        }
+
+        if (!admitted) {
+            rejected.increment();
+            log.warn("response from " + uri + " of " + response.size + " bytes doesn't fit the response budget of " +
+                    budget.getMaxBytes() + " bytes, " + budget.getInFlightBytes() + " bytes in flight");
+            response.discard();
+            throw new ResponseTooLargeException("response of " + response.size + " bytes from " + uri +
+                    " doesn't fit the response budget", response.size, budget.getMaxBytes());
+        }
+
+        response.reserved = true;
+        return response;
+    }
+
+    private void checkSize(URI uri, long size) throws ResponseTooLargeException {
+        if (maxResponseBytes > 0 && size > maxResponseBytes) {
+            aborted.increment();
+            log.warn("aborting response from " + uri + ", it's over the maximum of " + maxResponseBytes + " bytes");
+            throw new ResponseTooLargeException("response from " + uri + " is over the maximum of " + maxResponseBytes +
+                    " bytes", size, maxResponseBytes);
+        }
+    }
+
+    /**
+     * closes a response without reading the rest of its body, closing the HTTP client's stream would read it all to
+     * keep the connection
+     */
+    private void abort(ClientHttpResponse response) {
+        try {
+            InputStream body = response.getBody();
+            if (body instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) body).abortConnection();
+            }
+        } catch (IOException e) {
+            // the connection is discarded either way
+        }
+        response.close();
+    }
+
+    private void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warn("unable to delete spilled response " + file);
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * a response with its body buffered in memory, spilled to a file or still on the socket
+     */
+    private class GuardedResponse implements ClientHttpResponse {
+        private final ClientHttpResponse delegate;
+        private final byte[] memory;
+        private final File file;
+        private final long size;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private boolean reserved;
+        private InputStream body;
+
+        GuardedResponse(ClientHttpResponse delegate, byte[] memory, File file, long size) {
+            this.delegate = delegate;
+            this.memory = memory;
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                if (file != null) {
+                    body = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+                } else if (memory != null) {
+                    body = new ByteArrayInputStream(memory);
+                } else {
+                    // the length was checked, the HTTP client doesn't read past it
+                    body = delegate.getBody();
+                }
+            }
+
+            return body;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return delegate.getHeaders();
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return delegate.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return delegate.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return delegate.getStatusText();
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                // the spill file has to be closed before it can be deleted everywhere
+                if (file != null && body != null) {
+                    body.close();
+                }
+            } catch (IOException e) {
+                // nothing to release
+            } finally {
+                delegate.close();
+                if (file != null) {
+                    delete(file);
+                }
+                if (reserved) {
+                    budget.release(size);
+                }
+            }
+        }
+
+        void discard() {
+            if (closed.compareAndSet(false, true) && file != null) {
+                delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.mitre.taxii.messages.xml11.PollResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Shares the collections of TAXII servers between several poller nodes, so each collection is polled by exactly one
+ * node and nobody maintains lists of collections per node. A (server, collection) pair belongs to a node by consistent
+ * hashing over the live members, see {@link ConsistentHashRing} and {@link Membership}. Every node polls all servers'
+ * collection lists through its own poller, and only polls the collections it owns.</p>
+ * <p>When a node leaves, only its collections move to other nodes, and a joining node only takes collections from the
+ * others. A collection may be polled twice, or skipped once, while the nodes disagree on the members, for at most one
+ * lease. A node that isn't a member itself, for example after its lease lapsed, owns nothing.</p>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     <bean name="shardedPoller" class="ShardedPoller"
+ *          p:taxii11Template-ref="taxiiTemplate"
+ *          p:membership-ref="membership"
+ *     />
+ * }
+ * </pre>
+ */
+@SuppressWarnings("unused")
+public class ShardedPoller {
+    private Log log = getLog(getClass());
+
+    private Taxii11Template template;
+
+    private Membership membership;
+
+    private String serverId;
+
+    private int virtualNodes = 160;
+
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * @param template the template to poll the owned collections with
+     */
+    @Autowired
+    @Required
+    public void setTaxii11Template(Taxii11Template template) {
+        this.template = template;
+    }
+
+    /**
+     * @param membership the live poller nodes
+     */
+    @Autowired
+    @Required
+    public void setMembership(Membership membership) {
+        this.membership = membership;
+    }
+
+    /**
+     * @param serverId an optional server ID, part of the sharding key. When not set the host and port of a
+     *                 collection's first polling service identify its server. Set it when a server's polling services
+     *                 move, so its collections don't move between nodes with them
+     */
+    public void setServerId(String serverId) {
+        this.serverId = serverId;
+    }
+
+    /**
+     * @param virtualNodes the number of points of each node on the hash ring, defaults to 160
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * @param server         the server ID
+     * @param collectionName the collection name
+     * @return true when this node owns the collection
+     */
+    public boolean isOwned(String server, String collectionName) {
+        return membership.getLocalNodeId().equals(ring().nodeFor(server + "/" + collectionName));
+    }
+
+    /**
+     * @param collections collection records, as returned by collection information
+     * @return the collections this node owns, in their order
+     */
+    public List<CollectionRecordType> owned(Collection<CollectionRecordType> collections) {
+        // one snapshot of the members for all collections, so a membership change during the call can't assign a
+        // collection by two different rings
+        String localNodeId = membership.getLocalNodeId();
+        ConsistentHashRing current = ring();
+        List<CollectionRecordType> owned = new ArrayList<>();
+        for (CollectionRecordType collection : collections) {
+            if (localNodeId.equals(current.nodeFor(server(collection) + "/" + collection.getCollectionName()))) {
+                owned.add(collection);
+            }
+        }
+
+        log.debug("node " + localNodeId + " owns " + owned.size() + " of " + collections.size() + " collections");
+        return owned;
+    }
+
+    /**
+     * polls the collections this node owns, see {@link Taxii11Template#pollAll(Collection, String, Date, Date)}
+     *
+     * @param collections    collection records, as returned by collection information
+     * @param subscriptionId an optional subscription ID
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return the poll responses of the owned collections by collection name
+     * @throws IllegalArgumentException when two collections have the same name, whether this node owns them or not, so
+     *                                  every node rejects the same collections. Nothing is polled then
+     */
+    public Map<String, PollResponse> pollOwned(Collection<CollectionRecordType> collections, String subscriptionId,
+                                               Date exclusiveBegin, Date inclusiveEnd) {
+        Taxii11Template.requireUniqueNames(collections);
+        return template.pollAll(owned(collections), subscriptionId, exclusiveBegin, inclusiveEnd);
+    }
+
+    private String server(CollectionRecordType collection) {
+        if (serverId != null) {
+            return serverId;
+        }
+
+        if (collection.getPollingServices().isEmpty()) {
+            return "";
+        }
+
+        URI address = URI.create(collection.getPollingServices().get(0).getAddress());
+        return address.getHost() + ":" + address.getPort();
+    }
+
+    /**
+     * the ring of the current members, rebuilt only when they change. Reading the members is left to the membership,
+     * {@link DirectoryLeaseMembership} reads them at most once per lease renewal
+     */
+    private ConsistentHashRing ring() {
+        Set<String> members = membership.getMembers();
+        ConsistentHashRing current = ring;
+        if (current == null || !current.getNodes().equals(members)) {
+            if (!members.contains(membership.getLocalNodeId())) {
+                log.warn("node " + membership.getLocalNodeId() + " isn't a member, it owns no collections");
+            }
+            current = new ConsistentHashRing(members, virtualNodes);
+            ring = current;
+            log.info("poller members changed to " + members);
+        }
+
+        return current;
+    }
+}
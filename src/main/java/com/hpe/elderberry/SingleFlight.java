@@ -0,0 +1,92 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * <p>Coalesces concurrent identical calls. The first caller for a key runs the call, callers that arrive with the same
+ * key while the call is in flight wait for it and receive the same result, or the same exception. Once the call
+ * completes the key is forgotten, so the next call runs again: this is not a cache.</p>
+ * <p>Since the result is shared, callers must treat it as read-only. A caller waits for the call in flight at most
+ * until the deadline of its own template call, see {@link TaxiiDeadline}, and stops waiting when interrupted.</p>
+ *
+ * @param <K> the key type, it must implement <code>equals</code> and <code>hashCode</code>
+ * @param <V> the result type
+ */
+class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * runs a call, or joins the identical call already in flight
+     *
+     * @param key  identifies identical calls
+     * @param call the call to run when no identical call is in flight
+     * @return the call's result
+     * @throws TaxiiTimeoutException when the caller's deadline expired while waiting for the call in flight
+     */
+    V execute(K key, Supplier<V> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.increment();
+            return join(leader);
+        }
+
+        try {
+            V result = call.get();
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return the number of calls that joined a call in flight instead of running
+     */
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    private V join(CompletableFuture<V> leader) {
+        long remaining = TaxiiDeadline.remainingNanos();
+        try {
+            return remaining == Long.MAX_VALUE ? leader.get() : leader.get(max(0, remaining), NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw TaxiiDeadline.expiredWhile("an identical request in flight");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for an identical request in flight", e);
+        } catch (ExecutionException e) {
+            // rethrow the leader's exception as is, so every caller sees the same failure
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException("unable to join an identical request in flight, " + e.getMessage(), e);
+        }
+    }
+}
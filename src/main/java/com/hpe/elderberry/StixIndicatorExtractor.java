@@ -0,0 +1,162 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BiConsumer;
+
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Extracts network and file observables from STIX 1.x content, the content TAXII 1.x servers serve. It walks the
+ * DOM of each content block once and reports the values of CybOX objects wherever they appear, in indicators,
+ * observables or observable compositions:</p>
+ * <ul>
+ * <li><code>AddressObjectType</code> address values: IPv4 and IPv6 addresses and CIDR blocks</li>
+ * <li><code>DomainNameObjectType</code> values: domain names</li>
+ * <li><code>URIObjectType</code> values: URLs</li>
+ * <li><code>FileObjectType</code> simple hash values: MD5, SHA-1 and SHA-256 file hashes</li>
+ * </ul>
+ * Values that list several observables with the STIX <code>##comma##</code> delimiter are reported one by one.
+ * Content that arrived as text rather than as DOM elements is parsed first, without DTDs or external entities.
+ */
+@SuppressWarnings("unused")
+public class StixIndicatorExtractor {
+    private static final String XSI = XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI;
+
+    private static final String LIST_DELIMITER = "##comma##";
+
+    private Log log = getLog(getClass());
+
+    private final ThreadLocal<DocumentBuilder> builders = ThreadLocal.withInitial(StixIndicatorExtractor::newDocumentBuilder);
+
+    /**
+     * @param block a TAXII 1.1 content block
+     * @param sink  receives the type and value of each observable
+     */
+    public void extract(ContentBlock block, BiConsumer<IndicatorIndex.Type, String> sink) {
+        if (block != null && block.getContent() != null) {
+            block.getContent().getContent().forEach(content -> extract(content, sink));
+        }
+    }
+
+    /**
+     * @param content a DOM node, or XML text
+     * @param sink    receives the type and value of each observable
+     */
+    public void extract(Object content, BiConsumer<IndicatorIndex.Type, String> sink) {
+        if (content instanceof Node) {
+            walk((Node) content, sink);
+        } else if (content instanceof String && ((String) content).trim().startsWith("<")) {
+            try {
+                Document document = builders.get().parse(new InputSource(new StringReader((String) content)));
+                walk(document.getDocumentElement(), sink);
+            } catch (Exception e) {
+                log.warn("unable to parse content block, skipping it, " + e.getMessage());
+            }
+        }
+    }
+
+    private void walk(Node root, BiConsumer<IndicatorIndex.Type, String> sink) {
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            if (node.getNodeType() == Node.ELEMENT_NODE && "Properties".equals(node.getLocalName())) {
+                properties((Element) node, sink);
+            }
+
+            for (Node child = node.getLastChild(); child != null; child = child.getPreviousSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE || child.getNodeType() == Node.DOCUMENT_NODE) {
+                    pending.push(child);
+                }
+            }
+        }
+    }
+
+    private void properties(Element properties, BiConsumer<IndicatorIndex.Type, String> sink) {
+        String type = properties.getAttributeNS(XSI, "type");
+        if (type.endsWith("AddressObjectType")) {
+            String category = properties.getAttribute("category");
+            if (category.isEmpty() || category.startsWith("ipv4") || category.startsWith("ipv6")) {
+                values(properties, "Address_Value", IndicatorIndex.Type.ADDRESS, sink);
+            }
+        } else if (type.endsWith("DomainNameObjectType")) {
+            values(properties, "Value", IndicatorIndex.Type.DOMAIN, sink);
+        } else if (type.endsWith("URIObjectType")) {
+            values(properties, "Value", IndicatorIndex.Type.URL, sink);
+        } else if (type.endsWith("FileObjectType")) {
+            // hashes are nested in Hashes/Hash elements
+            Deque<Element> pending = new ArrayDeque<>();
+            pending.push(properties);
+            while (!pending.isEmpty()) {
+                for (Node child = pending.pop().getFirstChild(); child != null; child = child.getNextSibling()) {
+                    if (child.getNodeType() == Node.ELEMENT_NODE) {
+                        if ("Simple_Hash_Value".equals(child.getLocalName())) {
+                            split(child.getTextContent(), IndicatorIndex.Type.HASH, sink);
+                        } else {
+                            pending.push((Element) child);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void values(Element properties, String name, IndicatorIndex.Type type,
+                        BiConsumer<IndicatorIndex.Type, String> sink) {
+        for (Node child = properties.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && name.equals(child.getLocalName())) {
+                split(child.getTextContent(), type, sink);
+            }
+        }
+    }
+
+    private void split(String text, IndicatorIndex.Type type, BiConsumer<IndicatorIndex.Type, String> sink) {
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf(LIST_DELIMITER, start);
+            if (end < 0) {
+                end = text.length();
+            }
+
+            String value = text.substring(start, end).trim();
+            if (!value.isEmpty()) {
+                sink.accept(type, value);
+            }
+            start = end + LIST_DELIMITER.length();
+        }
+    }
+
+    private static DocumentBuilder newDocumentBuilder() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setExpandEntityReferences(false);
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("unable to create an XML parser, " + e.getMessage(), e);
+        }
+    }
+}
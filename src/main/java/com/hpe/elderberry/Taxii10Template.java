@@ -8,7 +8,7 @@
  */
 package com.hpe.elderberry;
 
-import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml10.ContentBlock;
 import org.mitre.taxii.messages.xml10.DiscoveryRequest;
 import org.mitre.taxii.messages.xml10.DiscoveryResponse;
 import org.mitre.taxii.messages.xml10.FeedInformationRequest;
@@ -16,34 +16,26 @@ import org.mitre.taxii.messages.xml10.FeedInformationResponse;
 import org.mitre.taxii.messages.xml10.FeedRecordType;
 import org.mitre.taxii.messages.xml10.PollRequest;
 import org.mitre.taxii.messages.xml10.PollResponse;
+import org.mitre.taxii.messages.xml10.PollingServiceInstanceType;
 import org.mitre.taxii.messages.xml10.ServiceInstanceType;
 import org.mitre.taxii.messages.xml10.ServiceTypeEnum;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.ResponseEntity;
 
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.XMLGregorianCalendar;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
 
-import static java.lang.System.currentTimeMillis;
-import static java.util.Collections.singletonList;
-import static javax.xml.datatype.DatatypeFactory.newInstance;
-import static org.apache.commons.logging.LogFactory.getLog;
-import static org.mitre.taxii.Versions.VID_TAXII_HTTPS_10;
-import static org.mitre.taxii.Versions.VID_TAXII_HTTP_10;
-import static org.mitre.taxii.Versions.VID_TAXII_SERVICES_10;
-import static org.mitre.taxii.Versions.VID_TAXII_XML_10;
-import static org.springframework.http.HttpStatus.OK;
-import static org.springframework.http.MediaType.APPLICATION_XML;
+import static com.hpe.elderberry.TaxiiEngine.generateMessageId;
+import static com.hpe.elderberry.TaxiiTimestamps.instant;
+import static com.hpe.elderberry.TaxiiTimestamps.toXmlGregorianCalendar;
+import static com.hpe.elderberry.TaxiiVersion.TAXII_10;
 
 /**
  * <p>Taxii11Template is a convenient way to connect spring to a TAXII 1.0 server. This template allows you to easily
@@ -68,10 +60,12 @@ import static org.springframework.http.MediaType.APPLICATION_XML;
  */
 @SuppressWarnings("unused")
 public class Taxii10Template {
-    private Log log = getLog(getClass());
+    private final TaxiiEngine engine = new TaxiiEngine(TAXII_10, getClass());
 
     private TaxiiConnection conn;
 
+    private PollingEndpointSelector selector;
+
     /**
      * the {@link TaxiiConnection} to use
      *
@@ -81,6 +75,37 @@ public class Taxii10Template {
     @Required
     public void setTaxiiConnection(TaxiiConnection conn) {
         this.conn = conn;
+        engine.setTaxiiConnection(conn);
+    }
+
+    /**
+     * an optional journal, when set every polled content block is appended to it
+     *
+     * @param journal the journal to append polled content blocks to
+     */
+    public void setContentJournal(ContentJournal journal) {
+        engine.setContentJournal(journal);
+    }
+
+    /**
+     * an optional end-to-end deadline for each call of this template. A call that doesn't complete in time has its
+     * request in flight aborted and throws a {@link TaxiiTimeoutException}. The per phase timeouts are set on the
+     * connection, see {@link TaxiiConnection#setSocketTimeoutMillis(int)}
+     *
+     * @param deadlineMillis the maximum time a call may take, when 0 or not set calls have no deadline
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        engine.setDeadlineMillis(deadlineMillis);
+    }
+
+    /**
+     * an optional selector for feeds that list several polling services. Polls of a feed record go to its fastest
+     * healthy polling service and fail over to the others, see {@link PollingEndpointSelector}
+     *
+     * @param selector when not set, feed records are polled at their first polling service
+     */
+    public void setEndpointSelector(PollingEndpointSelector selector) {
+        this.selector = selector;
     }
 
     /**
@@ -89,10 +114,10 @@ public class Taxii10Template {
      * @return the <code>DiscoveryResponse</code>, or null if there was an error connecting to the discovery service
      */
     public DiscoveryResponse discover() {
-        ResponseEntity<DiscoveryResponse> response = conn.getRestTemplate().postForEntity(conn.getDiscoveryUrl(),
-                wrapRequest(new DiscoveryRequest().withMessageId(generateMessageId())), DiscoveryResponse.class);
-
-        return respond(response);
+        URI uri = conn.getDiscoveryUrl();
+        return engine.within("discover", uri, null, () -> conn.coalesce(() -> engine.post(uri,
+                new DiscoveryRequest().withMessageId(generateMessageId()), DiscoveryResponse.class),
+                uri, DiscoveryRequest.class));
     }
 
     /**
@@ -127,10 +152,10 @@ public class Taxii10Template {
      * @throws URISyntaxException when the service URL cannot be converted into a URI
      */
     public FeedInformationResponse feedInformation(URL url) throws URISyntaxException {
-        ResponseEntity<FeedInformationResponse> response = conn.getRestTemplate().postForEntity(url.toURI(),
-                wrapRequest(new FeedInformationRequest().withMessageId(generateMessageId())), FeedInformationResponse.class);
-
-        return respond(response);
+        URI uri = url.toURI();
+        return engine.within("feedInformation", uri, null, () -> conn.coalesce(() -> engine.post(uri,
+                new FeedInformationRequest().withMessageId(generateMessageId()), FeedInformationResponse.class),
+                uri, FeedInformationRequest.class));
     }
 
     /**
@@ -146,8 +171,51 @@ public class Taxii10Template {
      * @throws MalformedURLException when the collection record has an incorrect address
      */
     public PollResponse poll(FeedRecordType feed, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) throws MalformedURLException, URISyntaxException {
-        return poll(new URL(feed.getPollingServices().get(0).getAddress()), feed.getFeedName(), subscriptionId,
-                exclusiveBegin, inclusiveEnd);
+        return poll(feed, subscriptionId, instant(exclusiveBegin), instant(inclusiveEnd));
+    }
+
+    /**
+     * polls a TAXII 1.0 poll service, see {@link #poll(FeedRecordType, String, Date, Date)}
+     *
+     * @param feed           the feed record to poll
+     * @param subscriptionId an optional subscription ID
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a poll response
+     * @throws URISyntaxException    when the feed record URL cannot be converted to a URI
+     * @throws MalformedURLException when the collection record has an incorrect address
+     */
+    public PollResponse poll(FeedRecordType feed, String subscriptionId, Instant exclusiveBegin, Instant inclusiveEnd) throws MalformedURLException, URISyntaxException {
+        List<String> addresses = new ArrayList<>(feed.getPollingServices().size());
+        for (PollingServiceInstanceType service : feed.getPollingServices()) {
+            addresses.add(service.getAddress());
+        }
+
+        return engine.pollAny(selector, addresses, pollUrl -> poll(pollUrl, feed.getFeedName(), subscriptionId,
+                exclusiveBegin, inclusiveEnd), feed.getFeedName(), PollResponse::getContentBlocks,
+                ContentBlock::getTimestampLabel);
+    }
+
+    /**
+     * polls a TAXII 1.0 service, see {@link #poll(URL, String, String, Date, Date)}
+     *
+     * @param pollUrl        poll service URL
+     * @param feedName       feed name to poll
+     * @param subscriptionId an optional subscription ID
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a poll response
+     * @throws URISyntaxException when the feed record URL cannot be converted to a URI
+     */
+    public PollResponse poll(URL pollUrl, String feedName, String subscriptionId, Instant exclusiveBegin, Instant inclusiveEnd) throws URISyntaxException {
+        PollRequest pollRequest = new PollRequest()
+                .withMessageId(generateMessageId())
+                .withFeedName(feedName)
+                .withExclusiveBeginTimestamp(toXmlGregorianCalendar(exclusiveBegin))
+                .withInclusiveEndTimestamp(toXmlGregorianCalendar(inclusiveEnd))
+                .withSubscriptionId(subscriptionId);
+
+        return send(pollUrl.toURI(), pollRequest);
     }
 
     /**
@@ -162,22 +230,27 @@ public class Taxii10Template {
      * @throws URISyntaxException when the feed record URL cannot be converted to a URI
      */
     public PollResponse poll(URL pollUrl, String feedName, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException {
-        try {
-            PollRequest pollRequest = new PollRequest()
-                    .withMessageId(generateMessageId())
-                    .withFeedName(feedName)
-                    .withExclusiveBeginTimestamp(toXmlGregorianCalendar(exclusiveBegin))
-                    .withInclusiveEndTimestamp(toXmlGregorianCalendar(inclusiveEnd))
-                    .withSubscriptionId(subscriptionId);
-
-            ResponseEntity<PollResponse> response = conn.getRestTemplate().postForEntity(pollUrl.toURI(),
-                    wrapRequest(pollRequest), PollResponse.class);
-
-            return respond(response);
-        } catch (DatatypeConfigurationException e) {
-            log.error("error converting dates: " + e.getMessage(), e);
-            return null;
-        }
+        return poll(pollUrl, feedName, subscriptionId, instant(exclusiveBegin), instant(inclusiveEnd));
+    }
+
+    /**
+     * sends a poll request. Every poll of this template sends its poll request with this method, override it to
+     * answer polls from elsewhere, like {@link ReplayTaxii10Template} does
+     *
+     * @param uri         the poll service URI
+     * @param pollRequest the poll request
+     * @return the poll response, or null when there was an error
+     */
+    protected PollResponse send(URI uri, PollRequest pollRequest) {
+        String feedName = pollRequest.getFeedName();
+        return engine.within("poll", uri, feedName, () -> conn.coalesce(() -> {
+            PollResponse pollResponse = engine.post(uri, pollRequest, PollResponse.class);
+            if (pollResponse != null) {
+                engine.journal(feedName, pollResponse.getContentBlocks(), ContentBlock::getTimestampLabel);
+            }
+            return pollResponse;
+        }, uri, PollRequest.class, feedName, pollRequest.getSubscriptionId(), pollRequest.getExclusiveBeginTimestamp(),
+                pollRequest.getInclusiveEndTimestamp(), engine.currentJournal()));
     }
 
     /**
@@ -212,39 +285,4 @@ public class Taxii10Template {
         }
         return null;
     }
-
-    private <T> T respond(ResponseEntity<T> response) {
-        if (response.getStatusCode() == OK) {
-            return response.getBody();
-        }
-
-        log.error("error in TAXII request: " + response.getStatusCode());
-
-        return null;
-    }
-
-    private String generateMessageId() {
-        return String.valueOf(currentTimeMillis() / 100000);
-    }
-
-    private Date yesterday() {
-        return new Date(currentTimeMillis() - 86400000);
-    }
-
-    private XMLGregorianCalendar toXmlGregorianCalendar(Date date) throws DatatypeConfigurationException {
-        GregorianCalendar c = new GregorianCalendar();
-        c.setTime(date);
-        return newInstance().newXMLGregorianCalendar(c);
-    }
-
-    private <T> HttpEntity<T> wrapRequest(T body) {
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(APPLICATION_XML);
-        headers.setAccept(singletonList(APPLICATION_XML));
-        headers.add("X-TAXII-Services", VID_TAXII_SERVICES_10);
-        headers.add("X-TAXII-Content-Type", VID_TAXII_XML_10);
-        String binding = conn.getDiscoveryUrl().getScheme().endsWith("s") ? VID_TAXII_HTTPS_10 : VID_TAXII_HTTP_10;
-        headers.add("X-TAXII-Protocol", binding);
-        return new HttpEntity<>(body, headers);
-    }
 }
@@ -9,43 +9,73 @@
 package com.hpe.elderberry;
 
 import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.CollectionActionEnum;
+import org.mitre.taxii.messages.xml11.ContentBlock;
 import org.mitre.taxii.messages.xml11.CollectionInformationRequest;
 import org.mitre.taxii.messages.xml11.CollectionInformationResponse;
 import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.mitre.taxii.messages.xml11.ContentBindingIDType;
 import org.mitre.taxii.messages.xml11.DiscoveryRequest;
 import org.mitre.taxii.messages.xml11.DiscoveryResponse;
+import org.mitre.taxii.messages.xml11.ManageCollectionSubscriptionRequest;
+import org.mitre.taxii.messages.xml11.ManageCollectionSubscriptionResponse;
+import org.mitre.taxii.messages.xml11.PollFulfillment;
+import org.mitre.taxii.messages.xml11.PollParametersType;
 import org.mitre.taxii.messages.xml11.PollRequest;
 import org.mitre.taxii.messages.xml11.PollResponse;
+import org.mitre.taxii.messages.xml11.PollingServiceInstanceType;
+import org.mitre.taxii.messages.xml11.PushParameterType;
+import org.mitre.taxii.messages.xml11.RecordCountType;
 import org.mitre.taxii.messages.xml11.ServiceInstanceType;
 import org.mitre.taxii.messages.xml11.ServiceTypeEnum;
-import org.mitre.taxii.messages.xml11.StatusMessage;
-import org.springframework.beans.TypeMismatchException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.ResponseEntity;
 
-import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.XMLGregorianCalendar;
+import java.math.BigInteger;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.GregorianCalendar;
-
-import static java.lang.System.currentTimeMillis;
-import static java.util.Collections.singletonList;
-import static javax.xml.datatype.DatatypeFactory.newInstance;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.hpe.elderberry.TaxiiEngine.generateMessageId;
+import static com.hpe.elderberry.TaxiiEngine.yesterday;
+import static com.hpe.elderberry.TaxiiExecutors.newVirtualThreadPerTaskExecutorOrPool;
+import static com.hpe.elderberry.TaxiiTimestamps.instant;
+import static com.hpe.elderberry.TaxiiTimestamps.toXmlGregorianCalendar;
+import static com.hpe.elderberry.TaxiiVersion.TAXII_11;
+import static java.lang.Boolean.TRUE;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Runtime.getRuntime;
+import static java.math.BigInteger.ONE;
 import static org.apache.commons.logging.LogFactory.getLog;
 import static org.mitre.taxii.Versions.VID_TAXII_HTTPS_10;
 import static org.mitre.taxii.Versions.VID_TAXII_HTTP_10;
-import static org.mitre.taxii.Versions.VID_TAXII_SERVICES_11;
 import static org.mitre.taxii.Versions.VID_TAXII_XML_11;
-import static org.springframework.http.HttpStatus.OK;
-import static org.springframework.http.MediaType.APPLICATION_XML;
-import static org.springframework.util.StringUtils.collectionToCommaDelimitedString;
+import static org.mitre.taxii.messages.xml11.CollectionActionEnum.PAUSE;
+import static org.mitre.taxii.messages.xml11.CollectionActionEnum.RESUME;
+import static org.mitre.taxii.messages.xml11.CollectionActionEnum.STATUS;
+import static org.mitre.taxii.messages.xml11.CollectionActionEnum.SUBSCRIBE;
+import static org.mitre.taxii.messages.xml11.CollectionActionEnum.UNSUBSCRIBE;
+import static org.mitre.taxii.messages.xml11.ResponseTypeEnum.COUNT_ONLY;
+import static org.mitre.taxii.messages.xml11.ResponseTypeEnum.FULL;
 import static org.springframework.util.StringUtils.isEmpty;
 
 /**
@@ -73,8 +103,14 @@ import static org.springframework.util.StringUtils.isEmpty;
 public class Taxii11Template {
     private Log log = getLog(getClass());
 
+    private final TaxiiEngine engine = new TaxiiEngine(TAXII_11, getClass());
+
     private TaxiiConnection conn;
 
+    private ExecutorService executor;
+
+    private PollingEndpointSelector selector;
+
     /**
      * the {@link TaxiiConnection} to use
      *
@@ -84,6 +120,51 @@ public class Taxii11Template {
     @Required
     public void setTaxiiConnection(TaxiiConnection conn) {
         this.conn = conn;
+        engine.setTaxiiConnection(conn);
+    }
+
+    /**
+     * an optional journal, when set every polled content block is appended to it
+     *
+     * @param journal the journal to append polled content blocks to
+     */
+    public void setContentJournal(ContentJournal journal) {
+        engine.setContentJournal(journal);
+    }
+
+    /**
+     * an optional executor for {@link #pollAll(Collection, String, Date, Date)}
+     *
+     * @param executor when not set, each <code>pollAll</code> runs its polls on a new virtual thread per task executor
+     *                 when the JVM supports virtual threads (Java 21 or later), or on a new pool of platform threads
+     *                 otherwise. See {@link TaxiiExecutors}
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * an optional end-to-end deadline for each call of this template. A call that doesn't complete in time, including
+     * the result parts a stream retrieves by poll fulfillment, has its request in flight aborted and throws a
+     * {@link TaxiiTimeoutException}. The per phase timeouts are set on the connection, see
+     * {@link TaxiiConnection#setSocketTimeoutMillis(int)}
+     *
+     * @param deadlineMillis the maximum time a call may take, when 0 or not set calls have no deadline. For
+     *                       {@link #pollStream(URL, String, String, Date, Date)} the time runs from the first poll
+     *                       until the last part was retrieved
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        engine.setDeadlineMillis(deadlineMillis);
+    }
+
+    /**
+     * an optional selector for collections that list several polling services. Polls of a collection record go to its
+     * fastest healthy polling service and fail over to the others, see {@link PollingEndpointSelector}
+     *
+     * @param selector when not set, collection records are polled at their first polling service
+     */
+    public void setEndpointSelector(PollingEndpointSelector selector) {
+        this.selector = selector;
     }
 
     /**
@@ -92,10 +173,10 @@ public class Taxii11Template {
      * @return the <code>DiscoveryResponse</code>, or null if there was an error connecting to the discovery service
      */
     public DiscoveryResponse discover() {
-        ResponseEntity<DiscoveryResponse> response = conn.getRestTemplate().postForEntity(conn.getDiscoveryUrl(),
-                wrapRequest(new DiscoveryRequest().withMessageId(generateMessageId())), DiscoveryResponse.class);
-
-        return respond(response);
+        URI uri = conn.getDiscoveryUrl();
+        return engine.within("discover", uri, null, () -> conn.coalesce(() -> engine.post(uri,
+                new DiscoveryRequest().withMessageId(generateMessageId()), DiscoveryResponse.class),
+                uri, DiscoveryRequest.class));
     }
 
     /**
@@ -164,10 +245,10 @@ public class Taxii11Template {
      * @throws URISyntaxException when the service URL cannot be converted into a URI
      */
     public CollectionInformationResponse collectionInformation(URL url) throws URISyntaxException {
-        ResponseEntity<CollectionInformationResponse> response = conn.getRestTemplate().postForEntity(url.toURI(),
-                wrapRequest(new CollectionInformationRequest().withMessageId(generateMessageId())), CollectionInformationResponse.class);
-
-        return respond(response);
+        URI uri = url.toURI();
+        return engine.within("collectionInformation", uri, null, () -> conn.coalesce(() -> engine.post(uri,
+                new CollectionInformationRequest().withMessageId(generateMessageId()), CollectionInformationResponse.class),
+                uri, CollectionInformationRequest.class));
     }
 
     /**
@@ -195,8 +276,104 @@ public class Taxii11Template {
      * @throws MalformedURLException when the collection record has an incorrect address
      */
     public PollResponse poll(CollectionRecordType collection, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException, MalformedURLException {
-        return poll(new URL(collection.getPollingServices().get(0).getAddress()), collection.getCollectionName(),
-                subscriptionId, exclusiveBegin, inclusiveEnd);
+        return poll(collection, subscriptionId, instant(exclusiveBegin), instant(inclusiveEnd));
+    }
+
+    /**
+     * polls a TAXII 1.1 poll service, see {@link #poll(CollectionRecordType, String, Date, Date)}
+     *
+     * @param collection     the collection record to poll
+     * @param subscriptionId an optional subscription ID
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a poll response
+     * @throws URISyntaxException    when the collection record URL cannot be converted to a URI
+     * @throws MalformedURLException when the collection record has an incorrect address
+     */
+    public PollResponse poll(CollectionRecordType collection, String subscriptionId, Instant exclusiveBegin, Instant inclusiveEnd) throws URISyntaxException, MalformedURLException {
+        return pollAny(collection, pollUrl -> poll(pollUrl, collection.getCollectionName(), subscriptionId,
+                exclusiveBegin, inclusiveEnd));
+    }
+
+    /**
+     * polls several collections concurrently, one task per collection. The template stays blocking, each poll blocks
+     * its own (preferably virtual) thread. Make sure the {@link TaxiiConnection} pool is large enough for the number
+     * of concurrent polls, see {@link TaxiiConnection#setMaxConnectionsPerRoute(int)}. All polls run within one
+     * deadline, see {@link #setDeadlineMillis(long)}. A poll over the connection's rate limit waits for its turn before
+     * it takes a thread, see {@link RateLimiter#acquireAsync(String)}
+     *
+     * @param collections    the collection records to poll
+     * @param subscriptionId an optional subscription ID. Some services require it, even if they ignore it (like hail a
+     *                       taxii)
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return the poll responses by collection name, in the order of the collections. A collection that failed to poll
+     * is mapped to null
+     * @throws IllegalArgumentException when two collections have the same name, since their responses couldn't be told
+     *                                  apart. Nothing is polled then
+     */
+    public Map<String, PollResponse> pollAll(Collection<CollectionRecordType> collections, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) {
+        requireUniqueNames(collections);
+
+        ExecutorService pollExecutor = executor != null ? executor :
+                newVirtualThreadPerTaskExecutorOrPool(max(1, min(collections.size(), getRuntime().availableProcessors() * 4)));
+
+        // the poll tasks run on other threads, bind the deadline to each of them
+        TaxiiDeadline deadline = TaxiiDeadline.currentOr(engine.getDeadlineMillis());
+        RateLimiter limiter = conn != null ? conn.getRateLimiter() : null;
+        try {
+            Map<String, Future<PollResponse>> polls = new LinkedHashMap<>();
+            for (CollectionRecordType collection : collections) {
+                Supplier<PollResponse> poll = () -> deadline.run(engine::timedOut, () -> {
+                    try {
+                        return poll(collection, subscriptionId, exclusiveBegin, inclusiveEnd);
+                    } catch (URISyntaxException | MalformedURLException e) {
+                        throw new IllegalArgumentException("invalid poll URL of collection " +
+                                collection.getCollectionName(), e);
+                    }
+                });
+
+                // a poll over the rate limit waits for its first request without holding a thread of the executor
+                String host = limiter != null ? pollingHost(collection) : null;
+                polls.put(collection.getCollectionName(), host == null ? pollExecutor.submit(poll::get) :
+                        limiter.acquireAsync(host, deadline.remaining())
+                                .thenApplyAsync(permit -> RateLimiter.acquired(host, poll), pollExecutor));
+            }
+
+            Map<String, PollResponse> responses = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<PollResponse>> poll : polls.entrySet()) {
+                try {
+                    responses.put(poll.getKey(), poll.getValue().get());
+                } catch (ExecutionException e) {
+                    log.error("error polling collection " + poll.getKey() + ", " + e.getCause().getMessage(), e.getCause());
+                    responses.put(poll.getKey(), null);
+                } catch (InterruptedException e) {
+                    polls.values().forEach(f -> f.cancel(true));
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("interrupted while polling collections", e);
+                }
+            }
+
+            return responses;
+        } finally {
+            if (pollExecutor != executor) {
+                pollExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @param collections collection records to poll, and map the poll responses of by collection name
+     * @throws IllegalArgumentException when two collections have the same name
+     */
+    static void requireUniqueNames(Collection<CollectionRecordType> collections) {
+        Set<String> names = new HashSet<>();
+        for (CollectionRecordType collection : collections) {
+            if (!names.add(collection.getCollectionName())) {
+                throw new IllegalArgumentException("collection " + collection.getCollectionName() + " is listed more " +
+                        "than once, the poll responses are mapped by collection name");
+            }
+        }
     }
 
     /**
@@ -211,99 +388,496 @@ public class Taxii11Template {
      * @throws URISyntaxException when the collection record URL cannot be converted to a URI
      */
     public PollResponse poll(URL pollUrl, String collectionName, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException {
-        PollRequest pollRequest;
-        try {
-            pollRequest = new PollRequest()
-                    .withMessageId(generateMessageId())
-                    .withCollectionName(collectionName)
-                    .withExclusiveBeginTimestamp(toXmlGregorianCalendar(exclusiveBegin))
-                    .withInclusiveEndTimestamp(toXmlGregorianCalendar(inclusiveEnd))
-                    .withSubscriptionID(subscriptionId);
-        } catch (DatatypeConfigurationException e) {
-            log.error("error converting dates: " + e.getMessage(), e);
-            return null;
-        }
+        return poll(pollUrl, collectionName, subscriptionId, instant(exclusiveBegin), instant(inclusiveEnd));
+    }
 
-        try {
-            // poll
-            ResponseEntity<PollResponse> response = conn.getRestTemplate().postForEntity(pollUrl.toURI(),
-                    wrapRequest(pollRequest), PollResponse.class);
+    /**
+     * polls a TAXII 1.1 service, see {@link #poll(URL, String, String, Date, Date)}
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection name to poll
+     * @param subscriptionId an optional subscription ID
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a poll response
+     * @throws URISyntaxException when the collection record URL cannot be converted to a URI
+     */
+    public PollResponse poll(URL pollUrl, String collectionName, String subscriptionId, Instant exclusiveBegin, Instant inclusiveEnd) throws URISyntaxException {
+        return poll(pollUrl, collectionName, subscriptionId, null, exclusiveBegin, inclusiveEnd);
+    }
 
-            return respond(response);
-        } catch (TypeMismatchException e) {
-            // if we're here this means that the poll request returned an error in the form of a StatusMessage, let's
-            // poll again and log the message
+    /**
+     * polls a TAXII 1.1 service for the content that matches a filter. The filter is applied by the server, see
+     * {@link PollFilter}. Since the filter is sent as poll parameters, no subscription ID is sent
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection name to poll
+     * @param filter         the content bindings and query to poll for
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a poll response
+     * @throws URISyntaxException when the collection record URL cannot be converted to a URI
+     */
+    public PollResponse poll(URL pollUrl, String collectionName, PollFilter filter, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException {
+        return poll(pollUrl, collectionName, null, filter.toPollParameters(FULL), instant(exclusiveBegin),
+                instant(inclusiveEnd));
+    }
 
-            log.error("poll request failed, response contained a status message instead of a poll response, " +
-                    "requesting again to retrieve the status message", e);
+    /**
+     * polls a TAXII 1.1 service for the content that matches a filter, see
+     * {@link #poll(URL, String, PollFilter, Date, Date)}
+     *
+     * @param collection     the collection record to poll
+     * @param filter         the content bindings and query to poll for
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a poll response
+     * @throws URISyntaxException    when the collection record URL cannot be converted to a URI
+     * @throws MalformedURLException when the collection record has an incorrect address
+     */
+    public PollResponse poll(CollectionRecordType collection, PollFilter filter, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException, MalformedURLException {
+        return pollAny(collection, pollUrl -> poll(pollUrl, collection.getCollectionName(), filter, exclusiveBegin,
+                inclusiveEnd));
+    }
 
-            ResponseEntity<StatusMessage> response = conn.getRestTemplate().postForEntity(pollUrl.toURI(),
-                    wrapRequest(pollRequest), StatusMessage.class);
+    /**
+     * asks a TAXII 1.1 poll service how many content blocks a poll would return, without retrieving them. This is a
+     * poll with a <code>COUNT_ONLY</code> response type, use it to plan large polls, see {@link PollPlanner}
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection name to count
+     * @param exclusiveBegin begin time to count
+     * @param inclusiveEnd   end time to count
+     * @return the record count, or null when there was an error. When the count is partial the actual number of
+     * content blocks is at least the count. When the server ignores the <code>COUNT_ONLY</code> response type and
+     * returns content, the count is the number of content blocks received, and it's partial when there are more parts.
+     * That content isn't journaled
+     * @throws URISyntaxException when the collection record URL cannot be converted to a URI
+     */
+    public RecordCountType count(URL pollUrl, String collectionName, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException {
+        return count(pollUrl, collectionName, new PollFilter(), exclusiveBegin, inclusiveEnd);
+    }
 
-            log.error("error polling, status: "+statusMessageSafelyToString(response.getBody()));
+    /**
+     * asks a TAXII 1.1 poll service how many content blocks that match a filter a poll would return, see
+     * {@link #count(URL, String, Date, Date)}
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection name to count
+     * @param filter         the content bindings and query to count
+     * @param exclusiveBegin begin time to count
+     * @param inclusiveEnd   end time to count
+     * @return the record count, or null when there was an error
+     * @throws URISyntaxException when the collection record URL cannot be converted to a URI
+     */
+    public RecordCountType count(URL pollUrl, String collectionName, PollFilter filter, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException {
+        PollResponse response = poll(pollUrl, collectionName, null, filter.toPollParameters(COUNT_ONLY),
+                instant(exclusiveBegin), instant(inclusiveEnd));
 
-            return null;
+        if (response == null || response.getRecordCount() != null) {
+            return response == null ? null : response.getRecordCount();
         }
-    }
 
-    private String statusMessageSafelyToString(StatusMessage msg) {
-        StringBuilder sb = new StringBuilder();
+        return new RecordCountType()
+                .withValue(BigInteger.valueOf(response.getContentBlocks().size()))
+                .withPartialCount(TRUE.equals(response.isMore()));
+    }
 
-        if(!isEmpty(msg.getMessageId())) {
-            sb.append("message ID: ").append(msg.getMessageId()).append("\n");
+    private PollResponse poll(URL pollUrl, String collectionName, String subscriptionId, PollParametersType parameters,
+                              Instant exclusiveBegin, Instant inclusiveEnd) throws URISyntaxException {
+        PollRequest pollRequest = new PollRequest()
+                .withMessageId(generateMessageId())
+                .withCollectionName(collectionName)
+                .withExclusiveBeginTimestamp(toXmlGregorianCalendar(exclusiveBegin))
+                .withInclusiveEndTimestamp(toXmlGregorianCalendar(inclusiveEnd));
+
+        // a poll request carries either a subscription ID or poll parameters
+        if (parameters == null) {
+            pollRequest.withSubscriptionID(subscriptionId);
+        } else {
+            pollRequest.withPollParameters(parameters);
         }
 
-        if(!isEmpty(msg.getInResponseTo())) {
-            sb.append("in response to: ").append(msg.getInResponseTo()).append("\n");
-        }
+        return send(pollUrl.toURI(), pollRequest);
+    }
 
-        if(!isEmpty(msg.getStatusType())) {
-            sb.append("status type: ").append(msg.getStatusType()).append("\n");
-        }
+    /**
+     * sends a poll request. Every poll, count and stream of this template sends its poll request with this method,
+     * override it together with {@link #send(URI, PollFulfillment)} to answer polls from elsewhere, like
+     * {@link ReplayTaxii11Template} does
+     *
+     * @param uri         the poll service URI
+     * @param pollRequest the poll request
+     * @return the poll response, or null when there was an error
+     */
+    protected PollResponse send(URI uri, PollRequest pollRequest) {
+        String collectionName = pollRequest.getCollectionName();
+        return engine.within("poll", uri, collectionName, () -> conn.coalesce(() -> post(uri, pollRequest), uri,
+                PollRequest.class, collectionName, pollRequest.getSubscriptionID(),
+                pollRequest.getExclusiveBeginTimestamp(), pollRequest.getInclusiveEndTimestamp(),
+                pollParametersKey(pollRequest.getPollParameters()), engine.currentJournal()));
+    }
+
+    /**
+     * sends a poll fulfillment request. Every fulfillment of this template, including the result parts of a stream,
+     * is sent with this method, see {@link #send(URI, PollRequest)}
+     *
+     * @param uri         the poll service URI
+     * @param fulfillment the poll fulfillment request
+     * @return the poll response with the requested part, or null when there was an error
+     */
+    protected PollResponse send(URI uri, PollFulfillment fulfillment) {
+        String collectionName = fulfillment.getCollectionName();
+        return engine.within("fulfill", uri, collectionName, () -> conn.coalesce(() -> {
+            PollResponse pollResponse = engine.post(uri, fulfillment, PollResponse.class);
+            journal(collectionName, pollResponse);
+            return pollResponse;
+        }, uri, PollFulfillment.class, collectionName, fulfillment.getResultId(), fulfillment.getResultPartNumber(),
+                engine.currentJournal()));
+    }
 
-        if(!isEmpty(msg.getMessage())) {
-            sb.append("message: ").append(msg.getMessage()).append("\n");
+    private PollResponse post(URI uri, PollRequest pollRequest) {
+        PollResponse pollResponse = engine.post(uri, pollRequest, PollResponse.class);
+        // a server that ignores COUNT_ONLY returns content, the poll that follows the count journals it
+        PollParametersType parameters = pollRequest.getPollParameters();
+        if (parameters == null || parameters.getResponseType() != COUNT_ONLY) {
+            journal(pollRequest.getCollectionName(), pollResponse);
         }
+        return pollResponse;
+    }
+
+    /**
+     * retrieves a part of a poll result. When a poll response is marked with <code>more</code>, the rest of the result
+     * is retrieved part by part using this method
+     *
+     * @param pollUrl          poll service URL
+     * @param collectionName   collection name of the poll
+     * @param resultId         the result ID from the poll response
+     * @param resultPartNumber the part number to retrieve, the first part is 1 and it's returned by the poll itself
+     * @return a poll response with the requested part
+     * @throws URISyntaxException when the collection record URL cannot be converted to a URI
+     */
+    public PollResponse fulfill(URL pollUrl, String collectionName, String resultId, BigInteger resultPartNumber) throws URISyntaxException {
+        PollFulfillment fulfillment = new PollFulfillment()
+                .withMessageId(generateMessageId())
+                .withCollectionName(collectionName)
+                .withResultId(resultId)
+                .withResultPartNumber(resultPartNumber);
+
+        return send(pollUrl.toURI(), fulfillment);
+    }
 
-        if(msg.getStatusDetail()!=null && msg.getStatusDetail().getDetails()!=null) {
-            sb.append("details: ").append(collectionToCommaDelimitedString(msg.getStatusDetail().getDetails()));
+    /**
+     * polls a TAXII 1.1 service and streams the content blocks of all result parts. The stream is lazy: the poll
+     * request is sent when the first content block is requested, and each following result part is retrieved with
+     * {@link #fulfill(URL, String, String, BigInteger)} only after the consumer took all content blocks of the
+     * previous part. A slow consumer therefore holds at most one result part in memory, and the content blocks it
+     * already consumed are released.
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection name to poll
+     * @param subscriptionId an optional subscription ID. Some service require it, even if they ignore it (like hail a taxii)
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a sequential stream of content blocks, empty when the poll failed
+     */
+    public Stream<ContentBlock> pollStream(URL pollUrl, String collectionName, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) {
+        return pollStream(pollUrl, collectionName, subscriptionId, instant(exclusiveBegin), instant(inclusiveEnd));
+    }
+
+    /**
+     * streams the content blocks of all result parts, see {@link #pollStream(URL, String, String, Date, Date)}
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection name to poll
+     * @param subscriptionId an optional subscription ID
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a sequential stream of content blocks, empty when the poll failed
+     */
+    public Stream<ContentBlock> pollStream(URL pollUrl, String collectionName, String subscriptionId, Instant exclusiveBegin, Instant inclusiveEnd) {
+        return StreamSupport.stream(new ContentBlockSpliterator(pollUrl, collectionName, subscriptionId, null,
+                exclusiveBegin, inclusiveEnd), false);
+    }
+
+    /**
+     * polls a TAXII 1.1 service for the content that matches a filter and streams the content blocks of all result
+     * parts, see {@link #pollStream(URL, String, String, Date, Date)} and {@link #poll(URL, String, PollFilter, Date, Date)}
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection name to poll
+     * @param filter         the content bindings and query to poll for
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a sequential stream of content blocks, empty when the poll failed
+     */
+    public Stream<ContentBlock> pollStream(URL pollUrl, String collectionName, PollFilter filter, Date exclusiveBegin, Date inclusiveEnd) {
+        return StreamSupport.stream(new ContentBlockSpliterator(pollUrl, collectionName, null, filter,
+                instant(exclusiveBegin), instant(inclusiveEnd)), false);
+    }
+
+    /**
+     * polls a TAXII 1.1 service and streams the content blocks of all result parts, see
+     * {@link #pollStream(URL, String, String, Date, Date)}. All parts are retrieved from the same polling service, the
+     * best one when an endpoint selector is set, since result IDs are only known to the service that created them
+     *
+     * @param collection     the collection record to poll
+     * @param subscriptionId an optional subscription ID. Some services require it, even if they ignore it (like hail a
+     *                       taxii)
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a sequential stream of content blocks, empty when the poll failed
+     * @throws MalformedURLException when the collection record has an incorrect address
+     */
+    public Stream<ContentBlock> pollStream(CollectionRecordType collection, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) throws MalformedURLException {
+        List<String> addresses = pollingAddresses(collection);
+        return pollStream(new URL(selector == null ? addresses.get(0) : selector.order(addresses).get(0)),
+                collection.getCollectionName(), subscriptionId, exclusiveBegin, inclusiveEnd);
+    }
+
+    /**
+     * subscribes to a collection for push delivery to an inbox service, typically a {@link TaxiiInboxReceiver}. The
+     * server pushes new content to the inbox instead of being polled for it
+     *
+     * @param collectionManagementUrl the collection management service URL
+     * @param collectionName          the collection to subscribe to
+     * @param filter                  the content bindings and query to deliver, see {@link PollFilter}. When null all
+     *                                of the collection's content is delivered
+     * @param inboxUrl                the inbox service to deliver to, the inbox protocol follows its scheme. When null
+     *                                the subscription isn't pushed, its content is polled with the subscription ID
+     * @return the response with the new subscription, which holds the subscription ID, or null when there was an
+     * error. Check the subscription's status, a server may accept a subscription but not activate it
+     * @throws URISyntaxException when the service URL cannot be converted to a URI
+     */
+    public ManageCollectionSubscriptionResponse subscribe(URL collectionManagementUrl, String collectionName, PollFilter filter, URI inboxUrl) throws URISyntaxException {
+        ManageCollectionSubscriptionRequest request = subscriptionRequest(collectionName, SUBSCRIBE, null)
+                .withSubscriptionParameters((filter == null ? new PollFilter() : filter).toSubscriptionParameters(FULL));
+
+        if (inboxUrl != null) {
+            request.withPushParameters(new PushParameterType()
+                    .withInboxProtocol("https".equalsIgnoreCase(inboxUrl.getScheme()) ? VID_TAXII_HTTPS_10 : VID_TAXII_HTTP_10)
+                    .withInboxAddress(inboxUrl.toString())
+                    .withDeliveryMessageBinding(VID_TAXII_XML_11));
         }
 
-        return sb.toString();
+        return manageSubscription(collectionManagementUrl, request);
     }
 
-    private <T> T respond(ResponseEntity<T> response) {
-        if (response.getStatusCode() == OK) {
-            return response.getBody();
+    /**
+     * ends a subscription
+     *
+     * @param collectionManagementUrl the collection management service URL
+     * @param collectionName          the subscribed collection
+     * @param subscriptionId          the subscription ID returned by
+     *                                {@link #subscribe(URL, String, PollFilter, URI)}
+     * @return the response with the subscription, or null when there was an error
+     * @throws URISyntaxException when the service URL cannot be converted to a URI
+     */
+    public ManageCollectionSubscriptionResponse unsubscribe(URL collectionManagementUrl, String collectionName, String subscriptionId) throws URISyntaxException {
+        return manageSubscription(collectionManagementUrl, subscriptionRequest(collectionName, UNSUBSCRIBE, subscriptionId));
+    }
+
+    /**
+     * pauses the delivery of a subscription. Content isn't pushed while the subscription is paused, and isn't pushed
+     * later when it's resumed either, poll the gap if it matters
+     *
+     * @param collectionManagementUrl the collection management service URL
+     * @param collectionName          the subscribed collection
+     * @param subscriptionId          the subscription ID
+     * @return the response with the subscription, or null when there was an error
+     * @throws URISyntaxException when the service URL cannot be converted to a URI
+     */
+    public ManageCollectionSubscriptionResponse pauseSubscription(URL collectionManagementUrl, String collectionName, String subscriptionId) throws URISyntaxException {
+        return manageSubscription(collectionManagementUrl, subscriptionRequest(collectionName, PAUSE, subscriptionId));
+    }
+
+    /**
+     * resumes the delivery of a paused subscription
+     *
+     * @param collectionManagementUrl the collection management service URL
+     * @param collectionName          the subscribed collection
+     * @param subscriptionId          the subscription ID
+     * @return the response with the subscription, or null when there was an error
+     * @throws URISyntaxException when the service URL cannot be converted to a URI
+     */
+    public ManageCollectionSubscriptionResponse resumeSubscription(URL collectionManagementUrl, String collectionName, String subscriptionId) throws URISyntaxException {
+        return manageSubscription(collectionManagementUrl, subscriptionRequest(collectionName, RESUME, subscriptionId));
+    }
+
+    /**
+     * lists subscriptions to a collection with their status and delivery parameters
+     *
+     * @param collectionManagementUrl the collection management service URL
+     * @param collectionName          the subscribed collection
+     * @param subscriptionId          a subscription ID, or null for all of this client's subscriptions to the
+     *                                collection
+     * @return the response with the subscriptions, or null when there was an error
+     * @throws URISyntaxException when the service URL cannot be converted to a URI
+     */
+    public ManageCollectionSubscriptionResponse subscriptions(URL collectionManagementUrl, String collectionName, String subscriptionId) throws URISyntaxException {
+        ManageCollectionSubscriptionRequest request = subscriptionRequest(collectionName, STATUS, subscriptionId);
+        URI uri = collectionManagementUrl.toURI();
+        // a status request doesn't change anything, concurrent identical requests can share a response
+        return engine.within("subscriptions", uri, collectionName, () -> conn.coalesce(() -> manageSubscription(uri, request),
+                uri, ManageCollectionSubscriptionRequest.class, collectionName, subscriptionId));
+    }
+
+    private ManageCollectionSubscriptionRequest subscriptionRequest(String collectionName, CollectionActionEnum action,
+                                                                    String subscriptionId) {
+        return new ManageCollectionSubscriptionRequest()
+                .withMessageId(generateMessageId())
+                .withCollectionName(collectionName)
+                .withAction(action)
+                .withSubscriptionID(subscriptionId);
+    }
+
+    private ManageCollectionSubscriptionResponse manageSubscription(URL collectionManagementUrl,
+                                                                    ManageCollectionSubscriptionRequest request) throws URISyntaxException {
+        URI uri = collectionManagementUrl.toURI();
+        return engine.within("manageSubscription", uri, request.getCollectionName(), () -> manageSubscription(uri, request));
+    }
+
+    private ManageCollectionSubscriptionResponse manageSubscription(URI uri, ManageCollectionSubscriptionRequest request) {
+        // a status message is never requested again, subscribing twice would create two subscriptions
+        return engine.post(uri, request, ManageCollectionSubscriptionResponse.class);
+    }
+
+    private void journal(String collectionName, PollResponse response) {
+        if (response != null) {
+            engine.journal(collectionName, response.getContentBlocks(), ContentBlock::getTimestampLabel);
         }
+    }
 
-        log.error("error in TAXII request: " + response.getStatusCode());
+    /**
+     * poll parameters don't implement equals, so coalesced polls are keyed by their values. The query is compared by
+     * its own equals, at worst this keys polls with equal but distinct queries apart
+     */
+    private List<Object> pollParametersKey(PollParametersType parameters) {
+        if (parameters == null) {
+            return null;
+        }
 
-        return null;
+        List<Object> key = new ArrayList<>();
+        key.add(parameters.getResponseType());
+        key.add(parameters.getQuery());
+        for (ContentBindingIDType binding : parameters.getContentBindings()) {
+            key.add(binding.getBindingId());
+        }
+
+        return key;
     }
 
-    private Date yesterday() {
-        return new Date(currentTimeMillis() - 86400000);
+    /**
+     * polls a collection at its first polling service, or at the polling services the endpoint selector chooses
+     */
+    private PollResponse pollAny(CollectionRecordType collection,
+                                 PollingEndpointSelector.EndpointCall<PollResponse> poll) throws URISyntaxException, MalformedURLException {
+        return engine.pollAny(selector, pollingAddresses(collection), poll, collection.getCollectionName(),
+                PollResponse::getContentBlocks, ContentBlock::getTimestampLabel);
     }
 
-    private XMLGregorianCalendar toXmlGregorianCalendar(Date date) throws DatatypeConfigurationException {
-        GregorianCalendar c = new GregorianCalendar();
-        c.setTime(date);
-        return newInstance().newXMLGregorianCalendar(c);
+    /**
+     * @return the host of the collection's first polling service, or null when it has none
+     */
+    private String pollingHost(CollectionRecordType collection) {
+        List<String> addresses = pollingAddresses(collection);
+        try {
+            return addresses.isEmpty() ? null : new URL(addresses.get(0)).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
     }
 
-    private <T> HttpEntity<T> wrapRequest(T body) {
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(APPLICATION_XML);
-        headers.setAccept(singletonList(APPLICATION_XML));
-        headers.add("X-TAXII-Services", VID_TAXII_SERVICES_11);
-        headers.add("X-TAXII-Content-Type", VID_TAXII_XML_11);
-        String binding = conn.getDiscoveryUrl().getScheme().endsWith("s") ? VID_TAXII_HTTPS_10 : VID_TAXII_HTTP_10;
-        headers.add("X-TAXII-Protocol", binding);
-        return new HttpEntity<>(body, headers);
+    private List<String> pollingAddresses(CollectionRecordType collection) {
+        List<String> addresses = new ArrayList<>(collection.getPollingServices().size());
+        for (PollingServiceInstanceType service : collection.getPollingServices()) {
+            addresses.add(service.getAddress());
+        }
+
+        return addresses;
     }
 
-    private String generateMessageId() {
-        return String.valueOf(currentTimeMillis() / 100000);
+    /**
+     * pulls content blocks one by one, retrieving the next result part only when the current one is exhausted
+     */
+    private class ContentBlockSpliterator extends Spliterators.AbstractSpliterator<ContentBlock> {
+        private final URL pollUrl;
+        private final String collectionName;
+        private final String subscriptionId;
+        private final PollFilter filter;
+        private final Instant exclusiveBegin;
+        private final Instant inclusiveEnd;
+
+        private TaxiiDeadline deadline;
+        private PollResponse part;
+        private List<ContentBlock> blocks;
+        private int index;
+        private boolean done;
+
+        ContentBlockSpliterator(URL pollUrl, String collectionName, String subscriptionId, PollFilter filter,
+                                Instant exclusiveBegin, Instant inclusiveEnd) {
+            super(Long.MAX_VALUE, ORDERED | NONNULL);
+            this.pollUrl = pollUrl;
+            this.collectionName = collectionName;
+            this.subscriptionId = subscriptionId;
+            this.filter = filter;
+            this.exclusiveBegin = exclusiveBegin;
+            this.inclusiveEnd = inclusiveEnd;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ContentBlock> action) {
+            while (!done) {
+                if (blocks != null && index < blocks.size()) {
+                    ContentBlock block = blocks.get(index);
+                    // release the block, the consumer holds the only reference to it from now on
+                    blocks.set(index++, null);
+                    action.accept(block);
+                    return true;
+                }
+
+                PollResponse next = next();
+                done = next == null;
+                if (!done) {
+                    // keep the part's metadata and a private copy of its blocks, a coalesced response is shared
+                    part = new PollResponse()
+                            .withMore(next.isMore())
+                            .withResultId(next.getResultId())
+                            .withResultPartNumber(next.getResultPartNumber());
+                    blocks = new ArrayList<>(next.getContentBlocks());
+                    index = 0;
+                }
+            }
+
+            return false;
+        }
+
+        private PollResponse next() {
+            if (deadline == null) {
+                deadline = new TaxiiDeadline(engine.getDeadlineMillis());
+            }
+
+            // all parts are retrieved within the deadline of the first poll
+            return deadline.run(engine::timedOut, this::retrieve);
+        }
+
+        private PollResponse retrieve() {
+            try {
+                if (part == null) {
+                    return filter == null ? poll(pollUrl, collectionName, subscriptionId, exclusiveBegin, inclusiveEnd) :
+                            poll(pollUrl, collectionName, null, filter.toPollParameters(FULL), exclusiveBegin,
+                                    inclusiveEnd);
+                }
+
+                if (!TRUE.equals(part.isMore()) || isEmpty(part.getResultId())) {
+                    return null;
+                }
+
+                BigInteger partNumber = part.getResultPartNumber() == null ? ONE : part.getResultPartNumber();
+                return fulfill(pollUrl, collectionName, part.getResultId(), partNumber.add(ONE));
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("invalid poll URL: " + pollUrl, e);
+            }
+        }
     }
 }
@@ -0,0 +1,389 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml10.FeedInformationResponse;
+import org.mitre.taxii.messages.xml10.FeedRecordType;
+import org.mitre.taxii.messages.xml11.CollectionInformationResponse;
+import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.http.HttpHeaders;
+import org.springframework.oxm.XmlMappingException;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.hpe.elderberry.TaxiiEngine.generateMessageId;
+import static com.hpe.elderberry.TaxiiVersion.TAXII_10;
+import static com.hpe.elderberry.TaxiiVersion.TAXII_11;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.springframework.http.HttpMethod.POST;
+
+/**
+ * <p>A TAXII client that doesn't need to know the TAXII version of its server. The first call learns the version from
+ * a single discovery exchange: a TAXII 1.1 discovery request is sent, and the version is read from the message the
+ * server answers with, or from its <code>X-TAXII-Content-Type</code> header when the answer isn't a TAXII message. Only
+ * when neither tells, a TAXII 1.0 discovery request is sent. The version is cached per discovery URL, so later calls
+ * go straight to the {@link Taxii11Template} or {@link Taxii10Template} of that version. A failed negotiation isn't
+ * cached, the next call negotiates again. When the server answers the negotiation with a discovery response, the first
+ * {@link #discover()} or {@link #getCollectionNames()} uses it rather than sending a second discovery request.</p>
+ * <p>Both templates share the same protocol engine, so connection pooling, request coalescing, deadlines and
+ * journaling behave the same for both versions. Use the templates directly for version specific features, like
+ * subscriptions or poll filters.</p>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     <bean name="taxiiClient" class="TaxiiClient"
+ *          p:taxiiConnection-ref="taxiiConnection"
+ *     />
+ * }
+ * </pre>
+ */
+@SuppressWarnings("unused")
+public class TaxiiClient {
+    private static final String CONTENT_TYPE_HEADER = "X-TAXII-Content-Type";
+
+    private static final String SERVICES_HEADER = "X-TAXII-Services";
+
+    private Log log = getLog(getClass());
+
+    private final TaxiiEngine engine = new TaxiiEngine(TAXII_11, getClass());
+
+    private final ConcurrentMap<URI, TaxiiVersion> versions = new ConcurrentHashMap<>();
+
+    private TaxiiConnection conn;
+
+    private Taxii10Template taxii10Template;
+
+    private Taxii11Template taxii11Template;
+
+    // a lock rather than synchronized, so virtual threads waiting for the lazy initialization don't pin their carrier
+    private final ReentrantLock templateLock = new ReentrantLock();
+
+    /**
+     * the {@link TaxiiConnection} to use
+     *
+     * @param conn a valid, non-null {@link TaxiiConnection}
+     */
+    @Autowired
+    @Required
+    public void setTaxiiConnection(TaxiiConnection conn) {
+        this.conn = conn;
+        engine.setTaxiiConnection(conn);
+    }
+
+    /**
+     * an optional TAXII 1.0 template to route to, for example one with a journal or a deadline
+     *
+     * @param taxii10Template when not set, a template on this client's connection is used
+     */
+    public void setTaxii10Template(Taxii10Template taxii10Template) {
+        this.taxii10Template = taxii10Template;
+    }
+
+    /**
+     * an optional TAXII 1.1 template to route to, for example one with a journal or a deadline
+     *
+     * @param taxii11Template when not set, a template on this client's connection is used
+     */
+    public void setTaxii11Template(Taxii11Template taxii11Template) {
+        this.taxii11Template = taxii11Template;
+    }
+
+    /**
+     * an optional end-to-end deadline for the version negotiation, see {@link Taxii11Template#setDeadlineMillis(long)}
+     *
+     * @param deadlineMillis the maximum time a negotiation may take, when 0 or not set it has no deadline
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        engine.setDeadlineMillis(deadlineMillis);
+    }
+
+    /**
+     * @return the TAXII version of the connection's server, negotiated on the first call. Null when it couldn't be
+     * negotiated
+     */
+    public TaxiiVersion getVersion() {
+        URI uri = conn.getDiscoveryUrl();
+        TaxiiVersion version = versions.get(uri);
+        return version != null ? version : negotiation(uri).version;
+    }
+
+    /**
+     * forgets the negotiated versions, the next call negotiates again. Call it when a server was upgraded
+     */
+    public void forgetVersions() {
+        versions.clear();
+    }
+
+    /**
+     * @return the <code>DiscoveryResponse</code> of the server's TAXII version, or null when there was an error. The
+     * call that negotiates the version returns the discovery response the server answered the negotiation with, when it
+     * did, later calls send a discovery request of the negotiated version
+     */
+    public Object discover() {
+        URI uri = conn.getDiscoveryUrl();
+        TaxiiVersion version = versions.get(uri);
+        if (version == null) {
+            Negotiation negotiation = negotiation(uri);
+            if (negotiation.discovery != null) {
+                return negotiation.discovery;
+            }
+            version = negotiation.version;
+        }
+
+        if (version == null) {
+            return null;
+        }
+
+        return version == TAXII_11 ? taxii11().discover() : taxii10().discover();
+    }
+
+    /**
+     * lists the collections (TAXII 1.1) or feeds (TAXII 1.0) of the server
+     *
+     * @return the collection names, or null when there was an error
+     * @throws MalformedURLException when the collection management service URL is incorrect
+     * @throws URISyntaxException    when the collection management service URL cannot be converted into a URI
+     */
+    public List<String> getCollectionNames() throws MalformedURLException, URISyntaxException {
+        Object discovery = discover();
+        if (discovery instanceof org.mitre.taxii.messages.xml11.DiscoveryResponse) {
+            CollectionInformationResponse information = collectionInformation(
+                    (org.mitre.taxii.messages.xml11.DiscoveryResponse) discovery);
+            return information == null ? null : information.getCollections().stream()
+                    .map(CollectionRecordType::getCollectionName)
+                    .collect(Collectors.toList());
+        }
+
+        if (discovery instanceof org.mitre.taxii.messages.xml10.DiscoveryResponse) {
+            FeedInformationResponse information = feedInformation(
+                    (org.mitre.taxii.messages.xml10.DiscoveryResponse) discovery);
+            return information == null ? null : information.getFeeds().stream()
+                    .map(FeedRecordType::getFeedName)
+                    .collect(Collectors.toList());
+        }
+
+        return null;
+    }
+
+    /**
+     * polls a collection (TAXII 1.1) or feed (TAXII 1.0) of the server, all result parts of a TAXII 1.1 poll are
+     * retrieved. The content of all result parts is held in memory at once, use
+     * {@link #pollStream(URL, String, String, Date, Date)} for polls that may return a lot of content
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection or feed name to poll
+     * @param subscriptionId an optional subscription ID
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return the content of the polled content blocks, DOM nodes or text, see
+     * {@link StixIndicatorExtractor#extract(Object, java.util.function.BiConsumer)}. Empty when the poll failed
+     * @throws URISyntaxException when the poll service URL cannot be converted into a URI
+     */
+    public List<Object> poll(URL pollUrl, String collectionName, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException {
+        return pollStream(pollUrl, collectionName, subscriptionId, exclusiveBegin, inclusiveEnd).collect(Collectors.toList());
+    }
+
+    /**
+     * polls a collection (TAXII 1.1) or feed (TAXII 1.0) of the server and streams the content of the polled content
+     * blocks. A TAXII 1.1 poll is streamed like {@link Taxii11Template#pollStream(URL, String, String, Date, Date)},
+     * holding at most one result part in memory. A TAXII 1.0 poll has a single response, it's sent right away
+     *
+     * @param pollUrl        poll service URL
+     * @param collectionName collection or feed name to poll
+     * @param subscriptionId an optional subscription ID
+     * @param exclusiveBegin begin time to poll
+     * @param inclusiveEnd   end time to poll
+     * @return a sequential stream of the content of the polled content blocks, DOM nodes or text. Empty when the poll
+     * failed
+     * @throws URISyntaxException when the poll service URL cannot be converted into a URI
+     */
+    public Stream<Object> pollStream(URL pollUrl, String collectionName, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) throws URISyntaxException {
+        TaxiiVersion version = getVersion();
+        if (version == TAXII_11) {
+            return taxii11().pollStream(pollUrl, collectionName, subscriptionId, exclusiveBegin, inclusiveEnd)
+                    .filter(block -> block.getContent() != null)
+                    .flatMap(block -> block.getContent().getContent().stream());
+        }
+
+        if (version == TAXII_10) {
+            org.mitre.taxii.messages.xml10.PollResponse response = taxii10().poll(pollUrl, collectionName,
+                    subscriptionId, exclusiveBegin, inclusiveEnd);
+            if (response != null) {
+                return response.getContentBlocks().stream()
+                        .filter(block -> block.getContent() != null)
+                        .flatMap(block -> block.getContent().getContent().stream());
+            }
+        }
+
+        return Stream.empty();
+    }
+
+    private CollectionInformationResponse collectionInformation(
+            org.mitre.taxii.messages.xml11.DiscoveryResponse discovery) throws MalformedURLException, URISyntaxException {
+        Taxii11Template template = taxii11();
+        org.mitre.taxii.messages.xml11.ServiceInstanceType service = template.findService(
+                discovery.getServiceInstances(), org.mitre.taxii.messages.xml11.ServiceTypeEnum.COLLECTION_MANAGEMENT);
+        return service == null ? null : template.collectionInformation(service);
+    }
+
+    private FeedInformationResponse feedInformation(org.mitre.taxii.messages.xml10.DiscoveryResponse discovery)
+            throws MalformedURLException, URISyntaxException {
+        Taxii10Template template = taxii10();
+        org.mitre.taxii.messages.xml10.ServiceInstanceType service = template.findService(
+                discovery.getServiceInstances(), org.mitre.taxii.messages.xml10.ServiceTypeEnum.FEED_MANAGEMENT);
+        return service == null ? null : template.feedInformation(service);
+    }
+
+    /**
+     * negotiates the version of a server and caches it when it's known
+     */
+    private Negotiation negotiation(URI uri) {
+        Negotiation negotiation = engine.within("negotiate", uri, null, () -> conn.coalesce(() -> negotiate(uri), uri,
+                Negotiation.class));
+        if (negotiation == null) {
+            return Negotiation.FAILED;
+        }
+
+        if (negotiation.version != null) {
+            versions.put(uri, negotiation.version);
+        }
+
+        return negotiation;
+    }
+
+    private Negotiation negotiate(URI uri) {
+        Negotiation negotiation = probe(uri, TAXII_11,
+                new org.mitre.taxii.messages.xml11.DiscoveryRequest().withMessageId(generateMessageId()));
+        if (negotiation.version == null) {
+            negotiation = probe(uri, TAXII_10,
+                    new org.mitre.taxii.messages.xml10.DiscoveryRequest().withMessageId(generateMessageId()));
+        }
+
+        if (negotiation.version == null) {
+            log.error("unable to negotiate the TAXII version of " + uri);
+        } else {
+            log.info("negotiated " + negotiation.version + " with " + uri);
+        }
+
+        return negotiation;
+    }
+
+    /**
+     * sends a discovery request of a version and reads the server's version from the answer, whatever its status and
+     * message type
+     */
+    private Negotiation probe(URI uri, TaxiiVersion requested, Object request) {
+        try {
+            return conn.getRestTemplate().execute(uri, POST, r -> {
+                r.getHeaders().putAll(requested.headers(uri));
+                conn.getMarshaller().marshal(request, new StreamResult(r.getBody()));
+            }, r -> {
+                Object message = unmarshal(r.getBody());
+                return new Negotiation(versionOf(r.getHeaders(), message), message);
+            });
+        } catch (HttpStatusCodeException e) {
+            return new Negotiation(versionOf(e.getResponseHeaders(), null), null);
+        }
+    }
+
+    private Object unmarshal(InputStream in) {
+        try {
+            Object message = conn.getMarshaller().unmarshal(new StreamSource(in));
+            return message instanceof JAXBElement ? ((JAXBElement<?>) message).getValue() : message;
+        } catch (XmlMappingException e) {
+            // not a TAXII message, the headers may still tell the version
+            return null;
+        }
+    }
+
+    /**
+     * any TAXII message of a version, including a status message, shows that the server speaks that version
+     */
+    static TaxiiVersion versionOf(HttpHeaders headers, Object message) {
+        if (message != null) {
+            Package messages = message.getClass().getPackage();
+            if (messages == org.mitre.taxii.messages.xml11.DiscoveryResponse.class.getPackage()) {
+                return TAXII_11;
+            }
+            if (messages == org.mitre.taxii.messages.xml10.DiscoveryResponse.class.getPackage()) {
+                return TAXII_10;
+            }
+        }
+
+        if (headers == null) {
+            return null;
+        }
+
+        TaxiiVersion version = TaxiiVersion.fromId(headers.getFirst(CONTENT_TYPE_HEADER));
+        return version != null ? version : TaxiiVersion.fromId(headers.getFirst(SERVICES_HEADER));
+    }
+
+    /**
+     * the version a server answered a discovery request with, and its discovery response when it answered with one
+     */
+    private static class Negotiation {
+        private static final Negotiation FAILED = new Negotiation(null, null);
+
+        private final TaxiiVersion version;
+        private final Object discovery;
+
+        Negotiation(TaxiiVersion version, Object message) {
+            this.version = version;
+            this.discovery = message instanceof org.mitre.taxii.messages.xml11.DiscoveryResponse ||
+                    message instanceof org.mitre.taxii.messages.xml10.DiscoveryResponse ? message : null;
+        }
+    }
+
+    private Taxii10Template taxii10() {
+        templateLock.lock();
+        try {
+            if (taxii10Template == null) {
+                taxii10Template = new Taxii10Template();
+                taxii10Template.setTaxiiConnection(conn);
+            }
+
+            return taxii10Template;
+        } finally {
+            templateLock.unlock();
+        }
+    }
+
+    private Taxii11Template taxii11() {
+        templateLock.lock();
+        try {
+            if (taxii11Template == null) {
+                taxii11Template = new Taxii11Template();
+                taxii11Template.setTaxiiConnection(conn);
+            }
+
+            return taxii11Template;
+        } finally {
+            templateLock.unlock();
+        }
+    }
+}
@@ -17,7 +17,14 @@ import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.impl.auth.BasicScheme;
@@ -25,10 +32,13 @@ import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContexts;
 import org.springframework.beans.factory.annotation.Required;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.xml.MarshallingHttpMessageConverter;
@@ -37,6 +47,10 @@ import org.springframework.web.client.RestTemplate;
 
 import javax.net.ssl.SSLContext;
 import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.security.KeyFactory;
 import java.security.KeyStore;
@@ -48,13 +62,22 @@ import java.security.cert.X509Certificate;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 import static com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.*;
+import static java.lang.Math.max;
 import static java.nio.file.Files.newInputStream;
 import static java.security.KeyStore.getInstance;
+import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static javax.xml.bind.DatatypeConverter.parseBase64Binary;
 import static org.apache.commons.io.IOUtils.toInputStream;
 import static org.apache.commons.logging.LogFactory.getLog;
@@ -132,6 +155,21 @@ public class TaxiiConnection {
     private String privateKeyPem;
     private List<String> clientCertificatePemChain;
     private List<String> trustedPemCertificates;
+    private int maxConnections;
+    private int maxConnectionsPerRoute;
+    private boolean coalesceRequests;
+    private int requestsPerMinute;
+    private int requestBurst = 1;
+    private long retryPenaltyMillis = 60000;
+    private String xmlInputFactoryClassName;
+    private long connectionTimeToLiveMillis;
+    private int connectionRequestTimeoutMillis;
+    private int connectTimeoutMillis;
+    private int tlsHandshakeTimeoutMillis;
+    private int socketTimeoutMillis;
+    private long maxResponseBytes;
+    private long responseSpillThresholdBytes;
+    private long responseBudgetBytes;
 
     @JsonIgnore
     private Log log = getLog(getClass());
@@ -145,11 +183,64 @@ public class TaxiiConnection {
     @JsonIgnore
     private KeyStore trustStore;
 
+    // true when the stores were loaded from files or PEMs by this connection, so a reload loads them again
     @JsonIgnore
-    private Jaxb2Marshaller marshaller;
+    private boolean keyStoreLoaded;
 
     @JsonIgnore
-    private RestTemplate restTemplate;
+    private boolean trustStoreLoaded;
+
+    @JsonIgnore
+    private long keyStoreModified;
+
+    @JsonIgnore
+    private long trustStoreModified;
+
+    // held by the rest template's request factory, and handed over with the pool, see adoptPool
+    @JsonIgnore
+    private AtomicReference<UsernamePasswordCredentials> credentials = new AtomicReference<>();
+
+    // registered with the pool, and handed over with it, see adoptPool
+    @JsonIgnore
+    private ReloadableSslSocketFactory sslSocketFactory = new ReloadableSslSocketFactory();
+
+    @JsonIgnore
+    private volatile Jaxb2Marshaller marshaller;
+
+    @JsonIgnore
+    private volatile RestTemplate restTemplate;
+
+    // a lock rather than synchronized, so virtual threads waiting for the lazy initialization don't pin their carrier
+    @JsonIgnore
+    private final ReentrantLock initLock = new ReentrantLock();
+
+    @JsonIgnore
+    private volatile RateLimiter rateLimiter;
+
+    @JsonIgnore
+    private volatile ResponseSizeGuard responseSizeGuard;
+
+    @JsonIgnore
+    private volatile PoolingHttpClientConnectionManager connectionManager;
+
+    @JsonIgnore
+    private volatile HttpHost proxy;
+
+    // the connection whose rest template, with its pool, rate limiter and response size guard, this connection shares
+    @JsonIgnore
+    private volatile TaxiiConnection poolOwner;
+
+    @JsonIgnore
+    private final SingleFlight<List<Object>, Object> inFlight = new SingleFlight<>();
+
+    @JsonIgnore
+    private final Map<TaxiiTimeoutException.Phase, LongAdder> timeouts = new EnumMap<>(TaxiiTimeoutException.Phase.class);
+
+    {
+        for (TaxiiTimeoutException.Phase phase : TaxiiTimeoutException.Phase.values()) {
+            timeouts.put(phase, new LongAdder());
+        }
+    }
 
     /**
      * optional key store that contains your private key to be sent when the server is using SSL certificate-based
@@ -275,15 +366,21 @@ public class TaxiiConnection {
      * @return the key store
      */
     public KeyStore getKeyStore() {
-        if (keyStore != null) {
+        if (keyStore != null || (keyStoreFile == null && isEmpty(privateKeyPem))) {
             return keyStore;
         }
 
+        return TaxiiEvents.lifecycle("key store", discoveryUrl, this::loadKeyStore);
+    }
+
+    private KeyStore loadKeyStore() {
         if (keyStoreFile != null) {
             try {
+                keyStoreModified = keyStoreFile.lastModified();
                 keyStore = getInstance("JKS");
                 keyStore.load(newInputStream(keyStoreFile.toPath()),
                         keyStorePassword == null ? "".toCharArray() : keyStorePassword.toCharArray());
+                keyStoreLoaded = true;
             } catch (Exception e) {
                 throw new RuntimeException("a key store file was set, but it could not be read, " + e.getMessage(), e);
             }
@@ -311,6 +408,7 @@ public class TaxiiConnection {
                             keyPassword,
                             new Certificate[]{});
                 }
+                keyStoreLoaded = true;
             } catch (Exception e) {
                 throw new RuntimeException("unable to create key store, " + e.getMessage(), e);
             }
@@ -335,15 +433,21 @@ public class TaxiiConnection {
      * @return the trust store
      */
     public KeyStore getTrustStore() {
-        if (trustStore != null) {
+        if (trustStore != null || (trustStoreFile == null && isEmpty(trustedPemCertificates))) {
             return trustStore;
         }
 
+        return TaxiiEvents.lifecycle("trust store", discoveryUrl, this::loadTrustStore);
+    }
+
+    private KeyStore loadTrustStore() {
         if (trustStoreFile != null) {
             try {
+                trustStoreModified = trustStoreFile.lastModified();
                 trustStore = getInstance("JKS");
                 trustStore.load(newInputStream(trustStoreFile.toPath()),
                         trustStorePassword == null ? "".toCharArray() : trustStorePassword.toCharArray());
+                trustStoreLoaded = true;
             } catch (Exception e) {
                 throw new RuntimeException("a trust store file was set, but it could not be read, " + e.getMessage(), e);
             }
@@ -356,6 +460,7 @@ public class TaxiiConnection {
 
                 // add all PEMs as trusted certificates to the in-memory trust store
                 addPemsToStore(trustStore, trustedPemCertificates);
+                trustStoreLoaded = true;
             } catch (Exception e) {
                 throw new RuntimeException("unable to create trust store, " + e.getMessage(), e);
             }
@@ -435,6 +540,347 @@ public class TaxiiConnection {
         this.proxyPort = proxyPort;
     }
 
+    /**
+     * optional maximum number of pooled connections. Raise it together with {@link #setMaxConnectionsPerRoute(int)}
+     * when many polls run concurrently, for example with
+     * {@link Taxii11Template#pollAll(java.util.Collection, String, java.util.Date, java.util.Date)}
+     *
+     * @param maxConnections the maximum number of connections across all TAXII hosts, when 0 or not set the HTTP
+     *                       client default (20) is used
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * optional maximum number of pooled connections to a single TAXII host
+     *
+     * @param maxConnectionsPerRoute the maximum number of connections to a single host, when 0 or not set the HTTP
+     *                               client default (2) is used
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * optional request coalescing. Templates sharing this connection often send the same discovery, collection
+     * information or poll request at nearly the same moment. When coalescing is on, a request that is identical to a
+     * request in flight (same endpoint, message type and parameters) doesn't go to the server, it waits for the request
+     * in flight and receives the same response object. Responses must then be treated as read-only
+     *
+     * @param coalesceRequests true to coalesce identical concurrent requests, defaults to false
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * @return the number of requests that were answered by an identical request in flight, see
+     * {@link #setCoalesceRequests(boolean)}
+     */
+    @JsonIgnore
+    public long getCoalescedRequestCount() {
+        return inFlight.getCoalescedCount();
+    }
+
+    /**
+     * optional rate limit. Some TAXII servers throttle or ban clients that send too many requests, set this to stay
+     * under their limit. The limit applies to each TAXII host separately, see {@link RateLimiter}
+     *
+     * @param requestsPerMinute the maximum sustained number of requests per minute to a single host, when 0 or not
+     *                          set requests are not limited
+     */
+    public void setRequestsPerMinute(int requestsPerMinute) {
+        this.requestsPerMinute = requestsPerMinute;
+    }
+
+    /**
+     * optional rate limit burst, used together with {@link #setRequestsPerMinute(int)}
+     *
+     * @param requestBurst the number of requests that can be sent at once to a host that was idle, defaults to 1
+     */
+    public void setRequestBurst(int requestBurst) {
+        this.requestBurst = requestBurst;
+    }
+
+    /**
+     * optional time to hold back requests to a rate limited host that reported it's busy without saying for how long
+     *
+     * @param retryPenaltyMillis the penalty in milliseconds, defaults to 1 minute
+     */
+    public void setRetryPenaltyMillis(long retryPenaltyMillis) {
+        this.retryPenaltyMillis = retryPenaltyMillis;
+    }
+
+    /**
+     * @return the rate limiter shared by all templates using this connection, or null when
+     * {@link #setRequestsPerMinute(int)} is not set
+     */
+    @JsonIgnore
+    public RateLimiter getRateLimiter() {
+        TaxiiConnection owner = poolOwner;
+        if (owner != null) {
+            return owner.getRateLimiter();
+        }
+
+        if (requestsPerMinute <= 0) {
+            return null;
+        }
+
+        RateLimiter result = rateLimiter;
+        if (result == null) {
+            initLock.lock();
+            try {
+                if (rateLimiter == null) {
+                    rateLimiter = new RateLimiter(requestsPerMinute, requestBurst, retryPenaltyMillis);
+                }
+                result = rateLimiter;
+            } finally {
+                initLock.unlock();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * optional maximum lifetime of pooled connections. After {@link #reload()} existing connections keep the old
+     * credentials and certificates until they're closed, a time to live bounds how long that takes
+     *
+     * @param connectionTimeToLiveMillis the maximum lifetime of a connection, when 0 or not set connections live as
+     *                                   long as they're reusable
+     */
+    public void setConnectionTimeToLiveMillis(long connectionTimeToLiveMillis) {
+        this.connectionTimeToLiveMillis = connectionTimeToLiveMillis;
+    }
+
+    /**
+     * optional time to wait for a pooled connection when all connections to the host are in use
+     *
+     * @param connectionRequestTimeoutMillis the pool lease timeout, when 0 or not set requests wait for a connection
+     *                                       indefinitely
+     */
+    public void setConnectionRequestTimeoutMillis(int connectionRequestTimeoutMillis) {
+        this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+    }
+
+    /**
+     * optional time to wait for the TCP connection to the TAXII host, or to the proxy, to open
+     *
+     * @param connectTimeoutMillis the connect timeout, when 0 or not set the operating system's timeout is used
+     */
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * optional time to wait for each read of the TLS handshake with an HTTPS TAXII host
+     *
+     * @param tlsHandshakeTimeoutMillis the handshake read timeout, when 0 or not set the socket timeout applies, see
+     *                                  {@link #setSocketTimeoutMillis(int)}
+     */
+    public void setTlsHandshakeTimeoutMillis(int tlsHandshakeTimeoutMillis) {
+        this.tlsHandshakeTimeoutMillis = tlsHandshakeTimeoutMillis;
+    }
+
+    /**
+     * optional time to wait for response data. It's an idle timeout: a server that keeps sending a large poll response
+     * slowly doesn't time out, use the template's deadline to bound the whole call, for example
+     * {@link Taxii11Template#setDeadlineMillis(long)}
+     *
+     * @param socketTimeoutMillis the read idle timeout, when 0 or not set reads wait indefinitely
+     */
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    /**
+     * @param phase a request phase
+     * @return the number of template calls using this connection that timed out in this phase
+     */
+    public long getTimeoutCount(TaxiiTimeoutException.Phase phase) {
+        return timeouts.get(phase).sum();
+    }
+
+    void recordTimeout(TaxiiTimeoutException.Phase phase) {
+        timeouts.get(phase).increment();
+    }
+
+    /**
+     * optional hard limit on the size of responses, larger responses are aborted, see {@link ResponseSizeGuard}
+     *
+     * @param maxResponseBytes the maximum response size. When not set responses of any size are read, unless a guard is
+     *                         installed by one of the other response size settings, then it defaults to
+     *                         {@link ResponseSizeGuard#DEFAULT_MAX_RESPONSE_BYTES}. When negative responses of any size
+     *                         are read even with a guard
+     */
+    public void setMaxResponseBytes(long maxResponseBytes) {
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    /**
+     * optional size over which response bodies are spilled to a temporary file before they're parsed, see
+     * {@link ResponseSizeGuard}
+     *
+     * @param responseSpillThresholdBytes the spill threshold, when 0 or not set it defaults to 16MB once a guard is
+     *                                    installed by one of the other response size settings
+     */
+    public void setResponseSpillThresholdBytes(long responseSpillThresholdBytes) {
+        this.responseSpillThresholdBytes = responseSpillThresholdBytes;
+    }
+
+    /**
+     * optional budget of response bytes this connection parses at once, reserved from the
+     * {@link ResponseBudget#global()} budget as well. Responses that don't fit wait for earlier responses, see
+     * {@link ResponseSizeGuard}
+     *
+     * @param responseBudgetBytes the budget, when 0 or not set only the global budget applies
+     */
+    public void setResponseBudgetBytes(long responseBudgetBytes) {
+        this.responseBudgetBytes = responseBudgetBytes;
+    }
+
+    /**
+     * @return the response size guard of the rest template this connection creates, for its counters, or null when
+     * no response size setting is set
+     */
+    @JsonIgnore
+    public ResponseSizeGuard getResponseSizeGuard() {
+        TaxiiConnection owner = poolOwner;
+        if (owner != null) {
+            return owner.getResponseSizeGuard();
+        }
+
+        if (maxResponseBytes <= 0 && responseSpillThresholdBytes <= 0 && responseBudgetBytes <= 0) {
+            return null;
+        }
+
+        ResponseSizeGuard result = responseSizeGuard;
+        if (result == null) {
+            initLock.lock();
+            try {
+                if (responseSizeGuard == null) {
+                    ResponseSizeGuard guard = new ResponseSizeGuard();
+                    if (maxResponseBytes != 0) {
+                        guard.setMaxResponseBytes(maxResponseBytes);
+                    }
+                    if (responseSpillThresholdBytes > 0) {
+                        guard.setSpillThresholdBytes(responseSpillThresholdBytes);
+                    }
+                    if (responseBudgetBytes > 0) {
+                        guard.setBudget(new ResponseBudget(responseBudgetBytes, ResponseBudget.global()));
+                    }
+                    responseSizeGuard = guard;
+                }
+                result = responseSizeGuard;
+            } finally {
+                initLock.unlock();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * applies changed credentials and certificates without tearing down the connection pool. Call this after changing
+     * the username, password, key store or trust store with the setters, or after the key store or trust store files
+     * changed on disk. Stores this connection loaded from files or PEMs are loaded again, and the SSL context is
+     * rebuilt.<br>
+     * New connections use the new credentials and certificates, while pooled connections keep working and drain
+     * normally, see {@link #setConnectionTimeToLiveMillis(long)}. When the new stores can't be loaded the connection
+     * keeps using the old ones.<br>
+     * A connection of a {@link TaxiiConnectionRegistry} that shares the rest template of another connection reloads
+     * that connection when it still has the same credentials and certificates. When they changed the connection stops
+     * sharing the rest template, and the next request creates its own, see
+     * {@link TaxiiConnectionRegistry#reload(String)} to regroup it with the connections it matches. This has no effect
+     * on a rest template set with {@link #setRestTemplate(RestTemplate)}
+     */
+    public void reload() {
+        TaxiiConnection owner = poolOwner;
+        if (owner != null) {
+            if (sharingKey().equals(owner.sharingKey())) {
+                owner.reload();
+                return;
+            }
+
+            log.info("credentials or certificates for " + discoveryUrl + " no longer match the shared rest template, " +
+                    "creating its own");
+            shareRestTemplate(null);
+        }
+
+        initLock.lock();
+        try {
+            KeyStore oldKeyStore = keyStore;
+            KeyStore oldTrustStore = trustStore;
+            char[] oldKeyPassword = keyPassword;
+            boolean oldKeyStoreLoaded = keyStoreLoaded;
+            boolean oldTrustStoreLoaded = trustStoreLoaded;
+
+            if (keyStoreLoaded) {
+                keyStore = null;
+                keyStoreLoaded = false;
+            }
+
+            if (trustStoreLoaded) {
+                trustStore = null;
+                trustStoreLoaded = false;
+            }
+
+            try {
+                if (connectionManager != null) {
+                    sslSocketFactory.setDelegate(TaxiiEvents.lifecycle("ssl context", discoveryUrl,
+                            this::createSslSocketFactory));
+                }
+            } catch (RuntimeException e) {
+                keyStore = oldKeyStore;
+                trustStore = oldTrustStore;
+                keyPassword = oldKeyPassword;
+                keyStoreLoaded = oldKeyStoreLoaded;
+                trustStoreLoaded = oldTrustStoreLoaded;
+                throw e;
+            }
+
+            credentials.set(createCredentials());
+            log.info("reloaded credentials and certificates for " + discoveryUrl);
+        } finally {
+            initLock.unlock();
+        }
+    }
+
+    /**
+     * calls {@link #reload()} when the key store file or the trust store file changed since they were loaded. Call
+     * this periodically, for example from a scheduled task, to pick up rotated certificates
+     *
+     * @return true when a reload was needed
+     */
+    public boolean reloadIfModified() {
+        TaxiiConnection owner = poolOwner;
+        if (owner != null) {
+            return owner.reloadIfModified();
+        }
+
+        boolean modified = (keyStoreLoaded && keyStoreFile != null && keyStoreFile.lastModified() != keyStoreModified) ||
+                (trustStoreLoaded && trustStoreFile != null && trustStoreFile.lastModified() != trustStoreModified);
+
+        if (modified) {
+            reload();
+        }
+
+        return modified;
+    }
+
+    /**
+     * optional StAX parser for the default marshaller, see {@link PooledJaxb2Marshaller}. Ignored when a marshaller is
+     * set with {@link #setMarshaller(Jaxb2Marshaller)}
+     *
+     * @param xmlInputFactoryClassName the <code>XMLInputFactory</code> implementation class, for example
+     *                                 <code>com.ctc.wstx.stax.WstxInputFactory</code> for Woodstox. When not set the
+     *                                 JDK default StAX parser is used
+     */
+    public void setXmlInputFactoryClassName(String xmlInputFactoryClassName) {
+        this.xmlInputFactoryClassName = xmlInputFactoryClassName;
+    }
+
     /**
      * an optional <code>Jaxb2Marshaller</code>
      *
@@ -459,89 +905,461 @@ public class TaxiiConnection {
         return discoveryUrl;
     }
 
-    public RestTemplate getRestTemplate() {
-        if (restTemplate == null) {
-            HttpClientBuilder builder = custom();
-
-            if (useProxy) {
-                if ("".equals(proxyHost)) {
-                    proxyHost = System.getProperty(discoveryUrl.getScheme() + ".proxyHost");
+    /**
+     * the marshaller used to convert TAXII messages to and from XML
+     *
+     * @return the marshaller set by {@link #setMarshaller(Jaxb2Marshaller)}, or a default {@link PooledJaxb2Marshaller}
+     * that scans the TAXII JAXB packages when none was set
+     */
+    public Jaxb2Marshaller getMarshaller() {
+        Jaxb2Marshaller result = marshaller;
+        if (result == null) {
+            initLock.lock();
+            try {
+                if (marshaller == null) {
+                    marshaller = TaxiiEvents.lifecycle("marshaller", discoveryUrl,
+                            () -> createDefaultMarshaller(xmlInputFactoryClassName));
                 }
+                result = marshaller;
+            } finally {
+                initLock.unlock();
+            }
+        }
 
-                if (proxyPort == 0) {
-                    proxyPort = Integer.parseInt(System.getProperty(discoveryUrl.getScheme() + ".proxyPort", "0"));
-                }
+        return result;
+    }
 
-                if ("".equals(proxyHost) || proxyHost == null || proxyPort == 0) {
-                    log.warn("proxy requested, but not setup, not using a proxy");
-                } else {
-                    log.info("using " + discoveryUrl.getScheme() + " proxy: " + proxyHost + ":" + proxyPort);
-                    HttpHost proxy = new HttpHost(proxyHost, proxyPort);
-                    DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxy);
-                    builder.setRoutePlanner(routePlanner);
+    static Jaxb2Marshaller createDefaultMarshaller() {
+        return createDefaultMarshaller(null);
+    }
+
+    static Jaxb2Marshaller createDefaultMarshaller(String xmlInputFactoryClassName) {
+        PooledJaxb2Marshaller marshaller = new PooledJaxb2Marshaller();
+        marshaller.setPackagesToScan("org.mitre");
+        marshaller.setXmlInputFactoryClassName(xmlInputFactoryClassName);
+        try {
+            marshaller.afterPropertiesSet();
+        } catch (Exception e) {
+            getLog(TaxiiConnection.class).error("unable to create Jaxb2 Marshaller: " + e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+
+        return marshaller;
+    }
+
+    public RestTemplate getRestTemplate() {
+        RestTemplate result = restTemplate;
+        if (result == null) {
+            initLock.lock();
+            try {
+                if (restTemplate == null) {
+                    restTemplate = TaxiiEvents.lifecycle("rest template", discoveryUrl, this::createRestTemplate);
                 }
+                result = restTemplate;
+            } finally {
+                initLock.unlock();
             }
+        }
 
-            if (getTrustStore() != null || getKeyStore() != null) {
-                SSLContext sslContext;
-                try {
-                    sslContext = SSLContexts.custom()
-                            .loadTrustMaterial(getTrustStore(), new TrustSelfSignedStrategy())
-                            .loadKeyMaterial(getKeyStore(), keyPassword)
-                            .build();
-                } catch (Exception e) {
-                    log.error("unable to create SSL context, " + e.getMessage(), e);
-                    throw new RuntimeException(e);
-                }
-                SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslContext);
-                builder.setSSLSocketFactory(sslsf);
+        return result;
+    }
+
+    /**
+     * runs a TAXII request, coalescing it with an identical request in flight when request coalescing is on
+     *
+     * @param request the request
+     * @param key     the endpoint, message type and parameters that identify identical requests
+     * @param <T>     the response type
+     * @return the response
+     */
+    <T> T coalesce(Supplier<T> request, Object... key) {
+        if (!coalesceRequests) {
+            return request.get();
+        }
+
+        //noinspection unchecked
+        return (T) inFlight.execute(asList(key), request::get);
+    }
+
+    /**
+     * tells the rate limiter that a TAXII host is busy, does nothing when requests are not rate limited
+     *
+     * @param target        the request URI
+     * @param penaltyMillis how long to hold back requests to the host, when not positive the retry penalty is used
+     */
+    void penalize(URI target, long penaltyMillis) {
+        RateLimiter limiter = getRateLimiter();
+        if (limiter != null) {
+            limiter.penalize(target.getHost(), penaltyMillis);
+        }
+    }
+
+    /**
+     * @return the connection pool of the rest template this connection created, or shares, or null when the rest
+     * template was set with {@link #setRestTemplate(RestTemplate)} or wasn't created yet
+     */
+    PoolingHttpClientConnectionManager getConnectionManager() {
+        TaxiiConnection owner = poolOwner;
+        return owner != null ? owner.getConnectionManager() : connectionManager;
+    }
+
+    /**
+     * shares the rest template of another connection, and with it its connection pool, rate limiter and response size
+     * guard, see {@link TaxiiConnectionRegistry}
+     *
+     * @param owner the connection to share the rest template of, or null to stop sharing it. The next request then
+     *              creates this connection's own rest template
+     */
+    void shareRestTemplate(TaxiiConnection owner) {
+        initLock.lock();
+        try {
+            poolOwner = owner;
+            restTemplate = owner == null ? null : owner.getRestTemplate();
+        } finally {
+            initLock.unlock();
+        }
+    }
+
+    boolean isSharingRestTemplate() {
+        return poolOwner != null;
+    }
+
+    /**
+     * @param owner a connection
+     * @return true when this connection shares the rest template of that connection
+     */
+    boolean isSharingRestTemplateOf(TaxiiConnection owner) {
+        return poolOwner == owner;
+    }
+
+    /**
+     * takes over the rest template of the connection this connection shares it with, along with its connection pool,
+     * rate limiter, response size guard, credentials and certificates, see {@link TaxiiConnectionRegistry}. The
+     * previous owner keeps none of them, its next request creates a new rest template
+     */
+    void adoptPool() {
+        TaxiiConnection previous = poolOwner;
+        if (previous == null) {
+            return;
+        }
+
+        previous.initLock.lock();
+        initLock.lock();
+        try {
+            restTemplate = previous.restTemplate;
+            connectionManager = previous.connectionManager;
+            sslSocketFactory = previous.sslSocketFactory;
+            credentials = previous.credentials;
+            proxy = previous.proxy;
+            rateLimiter = previous.rateLimiter;
+            responseSizeGuard = previous.responseSizeGuard;
+            // the same sources, see sharingKey, so a reload loads them again
+            keyStore = previous.keyStore;
+            trustStore = previous.trustStore;
+            keyPassword = previous.keyPassword;
+            keyStoreLoaded = previous.keyStoreLoaded;
+            trustStoreLoaded = previous.trustStoreLoaded;
+            keyStoreModified = previous.keyStoreModified;
+            trustStoreModified = previous.trustStoreModified;
+            poolOwner = null;
+
+            if (previous.connectionManager != null) {
+                previous.restTemplate = null;
+            }
+            previous.connectionManager = null;
+            previous.sslSocketFactory = new ReloadableSslSocketFactory();
+            previous.credentials = new AtomicReference<>();
+            previous.proxy = null;
+            previous.rateLimiter = null;
+            previous.responseSizeGuard = null;
+        } finally {
+            initLock.unlock();
+            previous.initLock.unlock();
+        }
+    }
+
+    /**
+     * shuts down the connection pool of the rest template this connection created, the next request creates a new rest
+     * template. A rest template set with {@link #setRestTemplate(RestTemplate)} is left alone
+     */
+    void shutdownPool() {
+        initLock.lock();
+        try {
+            if (connectionManager != null) {
+                connectionManager.shutdown();
+                connectionManager = null;
+                restTemplate = null;
             }
+        } finally {
+            initLock.unlock();
+        }
+    }
 
-            if (!"".equals(username)) {
-                restTemplate = new RestTemplate(new PreemptiveAuthHttpRequestFactor(username, password, builder.build()));
+    boolean hasMarshaller() {
+        return marshaller != null;
+    }
+
+    boolean hasRestTemplate() {
+        return restTemplate != null;
+    }
+
+    String xmlInputFactoryClassName() {
+        return xmlInputFactoryClassName;
+    }
+
+    /**
+     * identifies connections that can share a rest template, its connection pool and its marshaller: connections to
+     * the same host with the same credentials, certificates, proxy and pool settings, see
+     * {@link TaxiiConnectionRegistry}
+     *
+     * @return the sharing key, compare it with <code>equals</code>
+     */
+    List<Object> sharingKey() {
+        return asList(discoveryUrl.getScheme(), discoveryUrl.getHost(), discoveryUrl.getPort(), username, password,
+                useProxy, proxyHost, proxyPort, keyStoreFile, keyStorePassword, trustStoreFile, trustStorePassword,
+                privateKeyPem, clientCertificatePemChain, trustedPemCertificates,
+                // stores loaded from files or PEMs are already identified by their source
+                keyStoreLoaded ? null : keyStore, trustStoreLoaded ? null : trustStore,
+                maxConnections, maxConnectionsPerRoute, requestsPerMinute, requestBurst, retryPenaltyMillis,
+                xmlInputFactoryClassName, connectionTimeToLiveMillis, connectionRequestTimeoutMillis, connectTimeoutMillis,
+                tlsHandshakeTimeoutMillis, socketTimeoutMillis, maxResponseBytes, responseSpillThresholdBytes,
+                responseBudgetBytes);
+    }
+
+    /**
+     * @return the HTTP proxy of the rest template this connection created, or shares, or null when no proxy is used
+     */
+    HttpHost getProxy() {
+        TaxiiConnection owner = poolOwner;
+        return owner != null ? owner.getProxy() : proxy;
+    }
+
+    private RestTemplate createRestTemplate() {
+        HttpClientBuilder builder = custom();
+
+        if (useProxy) {
+            if ("".equals(proxyHost)) {
+                proxyHost = System.getProperty(discoveryUrl.getScheme() + ".proxyHost");
+            }
+
+            if (proxyPort == 0) {
+                proxyPort = Integer.parseInt(System.getProperty(discoveryUrl.getScheme() + ".proxyPort", "0"));
+            }
+
+            if ("".equals(proxyHost) || proxyHost == null || proxyPort == 0) {
+                log.warn("proxy requested, but not setup, not using a proxy");
             } else {
-                restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(builder.build()));
+                log.info("using " + discoveryUrl.getScheme() + " proxy: " + proxyHost + ":" + proxyPort);
+                proxy = new HttpHost(proxyHost, proxyPort);
+                DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxy);
+                builder.setRoutePlanner(routePlanner);
             }
+        }
 
-            if (marshaller == null) {
-                marshaller = new Jaxb2Marshaller();
-                marshaller.setPackagesToScan("org.mitre");
-                try {
-                    marshaller.afterPropertiesSet();
-                } catch (Exception e) {
-                    log.error("unable to create Jaxb2 Marshaller: " + e.getMessage(), e);
-                    throw new RuntimeException(e);
-                }
+        sslSocketFactory.setDelegate(TaxiiEvents.lifecycle("ssl context", discoveryUrl, this::createSslSocketFactory));
+        sslSocketFactory.setHandshakeTimeoutMillis(tlsHandshakeTimeoutMillis);
+        credentials.set(createCredentials());
+
+        // an explicit pool, rather than the one the builder creates, so connections can be opened ahead of the first
+        // request, see TaxiiConnectionWarmer. The SSL socket factory is swapped on reload
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", sslSocketFactory)
+                        .build(),
+                null, null, null, connectionTimeToLiveMillis > 0 ? connectionTimeToLiveMillis : -1, MILLISECONDS);
+
+        if (maxConnections > 0) {
+            pool.setMaxTotal(maxConnections);
+        }
+
+        if (maxConnectionsPerRoute > 0) {
+            pool.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        }
+
+        // the pool's socket timeout applies while connecting, the request's once the connection is leased
+        pool.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(max(0, socketTimeoutMillis)).build());
+        builder.setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(connectionRequestTimeoutMillis > 0 ? connectionRequestTimeoutMillis : -1)
+                .setConnectTimeout(connectTimeoutMillis > 0 ? connectTimeoutMillis : -1)
+                .setSocketTimeout(socketTimeoutMillis > 0 ? socketTimeoutMillis : -1)
+                .build());
+
+        builder.setConnectionManager(pool);
+        connectionManager = pool;
+
+        RestTemplate template = new RestTemplate(new PreemptiveAuthHttpRequestFactor(builder.build(), credentials));
+
+        // reads any TAXII message as Object, so a status message sent instead of the expected response is read from
+        // the response itself, see TaxiiEngine.post
+        MarshallingHttpMessageConverter converter = new MarshallingHttpMessageConverter(getMarshaller()) {
+            @Override
+            public boolean canRead(Class<?> clazz, MediaType mediaType) {
+                return clazz == Object.class ? canRead(mediaType) : super.canRead(clazz, mediaType);
+            }
+        };
+        converter.setSupportedMediaTypes(singletonList(APPLICATION_XML));
+        //noinspection unchecked
+        template.setMessageConverters(Collections.<HttpMessageConverter<?>>singletonList(converter));
+
+        List<ClientHttpRequestInterceptor> interceptors = new ArrayList<>();
+        if (TaxiiEvents.isAvailable()) {
+            interceptors.add(TaxiiEvents.interceptor());
+        }
+
+        RateLimiter limiter = getRateLimiter();
+        if (limiter != null) {
+            interceptors.add(limiter);
+        }
+
+        // last, so it sees the response as it comes from the server
+        ResponseSizeGuard guard = getResponseSizeGuard();
+        if (guard != null) {
+            interceptors.add(guard);
+        }
+
+        template.setInterceptors(interceptors);
+
+        return template;
+    }
+
+    private SSLConnectionSocketFactory createSslSocketFactory() {
+        if (getTrustStore() == null && getKeyStore() == null) {
+            return SSLConnectionSocketFactory.getSocketFactory();
+        }
+
+        SSLContext sslContext;
+        try {
+            sslContext = SSLContexts.custom()
+                    .loadTrustMaterial(getTrustStore(), new TrustSelfSignedStrategy())
+                    .loadKeyMaterial(getKeyStore(), keyPassword)
+                    .build();
+        } catch (Exception e) {
+            log.error("unable to create SSL context, " + e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+
+        return new SSLConnectionSocketFactory(sslContext);
+    }
+
+    /**
+     * @return an SSL context for serving TAXII, with this connection's key store as the server certificate and its
+     * trust store, when set, for verifying client certificates, see {@link TaxiiInboxReceiver}
+     */
+    SSLContext createServerSslContext() {
+        if (getKeyStore() == null) {
+            throw new IllegalStateException("a key store with the server certificate is required to serve HTTPS");
+        }
+
+        try {
+            return SSLContexts.custom()
+                    .loadTrustMaterial(getTrustStore(), null)
+                    .loadKeyMaterial(getKeyStore(), keyPassword)
+                    .build();
+        } catch (Exception e) {
+            throw new RuntimeException("unable to create server SSL context, " + e.getMessage(), e);
+        }
+    }
+
+    private UsernamePasswordCredentials createCredentials() {
+        return isEmpty(username) ? null : new UsernamePasswordCredentials(username, password == null ? "" : password);
+    }
+
+    /**
+     * delegates to the current SSL socket factory, so a reload only affects new connections. Handshake reads use the
+     * handshake timeout, a handshake that times out is reported as such rather than as a read timeout
+     */
+    private static class ReloadableSslSocketFactory implements LayeredConnectionSocketFactory {
+        private volatile SSLConnectionSocketFactory delegate;
+
+        private volatile int handshakeTimeoutMillis;
+
+        void setDelegate(SSLConnectionSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        void setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+            this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        }
+
+        @Override
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+            int soTimeout = socket.getSoTimeout();
+            if (handshakeTimeoutMillis > 0) {
+                socket.setSoTimeout(handshakeTimeoutMillis);
             }
 
-            MarshallingHttpMessageConverter converter = new MarshallingHttpMessageConverter(marshaller);
-            converter.setSupportedMediaTypes(singletonList(APPLICATION_XML));
-            //noinspection unchecked
-            restTemplate.setMessageConverters(Collections.<HttpMessageConverter<?>>singletonList(converter));
+            try {
+                Socket layered = delegate.createLayeredSocket(socket, target, port, context);
+                layered.setSoTimeout(soTimeout);
+                return layered;
+            } catch (SocketTimeoutException e) {
+                throw new TaxiiTimeoutException.TlsHandshakeTimeoutException("TLS handshake with " + target + ":" + port +
+                        " timed out");
+            }
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return delegate.createSocket(context);
         }
 
-        return restTemplate;
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            Socket socket = sock != null ? sock : createSocket(context);
+            int soTimeout = socket.getSoTimeout();
+            if (handshakeTimeoutMillis > 0) {
+                socket.setSoTimeout(handshakeTimeoutMillis);
+            }
+
+            try {
+                Socket connected = delegate.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress,
+                        context);
+                connected.setSoTimeout(soTimeout);
+                return connected;
+            } catch (SocketTimeoutException e) {
+                // a timeout before the socket connected is a connect timeout, the caller reports it
+                if (!socket.isConnected()) {
+                    throw e;
+                }
+                throw new TaxiiTimeoutException.TlsHandshakeTimeoutException("TLS handshake with " + host + " timed out");
+            }
+        }
     }
 
+    /**
+     * sends the connection's current credentials preemptively, when there are any, and aborts requests that outlive
+     * the deadline of their template call, see {@link TaxiiDeadline}
+     */
     private static class PreemptiveAuthHttpRequestFactor extends HttpComponentsClientHttpRequestFactory {
-        private String username;
-        private String password;
+        private final AtomicReference<UsernamePasswordCredentials> credentials;
 
-        public PreemptiveAuthHttpRequestFactor(String username, String password, HttpClient httpClient) {
+        public PreemptiveAuthHttpRequestFactor(HttpClient httpClient,
+                                               AtomicReference<UsernamePasswordCredentials> credentials) {
             super(httpClient);
-            this.username = username;
-            this.password = password == null ? "" : password;
+            this.credentials = credentials;
+        }
+
+        @Override
+        protected void postProcessHttpRequest(HttpUriRequest request) {
+            TaxiiDeadline.abortOnExpiry(request);
         }
 
         @Override
         protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+            UsernamePasswordCredentials current = credentials.get();
+            if (current == null) {
+                return super.createHttpContext(httpMethod, uri);
+            }
+
             AuthCache authCache = new BasicAuthCache();
             BasicScheme basicAuth = new BasicScheme();
             HttpHost targetHost = new HttpHost(uri.getHost(), uri.getPort());
             CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
             credentialsProvider.setCredentials(
                     new AuthScope(targetHost.getHostName(), targetHost.getPort()),
-                    new UsernamePasswordCredentials(username, password));
+                    current);
             authCache.put(targetHost, basicAuth);
             HttpClientContext context = HttpClientContext.create();
             context.setCredentialsProvider(credentialsProvider);
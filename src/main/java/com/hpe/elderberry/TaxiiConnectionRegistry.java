@@ -0,0 +1,278 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Collections.unmodifiableSet;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Holds many {@link TaxiiConnection}s by ID, typically loaded from a single JSON file that maps IDs to connections
+ * in the format {@link TaxiiConnection} serializes to:</p>
+ * <pre>
+ * {@code
+ *
+ *     {
+ *         "hailataxii-guest": {"discoveryUrl": "http://hailataxii.com/taxii-discovery-service", "username": "guest"},
+ *         "partner-feed": {"discoveryUrl": "https://taxii.example.com/discovery", "keyStoreFile": "/etc/taxii/client.jks"}
+ *     }
+ * }
+ * </pre>
+ * <p>Connections to the same host with the same credentials, certificates, proxy and pool settings share the rest
+ * template, and therefore the HTTP client and its connection pool, of the first connection added to their group. They
+ * share its rate limiter and response size guard as well, and reloading any of them reloads the credentials and
+ * certificates of the shared rest template. All connections with the same XML parser share one marshaller. Memory and
+ * sockets grow with the number of distinct servers rather than with the number of feeds.</p>
+ * <p>Lookups are lock-free, connections can be added and removed at any time. A removed connection stops sharing its
+ * group's rest template. When the connection whose rest template the group shares is removed, a remaining connection
+ * takes over the rest template with its pool, and the pool of a group is shut down when its last connection is removed.
+ * A connection whose credentials or certificates changed is moved to the group it now matches by
+ * {@link #reload(String)}.</p>
+ */
+@SuppressWarnings("unused")
+public class TaxiiConnectionRegistry {
+    private Log log = getLog(getClass());
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final ConcurrentMap<String, TaxiiConnection> connections = new ConcurrentHashMap<>();
+
+    private final Map<String, List<Object>> keys = new HashMap<>();
+
+    private final Map<List<Object>, Group> groups = new HashMap<>();
+
+    private final Map<String, Jaxb2Marshaller> marshallers = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * adds the connections defined in a JSON file
+     *
+     * @param file a JSON object mapping connection IDs to connections
+     * @throws IOException when the file can't be read or parsed
+     */
+    public void load(File file) throws IOException {
+        addAll(mapper.readValue(file, new TypeReference<LinkedHashMap<String, TaxiiConnection>>() {
+        }));
+    }
+
+    /**
+     * adds the connections defined in a JSON stream, see {@link #load(File)}
+     *
+     * @param in a JSON object mapping connection IDs to connections
+     * @throws IOException when the stream can't be read or parsed
+     */
+    public void load(InputStream in) throws IOException {
+        addAll(mapper.readValue(in, new TypeReference<LinkedHashMap<String, TaxiiConnection>>() {
+        }));
+    }
+
+    /**
+     * @param connections the connections to add by ID, see {@link #add(String, TaxiiConnection)}
+     */
+    public void addAll(Map<String, TaxiiConnection> connections) {
+        connections.forEach(this::add);
+        log.info("loaded " + connections.size() + " TAXII connections, " + this.connections.size() + " connections in " +
+                getPoolCount() + " pools");
+    }
+
+    /**
+     * adds a connection, replacing the connection with the same ID. The connection shares its group's rest template
+     * and the registry's marshaller, unless one was set on it. Adding a connection again with the same ID does nothing
+     *
+     * @param id         the connection ID
+     * @param connection the connection, it must have a discovery URL
+     */
+    public void add(String id, TaxiiConnection connection) {
+        lock.lock();
+        try {
+            if (connections.get(id) == connection) {
+                return;
+            }
+
+            remove(id);
+
+            if (!connection.hasMarshaller()) {
+                connection.setMarshaller(marshallers.computeIfAbsent(
+                        Objects.toString(connection.xmlInputFactoryClassName()), k -> connection.getMarshaller()));
+            }
+
+            List<Object> key = connection.sharingKey();
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(connection);
+                groups.put(key, group);
+            } else if (!connection.hasRestTemplate()) {
+                connection.shareRestTemplate(group.owner);
+            }
+
+            group.ids.add(id);
+            keys.put(id, key);
+            connections.put(id, connection);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * removes a connection
+     *
+     * @param id the connection ID
+     * @return the removed connection, or null when there was no connection with this ID
+     */
+    public TaxiiConnection remove(String id) {
+        lock.lock();
+        try {
+            TaxiiConnection connection = connections.remove(id);
+            if (connection == null) {
+                return null;
+            }
+
+            List<Object> key = keys.remove(id);
+            Group group = groups.get(key);
+            group.ids.remove(id);
+            if (group.ids.isEmpty()) {
+                groups.remove(key);
+                group.owner.shutdownPool();
+            } else if (group.owner == connection) {
+                handOver(group);
+            }
+
+            if (connection.isSharingRestTemplate()) {
+                connection.shareRestTemplate(null);
+            }
+
+            return connection;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * reloads the credentials and certificates of a connection, see {@link TaxiiConnection#reload()}. When they changed
+     * since the connection was added, the connection leaves its group and joins the group of the connections it now
+     * matches, or starts a new one, rather than reloading the rest template it shared
+     *
+     * @param id the connection ID
+     * @return true when the connection moved to another group, false when it was reloaded in its group or there's no
+     * connection with this ID
+     */
+    public boolean reload(String id) {
+        lock.lock();
+        try {
+            TaxiiConnection connection = connections.get(id);
+            if (connection == null) {
+                return false;
+            }
+
+            if (connection.sharingKey().equals(keys.get(id))) {
+                connection.reload();
+                return false;
+            }
+
+            remove(id);
+            connection.reload();
+            add(id, connection);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param id the connection ID
+     * @return the connection, or null when there's no connection with this ID
+     */
+    public TaxiiConnection get(String id) {
+        return connections.get(id);
+    }
+
+    /**
+     * @return the IDs of all connections
+     */
+    public Set<String> getIds() {
+        return unmodifiableSet(connections.keySet());
+    }
+
+    /**
+     * @return the number of distinct rest templates, and connection pools, used by the connections
+     */
+    public int getPoolCount() {
+        lock.lock();
+        try {
+            return groups.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * makes a remaining connection of a group the owner of the rest template its removed owner created, so the pool
+     * keeps serving the group. When no remaining connection shares it, the pool is shut down and a remaining connection
+     * with its own rest template becomes the owner
+     *
+     * @param group the group whose owner was removed
+     */
+    private void handOver(Group group) {
+        TaxiiConnection previous = group.owner;
+        TaxiiConnection next = null;
+        for (String id : group.ids) {
+            TaxiiConnection candidate = connections.get(id);
+            if (candidate.isSharingRestTemplateOf(previous)) {
+                next = candidate;
+                break;
+            }
+        }
+
+        if (next == null) {
+            previous.shutdownPool();
+            group.owner = connections.get(group.ids.iterator().next());
+            return;
+        }
+
+        next.adoptPool();
+        group.owner = next;
+        for (String id : group.ids) {
+            TaxiiConnection member = connections.get(id);
+            if (member.isSharingRestTemplateOf(previous)) {
+                member.shareRestTemplate(next);
+            }
+        }
+    }
+
+    /**
+     * connections sharing the rest template of the first connection added with their sharing key
+     */
+    private static class Group {
+        private TaxiiConnection owner;
+        private final Set<String> ids = new HashSet<>();
+
+        Group(TaxiiConnection owner) {
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.context.SmartLifecycle;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+import static com.hpe.elderberry.TaxiiExecutors.newVirtualThreadPerTaskExecutorOrPool;
+import static java.lang.Math.min;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * <p>Warms a {@link TaxiiConnection} when the application context starts, so the first poll cycle doesn't pay for
+ * everything at once. In parallel, the warmer:</p>
+ * <ul>
+ * <li>creates the marshaller, which builds the JAXB context</li>
+ * <li>creates the rest template, which loads the key and trust stores and builds the SSL context</li>
+ * <li>resolves the discovery host and the additional endpoint hosts</li>
+ * <li>opens pooled connections to each host, including the TLS handshake, and returns them to the pool for the first
+ * requests to reuse</li>
+ * </ul>
+ * The context start, and therefore readiness, waits for the warm up. Failures are logged and don't fail the start
+ * unless {@link #setFailOnError(boolean)} is set.<br>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     <bean name="taxiiWarmer" class="TaxiiConnectionWarmer"
+ *          p:taxiiConnection-ref="taxiiConnection"
+ *          p:endpoints="https://taxii.example.com/taxii/poll"
+ *          p:connectionsPerHost="4"
+ *     />
+ * }
+ * </pre>
+ * Pooled connections can only be opened ahead for direct connections and for plain HTTP through a proxy. HTTPS
+ * through a proxy needs a tunnel, for these only the template is created.
+ */
+@SuppressWarnings("unused")
+public class TaxiiConnectionWarmer implements SmartLifecycle {
+    private Log log = getLog(getClass());
+
+    private TaxiiConnection conn;
+
+    private Collection<URI> endpoints = new ArrayList<>();
+
+    private int connectionsPerHost = 2;
+
+    private long timeoutMillis = 30000;
+
+    private boolean failOnError;
+
+    private int phase;
+
+    private volatile boolean running;
+
+    /**
+     * the connection to warm
+     *
+     * @param conn a valid, non-null {@link TaxiiConnection}
+     */
+    @Autowired
+    @Required
+    public void setTaxiiConnection(TaxiiConnection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * optional endpoints to warm in addition to the discovery URL, typically the collection management and poll
+     * services
+     *
+     * @param endpoints the endpoint URIs, only their scheme, host and port are used
+     */
+    public void setEndpoints(Collection<URI> endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * @param connectionsPerHost the number of connections to open to each host, defaults to 2. It's capped at the
+     *                           pool's maximum connections per route, see
+     *                           {@link TaxiiConnection#setMaxConnectionsPerRoute(int)}
+     */
+    public void setConnectionsPerHost(int connectionsPerHost) {
+        this.connectionsPerHost = connectionsPerHost;
+    }
+
+    /**
+     * @param timeoutMillis the maximum time to wait for the warm up, defaults to 30 seconds. It's also the connect
+     *                      timeout of each connection
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param failOnError when true a failed warm up fails the context start, defaults to false
+     */
+    public void setFailOnError(boolean failOnError) {
+        this.failOnError = failOnError;
+    }
+
+    /**
+     * @param phase the lifecycle phase, defaults to 0. Use a lower phase to warm before other lifecycle beans start
+     *              polling
+     */
+    public void setPhase(int phase) {
+        this.phase = phase;
+    }
+
+    @Override
+    public void start() {
+        long start = currentTimeMillis();
+        Set<URI> hosts = new LinkedHashSet<>();
+        hosts.add(hostOf(conn.getDiscoveryUrl()));
+        endpoints.forEach(endpoint -> hosts.add(hostOf(endpoint)));
+
+        // host steps wait for their connections, so a platform pool needs a thread for every step and connection
+        ExecutorService executor = newVirtualThreadPerTaskExecutorOrPool(2 + hosts.size() * (1 + connectionsPerHost));
+        try {
+            List<CompletableFuture<Void>> steps = new ArrayList<>();
+            steps.add(runAsync(conn::getMarshaller, executor));
+            CompletableFuture<Void> template = runAsync(conn::getRestTemplate, executor);
+            steps.add(template);
+            for (URI host : hosts) {
+                steps.add(runAsync(() -> resolve(host), executor)
+                        .thenAcceptBothAsync(template, (r, t) -> connect(host, executor), executor));
+            }
+
+            allOf(steps.toArray(new CompletableFuture[steps.size()])).get(timeoutMillis, MILLISECONDS);
+            log.info("warmed TAXII connection to " + hosts + " in " + (currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            if (failOnError) {
+                throw new RuntimeException("unable to warm TAXII connection, " + e.getMessage(), e);
+            }
+            log.warn("unable to warm TAXII connection, the first requests will be slower, " + e.getMessage(), e);
+        } finally {
+            executor.shutdown();
+            running = true;
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return phase;
+    }
+
+    private URI hostOf(URI uri) {
+        return URI.create(uri.getScheme() + "://" + uri.getHost() + ":" + port(uri));
+    }
+
+    private int port(URI uri) {
+        return uri.getPort() > 0 ? uri.getPort() : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    private void resolve(URI host) {
+        try {
+            InetAddress.getAllByName(conn.getProxy() == null ? host.getHost() : conn.getProxy().getHostName());
+        } catch (Exception e) {
+            throw new RuntimeException("unable to resolve " + host.getHost() + ", " + e.getMessage(), e);
+        }
+    }
+
+    private void connect(URI host, ExecutorService executor) {
+        PoolingHttpClientConnectionManager pool = conn.getConnectionManager();
+        boolean secure = "https".equalsIgnoreCase(host.getScheme());
+        if (pool == null || (secure && conn.getProxy() != null)) {
+            return;
+        }
+
+        HttpHost target = new HttpHost(host.getHost(), host.getPort(), host.getScheme());
+        HttpRoute route = conn.getProxy() == null ? new HttpRoute(target, null, secure) :
+                new HttpRoute(target, null, conn.getProxy(), false);
+        int count = min(connectionsPerHost, pool.getMaxPerRoute(route));
+
+        // open the connections in parallel
+        List<CompletableFuture<HttpClientConnection>> connections = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            connections.add(CompletableFuture.supplyAsync(() -> open(pool, route), executor));
+        }
+
+        // wait for all connections before releasing any, a released connection would be leased again
+        RuntimeException failure = null;
+        List<HttpClientConnection> opened = new ArrayList<>(count);
+        for (CompletableFuture<HttpClientConnection> connection : connections) {
+            try {
+                opened.add(connection.join());
+            } catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+
+        opened.forEach(connection -> pool.releaseConnection(connection, null, 0, MILLISECONDS));
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        log.debug("opened " + count + " connections to " + host);
+    }
+
+    private HttpClientConnection open(PoolingHttpClientConnectionManager pool, HttpRoute route) {
+        try {
+            HttpClientConnection connection = pool.requestConnection(route, null).get(timeoutMillis, MILLISECONDS);
+            if (!connection.isOpen()) {
+                HttpClientContext context = HttpClientContext.create();
+                pool.connect(connection, route, (int) timeoutMillis, context);
+                pool.routeComplete(connection, route, context);
+            }
+            return connection;
+        } catch (Exception e) {
+            throw new RuntimeException("unable to open a connection to " + route.getTargetHost() + ", " +
+                    e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static com.hpe.elderberry.TaxiiTimeoutException.Phase.DEADLINE;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * <p>The end-to-end deadline of a template call. While a call runs, its deadline is bound to the calling thread, and
+ * every HTTP request the call sends, including the poll fulfillment requests that page through a result, is aborted
+ * when the deadline expires. Aborting a request closes its connection, which cancels a blocked read cleanly.</p>
+ * <p>Nested template calls run within the outer call's deadline. <code>pollAll</code> binds its deadline to each of
+ * its poll tasks, so all its polls run within one deadline, whichever thread they run on. A poll through a
+ * {@link PollingEndpointSelector} binds its deadline to each attempt the same way, hedged or not.</p>
+ * <p>Waits before a request is sent, for the {@link RateLimiter} or the {@link ResponseBudget}, end when the deadline
+ * expires as well, see {@link #remainingNanos()}.</p>
+ */
+final class TaxiiDeadline {
+    private static final ThreadLocal<TaxiiDeadline> CURRENT = new ThreadLocal<>();
+
+    // the aborts scheduled by the requests of this thread, a deadline may be bound to several threads at once
+    private static final ThreadLocal<List<ScheduledFuture<?>>> ABORTS = new ThreadLocal<>();
+
+    private static final ScheduledExecutorService SCHEDULER = newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "taxii-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long deadlineNanos;
+
+    /**
+     * @param deadlineMillis the time the call may take, when not positive the call has no deadline
+     */
+    TaxiiDeadline(long deadlineMillis) {
+        deadlineNanos = deadlineMillis > 0 ? nanoTime() + MILLISECONDS.toNanos(deadlineMillis) : Long.MAX_VALUE;
+    }
+
+    /**
+     * runs a template call within a new deadline, or within the deadline of the enclosing call
+     *
+     * @param deadlineMillis the time the call may take, when not positive the call has no deadline
+     * @param timeouts       receives the phase of each timeout of the outermost call
+     * @param call           the template call
+     * @param <T>            the call's result type
+     * @return the call's result
+     * @throws TaxiiTimeoutException when a request of the call timed out
+     */
+    static <T> T within(long deadlineMillis, Consumer<TaxiiTimeoutException.Phase> timeouts, Supplier<T> call) {
+        return CURRENT.get() != null ? call.get() : new TaxiiDeadline(deadlineMillis).run(timeouts, call);
+    }
+
+    /**
+     * @param deadlineMillis the time a new call may take, when not positive the call has no deadline
+     * @return the deadline of the call running on this thread, or a new deadline when no call runs
+     */
+    static TaxiiDeadline currentOr(long deadlineMillis) {
+        TaxiiDeadline current = CURRENT.get();
+        return current != null ? current : new TaxiiDeadline(deadlineMillis);
+    }
+
+    /**
+     * @return the time left until the deadline of the call running on this thread expires, in nanoseconds, at most 0
+     * when it expired, or <code>Long.MAX_VALUE</code> outside of a call with a deadline
+     */
+    static long remainingNanos() {
+        TaxiiDeadline deadline = CURRENT.get();
+        return deadline == null ? Long.MAX_VALUE : deadline.remaining();
+    }
+
+    /**
+     * @return the time left until this deadline expires, in nanoseconds, at most 0 when it expired, or
+     * <code>Long.MAX_VALUE</code> when there's no deadline
+     */
+    long remaining() {
+        return deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineNanos - nanoTime();
+    }
+
+    /**
+     * @param waiting what the call was waiting for when the deadline expired
+     * @return the error a wait ended by the deadline throws
+     */
+    static TaxiiTimeoutException expiredWhile(String waiting) {
+        return new TaxiiTimeoutException(DEADLINE, "TAXII request timed out (" + DEADLINE + ") while waiting for " +
+                waiting, null);
+    }
+
+    /**
+     * runs a part of a call within this deadline, used by calls that span several template calls, like a stream, or
+     * that run on several threads, like <code>pollAll</code>
+     *
+     * @param timeouts receives the phase of each timeout
+     * @param call     the part of the call
+     * @param <T>      the result type
+     * @return the result
+     */
+    <T> T run(Consumer<TaxiiTimeoutException.Phase> timeouts, Supplier<T> call) {
+        if (CURRENT.get() != null) {
+            return call.get();
+        }
+
+        List<ScheduledFuture<?>> aborts = new ArrayList<>();
+        CURRENT.set(this);
+        ABORTS.set(aborts);
+        try {
+            return call.get();
+        } catch (TaxiiTimeoutException e) {
+            timeouts.accept(e.getPhase());
+            throw e;
+        } catch (RuntimeException e) {
+            // an aborted or timed out read surfaces as an I/O error, or as a response the converter couldn't read
+            TaxiiTimeoutException.Phase phase = expired() ? DEADLINE : TaxiiTimeoutException.phaseOf(e);
+            if (phase == null) {
+                throw e;
+            }
+
+            timeouts.accept(phase);
+            throw new TaxiiTimeoutException(phase, "TAXII request timed out (" + phase + "), " + e.getMessage(), e);
+        } finally {
+            CURRENT.remove();
+            ABORTS.remove();
+            aborts.forEach(abort -> abort.cancel(false));
+        }
+    }
+
+    private boolean expired() {
+        return deadlineNanos != Long.MAX_VALUE && nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * aborts a request when the deadline of the current call expires, does nothing outside of a call with a deadline
+     *
+     * @param request a request about to be sent
+     */
+    static void abortOnExpiry(HttpUriRequest request) {
+        TaxiiDeadline deadline = CURRENT.get();
+        if (deadline == null || deadline.deadlineNanos == Long.MAX_VALUE) {
+            return;
+        }
+
+        long remaining = deadline.deadlineNanos - nanoTime();
+        if (remaining <= 0) {
+            request.abort();
+        } else {
+            ABORTS.get().add(SCHEDULER.schedule(request::abort, remaining, NANOSECONDS));
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.StatusDetailDetailType;
+import org.mitre.taxii.messages.xml11.StatusMessage;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.ResponseEntity;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.hpe.elderberry.TaxiiTimestamps.toEpochMillis;
+import static java.lang.System.currentTimeMillis;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.util.StringUtils.collectionToCommaDelimitedString;
+import static org.springframework.util.StringUtils.isEmpty;
+
+/**
+ * the protocol plumbing shared by {@link Taxii10Template} and {@link Taxii11Template}: message IDs, request headers,
+ * response status handling, deadlines and events, and journaling. The templates only build the messages of their TAXII
+ * version, so every optimization of the plumbing applies to both versions
+ */
+final class TaxiiEngine {
+    // set while a poll attempt of an endpoint selector runs, the selector's caller journals the winning result
+    private static final ThreadLocal<Boolean> UNJOURNALED = new ThreadLocal<>();
+
+    private final Log log;
+
+    private final TaxiiVersion version;
+
+    private TaxiiConnection conn;
+
+    private ContentJournal journal;
+
+    private long deadlineMillis;
+
+    /**
+     * @param version the TAXII version of the requests
+     * @param owner   the template, errors are logged in its name
+     */
+    TaxiiEngine(TaxiiVersion version, Class<?> owner) {
+        this.version = version;
+        this.log = getLog(owner);
+    }
+
+    void setTaxiiConnection(TaxiiConnection conn) {
+        this.conn = conn;
+    }
+
+    TaxiiConnection getTaxiiConnection() {
+        return conn;
+    }
+
+    void setContentJournal(ContentJournal journal) {
+        this.journal = journal;
+    }
+
+    void setDeadlineMillis(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    TaxiiVersion getVersion() {
+        return version;
+    }
+
+    /**
+     * runs a call within the template's deadline, or within the deadline of the enclosing call, and records it, see
+     * {@link TaxiiEvents}
+     */
+    <T> T within(String operation, URI uri, String collectionName, Supplier<T> call) {
+        return TaxiiEvents.request(operation, uri, collectionName,
+                () -> TaxiiDeadline.within(deadlineMillis, this::timedOut, call));
+    }
+
+    void timedOut(TaxiiTimeoutException.Phase phase) {
+        conn.recordTimeout(phase);
+    }
+
+    /**
+     * posts a request and returns the response body, see {@link #respond(ResponseEntity)}. A server that can't answer
+     * with the response type answers with a status message instead. It's read from the same response and logged, and
+     * a <code>RETRY</code> status holds back further requests to the host, see
+     * {@link TaxiiConnection#penalize(URI, long)}
+     *
+     * @return the response, or null when there was an error or the server answered with a status message
+     */
+    <T> T post(URI uri, Object request, Class<T> responseType) {
+        Object response = respond(conn.getRestTemplate().postForEntity(uri, wrapRequest(uri, request), Object.class));
+        if (response == null || responseType.isInstance(response)) {
+            return responseType.cast(response);
+        }
+
+        if (response instanceof StatusMessage) {
+            StatusMessage status = (StatusMessage) response;
+            log.error("TAXII request failed, status: " + statusMessageSafelyToString(status));
+            if ("RETRY".equals(status.getStatusType())) {
+                conn.penalize(uri, estimatedWaitMillis(status));
+            }
+        } else if (response instanceof org.mitre.taxii.messages.xml10.StatusMessage) {
+            org.mitre.taxii.messages.xml10.StatusMessage status = (org.mitre.taxii.messages.xml10.StatusMessage) response;
+            log.error("TAXII request failed, status type: " + status.getStatusType() + ", message: " +
+                    status.getMessage());
+            if ("RETRY".equals(status.getStatusType())) {
+                conn.penalize(uri, 0);
+            }
+        } else {
+            log.error("TAXII request failed, expected a " + responseType.getSimpleName() + " but received a " +
+                    response.getClass().getSimpleName());
+        }
+
+        return null;
+    }
+
+    <T> T respond(ResponseEntity<T> response) {
+        if (response.getStatusCode() == OK) {
+            return response.getBody();
+        }
+
+        log.error("error in TAXII request: " + response.getStatusCode());
+
+        return null;
+    }
+
+    <T> HttpEntity<T> wrapRequest(URI target, T body) {
+        return new HttpEntity<>(body, version.headers(target));
+    }
+
+    /**
+     * appends content blocks to the journal, when set
+     *
+     * @param collectionName the collection or feed the blocks were polled from
+     * @param blocks         the content blocks, of either TAXII version
+     * @param timestampLabel reads a block's timestamp label
+     */
+    <B> void journal(String collectionName, List<B> blocks, Function<B, XMLGregorianCalendar> timestampLabel) {
+        ContentJournal current = currentJournal();
+        if (current == null) {
+            return;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (B block : blocks) {
+            out.reset();
+            conn.getMarshaller().marshal(block, new StreamResult(out));
+            XMLGregorianCalendar label = timestampLabel.apply(block);
+            current.append(collectionName, label == null ? currentTimeMillis() : toEpochMillis(label),
+                    out.toByteArray());
+        }
+    }
+
+    /**
+     * @return the journal polls on the current thread append to, or null when they don't journal. It's part of the
+     * coalescing key of polls, so a poll only waits for an identical poll that journals to the same journal, and
+     * templates that share a connection but not a journal each journal their own polls
+     */
+    ContentJournal currentJournal() {
+        return UNJOURNALED.get() == null ? journal : null;
+    }
+
+    /**
+     * polls through an endpoint selector, see {@link PollingEndpointSelector#poll(PollingEndpointSelector, List,
+     * TaxiiDeadline, PollingEndpointSelector.EndpointCall)}. All attempts run within one deadline, the template's or
+     * the enclosing call's, whichever thread they run on, and the selector stops waiting for them when it expires. A
+     * hedged poll runs at two endpoints at once, and the losing poll can't be stopped while it reads its response, so
+     * the attempts don't journal and only the result that wins is journaled
+     *
+     * @param selector       the endpoint selector, or null to poll the first address
+     * @param addresses      the polling service addresses
+     * @param poll           polls one address
+     * @param collectionName the collection or feed name
+     * @param blocks         reads the content blocks of a result
+     * @param timestampLabel reads a block's timestamp label
+     * @return the result
+     */
+    <R, B> R pollAny(PollingEndpointSelector selector, List<String> addresses, PollingEndpointSelector.EndpointCall<R> poll,
+                     String collectionName, Function<R, List<B>> blocks,
+                     Function<B, XMLGregorianCalendar> timestampLabel) throws URISyntaxException, MalformedURLException {
+        if (selector == null) {
+            return PollingEndpointSelector.poll(null, addresses, null, poll);
+        }
+
+        TaxiiDeadline deadline = TaxiiDeadline.currentOr(deadlineMillis);
+        R result = PollingEndpointSelector.poll(selector, addresses, deadline,
+                endpoint -> deadline.run(this::timedOut, () -> {
+                    UNJOURNALED.set(Boolean.TRUE);
+                    try {
+                        return poll.call(endpoint);
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new RuntimeException("unable to poll " + endpoint + ", " + e.getMessage(), e);
+                    } finally {
+                        UNJOURNALED.remove();
+                    }
+                }));
+
+        if (result != null) {
+            journal(collectionName, blocks.apply(result), timestampLabel);
+        }
+
+        return result;
+    }
+
+    private String statusMessageSafelyToString(StatusMessage msg) {
+        StringBuilder sb = new StringBuilder();
+
+        if(!isEmpty(msg.getMessageId())) {
+            sb.append("message ID: ").append(msg.getMessageId()).append("\n");
+        }
+
+        if(!isEmpty(msg.getInResponseTo())) {
+            sb.append("in response to: ").append(msg.getInResponseTo()).append("\n");
+        }
+
+        if(!isEmpty(msg.getStatusType())) {
+            sb.append("status type: ").append(msg.getStatusType()).append("\n");
+        }
+
+        if(!isEmpty(msg.getMessage())) {
+            sb.append("message: ").append(msg.getMessage()).append("\n");
+        }
+
+        if(msg.getStatusDetail()!=null && msg.getStatusDetail().getDetails()!=null) {
+            sb.append("details: ").append(collectionToCommaDelimitedString(msg.getStatusDetail().getDetails()));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return the <code>ESTIMATED_WAIT</code> of a <code>RETRY</code> status message in milliseconds, or 0 when the
+     * server didn't estimate
+     */
+    private long estimatedWaitMillis(StatusMessage msg) {
+        if (msg.getStatusDetail() == null) {
+            return 0;
+        }
+
+        for (StatusDetailDetailType detail : msg.getStatusDetail().getDetails()) {
+            if ("ESTIMATED_WAIT".equals(detail.getName()) && !detail.getContent().isEmpty()) {
+                try {
+                    return Long.parseLong(detail.getContent().get(0).toString().trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    log.warn("invalid estimated wait: " + detail.getContent().get(0));
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    static String generateMessageId() {
+        return String.valueOf(currentTimeMillis() / 100000);
+    }
+
+    static Date yesterday() {
+        return new Date(currentTimeMillis() - 86400000);
+    }
+}
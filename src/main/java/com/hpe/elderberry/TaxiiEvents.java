@@ -0,0 +1,285 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.function.Supplier;
+
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+
+/**
+ * <p>Records Java Flight Recorder events for template calls and {@link TaxiiConnection} initialization steps:</p>
+ * <ul>
+ * <li><code>com.hpe.elderberry.TaxiiRequest</code>: one per discovery, collection or feed information, poll and poll
+ * fulfillment call, with the endpoint, collection, response size, content block count and the time spent in each
+ * phase: rate limit wait, response wait, body read and processing (unmarshalling and journaling)</li>
+ * <li><code>com.hpe.elderberry.TaxiiConnectionLifecycle</code>: loading the key and trust stores, creating the SSL
+ * context, which is created again on each reload, the marshaller and the rest template</li>
+ * </ul>
+ * The events are in the <code>TAXII</code> category and are recorded like any JDK event, for example with
+ * <code>-XX:StartFlightRecording</code> or <code>jcmd JFR.start</code>. When no recording enables them they cost a
+ * flag check per call. The events are compiled into the library only when it's built by a JDK with
+ * <code>jdk.jfr</code>, and loaded reflectively, so on JVMs without JFR, or a library built without it, nothing is
+ * recorded
+ */
+final class TaxiiEvents {
+    private static final Recorder RECORDER = loadRecorder();
+
+    private static final boolean AVAILABLE = RECORDER != null;
+
+    private static final ThreadLocal<Call> CURRENT = new ThreadLocal<>();
+
+    private static final ClientHttpRequestInterceptor INTERCEPTOR = new RecordingInterceptor();
+
+    private TaxiiEvents() {
+    }
+
+    /**
+     * @return true when the JVM can record the events
+     */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @return an interceptor that measures the HTTP phases and the response size of the call on the current thread.
+     * It must run before the {@link RateLimiter}
+     */
+    static ClientHttpRequestInterceptor interceptor() {
+        return INTERCEPTOR;
+    }
+
+    /**
+     * records a template call. Calls nested in a recorded call, like a poll inside a stream, are part of it
+     *
+     * @param operation  the TAXII operation, for example <code>poll</code>
+     * @param endpoint   the service endpoint
+     * @param collection the collection or feed name, or null
+     * @param call       the template call
+     * @param <T>        the response type
+     * @return the response
+     */
+    static <T> T request(String operation, URI endpoint, String collection, Supplier<T> call) {
+        if (!AVAILABLE || CURRENT.get() != null) {
+            return call.get();
+        }
+
+        Object event = RECORDER.beginRequest();
+        if (event == null) {
+            return call.get();
+        }
+
+        Call recorded = new Call();
+        CURRENT.set(recorded);
+        T response = null;
+        Throwable failure = null;
+        try {
+            response = call.get();
+            return response;
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            CURRENT.remove();
+            RECORDER.commitRequest(event, operation, endpoint, collection, recorded, contentBlocks(response),
+                    failure);
+        }
+    }
+
+    /**
+     * records a connection initialization step
+     *
+     * @param step         the step, for example <code>key store</code>
+     * @param discoveryUrl the connection's discovery URL
+     * @param init         the step
+     * @param <T>          the step's result type
+     * @return the step's result
+     */
+    static <T> T lifecycle(String step, URI discoveryUrl, Supplier<T> init) {
+        Object event = AVAILABLE ? RECORDER.beginLifecycle() : null;
+        if (event == null) {
+            return init.get();
+        }
+
+        Throwable failure = null;
+        try {
+            return init.get();
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            RECORDER.commitLifecycle(event, step, discoveryUrl, failure);
+        }
+    }
+
+    /**
+     * adds rate limiter wait time to the call on the current thread, if it's recorded
+     *
+     * @param nanos the wait time
+     */
+    static void rateLimitWait(long nanos) {
+        Call call = AVAILABLE ? CURRENT.get() : null;
+        if (call != null) {
+            call.rateLimitNanos += nanos;
+        }
+    }
+
+    private static int contentBlocks(Object response) {
+        if (response instanceof org.mitre.taxii.messages.xml11.PollResponse) {
+            return ((org.mitre.taxii.messages.xml11.PollResponse) response).getContentBlocks().size();
+        }
+
+        if (response instanceof org.mitre.taxii.messages.xml10.PollResponse) {
+            return ((org.mitre.taxii.messages.xml10.PollResponse) response).getContentBlocks().size();
+        }
+
+        return 0;
+    }
+
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            Recorder recorder = (Recorder) Class.forName("com.hpe.elderberry.TaxiiJfrEvents").getDeclaredConstructor()
+                    .newInstance();
+            return recorder.isAvailable() ? recorder : null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * the JFR events, implemented by <code>TaxiiJfrEvents</code>, which is compiled only when the JDK has
+     * <code>jdk.jfr</code>
+     */
+    interface Recorder {
+        boolean isAvailable();
+
+        /**
+         * @return a started request event, or null when the event isn't enabled in any recording
+         */
+        Object beginRequest();
+
+        void commitRequest(Object started, String operation, URI endpoint, String collection, Call call,
+                           int contentBlocks, Throwable failure);
+
+        /**
+         * @return a started lifecycle event, or null when the event isn't enabled in any recording
+         */
+        Object beginLifecycle();
+
+        void commitLifecycle(Object started, String step, URI discoveryUrl, Throwable failure);
+    }
+
+    /**
+     * the measurements of a recorded call, it's confined to the calling thread
+     */
+    static class Call {
+        long rateLimitNanos;
+        long responseWaitNanos;
+        long bodyReadNanos;
+        long bytes;
+        private long headers;
+
+        /**
+         * @return the time after the response headers that wasn't spent reading the body, or 0 when no request was sent
+         */
+        long processingNanos() {
+            return headers == 0 ? 0 : max(0, nanoTime() - headers - bodyReadNanos);
+        }
+    }
+
+    private static class RecordingInterceptor implements ClientHttpRequestInterceptor {
+        @Override
+        public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+            Call call = CURRENT.get();
+            if (call == null) {
+                return execution.execute(request, body);
+            }
+
+            long waited = call.rateLimitNanos;
+            long sent = nanoTime();
+            ClientHttpResponse response = execution.execute(request, body);
+            call.headers = nanoTime();
+            call.responseWaitNanos += call.headers - sent - (call.rateLimitNanos - waited);
+            return new CountingResponse(response, call);
+        }
+    }
+
+    /**
+     * counts the body bytes and the time spent waiting for them
+     */
+    private static class CountingResponse implements ClientHttpResponse {
+        private final ClientHttpResponse response;
+        private final Call call;
+
+        CountingResponse(ClientHttpResponse response, Call call) {
+            this.response = response;
+            this.call = call;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return new FilterInputStream(response.getBody()) {
+                @Override
+                public int read() throws IOException {
+                    long start = nanoTime();
+                    int read = super.read();
+                    call.bodyReadNanos += nanoTime() - start;
+                    call.bytes += read < 0 ? 0 : 1;
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    long start = nanoTime();
+                    int read = super.read(b, off, len);
+                    call.bodyReadNanos += nanoTime() - start;
+                    call.bytes += max(0, read);
+                    return read;
+                }
+            };
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+    }
+}
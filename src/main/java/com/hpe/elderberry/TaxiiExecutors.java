@@ -0,0 +1,70 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * executors for running blocking template calls concurrently. The library is built for Java 8, so the Java 21 virtual
+ * thread executor is looked up at runtime
+ */
+@SuppressWarnings("unused")
+public final class TaxiiExecutors {
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadFactoryMethod();
+
+    private TaxiiExecutors() {
+    }
+
+    /**
+     * @return true when the running JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * creates an executor that starts a new virtual thread for each task. Blocking template calls don't hold a
+     * platform thread while waiting for the server, so thousands of polls can run concurrently
+     *
+     * @return a new virtual thread per task executor
+     * @throws UnsupportedOperationException when the running JVM doesn't support virtual threads (before Java 21)
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null) {
+            throw new UnsupportedOperationException("virtual threads require Java 21 or later, running on " +
+                    System.getProperty("java.version"));
+        }
+
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            throw new RuntimeException("unable to create a virtual thread executor, " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * creates a virtual thread per task executor when supported, or a platform thread pool otherwise
+     *
+     * @param platformThreads the number of threads in the fallback platform thread pool
+     * @return a new executor
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutorOrPool(int platformThreads) {
+        return isVirtualThreadSupported() ? newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(platformThreads);
+    }
+
+    private static Method findVirtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.springframework.http.HttpHeaders;
+
+import java.net.URI;
+
+import static java.util.Collections.singletonList;
+import static org.mitre.taxii.Versions.VID_TAXII_HTTPS_10;
+import static org.mitre.taxii.Versions.VID_TAXII_HTTP_10;
+import static org.mitre.taxii.Versions.VID_TAXII_SERVICES_10;
+import static org.mitre.taxii.Versions.VID_TAXII_SERVICES_11;
+import static org.mitre.taxii.Versions.VID_TAXII_XML_10;
+import static org.mitre.taxii.Versions.VID_TAXII_XML_11;
+import static org.springframework.http.HttpHeaders.readOnlyHttpHeaders;
+import static org.springframework.http.MediaType.APPLICATION_XML;
+
+/**
+ * precomputed, read-only TAXII request headers. There's one header set per TAXII version and protocol binding, so the
+ * templates don't need to build a new {@link HttpHeaders} for every request. The protocol binding is chosen by the
+ * scheme of the URI the request is actually sent to, not by the discovery URI
+ */
+final class TaxiiHeaders {
+    private static final HttpHeaders TAXII_10_HTTP = create(VID_TAXII_SERVICES_10, VID_TAXII_XML_10, VID_TAXII_HTTP_10);
+    private static final HttpHeaders TAXII_10_HTTPS = create(VID_TAXII_SERVICES_10, VID_TAXII_XML_10, VID_TAXII_HTTPS_10);
+    private static final HttpHeaders TAXII_11_HTTP = create(VID_TAXII_SERVICES_11, VID_TAXII_XML_11, VID_TAXII_HTTP_10);
+    private static final HttpHeaders TAXII_11_HTTPS = create(VID_TAXII_SERVICES_11, VID_TAXII_XML_11, VID_TAXII_HTTPS_10);
+
+    private TaxiiHeaders() {
+    }
+
+    /**
+     * @param target the URI the request is sent to
+     * @return the read-only TAXII 1.0 headers matching the target's scheme
+     */
+    static HttpHeaders taxii10(URI target) {
+        return isHttps(target) ? TAXII_10_HTTPS : TAXII_10_HTTP;
+    }
+
+    /**
+     * @param target the URI the request is sent to
+     * @return the read-only TAXII 1.1 headers matching the target's scheme
+     */
+    static HttpHeaders taxii11(URI target) {
+        return isHttps(target) ? TAXII_11_HTTPS : TAXII_11_HTTP;
+    }
+
+    private static boolean isHttps(URI target) {
+        return "https".equalsIgnoreCase(target.getScheme());
+    }
+
+    private static HttpHeaders create(String services, String contentType, String protocol) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(APPLICATION_XML);
+        headers.setAccept(singletonList(APPLICATION_XML));
+        headers.add("X-TAXII-Services", services);
+        headers.add("X-TAXII-Content-Type", contentType);
+        headers.add("X-TAXII-Protocol", protocol);
+        return readOnlyHttpHeaders(headers);
+    }
+}
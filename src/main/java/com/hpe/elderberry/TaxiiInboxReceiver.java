@@ -0,0 +1,656 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import org.apache.commons.logging.Log;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.InboxMessage;
+import org.mitre.taxii.messages.xml11.StatusDetailDetailType;
+import org.mitre.taxii.messages.xml11.StatusDetailType;
+import org.mitre.taxii.messages.xml11.StatusMessage;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hpe.elderberry.TaxiiExecutors.newVirtualThreadPerTaskExecutorOrPool;
+import static java.lang.Long.parseLong;
+import static java.util.UUID.randomUUID;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.springframework.http.HttpHeaders.ACCEPT;
+import static org.springframework.http.HttpHeaders.CONNECTION;
+import static org.springframework.http.HttpHeaders.CONTENT_LENGTH;
+
+/**
+ * <p>An embeddable TAXII 1.1 inbox service, for partners that push content rather than being polled. Received inbox
+ * messages are acknowledged as soon as they're queued and their content blocks are handed to the sinks by worker
+ * threads, so a slow sink doesn't slow down the pushing server.</p>
+ * <p>The queue is bounded, both by messages and by the request bytes of the queued messages. When it's full the
+ * receiver answers with a TAXII <code>RETRY</code> status message and an <code>ESTIMATED_WAIT</code>, which tells the
+ * pushing server to back off, rather than buffering without limit. A request larger than
+ * {@link #setMaxRequestBytes(long)} is answered with HTTP 413 before it's unmarshalled, and messages that aren't inbox
+ * messages are answered with <code>BAD_MESSAGE</code>.</p>
+ * <p>The receiver uses the marshaller of its {@link TaxiiConnection}, and when HTTPS is on it serves with the
+ * connection's key store and verifies client certificates with its trust store, configured exactly like a client
+ * connection. Requests are handled on virtual threads when the JVM supports them, see {@link TaxiiExecutors}.</p>
+ * example:<br>
+ * <pre>
+ * {@code
+ *
+ *     <bean name="inbox" class="TaxiiInboxReceiver"
+ *          p:taxiiConnection-ref="serverTls"
+ *          p:port="9443"
+ *          p:useTls="true"
+ *          p:needClientAuth="true"
+ *          p:sinks-ref="indicatorSink"
+ *     />
+ * }
+ * </pre>
+ */
+@SuppressWarnings("unused")
+public class TaxiiInboxReceiver implements SmartLifecycle {
+    /**
+     * receives the content blocks of inbox messages
+     */
+    public interface Sink {
+        /**
+         * @param message the inbox message, for its destination collection names and subscription information. Don't
+         *                keep a reference to its content blocks, they're released as they're delivered
+         * @param block   a content block of the message
+         */
+        void receive(InboxMessage message, ContentBlock block);
+    }
+
+    private static final Queued STOP = new Queued(new InboxMessage(), 0);
+
+    private Log log = getLog(getClass());
+
+    private TaxiiConnection conn;
+
+    private List<Sink> sinks = new ArrayList<>();
+
+    private String bindAddress;
+
+    private int port;
+
+    private String path = "/taxii/inbox";
+
+    private boolean useTls;
+
+    private boolean needClientAuth;
+
+    private int queueCapacity = 10000;
+
+    private long maxRequestBytes = 32 * 1024 * 1024;
+
+    private long maxQueuedBytes = 256 * 1024 * 1024;
+
+    private int workers = 2;
+
+    private int httpThreads = 64;
+
+    private int retryWaitSeconds = 5;
+
+    private int phase;
+
+    private final LongAdder received = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder malformed = new LongAdder();
+
+    private final LongAdder oversized = new LongAdder();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private volatile boolean running;
+
+    private Jaxb2Marshaller marshaller;
+
+    private BlockingQueue<Queued> queue;
+
+    private ResponseBudget queuedBytes;
+
+    private HttpServer server;
+
+    private ExecutorService httpExecutor;
+
+    private List<Thread> dispatchers;
+
+    /**
+     * the connection that supplies the marshaller and, when {@link #setUseTls(boolean)} is on, the key and trust
+     * stores
+     *
+     * @param conn a {@link TaxiiConnection}, only its marshaller and certificate settings are used. When not set the
+     *             default marshaller is created and only plain HTTP is supported
+     */
+    public void setTaxiiConnection(TaxiiConnection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * @param sinks the sinks that receive every content block, in order
+     */
+    public void setSinks(List<Sink> sinks) {
+        this.sinks = sinks;
+    }
+
+    /**
+     * @param bindAddress the address to listen on, defaults to all addresses
+     */
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * @param port the port to listen on, when 0 or not set a free port is chosen, see {@link #getPort()}
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @param path the inbox service path, defaults to <code>/taxii/inbox</code>
+     */
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @param useTls true to serve HTTPS with the connection's key store, defaults to false
+     */
+    public void setUseTls(boolean useTls) {
+        this.useTls = useTls;
+    }
+
+    /**
+     * @param needClientAuth true to require a client certificate trusted by the connection's trust store, defaults to
+     *                       false
+     */
+    public void setNeedClientAuth(boolean needClientAuth) {
+        this.needClientAuth = needClientAuth;
+    }
+
+    /**
+     * @param queueCapacity the maximum number of inbox messages waiting for the sinks, defaults to 10000
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param maxRequestBytes the maximum size of an inbox request, defaults to 32MB. A larger request is rejected
+     *                        before it's unmarshalled, the content length is checked first and the body is counted as
+     *                        it's read
+     */
+    public void setMaxRequestBytes(long maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * @param maxQueuedBytes the maximum request bytes of the inbox messages waiting for the sinks, defaults to 256MB.
+     *                       The unmarshalled messages take several times their request bytes on the heap. It should be
+     *                       at least {@link #setMaxRequestBytes(long)}, a larger message never fits the queue
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * @param workers the number of threads delivering content blocks to the sinks, defaults to 2. Messages are
+     *                delivered in the order they were received only with a single worker
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * @param httpThreads the number of request threads when the JVM doesn't support virtual threads, defaults to 64
+     */
+    public void setHttpThreads(int httpThreads) {
+        this.httpThreads = httpThreads;
+    }
+
+    /**
+     * @param retryWaitSeconds the estimated wait sent to servers that pushed while the queue was full, defaults to 5
+     */
+    public void setRetryWaitSeconds(int retryWaitSeconds) {
+        this.retryWaitSeconds = retryWaitSeconds;
+    }
+
+    /**
+     * @param phase the lifecycle phase, defaults to 0
+     */
+    public void setPhase(int phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * @return the port the receiver listens on, or 0 when it's not running
+     */
+    public int getPort() {
+        HttpServer current = server;
+        return current == null ? 0 : current.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of inbox messages accepted
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * @return the number of inbox messages answered with <code>RETRY</code> because the queue was full, by messages or
+     * by bytes
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of requests that weren't valid inbox messages
+     */
+    public long getMalformedCount() {
+        return malformed.sum();
+    }
+
+    /**
+     * @return the number of requests rejected because they were larger than {@link #setMaxRequestBytes(long)}
+     */
+    public long getOversizedCount() {
+        return oversized.sum();
+    }
+
+    /**
+     * @return the number of content blocks delivered to all sinks
+     */
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of content blocks a sink failed on
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of inbox messages waiting for the sinks
+     */
+    public int getQueueSize() {
+        BlockingQueue<Queued> current = queue;
+        return current == null ? 0 : current.size();
+    }
+
+    /**
+     * @return the request bytes of the inbox messages waiting for the sinks
+     */
+    public long getQueuedBytes() {
+        ResponseBudget current = queuedBytes;
+        return current == null ? 0 : current.getInFlightBytes();
+    }
+
+    @Override
+    public void start() {
+        marshaller = conn == null ? TaxiiConnection.createDefaultMarshaller() : conn.getMarshaller();
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        queuedBytes = new ResponseBudget(maxQueuedBytes, null);
+
+        dispatchers = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            Thread dispatcher = new Thread(this::dispatch, "taxii-inbox-" + i);
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            dispatchers.add(dispatcher);
+        }
+
+        InetSocketAddress address = bindAddress == null ? new InetSocketAddress(port) :
+                new InetSocketAddress(bindAddress, port);
+        try {
+            if (useTls) {
+                if (conn == null) {
+                    throw new IllegalStateException("HTTPS requires a TAXII connection with a key store");
+                }
+                HttpsServer https = HttpsServer.create(address, 0);
+                https.setHttpsConfigurator(new HttpsConfigurator(conn.createServerSslContext()) {
+                    @Override
+                    public void configure(HttpsParameters params) {
+                        params.setNeedClientAuth(needClientAuth);
+                    }
+                });
+                server = https;
+            } else {
+                server = HttpServer.create(address, 0);
+            }
+        } catch (IOException e) {
+            stopDispatchers();
+            throw new RuntimeException("unable to start TAXII inbox on " + address + ", " + e.getMessage(), e);
+        }
+
+        httpExecutor = newVirtualThreadPerTaskExecutorOrPool(httpThreads);
+        server.setExecutor(httpExecutor);
+        server.createContext(path, this::handle);
+        server.start();
+        running = true;
+        log.info("TAXII inbox listening on " + (useTls ? "https" : "http") + "://" + address.getHostString() + ":" +
+                getPort() + path);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (server != null) {
+            // stop accepting and give requests in progress a second to complete
+            server.stop(1);
+            server = null;
+            httpExecutor.shutdown();
+        }
+
+        // deliver what was already acknowledged
+        stopDispatchers();
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return phase;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String contentLength = exchange.getRequestHeaders().getFirst(CONTENT_LENGTH);
+            if (contentLength != null) {
+                long length;
+                try {
+                    length = parseLong(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    length = -1;
+                }
+
+                if (length < 0) {
+                    badLength(exchange, contentLength);
+                    return;
+                }
+
+                if (length > maxRequestBytes) {
+                    tooLarge(exchange, length);
+                    return;
+                }
+            }
+
+            Object message;
+            LimitedInputStream in = new LimitedInputStream(exchange.getRequestBody(), maxRequestBytes);
+            try {
+                message = marshaller.unmarshal(new StreamSource(in));
+            } catch (Exception e) {
+                if (in.exceeded) {
+                    tooLarge(exchange, in.count);
+                    return;
+                }
+                malformed.increment();
+                log.debug("unable to read TAXII message, " + e.getMessage(), e);
+                respond(exchange, status(null, "BAD_MESSAGE", "unable to read the TAXII message"));
+                return;
+            }
+
+            if (!(message instanceof InboxMessage)) {
+                malformed.increment();
+                respond(exchange, status(messageId(message), "BAD_MESSAGE", "the inbox service only accepts inbox " +
+                        "messages"));
+                return;
+            }
+
+            InboxMessage inbox = (InboxMessage) message;
+            if (!running || !enqueue(new Queued(inbox, in.count))) {
+                rejected.increment();
+                respond(exchange, status(inbox.getMessageId(), "RETRY", "the inbox is busy").withStatusDetail(
+                        new StatusDetailType().withDetails(new StatusDetailDetailType()
+                                .withName("ESTIMATED_WAIT")
+                                .withContent(Integer.toString(retryWaitSeconds)))));
+                return;
+            }
+
+            received.increment();
+            respond(exchange, status(inbox.getMessageId(), "SUCCESS", null));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean enqueue(Queued queued) {
+        try {
+            if (!queuedBytes.reserve(queued.bytes, 0)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (!queue.offer(queued)) {
+            queuedBytes.release(queued.bytes);
+            return false;
+        }
+
+        return true;
+    }
+
+    private void tooLarge(HttpExchange exchange, long bytes) throws IOException {
+        oversized.increment();
+        log.warn("rejecting an inbox request of at least " + bytes + " bytes from " + exchange.getRemoteAddress() +
+                ", it's over the maximum of " + maxRequestBytes + " bytes");
+        // the rest of the body isn't read, so the connection can't be reused
+        exchange.getResponseHeaders().set(CONNECTION, "close");
+        exchange.sendResponseHeaders(413, -1);
+    }
+
+    private void badLength(HttpExchange exchange, String contentLength) throws IOException {
+        malformed.increment();
+        log.debug("rejecting an inbox request from " + exchange.getRemoteAddress() + " with a malformed " +
+                CONTENT_LENGTH + " of '" + contentLength + "'");
+        // the body's length is unknown, so the connection can't be reused
+        exchange.getResponseHeaders().set(CONNECTION, "close");
+        exchange.sendResponseHeaders(400, -1);
+    }
+
+    private void respond(HttpExchange exchange, StatusMessage status) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+        marshaller.marshal(status, new StreamResult(body));
+
+        URI target = URI.create((useTls ? "https" : "http") + "://localhost" + path);
+        TaxiiHeaders.taxii11(target).forEach((name, values) -> {
+            if (!ACCEPT.equals(name)) {
+                exchange.getResponseHeaders().put(name, values);
+            }
+        });
+
+        exchange.sendResponseHeaders(200, body.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+
+    private StatusMessage status(String inResponseTo, String statusType, String message) {
+        return new StatusMessage()
+                .withMessageId(randomUUID().toString())
+                .withInResponseTo(inResponseTo == null ? "0" : inResponseTo)
+                .withStatusType(statusType)
+                .withMessage(message);
+    }
+
+    private String messageId(Object message) {
+        try {
+            return (String) message.getClass().getMethod("getMessageId").invoke(message);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            Queued queued;
+            try {
+                queued = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (queued == STOP) {
+                return;
+            }
+
+            try {
+                deliver(queued.message);
+            } finally {
+                // an error thrown by a sink must not keep the bytes reserved forever
+                queuedBytes.release(queued.bytes);
+            }
+        }
+    }
+
+    private void deliver(InboxMessage message) {
+        List<ContentBlock> blocks = message.getContentBlocks();
+        for (int i = 0; i < blocks.size(); i++) {
+            ContentBlock block = blocks.get(i);
+            // release the block once it's delivered
+            blocks.set(i, null);
+            for (Sink sink : sinks) {
+                try {
+                    sink.receive(message, block);
+                } catch (RuntimeException e) {
+                    failed.increment();
+                    log.warn("unable to deliver inbox content block, " + e.getMessage(), e);
+                }
+            }
+            delivered.increment();
+        }
+    }
+
+    private void stopDispatchers() {
+        if (dispatchers == null) {
+            return;
+        }
+
+        for (Thread ignored : dispatchers) {
+            try {
+                queue.put(STOP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        for (Thread dispatcher : dispatchers) {
+            try {
+                dispatcher.join(SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dispatchers = null;
+    }
+
+    /**
+     * an inbox message waiting for the sinks, with the request bytes it holds in the queue
+     */
+    private static class Queued {
+        private final InboxMessage message;
+        private final long bytes;
+
+        Queued(InboxMessage message, long bytes) {
+            this.message = message;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * counts the bytes of a request body and fails the read past the maximum, so an oversized request without a
+     * content length isn't unmarshalled either
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long count;
+        private boolean exceeded;
+
+        LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                counted(read);
+            }
+            return read;
+        }
+
+        private void counted(long bytes) throws IOException {
+            count += bytes;
+            if (count > maxBytes) {
+                exceeded = true;
+                throw new IOException("request is over the maximum of " + maxBytes + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.springframework.web.client.RestClientException;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * thrown by the templates when a TAXII request timed out. The phase tells which timeout expired, see
+ * {@link TaxiiConnection#getTimeoutCount(Phase)} for the per phase counts
+ */
+@SuppressWarnings("unused")
+public class TaxiiTimeoutException extends RestClientException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the request phase that timed out
+     */
+    public enum Phase {
+        /**
+         * waiting for a pooled connection, see {@link TaxiiConnection#setConnectionRequestTimeoutMillis(int)}
+         */
+        POOL_LEASE,
+
+        /**
+         * opening the TCP connection, see {@link TaxiiConnection#setConnectTimeoutMillis(int)}
+         */
+        CONNECT,
+
+        /**
+         * the TLS handshake, see {@link TaxiiConnection#setTlsHandshakeTimeoutMillis(int)}
+         */
+        TLS_HANDSHAKE,
+
+        /**
+         * waiting for response data, see {@link TaxiiConnection#setSocketTimeoutMillis(int)}
+         */
+        READ,
+
+        /**
+         * the end-to-end deadline of a template call, see {@link Taxii11Template#setDeadlineMillis(long)}
+         */
+        DEADLINE
+    }
+
+    private final Phase phase;
+
+    public TaxiiTimeoutException(Phase phase, String msg, Throwable cause) {
+        super(msg, cause);
+        this.phase = phase;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @param e an error of a rest template request, a timeout is either an I/O error or a response that couldn't be
+     *          read
+     * @return the phase that timed out, or null when the error is not a timeout
+     */
+    static Phase phaseOf(Throwable e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectionPoolTimeoutException) {
+                return Phase.POOL_LEASE;
+            }
+            if (cause instanceof ConnectTimeoutException) {
+                return Phase.CONNECT;
+            }
+            if (cause instanceof TlsHandshakeTimeoutException) {
+                return Phase.TLS_HANDSHAKE;
+            }
+            if (cause instanceof SocketTimeoutException) {
+                return Phase.READ;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * a TLS handshake that took longer than the handshake timeout. It's not a <code>SocketTimeoutException</code>,
+     * the HTTP client would report that as a connect timeout
+     */
+    static class TlsHandshakeTimeoutException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        TlsHandshakeTimeoutException(String msg) {
+            super(msg);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Date;
+
+import static java.lang.Math.floorDiv;
+import static java.lang.Math.floorMod;
+import static javax.xml.datatype.DatatypeConstants.FIELD_UNDEFINED;
+
+/**
+ * <p>Converts TAXII timestamps between <code>Instant</code>, <code>Date</code> and <code>XMLGregorianCalendar</code>
+ * without going through <code>GregorianCalendar</code>. Conversions work on the calendar fields with plain epoch day
+ * arithmetic, and the <code>DatatypeFactory</code>, which is expensive to look up, is created once. The templates
+ * build their requests from <code>Instant</code>, their <code>Date</code> overloads convert first. Reading the timestamp label of tens of thousands of content blocks allocates one <code>Instant</code> per block, or
+ * nothing with {@link #toEpochMillis(XMLGregorianCalendar)}.</p>
+ * <p>Timestamps are written in UTC. Timestamps without a time zone are read as UTC.</p>
+ */
+@SuppressWarnings("unused")
+public final class TaxiiTimestamps {
+    private static final DatatypeFactory DATATYPE_FACTORY = createDatatypeFactory();
+
+    private static final int SECONDS_PER_DAY = 86400;
+
+    private TaxiiTimestamps() {
+    }
+
+    /**
+     * @param instant an instant, or null
+     * @return the instant as a UTC calendar, or null
+     */
+    public static XMLGregorianCalendar toXmlGregorianCalendar(Instant instant) {
+        if (instant == null) {
+            return null;
+        }
+
+        long seconds = instant.getEpochSecond();
+        int nanos = instant.getNano();
+        long epochDay = floorDiv(seconds, SECONDS_PER_DAY);
+        int secondOfDay = (int) floorMod(seconds, SECONDS_PER_DAY);
+
+        XMLGregorianCalendar calendar = DATATYPE_FACTORY.newXMLGregorianCalendar();
+        setDate(calendar, epochDay);
+        calendar.setTime(secondOfDay / 3600, secondOfDay / 60 % 60, secondOfDay % 60);
+        if (nanos % 1000000 == 0) {
+            calendar.setMillisecond(nanos / 1000000);
+        } else {
+            calendar.setFractionalSecond(BigDecimal.valueOf(nanos, 9));
+        }
+        calendar.setTimezone(0);
+        return calendar;
+    }
+
+    /**
+     * @param date a date, or null
+     * @return the date as a UTC calendar, or null
+     */
+    public static XMLGregorianCalendar toXmlGregorianCalendar(Date date) {
+        return date == null ? null : toXmlGregorianCalendar(date.toInstant());
+    }
+
+    /**
+     * @param date a date, or null
+     * @return the date's instant, or null
+     */
+    static Instant instant(Date date) {
+        return date == null ? null : date.toInstant();
+    }
+
+    /**
+     * @param calendar a calendar with at least a year, month and day, or null
+     * @return the calendar's instant, or null
+     */
+    public static Instant toInstant(XMLGregorianCalendar calendar) {
+        if (calendar == null) {
+            return null;
+        }
+
+        BigDecimal fraction = calendar.getFractionalSecond();
+        return Instant.ofEpochSecond(epochSecond(calendar),
+                fraction == null ? 0 : fraction.movePointRight(9).intValue());
+    }
+
+    /**
+     * @param calendar a calendar with at least a year, month and day
+     * @return the calendar's time in milliseconds since the epoch
+     */
+    public static long toEpochMillis(XMLGregorianCalendar calendar) {
+        int millisecond = calendar.getMillisecond();
+        return epochSecond(calendar) * 1000 + (millisecond == FIELD_UNDEFINED ? 0 : millisecond);
+    }
+
+    /**
+     * @param block a TAXII 1.1 content block
+     * @return the block's timestamp label, or null when it has none
+     */
+    public static Instant getTimestampLabel(org.mitre.taxii.messages.xml11.ContentBlock block) {
+        return toInstant(block.getTimestampLabel());
+    }
+
+    /**
+     * @param block a TAXII 1.0 content block
+     * @return the block's timestamp label, or null when it has none
+     */
+    public static Instant getTimestampLabel(org.mitre.taxii.messages.xml10.ContentBlock block) {
+        return toInstant(block.getTimestampLabel());
+    }
+
+    private static long epochSecond(XMLGregorianCalendar calendar) {
+        int year = calendar.getYear();
+        int month = calendar.getMonth();
+        int day = calendar.getDay();
+        if (year == FIELD_UNDEFINED || month == FIELD_UNDEFINED || day == FIELD_UNDEFINED) {
+            throw new IllegalArgumentException("not a date: " + calendar);
+        }
+
+        // a time zone, when present, is in minutes
+        int timezone = calendar.getTimezone();
+        return epochDay(year, month, day) * SECONDS_PER_DAY + defined(calendar.getHour()) * 3600 +
+                defined(calendar.getMinute()) * 60 + defined(calendar.getSecond()) -
+                (timezone == FIELD_UNDEFINED ? 0 : timezone * 60L);
+    }
+
+    private static int defined(int field) {
+        return field == FIELD_UNDEFINED ? 0 : field;
+    }
+
+    /**
+     * days since 1970-01-01 of a proleptic Gregorian date, see Howard Hinnant's <code>days_from_civil</code>
+     */
+    static long epochDay(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * the year, month and day of days since 1970-01-01, see Howard Hinnant's <code>civil_from_days</code>
+     */
+    private static int[] civil(long epochDay) {
+        long z = epochDay + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        return new int[]{(int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0)), month, day};
+    }
+
+    private static void setDate(XMLGregorianCalendar calendar, long epochDay) {
+        int[] date = civil(epochDay);
+        calendar.setYear(date[0]);
+        calendar.setMonth(date[1]);
+        calendar.setDay(date[2]);
+    }
+
+    private static DatatypeFactory createDatatypeFactory() {
+        try {
+            return DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new RuntimeException("unable to create datatype factory, " + e.getMessage(), e);
+        }
+    }
+}
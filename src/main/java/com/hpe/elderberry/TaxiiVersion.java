@@ -0,0 +1,71 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.springframework.http.HttpHeaders;
+
+import java.net.URI;
+
+import static org.mitre.taxii.Versions.VID_TAXII_SERVICES_10;
+import static org.mitre.taxii.Versions.VID_TAXII_SERVICES_11;
+import static org.mitre.taxii.Versions.VID_TAXII_XML_10;
+import static org.mitre.taxii.Versions.VID_TAXII_XML_11;
+
+/**
+ * the TAXII versions a server may speak, see {@link TaxiiClient}
+ */
+public enum TaxiiVersion {
+    TAXII_10(VID_TAXII_SERVICES_10, VID_TAXII_XML_10),
+    TAXII_11(VID_TAXII_SERVICES_11, VID_TAXII_XML_11);
+
+    private final String services;
+
+    private final String messageBinding;
+
+    TaxiiVersion(String services, String messageBinding) {
+        this.services = services;
+        this.messageBinding = messageBinding;
+    }
+
+    /**
+     * @return the services version ID, as sent in <code>X-TAXII-Services</code>
+     */
+    public String getServices() {
+        return services;
+    }
+
+    /**
+     * @return the XML message binding ID, as sent in <code>X-TAXII-Content-Type</code>
+     */
+    public String getMessageBinding() {
+        return messageBinding;
+    }
+
+    /**
+     * @param target the URI the request is sent to
+     * @return the read-only request headers of this version, see {@link TaxiiHeaders}
+     */
+    HttpHeaders headers(URI target) {
+        return this == TAXII_10 ? TaxiiHeaders.taxii10(target) : TaxiiHeaders.taxii11(target);
+    }
+
+    /**
+     * @param id a services version ID or an XML message binding ID, as found in TAXII headers
+     * @return the matching version, or null when the ID is null or unknown
+     */
+    public static TaxiiVersion fromId(String id) {
+        for (TaxiiVersion version : values()) {
+            if (version.services.equals(id) || version.messageBinding.equals(id)) {
+                return version;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.PollResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+import static com.hpe.elderberry.ContentBlockPipeline.DELIVER;
+import static com.hpe.elderberry.ContentBlockPipeline.PROCESS;
+import static java.util.stream.Collectors.toList;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ContentBlockPipelineTest {
+    @Test
+    public void deliversEachCollectionInOrder() {
+        Set<Thread> workers = ConcurrentHashMap.newKeySet();
+        Map<String, List<Integer>> delivered = new ConcurrentHashMap<>();
+        ContentBlockPipeline<Integer> pipeline = new ContentBlockPipeline<>(block -> {
+            workers.add(Thread.currentThread());
+            sleep(ThreadLocalRandom.current().nextInt(2));
+            return Integer.parseInt(block.getMessage());
+        }, (collection, number) -> delivered.computeIfAbsent(collection, c -> new ArrayList<>()).add(number));
+        pipeline.setParallelism(4);
+        pipeline.setSplitThreshold(2);
+        pipeline.setBatchSize(50);
+
+        try {
+            pipeline.submit("a", IntStream.range(0, 300).mapToObj(this::block)).join();
+            pipeline.submit("b", response(0, 100)).join();
+            pipeline.submit("b", response(100, 200)).join();
+
+            assertThat(delivered.get("a")).isEqualTo(IntStream.range(0, 300).boxed().collect(toList()));
+            assertThat(delivered.get("b")).isEqualTo(IntStream.range(0, 200).boxed().collect(toList()));
+            assertThat(workers.size()).isGreaterThan(1);
+            assertThat(pipeline.getStatistics().get(PROCESS).getBlocks()).isEqualTo(500);
+            assertThat(pipeline.getStatistics().get(DELIVER).getBlocks()).isEqualTo(500);
+            assertThat(pipeline.getStatistics().get(DELIVER).getThroughput()).isGreaterThan(0);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void skipsFailedBlocks() {
+        List<Integer> delivered = new CopyOnWriteArrayList<>();
+        ContentBlockPipeline<Integer> pipeline = new ContentBlockPipeline<>(block -> {
+            int number = Integer.parseInt(block.getMessage());
+            if (number % 10 == 0) {
+                throw new IllegalArgumentException("bad block " + number);
+            }
+            return number;
+        }, (collection, number) -> delivered.add(number));
+        pipeline.setOrdered(false);
+
+        try {
+            pipeline.submit("a", response(0, 100)).join();
+
+            assertThat(delivered).hasSize(90);
+            assertThat(pipeline.getStatistics().get(PROCESS).getFailures()).isEqualTo(10);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    private PollResponse response(int from, int to) {
+        return new PollResponse().withContentBlocks(IntStream.range(from, to).mapToObj(this::block).collect(toList()));
+    }
+
+    private ContentBlock block(int number) {
+        return new ContentBlock().withMessage(Integer.toString(number));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.ContentInstanceType;
+import org.mitre.taxii.messages.xml11.PollResponse;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.readAllBytes;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class ContentJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String text(ContentJournal.Entry entry) {
+        ByteBuffer payload = entry.getPayload();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Test
+    public void appendAndRead() throws Exception {
+        try (ContentJournal journal = new ContentJournal(folder.getRoot())) {
+            journal.append("a", 100, "first".getBytes(UTF_8));
+            journal.append("b", 150, "other".getBytes(UTF_8));
+            journal.append("a", 200, "second".getBytes(UTF_8));
+
+            List<ContentJournal.Entry> entries = journal.read("a", 0, 1000);
+            assertThat(entries).hasSize(2);
+            assertThat(text(entries.get(0))).isEqualTo("first");
+            assertThat(entries.get(0).getTimestamp()).isEqualTo(100);
+            assertThat(text(entries.get(1))).isEqualTo("second");
+
+            assertThat(journal.read("a", 100, 200)).hasSize(1);
+            assertThat(journal.read("c", 0, 1000)).isEmpty();
+            assertThat(journal.getCollections()).containsExactly("a", "b");
+        }
+    }
+
+    @Test
+    public void rollsSegmentsAndRecovers() throws Exception {
+        File directory = folder.newFolder("journal");
+        try (ContentJournal journal = new ContentJournal(directory, 16)) {
+            for (int i = 0; i < 10; i++) {
+                journal.append("a", i, ("block-" + i).getBytes(UTF_8));
+            }
+        }
+
+        assertThat(directory.list((dir, name) -> name.endsWith(".dat")).length).isGreaterThan(1);
+
+        try (ContentJournal journal = new ContentJournal(directory, 16)) {
+            journal.append("a", 10, "block-10".getBytes(UTF_8));
+
+            List<ContentJournal.Entry> entries = journal.read("a", -1, 100);
+            assertThat(entries).hasSize(11);
+            for (int i = 0; i <= 10; i++) {
+                assertThat(text(entries.get(i))).isEqualTo("block-" + i);
+            }
+        }
+    }
+
+    @Test
+    public void recoversCollectionNamesWithLineBreaks() throws Exception {
+        File directory = folder.newFolder("journal");
+        List<String> names = asList("a\nb", "c\\nd", "e\r\n", "\\", "plain");
+        try (ContentJournal journal = new ContentJournal(directory)) {
+            for (int i = 0; i < names.size(); i++) {
+                journal.append(names.get(i), i, names.get(i).getBytes(UTF_8));
+            }
+        }
+
+        try (ContentJournal journal = new ContentJournal(directory)) {
+            assertThat(journal.getCollections()).isEqualTo(names);
+            for (String name : names) {
+                List<ContentJournal.Entry> entries = journal.read(name, -1, 100);
+                assertThat(entries).hasSize(1);
+                assertThat(text(entries.get(0))).isEqualTo(name);
+            }
+        }
+    }
+
+    @Test
+    public void closeUnmapsSegments() throws Exception {
+        File maps = new File("/proc/self/maps");
+        assumeTrue(maps.canRead());
+
+        File directory = folder.newFolder("journal");
+        ContentJournal journal = new ContentJournal(directory, 16);
+        for (int i = 0; i < 4; i++) {
+            journal.append("a", i, ("block-" + i).getBytes(UTF_8));
+        }
+        assertThat(journal.read("a", -1, 100)).hasSize(4);
+        assertThat(new String(readAllBytes(maps.toPath()), UTF_8)).contains(directory.getCanonicalPath());
+
+        journal.close();
+        assertThat(new String(readAllBytes(maps.toPath()), UTF_8)).doesNotContain(directory.getCanonicalPath());
+        try {
+            journal.read("a", -1, 100);
+            fail("expected reading a closed journal to fail");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).contains("closed");
+        }
+        journal.close();
+    }
+
+    @Test
+    public void payloadIsReadOnly() throws Exception {
+        try (ContentJournal journal = new ContentJournal(folder.getRoot())) {
+            journal.append("a", 1, "content".getBytes(UTF_8));
+            assertThat(journal.read("a", 0, 1).get(0).getPayload().isReadOnly()).isTrue();
+        }
+    }
+
+    @Test
+    public void readsWhileAppending() throws Exception {
+        try (ContentJournal journal = new ContentJournal(folder.getRoot())) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    journal.append("a", i, ("entry-" + i).getBytes(UTF_8));
+                }
+            });
+            writer.start();
+
+            // entries appended during a read lie past the active segment's mapping and are remapped
+            while (writer.isAlive()) {
+                List<ContentJournal.Entry> entries = journal.read("a", -1, Long.MAX_VALUE);
+                for (int i = 0; i < entries.size(); i++) {
+                    assertThat(text(entries.get(i))).isEqualTo("entry-" + i);
+                }
+            }
+            writer.join();
+
+            assertThat(journal.read("a", -1, Long.MAX_VALUE)).hasSize(2000);
+        }
+    }
+
+    @Test
+    public void templatesSharingConnectionJournalTheirOwnPolls() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setCoalesceRequests(true);
+        CountDownLatch arrived = new CountDownLatch(2);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/poll", exchange -> {
+            while (exchange.getRequestBody().read() != -1) {
+                // drain the request, so the connection can be reused
+            }
+
+            // polls that coalesced would arrive once
+            arrived.countDown();
+            try {
+                arrived.await(2, SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            conn.getMarshaller().marshal(new PollResponse()
+                    .withMessageId("1")
+                    .withInResponseTo("1")
+                    .withCollectionName("collection")
+                    .withMore(false)
+                    .withContentBlocks(new ContentBlock()
+                            .withContentBinding(new ContentInstanceType().withBindingId("urn:stix:1"))),
+                    new StreamResult(body));
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        });
+        server.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (ContentJournal first = new ContentJournal(folder.newFolder("first"));
+             ContentJournal second = new ContentJournal(folder.newFolder("second"))) {
+            URL pollUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/poll");
+            conn.setDiscoveryUri(pollUrl.toURI());
+            List<Future<PollResponse>> polls = new ArrayList<>();
+            for (ContentJournal journal : asList(first, second)) {
+                Taxii11Template template = new Taxii11Template();
+                template.setTaxiiConnection(conn);
+                template.setContentJournal(journal);
+                polls.add(executor.submit(() -> template.poll(pollUrl, "collection", "", new Date(0), new Date(1000))));
+            }
+            for (Future<PollResponse> poll : polls) {
+                assertThat(poll.get(10, SECONDS).getContentBlocks()).hasSize(1);
+            }
+
+            assertThat(first.read("collection", Long.MIN_VALUE, Long.MAX_VALUE)).hasSize(1);
+            assertThat(second.read("collection", Long.MIN_VALUE, Long.MAX_VALUE)).hasSize(1);
+        } finally {
+            executor.shutdown();
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.AnyMixedContentType;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hpe.elderberry.IndicatorIndex.Type.ADDRESS;
+import static com.hpe.elderberry.IndicatorIndex.Type.DOMAIN;
+import static com.hpe.elderberry.IndicatorIndex.Type.HASH;
+import static com.hpe.elderberry.IndicatorIndex.Type.URL;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class IndicatorIndexTest {
+    private static final String STIX = "" +
+            "<stix:STIX_Package xmlns:stix=\"http://stix.mitre.org/stix-1\" " +
+            "xmlns:indicator=\"http://stix.mitre.org/Indicator-2\" " +
+            "xmlns:cybox=\"http://cybox.mitre.org/cybox-2\" " +
+            "xmlns:AddressObj=\"http://cybox.mitre.org/objects#AddressObject-2\" " +
+            "xmlns:DomainNameObj=\"http://cybox.mitre.org/objects#DomainNameObject-1\" " +
+            "xmlns:URIObj=\"http://cybox.mitre.org/objects#URIObject-2\" " +
+            "xmlns:FileObj=\"http://cybox.mitre.org/objects#FileObject-2\" " +
+            "xmlns:cyboxCommon=\"http://cybox.mitre.org/common-2\" " +
+            "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">" +
+            "<stix:Indicators><stix:Indicator xsi:type=\"indicator:IndicatorType\"><indicator:Observable>" +
+            "<cybox:Object><cybox:Properties xsi:type=\"AddressObj:AddressObjectType\" category=\"ipv4-addr\">" +
+            "<AddressObj:Address_Value condition=\"Equals\" apply_condition=\"ANY\">" +
+            "198.51.100.7##comma##203.0.113.0/24</AddressObj:Address_Value></cybox:Properties></cybox:Object>" +
+            "</indicator:Observable></stix:Indicator></stix:Indicators>" +
+            "<stix:Observables><cybox:Observable><cybox:Object>" +
+            "<cybox:Properties xsi:type=\"DomainNameObj:DomainNameObjectType\">" +
+            "<DomainNameObj:Value>Evil.Example.</DomainNameObj:Value></cybox:Properties></cybox:Object>" +
+            "</cybox:Observable><cybox:Observable><cybox:Object>" +
+            "<cybox:Properties xsi:type=\"URIObj:URIObjectType\" type=\"URL\">" +
+            "<URIObj:Value>http://Bad.Example/payload.exe</URIObj:Value></cybox:Properties></cybox:Object>" +
+            "</cybox:Observable><cybox:Observable><cybox:Object>" +
+            "<cybox:Properties xsi:type=\"FileObj:FileObjectType\"><FileObj:Hashes><cyboxCommon:Hash>" +
+            "<cyboxCommon:Type>MD5</cyboxCommon:Type>" +
+            "<cyboxCommon:Simple_Hash_Value>d41d8cd98f00b204e9800998ecf8427e</cyboxCommon:Simple_Hash_Value>" +
+            "</cyboxCommon:Hash></FileObj:Hashes></cybox:Properties></cybox:Object></cybox:Observable>" +
+            "<cybox:Observable><cybox:Object>" +
+            "<cybox:Properties xsi:type=\"AddressObj:AddressObjectType\" category=\"e-mail\">" +
+            "<AddressObj:Address_Value>phish@example.com</AddressObj:Address_Value></cybox:Properties>" +
+            "</cybox:Object></cybox:Observable></stix:Observables></stix:STIX_Package>";
+
+    @Test
+    public void indexesStixContent() throws Exception {
+        IndicatorIndex index = new IndicatorIndex();
+        index.add(new ContentBlock().withContent(new AnyMixedContentType().withContent(STIX)));
+
+        assertThat(index.matchesAddress("198.51.100.7")).isTrue();
+        assertThat(index.matchesAddress("198.51.100.8")).isFalse();
+        assertThat(index.matchesAddress("203.0.113.200")).isTrue();
+        assertThat(index.matchesAddress(InetAddress.getByName("::ffff:203.0.113.1"))).isTrue();
+        assertThat(index.matchesDomain("evil.example")).isTrue();
+        assertThat(index.matchesDomain("www.EVIL.example")).isTrue();
+        assertThat(index.matchesDomain("notevil.example")).isFalse();
+        assertThat(index.matchesUrl("https://bad.example/payload.exe#top")).isTrue();
+        assertThat(index.matchesUrl("http://bad.example/other.exe")).isFalse();
+        assertThat(index.matchesHash("D41D8CD98F00B204E9800998ECF8427E")).isTrue();
+        assertThat(index.getIndicatorCount(ADDRESS)).isEqualTo(2);
+        assertThat(index.getIndicatorCount(HASH)).isEqualTo(1);
+    }
+
+    @Test
+    public void matchesIpv6Blocks() {
+        IndicatorIndex index = new IndicatorIndex();
+        assertThat(index.add(ADDRESS, "2001:db8::/32")).isTrue();
+        assertThat(index.add(ADDRESS, "2001:db8:1::/48")).isFalse();
+        assertThat(index.add(ADDRESS, "fe80::1")).isTrue();
+        assertThat(index.add(ADDRESS, "not-an-address")).isFalse();
+        assertThat(index.add(ADDRESS, "10.0.0.0/33")).isFalse();
+
+        assertThat(index.matchesAddress("2001:db8:ffff::1")).isTrue();
+        assertThat(index.matchesAddress("2001:db9::1")).isFalse();
+        assertThat(index.matchesAddress("fe80::1")).isTrue();
+        assertThat(index.matchesAddress("fe80::2")).isFalse();
+        assertThat(index.matchesAddress("some.host.name")).isFalse();
+    }
+
+    @Test
+    public void readsWhileAdding() throws Exception {
+        IndicatorIndex index = new IndicatorIndex();
+        AtomicBoolean missed = new AtomicBoolean();
+        int count = 200000;
+
+        // the reader checks indicators the writer already added, they must never be missed
+        List<Thread> readers = new ArrayList<>();
+        AtomicInteger added = new AtomicInteger();
+        for (int r = 0; r < 2; r++) {
+            Thread reader = new Thread(() -> {
+                while (added.get() < count) {
+                    int known = added.get();
+                    if (known > 0 && !index.matchesDomain("host" + (known - 1) + ".example")) {
+                        missed.set(true);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (int i = 0; i < count; i++) {
+            index.add(DOMAIN, "host" + i + ".example");
+            index.add(URL, "http://host" + i + ".example/");
+            added.set(i + 1);
+        }
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertThat(missed.get()).isFalse();
+        assertThat(index.getIndicatorCount(DOMAIN)).isEqualTo(count);
+        assertThat(index.matchesUrl("HTTP://HOST42.example")).isTrue();
+    }
+
+    @Test
+    public void readsHashesAndBlocksWhileAdding() throws Exception {
+        IndicatorIndex index = new IndicatorIndex();
+        AtomicBoolean wrong = new AtomicBoolean();
+        int count = 50000;
+
+        // the readers check a hash and a block the writer already added, and a hash it never adds
+        List<Thread> readers = new ArrayList<>();
+        AtomicInteger added = new AtomicInteger();
+        for (int r = 0; r < 2; r++) {
+            Thread reader = new Thread(() -> {
+                while (added.get() < count) {
+                    int known = added.get() - 1;
+                    if (known >= 0 && (!index.matchesHash(sha256(known)) ||
+                            !index.matchesAddress("10." + (known >>> 8 & 0xff) + "." + (known & 0xff) + ".7") ||
+                            index.matchesHash(sha256(count + known)))) {
+                        wrong.set(true);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (int i = 0; i < count; i++) {
+            index.add(HASH, sha256(i));
+            index.add(ADDRESS, "10." + (i >>> 8 & 0xff) + "." + (i & 0xff) + ".0/24");
+            added.set(i + 1);
+        }
+
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertThat(wrong.get()).isFalse();
+        assertThat(index.getIndicatorCount(HASH)).isEqualTo(count);
+    }
+
+    private static String sha256(int n) {
+        long bits = (n + 1) * 0x9e3779b97f4a7c15L;
+        return String.format("%016x%016x%016x%016x", bits, ~bits, bits * 3, bits * 5);
+    }
+}
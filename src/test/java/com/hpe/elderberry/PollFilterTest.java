@@ -0,0 +1,60 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.mitre.taxii.messages.xml11.ContentBindingIDType;
+import org.mitre.taxii.messages.xml11.PollParametersType;
+import org.mitre.taxii.query.DefaultQuery;
+
+import static com.hpe.elderberry.PollFilter.DEFAULT_QUERY_FORMAT;
+import static com.hpe.elderberry.PollFilter.STIX_111;
+import static com.hpe.elderberry.PollFilter.STIX_12;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mitre.taxii.messages.xml11.ResponseTypeEnum.COUNT_ONLY;
+import static org.mitre.taxii.messages.xml11.ResponseTypeEnum.FULL;
+
+public class PollFilterTest {
+    @Test
+    public void pollParameters() {
+        DefaultQuery query = new DefaultQuery().withTargetingExpressionId(STIX_12);
+        PollParametersType parameters = new PollFilter()
+                .withContentBinding(STIX_12)
+                .withContentBinding(STIX_111)
+                .withContentBinding(STIX_12)
+                .withDefaultQuery(query)
+                .toPollParameters(FULL);
+
+        assertThat(parameters.getResponseType()).isEqualTo(FULL);
+        assertThat(parameters.getContentBindings()).onProperty("bindingId").containsExactly(STIX_12, STIX_111);
+        assertThat(parameters.getQuery().getFormatId()).isEqualTo(DEFAULT_QUERY_FORMAT);
+        assertThat(parameters.getQuery().getAny()).isSameAs(query);
+    }
+
+    @Test
+    public void emptyFilter() {
+        PollParametersType parameters = new PollFilter().toPollParameters(COUNT_ONLY);
+
+        assertThat(parameters.getResponseType()).isEqualTo(COUNT_ONLY);
+        assertThat(parameters.getContentBindings()).isEmpty();
+        assertThat(parameters.getQuery()).isNull();
+    }
+
+    @Test
+    public void supportedBy() {
+        CollectionRecordType stix12 = new CollectionRecordType()
+                .withContentBindings(new ContentBindingIDType().withBindingId(STIX_12));
+
+        assertThat(new PollFilter().withContentBinding(STIX_12).isSupportedBy(stix12)).isTrue();
+        assertThat(new PollFilter().withContentBinding(STIX_111).isSupportedBy(stix12)).isFalse();
+        assertThat(new PollFilter().isSupportedBy(stix12)).isTrue();
+        assertThat(new PollFilter().withContentBinding(STIX_111).isSupportedBy(new CollectionRecordType())).isTrue();
+    }
+}
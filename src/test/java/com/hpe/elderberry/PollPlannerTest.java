@@ -0,0 +1,215 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.ContentInstanceType;
+import org.mitre.taxii.messages.xml11.PollFulfillment;
+import org.mitre.taxii.messages.xml11.PollRequest;
+import org.mitre.taxii.messages.xml11.PollResponse;
+import org.mitre.taxii.messages.xml11.RecordCountType;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static com.hpe.elderberry.PollPlan.Strategy.DEFER;
+import static com.hpe.elderberry.PollPlan.Strategy.IN_MEMORY;
+import static com.hpe.elderberry.PollPlan.Strategy.STREAMING;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PollPlannerTest {
+    private static final long HOUR = 3600000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * counts one content block per second in the first hour and none afterwards
+     */
+    private static class CountingTemplate extends Taxii11Template {
+        private int counts;
+
+        @Override
+        public RecordCountType count(URL pollUrl, String collectionName, Date exclusiveBegin, Date inclusiveEnd) {
+            counts++;
+            long begin = Math.min(exclusiveBegin.getTime(), HOUR);
+            long end = Math.min(inclusiveEnd.getTime(), HOUR);
+            return new RecordCountType().withValue(BigInteger.valueOf((end - begin) / 1000)).withPartialCount(false);
+        }
+    }
+
+    private static PollPlanner planner(Taxii11Template template) {
+        PollPlanner planner = new PollPlanner();
+        planner.setTemplate(template);
+        planner.setStreamingThreshold(1000);
+        planner.setMaxWindowCount(1000);
+        return planner;
+    }
+
+    @Test
+    public void smallPollInMemory() throws Exception {
+        CountingTemplate template = new CountingTemplate();
+        PollPlan plan = planner(template).plan(new URL("http://localhost/poll"), "c", new Date(0), new Date(600000));
+
+        assertThat(plan.getStrategy()).isEqualTo(IN_MEMORY);
+        assertThat(plan.getWindows()).hasSize(1);
+        assertThat(plan.getEstimatedCount()).isEqualTo(600);
+        assertThat(template.counts).isEqualTo(1);
+    }
+
+    @Test
+    public void splitsLargeWindows() throws Exception {
+        CountingTemplate template = new CountingTemplate();
+        PollPlan plan = planner(template).plan(new URL("http://localhost/poll"), "c", new Date(0), new Date(2 * HOUR));
+
+        assertThat(plan.getStrategy()).isEqualTo(IN_MEMORY);
+        assertThat(plan.getEstimatedCount()).isEqualTo(3600);
+
+        long count = 0;
+        long end = 0;
+        for (PollPlan.Window window : plan.getWindows()) {
+            assertThat(window.getCount()).isLessThanOrEqualTo(1000);
+            assertThat(window.getExclusiveBegin().getTime()).isEqualTo(end);
+            end = window.getInclusiveEnd().getTime();
+            count += window.getCount();
+        }
+        assertThat(end).isEqualTo(2 * HOUR);
+        assertThat(count).isEqualTo(3600);
+
+        // exact counts need a single probe per split
+        assertThat(template.counts).isLessThan(plan.getWindows().size() * 2);
+    }
+
+    @Test
+    public void streamsWhenWindowsCantBeSplit() throws Exception {
+        PollPlanner planner = planner(new CountingTemplate());
+        planner.setMinWindowMillis(HOUR);
+
+        PollPlan plan = planner.plan(new URL("http://localhost/poll"), "c", new Date(0), new Date(HOUR));
+        assertThat(plan.getStrategy()).isEqualTo(STREAMING);
+        assertThat(plan.getWindows()).hasSize(1);
+    }
+
+    @Test
+    public void defersHugePolls() throws Exception {
+        PollPlanner planner = planner(new CountingTemplate());
+        planner.setDeferThreshold(100);
+
+        assertThat(planner.plan(new URL("http://localhost/poll"), "c", new Date(0), new Date(HOUR)).getStrategy())
+                .isEqualTo(DEFER);
+    }
+
+    @Test
+    public void streamsWhenCountFails() throws Exception {
+        PollPlanner planner = planner(new Taxii11Template() {
+            @Override
+            public RecordCountType count(URL pollUrl, String collectionName, Date exclusiveBegin, Date inclusiveEnd) {
+                return null;
+            }
+        });
+
+        PollPlan plan = planner.plan(new URL("http://localhost/poll"), "c", new Date(0), new Date(HOUR));
+        assertThat(plan.getStrategy()).isEqualTo(STREAMING);
+        assertThat(plan.getEstimatedCount()).isEqualTo(-1);
+    }
+
+    @Test
+    public void executesAllResultParts() throws Exception {
+        CountingTemplate template = new CountingTemplate() {
+            @Override
+            protected PollResponse send(URI uri, PollRequest pollRequest) {
+                return new PollResponse()
+                        .withMore(true)
+                        .withResultId("result")
+                        .withResultPartNumber(BigInteger.ONE)
+                        .withContentBlocks(new ContentBlock(), new ContentBlock());
+            }
+
+            @Override
+            protected PollResponse send(URI uri, PollFulfillment fulfillment) {
+                return new PollResponse()
+                        .withMore(false)
+                        .withResultId("result")
+                        .withResultPartNumber(fulfillment.getResultPartNumber())
+                        .withContentBlocks(new ContentBlock());
+            }
+        };
+        PollPlanner planner = planner(template);
+        planner.setMinWindowMillis(HOUR);
+
+        PollPlan inMemory = planner.plan(new URL("http://localhost/poll"), "c", new Date(0), new Date(600000));
+        PollPlan streaming = planner.plan(new URL("http://localhost/poll"), "c", new Date(0), new Date(HOUR));
+        assertThat(inMemory.getStrategy()).isEqualTo(IN_MEMORY);
+        assertThat(streaming.getStrategy()).isEqualTo(STREAMING);
+
+        for (PollPlan plan : new PollPlan[]{inMemory, streaming}) {
+            List<ContentBlock> consumed = new ArrayList<>();
+            assertThat(planner.execute(plan, null, consumed::add)).isEqualTo(3);
+            assertThat(consumed).hasSize(3);
+        }
+    }
+
+    @Test
+    public void countIsNotJournaled() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setDiscoveryUri(new URI("http://127.0.0.1/taxii"));
+
+        // a server that ignores COUNT_ONLY and always returns content
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/poll", exchange -> {
+            while (exchange.getRequestBody().read() != -1) {
+                // drain the request, so the connection can be reused
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            conn.getMarshaller().marshal(new PollResponse()
+                    .withMessageId("1")
+                    .withInResponseTo("1")
+                    .withCollectionName("c")
+                    .withMore(false)
+                    .withContentBlocks(new ContentBlock()
+                            .withContentBinding(new ContentInstanceType().withBindingId("urn:stix:1"))),
+                    new StreamResult(body));
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        });
+        server.start();
+
+        try (ContentJournal journal = new ContentJournal(folder.getRoot())) {
+            Taxii11Template template = new Taxii11Template();
+            template.setTaxiiConnection(conn);
+            template.setContentJournal(journal);
+            URL pollUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/poll");
+
+            assertThat(template.count(pollUrl, "c", new Date(0), new Date()).getValue()).isEqualTo(BigInteger.ONE);
+            assertThat(journal.read("c", Long.MIN_VALUE, Long.MAX_VALUE)).isEmpty();
+
+            template.poll(pollUrl, "c", "", new Date(0), new Date());
+            assertThat(journal.read("c", Long.MIN_VALUE, Long.MAX_VALUE)).hasSize(1);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.ContentInstanceType;
+import org.mitre.taxii.messages.xml11.PollResponse;
+import org.mitre.taxii.messages.xml11.PollingServiceInstanceType;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class PollingEndpointSelectorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String A = "http://a.example.com/poll";
+    private static final String B = "http://b.example.com/poll";
+    private static final List<String> ENDPOINTS = asList(A, B);
+
+    @Test
+    public void prefersFasterEndpoint() {
+        PollingEndpointSelector selector = new PollingEndpointSelector();
+        selector.record(A, MILLISECONDS.toNanos(200), true);
+        selector.record(B, MILLISECONDS.toNanos(20), true);
+
+        assertThat(selector.order(ENDPOINTS)).containsExactly(B, A);
+        assertThat(selector.getLatencyMillis(B)).isEqualTo(20.0);
+    }
+
+    @Test
+    public void failsOverAndEjectsFailingEndpoint() {
+        PollingEndpointSelector selector = new PollingEndpointSelector();
+        selector.setAlpha(0.6);
+        List<String> called = new CopyOnWriteArrayList<>();
+
+        String result = selector.call(ENDPOINTS, endpoint -> {
+            called.add(endpoint.toString());
+            if (endpoint.getHost().startsWith("a")) {
+                throw new IOException("connection refused");
+            }
+            return "polled";
+        });
+
+        assertThat(result).isEqualTo("polled");
+        assertThat(called).containsExactly(A, B);
+        assertThat(selector.isHealthy(A)).isFalse();
+        assertThat(selector.order(ENDPOINTS)).containsExactly(B, A);
+    }
+
+    @Test
+    public void throwsLastFailureWhenAllEndpointsFail() {
+        PollingEndpointSelector selector = new PollingEndpointSelector();
+        try {
+            selector.call(ENDPOINTS, endpoint -> {
+                throw new IOException(endpoint.getHost() + " is down");
+            });
+            fail("expected a failure");
+        } catch (RuntimeException e) {
+            assertThat(e.getCause().getMessage()).isEqualTo("b.example.com is down");
+        }
+    }
+
+    @Test
+    public void hedgesSlowCall() {
+        PollingEndpointSelector selector = new PollingEndpointSelector();
+        selector.setHedgeDelayMillis(50);
+
+        String result = selector.call(ENDPOINTS, endpoint -> {
+            if (endpoint.getHost().startsWith("a")) {
+                Thread.sleep(5000);
+            }
+            return endpoint.getHost();
+        });
+
+        assertThat(result).isEqualTo("b.example.com");
+        assertThat(selector.getHedgedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void stopsWaitingForHedgedCallsAtTheDeadline() {
+        PollingEndpointSelector selector = new PollingEndpointSelector();
+        selector.setHedgeDelayMillis(50);
+
+        long start = System.nanoTime();
+        try {
+            selector.call(ENDPOINTS, endpoint -> {
+                Thread.sleep(5000);
+                return endpoint.getHost();
+            }, new TaxiiDeadline(200));
+            fail("expected a timeout");
+        } catch (TaxiiTimeoutException e) {
+            assertThat(e.getPhase()).isEqualTo(TaxiiTimeoutException.Phase.DEADLINE);
+        }
+
+        assertThat(NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(2000);
+        assertThat(selector.getHedgedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void journalsOnlyWinningHedgedPoll() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        CountDownLatch slowDone = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(500);
+                respond(conn, exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                slowDone.countDown();
+            }
+        });
+        server.createContext("/fast", exchange -> respond(conn, exchange));
+        server.start();
+
+        try (ContentJournal journal = new ContentJournal(folder.getRoot())) {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            conn.setDiscoveryUri(new URI(base + "/discovery"));
+            PollingEndpointSelector selector = new PollingEndpointSelector();
+            selector.setHedgeDelayMillis(50);
+            Taxii11Template template = new Taxii11Template();
+            template.setTaxiiConnection(conn);
+            template.setContentJournal(journal);
+            template.setEndpointSelector(selector);
+
+            PollResponse response = template.poll(new CollectionRecordType()
+                    .withCollectionName("collection")
+                    .withPollingServices(new PollingServiceInstanceType().withAddress(base + "/slow"),
+                            new PollingServiceInstanceType().withAddress(base + "/fast")), "", new Date(0), new Date());
+
+            assertThat(response.getContentBlocks()).hasSize(2);
+            assertThat(selector.getHedgedCount()).isEqualTo(1);
+            // the losing poll completes in the background
+            assertThat(slowDone.await(5, SECONDS)).isTrue();
+            Thread.sleep(200);
+            assertThat(journal.read("collection", Long.MIN_VALUE, Long.MAX_VALUE)).hasSize(2);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void respond(TaxiiConnection conn, HttpExchange exchange) throws IOException {
+        while (exchange.getRequestBody().read() != -1) {
+            // drain the request, so the connection can be reused
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        conn.getMarshaller().marshal(new PollResponse()
+                .withMessageId("1")
+                .withInResponseTo("1")
+                .withCollectionName("collection")
+                .withMore(false)
+                .withContentBlocks(
+                        new ContentBlock().withContentBinding(new ContentInstanceType().withBindingId("urn:stix:1")),
+                        new ContentBlock().withContentBinding(new ContentInstanceType().withBindingId("urn:stix:2"))),
+                new StreamResult(body));
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, body.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+}
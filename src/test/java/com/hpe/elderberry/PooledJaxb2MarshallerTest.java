@@ -0,0 +1,58 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.ContentInstanceType;
+import org.springframework.oxm.UnmarshallingFailureException;
+
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.xml.bind.JAXBIntrospector.getValue;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class PooledJaxb2MarshallerTest {
+    private final PooledJaxb2Marshaller marshaller = (PooledJaxb2Marshaller) TaxiiConnection.createDefaultMarshaller();
+
+    @Test
+    public void reusesUnmarshallers() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        marshaller.marshal(new ContentBlock().withContentBinding(new ContentInstanceType().withBindingId("urn:stix.mitre.org:xml:1.2")),
+                new StreamResult(out));
+
+        for (int i = 0; i < 10; i++) {
+            ContentBlock block = (ContentBlock) getValue(marshaller.unmarshal(
+                    new StreamSource(new ByteArrayInputStream(out.toByteArray()))));
+            assertThat(block.getContentBinding().getBindingId()).isEqualTo("urn:stix.mitre.org:xml:1.2");
+        }
+
+        assertThat(marshaller.getPooledUnmarshallerCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectsExternalEntities() {
+        String xml = "<?xml version=\"1.0\"?><!DOCTYPE x [<!ENTITY e SYSTEM \"file:///etc/passwd\">]>" +
+                "<Content_Block xmlns=\"http://taxii.mitre.org/messages/taxii_xml_binding-1.1\"><message>&e;</message>" +
+                "</Content_Block>";
+
+        try {
+            ContentBlock block = (ContentBlock) getValue(marshaller.unmarshal(
+                    new StreamSource(new ByteArrayInputStream(xml.getBytes(UTF_8)))));
+            assertThat(block.getMessage()).doesNotContain("root:");
+        } catch (UnmarshallingFailureException e) {
+            // rejecting the document is fine too
+        }
+    }
+}
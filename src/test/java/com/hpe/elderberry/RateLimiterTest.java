@@ -0,0 +1,173 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.StatusMessage;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hpe.elderberry.TaxiiTimeoutException.Phase.DEADLINE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class RateLimiterTest {
+    private static final long SECOND = SECONDS.toNanos(1);
+
+    @Test
+    public void burstThenInterval() {
+        // 60 requests per minute, burst of 3
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(SECOND, 2 * SECOND);
+
+        assertThat(bucket.reserve(0)).isZero();
+        assertThat(bucket.reserve(0)).isZero();
+        assertThat(bucket.reserve(0)).isZero();
+        assertThat(bucket.reserve(0)).isEqualTo(SECOND);
+        assertThat(bucket.reserve(0)).isEqualTo(2 * SECOND);
+
+        // after an idle period the burst is available again
+        assertThat(bucket.reserve(100 * SECOND)).isZero();
+        assertThat(bucket.reserve(100 * SECOND)).isZero();
+        assertThat(bucket.reserve(100 * SECOND)).isZero();
+        assertThat(bucket.reserve(100 * SECOND)).isEqualTo(SECOND);
+    }
+
+    @Test
+    public void penalty() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(SECOND, 2 * SECOND);
+
+        bucket.penalize(0, 30 * SECOND);
+        assertThat(bucket.reserve(0)).isEqualTo(30 * SECOND);
+        assertThat(bucket.reserve(30 * SECOND)).isEqualTo(SECOND);
+
+        // a shorter penalty doesn't shorten the wait
+        bucket.penalize(0, SECOND);
+        assertThat(bucket.reserve(30 * SECOND)).isEqualTo(2 * SECOND);
+    }
+
+    @Test
+    public void waitPastDeadlineReservesNothing() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(SECOND, 0);
+
+        assertThat(bucket.reserve(0, SECOND)).isZero();
+        assertThat(bucket.reserve(0, SECOND)).isEqualTo(-1);
+        assertThat(bucket.reserve(0, 2 * SECOND)).isEqualTo(SECOND);
+    }
+
+    @Test
+    public void asyncPermits() throws Exception {
+        RateLimiter limiter = new RateLimiter(600, 1, 1000);
+
+        assertThat(limiter.acquireAsync("taxii.example.com").isDone()).isTrue();
+        CompletableFuture<Void> second = limiter.acquireAsync("taxii.example.com");
+        assertThat(second.isDone()).isFalse();
+        assertThat(limiter.acquireAsync("other.example.com").isDone()).isTrue();
+
+        second.get(5, SECONDS);
+    }
+
+    @Test
+    public void asyncPermitIsNotCountedTwice() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1, 1000);
+        limiter.acquireAsync("taxii.example.com").get(5, SECONDS);
+
+        long start = System.nanoTime();
+        RateLimiter.acquired("taxii.example.com", () -> {
+            try {
+                limiter.acquire("taxii.example.com");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+
+        assertThat(System.nanoTime() - start).isLessThan(SECOND);
+    }
+
+    @Test
+    public void deadlineEndsWait() {
+        RateLimiter limiter = new RateLimiter(1, 1, 1000);
+        List<TaxiiTimeoutException.Phase> timeouts = new ArrayList<>();
+
+        long start = System.nanoTime();
+        try {
+            new TaxiiDeadline(1000).run(timeouts::add, () -> {
+                try {
+                    limiter.acquire("taxii.example.com");
+                    // the next request is allowed in a minute, after the deadline
+                    limiter.acquire("taxii.example.com");
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return null;
+            });
+            fail("the rate limit wait should have timed out");
+        } catch (TaxiiTimeoutException e) {
+            assertThat(e.getPhase()).isEqualTo(DEADLINE);
+        }
+
+        assertThat(System.nanoTime() - start).isLessThan(SECOND);
+        assertThat(timeouts).containsExactly(DEADLINE);
+    }
+
+    @Test
+    public void retryStatusPenalizesHostWithoutPollingAgain() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setRequestsPerMinute(6000);
+        conn.setRequestBurst(10);
+        conn.setRetryPenaltyMillis(60000);
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/poll", exchange -> {
+            requests.incrementAndGet();
+            while (exchange.getRequestBody().read() != -1) {
+                // drain the request, so the connection can be reused
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            conn.getMarshaller().marshal(new StatusMessage()
+                    .withMessageId("1")
+                    .withInResponseTo("1")
+                    .withStatusType("RETRY"), new StreamResult(body));
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        });
+        server.start();
+
+        try {
+            URL pollUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/poll");
+            conn.setDiscoveryUri(pollUrl.toURI());
+            Taxii11Template template = new Taxii11Template();
+            template.setTaxiiConnection(conn);
+
+            assertThat(template.poll(pollUrl, "collection", "", new Date(0), new Date())).isNull();
+
+            // the status message is read from the poll's response, the poll isn't sent again to retrieve it
+            assertThat(requests.get()).isEqualTo(1);
+            assertThat(conn.getRateLimiter().acquireAsync("127.0.0.1").isDone()).isFalse();
+        } finally {
+            server.stop(0);
+        }
+    }
+}
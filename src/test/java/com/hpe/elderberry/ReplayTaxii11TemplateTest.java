@@ -0,0 +1,188 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.ContentInstanceType;
+import org.mitre.taxii.messages.xml11.PollResponse;
+import org.mitre.taxii.messages.xml11.PollingServiceInstanceType;
+import org.springframework.oxm.jaxb.Jaxb2Marshaller;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ReplayTaxii11TemplateTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Jaxb2Marshaller marshaller = TaxiiConnection.createDefaultMarshaller();
+
+    private void append(ContentJournal journal, String collection, long timestamp, String binding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        marshaller.marshal(new ContentBlock().withContentBinding(new ContentInstanceType().withBindingId(binding)),
+                new StreamResult(out));
+        journal.append(collection, timestamp, out.toByteArray());
+    }
+
+    private ReplayTaxii11Template template(ContentJournal journal) {
+        JournalReplayer replayer = new JournalReplayer();
+        replayer.setContentJournal(journal);
+        replayer.setMarshaller(marshaller);
+
+        ReplayTaxii11Template template = new ReplayTaxii11Template();
+        template.setReplayer(replayer);
+        return template;
+    }
+
+    @Test
+    public void pollFromJournal() throws Exception {
+        try (ContentJournal journal = new ContentJournal(folder.getRoot())) {
+            append(journal, "system.Default", 1000, "urn:stix.mitre.org:xml:1.1.1");
+            append(journal, "system.Default", 2000, "urn:stix.mitre.org:xml:1.2");
+            append(journal, "other", 1500, "urn:stix.mitre.org:xml:1.2");
+
+            PollResponse response = template(journal).poll("system.Default", new Date(0), new Date(5000));
+            assertThat(response.getCollectionName()).isEqualTo("system.Default");
+            assertThat(response.getContentBlocks())
+                    .onProperty("contentBinding.bindingId")
+                    .containsExactly("urn:stix.mitre.org:xml:1.1.1", "urn:stix.mitre.org:xml:1.2");
+
+            assertThat(template(journal).poll("system.Default", new Date(1000), new Date(5000)).getContentBlocks())
+                    .hasSize(1);
+        }
+    }
+
+    @Test
+    public void neverConnectsToServer() throws Exception {
+        AtomicInteger connections = new AtomicInteger();
+        try (ContentJournal journal = new ContentJournal(folder.getRoot());
+             ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket ignored = server.accept()) {
+                        connections.incrementAndGet();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            append(journal, "system.Default", 1000, "urn:stix.mitre.org:xml:1.1.1");
+            append(journal, "system.Default", 2000, "urn:stix.mitre.org:xml:1.2");
+
+            String address = "http://127.0.0.1:" + server.getLocalPort() + "/taxii/poll";
+            TaxiiConnection conn = new TaxiiConnection();
+            conn.setDiscoveryUri(new URI(address));
+            ReplayTaxii11Template template = template(journal);
+            template.setTaxiiConnection(conn);
+
+            URL pollUrl = new URL(address);
+            CollectionRecordType collection = new CollectionRecordType()
+                    .withCollectionName("system.Default")
+                    .withPollingServices(new PollingServiceInstanceType().withAddress(address));
+            PollFilter stix12 = new PollFilter().withContentBinding("urn:stix.mitre.org:xml:1.2");
+            Date begin = new Date(0);
+            Date end = new Date(5000);
+
+            assertThat(template.poll(pollUrl, "system.Default", (String) null, begin, end).getContentBlocks()).hasSize(2);
+            assertThat(template.poll(pollUrl, "system.Default", stix12, begin, end).getContentBlocks()).hasSize(1);
+            assertThat(template.poll(collection, "", begin, end).getContentBlocks()).hasSize(2);
+            assertThat(template.poll(collection, stix12, begin, end).getContentBlocks()).hasSize(1);
+            assertThat(template.pollAll(singletonList(collection), null, begin, end).get("system.Default")
+                    .getContentBlocks()).hasSize(2);
+            assertThat(template.count(pollUrl, "system.Default", begin, end).getValue()).isEqualTo(BigInteger.valueOf(2));
+            assertThat(template.count(pollUrl, "system.Default", stix12, begin, end).getValue())
+                    .isEqualTo(BigInteger.ONE);
+            assertThat(template.fulfill(pollUrl, "system.Default", "result", BigInteger.valueOf(2)).getContentBlocks())
+                    .isEmpty();
+            assertThat(template.pollStream(pollUrl, "system.Default", (String) null, begin, end).collect(toList()))
+                    .hasSize(2);
+            assertThat(template.pollStream(pollUrl, "system.Default", stix12, begin, end).collect(toList())).hasSize(1);
+            assertThat(template.pollStream(collection, null, begin, end).collect(toList())).hasSize(2);
+        }
+
+        assertThat(connections.get()).isZero();
+    }
+
+    @Test
+    public void replayAllCollections() throws Exception {
+        try (ContentJournal journal = new ContentJournal(folder.getRoot())) {
+            for (int i = 0; i < 10; i++) {
+                append(journal, "collection-" + (i % 3), i + 1, "urn:stix.mitre.org:xml:1.2");
+            }
+
+            List<PollResponse> responses = new CopyOnWriteArrayList<>();
+            template(journal).replayAll(asList("collection-0", "collection-1", "collection-2"), new Date(0),
+                    new Date(100), responses::add);
+
+            assertThat(responses).hasSize(3);
+            int blocks = 0;
+            for (PollResponse response : responses) {
+                blocks += response.getContentBlocks().size();
+            }
+            assertThat(blocks).isEqualTo(10);
+        }
+    }
+
+    @Test
+    public void readsConcurrentlyWithDefaultMarshaller() throws Exception {
+        try (ContentJournal journal = new ContentJournal(folder.getRoot())) {
+            append(journal, "collection", 1, "urn:stix.mitre.org:xml:1.2");
+
+            JournalReplayer replayer = new JournalReplayer();
+            replayer.setContentJournal(journal);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<List<ContentBlock>>> reads = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    reads.add(executor.submit(() -> {
+                        start.await();
+                        return replayer.read("collection", 0, 100, ContentBlock.class);
+                    }));
+                }
+                start.countDown();
+
+                for (Future<List<ContentBlock>> read : reads) {
+                    assertThat(read.get(30, SECONDS)).hasSize(1);
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import static java.lang.System.currentTimeMillis;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.springframework.http.HttpMethod.POST;
+
+public class ResponseSizeGuardTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+
+    private String base;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // 10KB with a content length
+        server.createContext("/sized", exchange -> {
+            exchange.sendResponseHeaders(200, 10240);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(new byte[10240]);
+            }
+        });
+        // a chunked body that would go on for 100MB
+        server.createContext("/endless", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 1600; i++) {
+                    out.write(new byte[65536]);
+                }
+            } catch (Exception e) {
+                // the client aborted
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void spillsLargeResponse() throws Exception {
+        TaxiiConnection conn = connection();
+        conn.setResponseSpillThresholdBytes(1024);
+        File spillDirectory = folder.newFolder();
+        conn.getResponseSizeGuard().setTempDirectory(spillDirectory);
+
+        int length = conn.getRestTemplate().execute(new URI(base + "/sized"), POST, null,
+                response -> {
+                    // the body is read from the spill file
+                    assertThat(spillDirectory.list()).hasSize(1);
+                    return StreamUtils.copyToByteArray(response.getBody()).length;
+                });
+
+        assertThat(length).isEqualTo(10240);
+        assertThat(conn.getResponseSizeGuard().getSpilledCount()).isEqualTo(1);
+        assertThat(spillDirectory.list()).isEmpty();
+        assertThat(ResponseBudget.global().getInFlightBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void abortsOversizedResponse() throws Exception {
+        TaxiiConnection conn = connection();
+        conn.setMaxResponseBytes(1024 * 1024);
+
+        long start = currentTimeMillis();
+        try {
+            conn.getRestTemplate().execute(new URI(base + "/endless"), POST, null,
+                    response -> StreamUtils.copyToByteArray(response.getBody()).length);
+            fail("expected the response to be aborted");
+        } catch (ResourceAccessException e) {
+            assertThat(e.getCause()).isInstanceOf(ResponseSizeGuard.ResponseTooLargeException.class);
+        }
+
+        assertThat(currentTimeMillis() - start).isLessThan(5000);
+        assertThat(conn.getResponseSizeGuard().getAbortedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void guardHasFiniteMaximumByDefault() throws Exception {
+        TaxiiConnection conn = connection();
+        conn.setResponseSpillThresholdBytes(1024);
+        assertThat(conn.getResponseSizeGuard().getMaxResponseBytes())
+                .isEqualTo(ResponseSizeGuard.DEFAULT_MAX_RESPONSE_BYTES);
+
+        TaxiiConnection unlimited = connection();
+        unlimited.setResponseSpillThresholdBytes(1024);
+        unlimited.setMaxResponseBytes(-1);
+        assertThat(unlimited.getResponseSizeGuard().getMaxResponseBytes()).isEqualTo(-1);
+
+        assertThat(connection().getResponseSizeGuard()).isNull();
+    }
+
+    @Test
+    public void rejectsResponseOverBudget() throws Exception {
+        TaxiiConnection conn = connection();
+        conn.setResponseBudgetBytes(4096);
+
+        try {
+            conn.getRestTemplate().execute(new URI(base + "/sized"), POST, null, response -> null);
+            fail("expected the response to be rejected");
+        } catch (ResourceAccessException e) {
+            assertThat(e.getCause()).isInstanceOf(ResponseSizeGuard.ResponseTooLargeException.class);
+        }
+
+        assertThat(conn.getResponseSizeGuard().getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void budgetWaitsForRelease() throws Exception {
+        ResponseBudget parent = new ResponseBudget(100, null);
+        ResponseBudget budget = new ResponseBudget(80, parent);
+
+        assertThat(budget.reserve(60, 0)).isTrue();
+        assertThat(budget.reserve(30, 10)).isFalse();
+        assertThat(parent.reserve(50, 10)).isFalse();
+        assertThat(parent.getInFlightBytes()).isEqualTo(60);
+
+        new Thread(() -> budget.release(60)).start();
+        assertThat(budget.reserve(30, 5000)).isTrue();
+        assertThat(parent.getInFlightBytes()).isEqualTo(30);
+    }
+
+    private TaxiiConnection connection() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setDiscoveryUri(new URI(base + "/taxii"));
+        return conn;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.mitre.taxii.messages.xml11.PollingServiceInstanceType;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class ShardedPollerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void nodeLeavingMovesOnlyItsKeys() {
+        ConsistentHashRing three = new ConsistentHashRing(asList("a", "b", "c"), 160);
+        ConsistentHashRing two = new ConsistentHashRing(asList("a", "b"), 160);
+
+        Map<String, Integer> load = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String key = "server/collection-" + i;
+            String before = three.nodeFor(key);
+            load.merge(before, 1, Integer::sum);
+            if (!"c".equals(before)) {
+                assertThat(two.nodeFor(key)).isEqualTo(before);
+            }
+        }
+
+        // each node owns roughly a third
+        for (int owned : load.values()) {
+            assertThat(owned).isGreaterThan(750).isLessThan(1250);
+        }
+    }
+
+    @Test
+    public void nodesShareCollectionsWithoutOverlap() throws Exception {
+        File directory = folder.newFolder();
+        DirectoryLeaseMembership first = membership(directory, "first");
+        DirectoryLeaseMembership second = membership(directory, "second");
+
+        try {
+            assertThat(first.getMembers()).containsOnly("first", "second");
+
+            List<CollectionRecordType> collections = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                collections.add(new CollectionRecordType()
+                        .withCollectionName("collection-" + i)
+                        .withPollingServices(new PollingServiceInstanceType().withAddress("http://taxii.example.com/poll")));
+            }
+
+            List<CollectionRecordType> firstOwned = poller(first).owned(collections);
+            List<CollectionRecordType> secondOwned = poller(second).owned(collections);
+            Set<CollectionRecordType> all = new HashSet<>(firstOwned);
+            all.addAll(secondOwned);
+
+            assertThat(firstOwned.size() + secondOwned.size()).isEqualTo(200);
+            assertThat(all).hasSize(200);
+            assertThat(firstOwned).isNotEmpty();
+            assertThat(secondOwned).isNotEmpty();
+
+            // the second node leaves, the first takes over all collections once it reads the leases again
+            second.stop();
+            long deadline = System.nanoTime() + SECONDS.toNanos(5);
+            while (first.getMembers().contains("second") && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(first.getMembers()).containsOnly("first");
+            assertThat(poller(first).owned(collections)).hasSize(200);
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void readsLeasesOncePerRenewal() throws Exception {
+        File directory = folder.newFolder();
+        DirectoryLeaseMembership membership = new DirectoryLeaseMembership();
+        membership.setDirectory(directory);
+        membership.setNodeId("first");
+        membership.setLeaseMillis(60000);
+        membership.start();
+
+        try {
+            Set<String> members = membership.getMembers();
+            assertThat(members).containsOnly("first");
+
+            Files.write(new File(directory, "second.lease").toPath(),
+                    Long.toString(System.currentTimeMillis() + 60000).getBytes(UTF_8));
+            assertThat(membership.getMembers()).isSameAs(members);
+
+            // a node's own start or stop is seen at once
+            membership.stop();
+            assertThat(membership.getMembers()).containsOnly("second");
+        } finally {
+            membership.stop();
+        }
+    }
+
+    @Test
+    public void ownedReadsMembersOnce() {
+        AtomicInteger reads = new AtomicInteger();
+        Membership membership = new Membership() {
+            @Override
+            public String getLocalNodeId() {
+                return "a";
+            }
+
+            @Override
+            public Set<String> getMembers() {
+                // the members change on every read, owned has to use one snapshot for all collections
+                return reads.incrementAndGet() % 2 == 1 ? new HashSet<>(asList("a", "b")) : new HashSet<>(asList("b"));
+            }
+        };
+
+        List<CollectionRecordType> collections = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            collections.add(new CollectionRecordType().withCollectionName("collection-" + i));
+        }
+
+        List<CollectionRecordType> owned = poller(membership).owned(collections);
+
+        assertThat(reads.get()).isEqualTo(1);
+        assertThat(owned).isNotEmpty();
+    }
+
+    @Test
+    public void rejectsDuplicateNamesWhetherOwnedOrNot() {
+        Membership membership = new Membership() {
+            @Override
+            public String getLocalNodeId() {
+                return "a";
+            }
+
+            @Override
+            public Set<String> getMembers() {
+                return new HashSet<>(asList("b"));
+            }
+        };
+
+        List<CollectionRecordType> collections = asList(new CollectionRecordType().withCollectionName("busy"),
+                new CollectionRecordType().withCollectionName("busy"));
+        ShardedPoller poller = poller(membership);
+        assertThat(poller.owned(collections)).isEmpty();
+        try {
+            poller.pollOwned(collections, "", new Date(0), new Date());
+            fail("expected the duplicate collection name to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("busy");
+        }
+    }
+
+    private DirectoryLeaseMembership membership(File directory, String nodeId) {
+        DirectoryLeaseMembership membership = new DirectoryLeaseMembership();
+        membership.setDirectory(directory);
+        membership.setNodeId(nodeId);
+        membership.setLeaseMillis(1500);
+        membership.start();
+        return membership;
+    }
+
+    private ShardedPoller poller(Membership membership) {
+        ShardedPoller poller = new ShardedPoller();
+        poller.setTaxii11Template(new Taxii11Template());
+        poller.setMembership(membership);
+        return poller;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hpe.elderberry.TaxiiTimeoutException.Phase.DEADLINE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class SingleFlightTest {
+    @Test
+    public void coalescesConcurrentCalls() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> flight.execute("discovery", () -> {
+                    calls.incrementAndGet();
+                    try {
+                        release.await(10, SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return new Object();
+                })));
+            }
+
+            // let all callers join the flight before it lands
+            while (flight.getCoalescedCount() < 7) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            Object first = results.get(0).get();
+            for (Future<Object> result : results) {
+                assertThat(result.get()).isSameAs(first);
+            }
+            assertThat(calls.get()).isEqualTo(1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void forgetsCompletedCalls() {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        assertThat(flight.execute("poll", calls::incrementAndGet)).isEqualTo(1);
+        assertThat(flight.execute("poll", calls::incrementAndGet)).isEqualTo(2);
+        assertThat(flight.getCoalescedCount()).isZero();
+    }
+
+    @Test
+    public void propagatesFailure() {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        try {
+            flight.execute("poll", () -> {
+                throw new IllegalStateException("server error");
+            });
+            fail("expected the call's exception");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("server error");
+        }
+
+        assertThat(flight.execute("poll", () -> 1)).isEqualTo(1);
+    }
+
+    @Test
+    public void followerWaitsUntilItsDeadline() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> leader = executor.submit(() -> flight.execute("poll", () -> {
+                started.countDown();
+                try {
+                    release.await(10, SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new Object();
+            }));
+            started.await(10, SECONDS);
+
+            List<TaxiiTimeoutException.Phase> timeouts = new ArrayList<>();
+            try {
+                new TaxiiDeadline(200).run(timeouts::add, () -> flight.execute("poll", Object::new));
+                fail("expected the follower to time out");
+            } catch (TaxiiTimeoutException e) {
+                assertThat(e.getPhase()).isEqualTo(DEADLINE);
+            }
+            assertThat(timeouts).containsExactly(DEADLINE);
+
+            release.countDown();
+            assertThat(leader.get(10, SECONDS)).isNotNull();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void followerStopsWaitingWhenInterrupted() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.submit(() -> flight.execute("poll", () -> {
+                started.countDown();
+                try {
+                    release.await(10, SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new Object();
+            }));
+            started.await(10, SECONDS);
+
+            Future<Object> follower = executor.submit(() -> flight.execute("poll", Object::new));
+            while (flight.getCoalescedCount() < 1) {
+                Thread.sleep(1);
+            }
+            follower.cancel(true);
+
+            // the follower's thread is free again, while the leader still runs
+            assertThat(executor.submit(() -> true).get(5, SECONDS)).isTrue();
+            release.countDown();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
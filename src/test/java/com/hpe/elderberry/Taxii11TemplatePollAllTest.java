@@ -0,0 +1,172 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.CollectionRecordType;
+import org.mitre.taxii.messages.xml11.PollResponse;
+import org.mitre.taxii.messages.xml11.PollingServiceInstanceType;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class Taxii11TemplatePollAllTest {
+    /**
+     * answers every poll only after all polls started, so the test hangs unless the polls run concurrently
+     */
+    private static class ConcurrentTemplate extends Taxii11Template {
+        private final CountDownLatch started;
+
+        ConcurrentTemplate(int polls) {
+            started = new CountDownLatch(polls);
+        }
+
+        @Override
+        public PollResponse poll(CollectionRecordType collection, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) {
+            started.countDown();
+            try {
+                started.await(10, SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (collection.getCollectionName().equals("broken")) {
+                throw new IllegalStateException("broken collection");
+            }
+
+            return new PollResponse().withCollectionName(collection.getCollectionName());
+        }
+    }
+
+    private static List<CollectionRecordType> collections(int count) {
+        List<CollectionRecordType> collections = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            collections.add(new CollectionRecordType().withCollectionName("collection-" + i));
+        }
+        collections.add(new CollectionRecordType().withCollectionName("broken"));
+        return collections;
+    }
+
+    @Test
+    public void pollsConcurrentlyInOrder() throws Exception {
+        List<CollectionRecordType> collections = collections(20);
+        ExecutorService executor = Executors.newFixedThreadPool(collections.size());
+        try {
+            ConcurrentTemplate template = new ConcurrentTemplate(collections.size());
+            template.setExecutor(executor);
+
+            Map<String, PollResponse> responses = template.pollAll(collections, "", new Date(0), new Date());
+
+            assertThat(new ArrayList<>(responses.keySet())).isEqualTo(collections.stream()
+                    .map(CollectionRecordType::getCollectionName).collect(toList()));
+            assertThat(responses.get("collection-7").getCollectionName()).isEqualTo("collection-7");
+            assertThat(responses.get("broken")).isNull();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void defaultExecutor() throws Exception {
+        List<CollectionRecordType> collections = collections(3);
+        Map<String, PollResponse> responses = new ConcurrentTemplate(collections.size())
+                .pollAll(collections, "", new Date(0), new Date());
+
+        assertThat(responses).hasSize(4);
+    }
+
+    @Test
+    public void rejectsDuplicateCollectionNames() throws Exception {
+        List<String> polled = new CopyOnWriteArrayList<>();
+        Taxii11Template template = new Taxii11Template() {
+            @Override
+            public PollResponse poll(CollectionRecordType collection, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) {
+                polled.add(collection.getCollectionName());
+                return new PollResponse().withCollectionName(collection.getCollectionName());
+            }
+        };
+        List<CollectionRecordType> collections = collections(3);
+        collections.add(new CollectionRecordType().withCollectionName("collection-1"));
+
+        try {
+            template.pollAll(collections, "", new Date(0), new Date());
+            fail("expected the duplicate collection name to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("collection-1");
+        }
+        assertThat(polled).isEmpty();
+    }
+
+    @Test
+    public void pollsWithinOneDeadline() throws Exception {
+        List<Long> remaining = new CopyOnWriteArrayList<>();
+        Taxii11Template template = new Taxii11Template() {
+            @Override
+            public PollResponse poll(CollectionRecordType collection, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) {
+                remaining.add(TaxiiDeadline.remainingNanos());
+                return new PollResponse().withCollectionName(collection.getCollectionName());
+            }
+        };
+        template.setDeadlineMillis(60000);
+
+        template.pollAll(collections(3), "", new Date(0), new Date());
+
+        assertThat(remaining).hasSize(4);
+        for (long nanos : remaining) {
+            assertThat(nanos).isGreaterThan(0).isLessThanOrEqualTo(SECONDS.toNanos(60));
+        }
+    }
+
+    @Test
+    public void waitsForRateLimitBeforeTakingThread() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setRequestsPerMinute(600);
+        conn.setRequestBurst(1);
+        List<Long> waits = new CopyOnWriteArrayList<>();
+        Taxii11Template template = new Taxii11Template() {
+            @Override
+            public PollResponse poll(CollectionRecordType collection, String subscriptionId, Date exclusiveBegin, Date inclusiveEnd) {
+                // the poll's first request was already allowed, it doesn't wait again
+                long start = System.nanoTime();
+                try {
+                    conn.getRateLimiter().acquire("taxii.example.com");
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                waits.add(System.nanoTime() - start);
+                return new PollResponse().withCollectionName(collection.getCollectionName());
+            }
+        };
+        template.setTaxiiConnection(conn);
+        List<CollectionRecordType> collections = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            collections.add(new CollectionRecordType().withCollectionName("collection-" + i)
+                    .withPollingServices(new PollingServiceInstanceType().withAddress("http://taxii.example.com/poll")));
+        }
+
+        Map<String, PollResponse> responses = template.pollAll(collections, "", new Date(0), new Date());
+
+        assertThat(responses.values()).hasSize(3).excludes((Object) null);
+        for (long wait : waits) {
+            assertThat(wait).isLessThan(MILLISECONDS.toNanos(50));
+        }
+    }
+}
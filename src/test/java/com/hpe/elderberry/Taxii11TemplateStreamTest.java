@@ -0,0 +1,85 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.ContentInstanceType;
+import org.mitre.taxii.messages.xml11.PollResponse;
+
+import java.math.BigInteger;
+import java.net.URL;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class Taxii11TemplateStreamTest {
+    private static ContentBlock block(String binding) {
+        return new ContentBlock().withContentBinding(new ContentInstanceType().withBindingId(binding));
+    }
+
+    /**
+     * answers a poll with 3 parts of 2 content blocks each, counting requests
+     */
+    private static class PagedTemplate extends Taxii11Template {
+        private final AtomicInteger requests = new AtomicInteger();
+
+        @Override
+        public PollResponse poll(URL pollUrl, String collectionName, String subscriptionId, Instant exclusiveBegin, Instant inclusiveEnd) {
+            requests.incrementAndGet();
+            return part(1);
+        }
+
+        @Override
+        public PollResponse fulfill(URL pollUrl, String collectionName, String resultId, BigInteger resultPartNumber) {
+            requests.incrementAndGet();
+            assertThat(resultId).isEqualTo("result");
+            return part(resultPartNumber.intValue());
+        }
+
+        private PollResponse part(int number) {
+            return new PollResponse()
+                    .withResultId("result")
+                    .withResultPartNumber(BigInteger.valueOf(number))
+                    .withMore(number < 3)
+                    .withContentBlocks(block(number + "a"), block(number + "b"));
+        }
+    }
+
+    @Test
+    public void streamsAllParts() throws Exception {
+        PagedTemplate template = new PagedTemplate();
+
+        assertThat(template.pollStream(new URL("http://localhost/poll"), "c", "", new Date(0), new Date())
+                .map(block -> block.getContentBinding().getBindingId())
+                .collect(Collectors.toList()))
+                .containsExactly("1a", "1b", "2a", "2b", "3a", "3b");
+        assertThat(template.requests.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void fetchesPartsOnDemand() throws Exception {
+        PagedTemplate template = new PagedTemplate();
+
+        Iterator<ContentBlock> blocks = template.pollStream(new URL("http://localhost/poll"), "c", "", new Date(0),
+                new Date()).iterator();
+        assertThat(template.requests.get()).isEqualTo(0);
+
+        blocks.next();
+        blocks.next();
+        assertThat(template.requests.get()).isEqualTo(1);
+
+        blocks.next();
+        assertThat(template.requests.get()).isEqualTo(2);
+    }
+}
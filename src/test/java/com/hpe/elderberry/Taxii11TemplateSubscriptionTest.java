@@ -0,0 +1,145 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.ManageCollectionSubscriptionRequest;
+import org.mitre.taxii.messages.xml11.ManageCollectionSubscriptionResponse;
+import org.mitre.taxii.messages.xml11.SubscriptionInstanceType;
+import org.mitre.taxii.messages.xml11.SubscriptionStatusEnum;
+
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mitre.taxii.messages.xml11.CollectionActionEnum.PAUSE;
+import static org.mitre.taxii.messages.xml11.CollectionActionEnum.SUBSCRIBE;
+import static org.mitre.taxii.messages.xml11.SubscriptionStatusEnum.ACTIVE;
+import static org.mitre.taxii.messages.xml11.SubscriptionStatusEnum.PAUSED;
+import static org.mitre.taxii.messages.xml11.SubscriptionStatusEnum.UNSUBSCRIBED;
+
+public class Taxii11TemplateSubscriptionTest {
+    private final List<ManageCollectionSubscriptionRequest> requests = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+
+    private Taxii11Template template;
+
+    private URL cm;
+
+    /**
+     * a collection management service that answers every request with the subscription "s1" in the status the action
+     * leads to
+     */
+    @Before
+    public void setUp() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setDiscoveryUri(new URI("http://127.0.0.1/taxii"));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/cm", exchange -> {
+            ManageCollectionSubscriptionRequest request = (ManageCollectionSubscriptionRequest)
+                    conn.getMarshaller().unmarshal(new StreamSource(exchange.getRequestBody()));
+            requests.add(request);
+
+            ManageCollectionSubscriptionResponse response = new ManageCollectionSubscriptionResponse()
+                    .withMessageId("r")
+                    .withInResponseTo(request.getMessageId())
+                    .withCollectionName(request.getCollectionName())
+                    .withSubscriptions(new SubscriptionInstanceType()
+                            .withSubscriptionID("s1")
+                            .withStatus(statusAfter(request))
+                            .withSubscriptionParameters(request.getSubscriptionParameters())
+                            .withPushParameters(request.getPushParameters()));
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            conn.getMarshaller().marshal(response, new StreamResult(body));
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        });
+        server.start();
+
+        template = new Taxii11Template();
+        template.setTaxiiConnection(conn);
+        cm = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/cm");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void subscribesForPushDelivery() throws Exception {
+        ManageCollectionSubscriptionResponse response = template.subscribe(cm, "busy",
+                new PollFilter().withContentBinding(PollFilter.STIX_12), new URI("https://inbox.example.com/taxii/inbox"));
+
+        assertThat(response.getSubscriptions().get(0).getSubscriptionID()).isEqualTo("s1");
+        assertThat(response.getSubscriptions().get(0).getStatus()).isEqualTo(ACTIVE);
+
+        ManageCollectionSubscriptionRequest request = requests.get(0);
+        assertThat(request.getAction()).isEqualTo(SUBSCRIBE);
+        assertThat(request.getCollectionName()).isEqualTo("busy");
+        assertThat(request.getSubscriptionParameters().getContentBindings().get(0).getBindingId())
+                .isEqualTo(PollFilter.STIX_12);
+        assertThat(request.getPushParameters().getInboxAddress()).isEqualTo("https://inbox.example.com/taxii/inbox");
+        assertThat(request.getPushParameters().getInboxProtocol()).isEqualTo("urn:taxii.mitre.org:protocol:https:1.0");
+        assertThat(request.getPushParameters().getDeliveryMessageBinding())
+                .isEqualTo("urn:taxii.mitre.org:message:xml:1.1");
+    }
+
+    @Test
+    public void subscribesToAllContentWithoutFilter() throws Exception {
+        ManageCollectionSubscriptionResponse response = template.subscribe(cm, "busy", null, null);
+
+        assertThat(response.getSubscriptions().get(0).getSubscriptionID()).isEqualTo("s1");
+        assertThat(requests.get(0).getSubscriptionParameters().getContentBindings()).isEmpty();
+        assertThat(requests.get(0).getPushParameters()).isNull();
+    }
+
+    @Test
+    public void managesSubscription() throws Exception {
+        assertThat(template.pauseSubscription(cm, "busy", "s1").getSubscriptions().get(0).getStatus())
+                .isEqualTo(PAUSED);
+        assertThat(requests.get(0).getAction()).isEqualTo(PAUSE);
+        assertThat(requests.get(0).getSubscriptionID()).isEqualTo("s1");
+
+        assertThat(template.resumeSubscription(cm, "busy", "s1").getSubscriptions().get(0).getStatus())
+                .isEqualTo(ACTIVE);
+        assertThat(template.subscriptions(cm, "busy", null).getSubscriptions()).hasSize(1);
+        assertThat(template.unsubscribe(cm, "busy", "s1").getSubscriptions().get(0).getStatus())
+                .isEqualTo(UNSUBSCRIBED);
+        assertThat(requests).hasSize(4);
+    }
+
+    private static SubscriptionStatusEnum statusAfter(ManageCollectionSubscriptionRequest request) {
+        switch (request.getAction()) {
+            case PAUSE:
+                return PAUSED;
+            case UNSUBSCRIBE:
+                return UNSUBSCRIBED;
+            default:
+                return ACTIVE;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.taxii.messages.xml10.DiscoveryResponse;
+import org.mitre.taxii.messages.xml11.AnyMixedContentType;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.PollResponse;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.hpe.elderberry.TaxiiVersion.TAXII_10;
+import static com.hpe.elderberry.TaxiiVersion.TAXII_11;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mitre.taxii.Versions.VID_TAXII_XML_10;
+import static org.mitre.taxii.Versions.VID_TAXII_XML_11;
+
+public class TaxiiClientTest {
+    private final List<String> requested = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+
+    private TaxiiConnection conn;
+
+    private TaxiiClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = new TaxiiConnection();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.start();
+
+        client = new TaxiiClient();
+        client.setTaxiiConnection(conn);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void negotiatesOnceWithTaxii11Server() throws Exception {
+        serve("/taxii11", exchange -> respond(exchange, 200, VID_TAXII_XML_11,
+                new org.mitre.taxii.messages.xml11.DiscoveryResponse().withMessageId("1")));
+
+        assertThat(client.getVersion()).isEqualTo(TAXII_11);
+        assertThat(client.getVersion()).isEqualTo(TAXII_11);
+        assertThat(requested).containsExactly(VID_TAXII_XML_11);
+    }
+
+    @Test
+    public void readsVersionOfRejectingTaxii10Server() throws Exception {
+        serve("/taxii10", exchange -> {
+            exchange.getResponseHeaders().add("X-TAXII-Content-Type", VID_TAXII_XML_10);
+            exchange.sendResponseHeaders(400, -1);
+            exchange.close();
+        });
+
+        assertThat(client.getVersion()).isEqualTo(TAXII_10);
+        assertThat(requested).containsExactly(VID_TAXII_XML_11);
+    }
+
+    @Test
+    public void fallsBackToTaxii10Discovery() throws Exception {
+        serve("/taxii10", exchange -> {
+            if (VID_TAXII_XML_10.equals(exchange.getRequestHeaders().getFirst("X-TAXII-Content-Type"))) {
+                respond(exchange, 200, null, new DiscoveryResponse().withMessageId("1"));
+            } else {
+                byte[] body = "unsupported".getBytes(UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+
+        assertThat(client.getVersion()).isEqualTo(TAXII_10);
+        assertThat(client.getVersion()).isEqualTo(TAXII_10);
+        assertThat(requested).containsExactly(VID_TAXII_XML_11, VID_TAXII_XML_10);
+    }
+
+    @Test
+    public void doesNotCacheFailedNegotiation() throws Exception {
+        serve("/broken", exchange -> {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+
+        assertThat(client.getVersion()).isNull();
+        assertThat(client.getVersion()).isNull();
+        assertThat(requested).hasSize(4);
+    }
+
+    @Test
+    public void discoversWithNegotiationResponse() throws Exception {
+        serve("/taxii11", exchange -> respond(exchange, 200, VID_TAXII_XML_11,
+                new org.mitre.taxii.messages.xml11.DiscoveryResponse().withMessageId("1")));
+
+        Object discovery = client.discover();
+        assertThat(discovery).isInstanceOf(org.mitre.taxii.messages.xml11.DiscoveryResponse.class);
+        assertThat(requested).hasSize(1);
+
+        // once the version is known, discovery asks the server again
+        assertThat(client.discover()).isInstanceOf(org.mitre.taxii.messages.xml11.DiscoveryResponse.class);
+        assertThat(requested).hasSize(2);
+    }
+
+    @Test
+    public void streamsPolledContent() throws Exception {
+        serve("/taxii11", exchange -> respond(exchange, 200, VID_TAXII_XML_11,
+                new org.mitre.taxii.messages.xml11.DiscoveryResponse().withMessageId("1")));
+        server.createContext("/poll", exchange -> {
+            while (exchange.getRequestBody().read() != -1) {
+                // drain the request, so the connection can be reused
+            }
+            respond(exchange, 200, VID_TAXII_XML_11, new PollResponse()
+                    .withMessageId("2")
+                    .withInResponseTo("1")
+                    .withCollectionName("collection")
+                    .withMore(false)
+                    .withContentBlocks(
+                            new ContentBlock().withContent(new AnyMixedContentType().withContent("a")),
+                            new ContentBlock(),
+                            new ContentBlock().withContent(new AnyMixedContentType().withContent("b"))));
+        });
+        URL pollUrl = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/poll");
+
+        List<Object> streamed = client.pollStream(pollUrl, "collection", null, new Date(0), new Date())
+                .collect(toList());
+
+        assertThat(streamed).containsExactly("a", "b");
+        assertThat(client.poll(pollUrl, "collection", null, new Date(0), new Date())).containsExactly("a", "b");
+    }
+
+    private void serve(String path, Handler handler) throws Exception {
+        server.createContext(path, exchange -> {
+            requested.add(exchange.getRequestHeaders().getFirst("X-TAXII-Content-Type"));
+            while (exchange.getRequestBody().read() != -1) {
+                // drain the request, so the connection can be reused
+            }
+            handler.handle(exchange);
+        });
+        conn.setDiscoveryUri(new URI("http://127.0.0.1:" + server.getAddress().getPort() + path));
+    }
+
+    private void respond(HttpExchange exchange, int status, String contentType, Object message) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        conn.getMarshaller().marshal(message, new StreamResult(body));
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        if (contentType != null) {
+            exchange.getResponseHeaders().add("X-TAXII-Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, body.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            body.writeTo(out);
+        }
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+}
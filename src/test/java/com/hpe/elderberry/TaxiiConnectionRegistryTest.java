@@ -0,0 +1,191 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TaxiiConnectionRegistryTest {
+    private static final String JSON = "{" +
+            "\"feed-1\": {\"discoveryUrl\": \"http://taxii.example.com/discovery\", \"username\": \"guest\"}," +
+            "\"feed-2\": {\"discoveryUrl\": \"http://taxii.example.com/discovery\", \"username\": \"guest\"}," +
+            "\"feed-3\": {\"discoveryUrl\": \"http://taxii.example.com/discovery\", \"username\": \"other\"}," +
+            "\"feed-4\": {\"discoveryUrl\": \"http://other.example.com/discovery\", \"username\": \"guest\"}" +
+            "}";
+
+    private TaxiiConnectionRegistry load() throws Exception {
+        TaxiiConnectionRegistry registry = new TaxiiConnectionRegistry();
+        registry.load(new ByteArrayInputStream(JSON.getBytes(UTF_8)));
+        return registry;
+    }
+
+    @Test
+    public void sharesPoolsByHostAndCredentials() throws Exception {
+        TaxiiConnectionRegistry registry = load();
+
+        assertThat(registry.getIds()).containsOnly("feed-1", "feed-2", "feed-3", "feed-4");
+        assertThat(registry.getPoolCount()).isEqualTo(3);
+        assertThat(registry.get("feed-1").getDiscoveryUrl()).isEqualTo(new URI("http://taxii.example.com/discovery"));
+        assertThat(registry.get("feed-2").getRestTemplate()).isSameAs(registry.get("feed-1").getRestTemplate());
+        assertThat(registry.get("feed-3").getRestTemplate()).isNotSameAs(registry.get("feed-1").getRestTemplate());
+        assertThat(registry.get("feed-4").getMarshaller()).isSameAs(registry.get("feed-1").getMarshaller());
+    }
+
+    @Test
+    public void addAndRemove() throws Exception {
+        TaxiiConnectionRegistry registry = load();
+
+        TaxiiConnection connection = new TaxiiConnection();
+        connection.setDiscoveryUri(new URI("http://other.example.com/discovery"));
+        connection.setUsername("guest");
+        registry.add("feed-5", connection);
+        assertThat(registry.getPoolCount()).isEqualTo(3);
+        assertThat(connection.getRestTemplate()).isSameAs(registry.get("feed-4").getRestTemplate());
+
+        assertThat(registry.remove("feed-3")).isNotNull();
+        assertThat(registry.get("feed-3")).isNull();
+        assertThat(registry.getPoolCount()).isEqualTo(2);
+
+        registry.remove("feed-4");
+        assertThat(connection.getConnectionManager()).isNotNull();
+        assertThat(registry.getPoolCount()).isEqualTo(2);
+        assertThat(registry.remove("feed-4")).isNull();
+    }
+
+    @Test
+    public void membersShareOwnerState() throws Exception {
+        TaxiiConnectionRegistry registry = new TaxiiConnectionRegistry();
+        TaxiiConnection owner = connection();
+        TaxiiConnection member = connection();
+        registry.add("owner", owner);
+        registry.add("member", member);
+
+        owner.getRestTemplate();
+        assertThat(registry.getPoolCount()).isEqualTo(1);
+        assertThat(member.getRateLimiter()).isNotNull().isSameAs(owner.getRateLimiter());
+        assertThat(member.getResponseSizeGuard()).isNotNull().isSameAs(owner.getResponseSizeGuard());
+        assertThat(member.getConnectionManager()).isNotNull().isSameAs(owner.getConnectionManager());
+
+        registry.remove("member");
+        assertThat(member.getRateLimiter()).isNotSameAs(owner.getRateLimiter());
+        assertThat(member.getRestTemplate()).isNotSameAs(owner.getRestTemplate());
+    }
+
+    @Test
+    public void removingOwnerHandsPoolToMember() throws Exception {
+        TaxiiConnectionRegistry registry = new TaxiiConnectionRegistry();
+        TaxiiConnection owner = connection();
+        TaxiiConnection member = connection();
+        TaxiiConnection other = connection();
+        registry.add("owner", owner);
+        registry.add("member", member);
+        registry.add("other", other);
+        Object restTemplate = owner.getRestTemplate();
+        PoolingHttpClientConnectionManager pool = owner.getConnectionManager();
+        RateLimiter limiter = owner.getRateLimiter();
+
+        registry.remove("owner");
+        assertThat(registry.getPoolCount()).isEqualTo(1);
+        assertThat(member.getRestTemplate()).isSameAs(restTemplate);
+        assertThat(member.getConnectionManager()).isSameAs(pool);
+        assertThat(member.getRateLimiter()).isSameAs(limiter);
+        assertThat(other.getRestTemplate()).isSameAs(restTemplate);
+        assertThat(other.getRateLimiter()).isSameAs(limiter);
+
+        // the pool is still open, leasing from a pool that was shut down throws
+        pool.requestConnection(new HttpRoute(new HttpHost("taxii.example.com", 80)), null).cancel();
+
+        // the removed owner no longer holds the group's pool
+        assertThat(owner.getConnectionManager()).isNull();
+        assertThat(owner.getRestTemplate()).isNotSameAs(restTemplate);
+        assertThat(owner.getRateLimiter()).isNotSameAs(limiter);
+
+        // joining the group after the hand over shares the new owner's rest template
+        TaxiiConnection joined = connection();
+        registry.add("joined", joined);
+        assertThat(joined.getRestTemplate()).isSameAs(restTemplate);
+
+        registry.remove("member");
+        registry.remove("other");
+        assertThat(joined.getConnectionManager()).isSameAs(pool);
+        registry.remove("joined");
+        assertThat(registry.getPoolCount()).isZero();
+        assertThat(joined.getConnectionManager()).isNull();
+    }
+
+    @Test
+    public void reloadingChangedCredentialsRegroups() throws Exception {
+        TaxiiConnectionRegistry registry = new TaxiiConnectionRegistry();
+        TaxiiConnection owner = connection();
+        TaxiiConnection member = connection();
+        registry.add("owner", owner);
+        registry.add("member", member);
+        Object restTemplate = owner.getRestTemplate();
+
+        assertThat(registry.reload("member")).isFalse();
+        assertThat(member.getRestTemplate()).isSameAs(restTemplate);
+
+        member.setUsername("someone-else");
+        assertThat(registry.reload("member")).isTrue();
+        assertThat(registry.getPoolCount()).isEqualTo(2);
+        assertThat(member.getRestTemplate()).isNotSameAs(restTemplate);
+        assertThat(member.getRateLimiter()).isNotSameAs(owner.getRateLimiter());
+        assertThat(owner.getRestTemplate()).isSameAs(restTemplate);
+
+        // a connection with the same credentials shares the regrouped connection's rest template
+        TaxiiConnection same = connection();
+        same.setUsername("someone-else");
+        registry.add("same", same);
+        assertThat(same.getRestTemplate()).isSameAs(member.getRestTemplate());
+    }
+
+    @Test
+    public void reloadingChangedCredentialsStopsSharing() throws Exception {
+        TaxiiConnectionRegistry registry = new TaxiiConnectionRegistry();
+        TaxiiConnection owner = connection();
+        TaxiiConnection member = connection();
+        registry.add("owner", owner);
+        registry.add("member", member);
+        Object restTemplate = owner.getRestTemplate();
+
+        member.setUsername("someone-else");
+        member.reload();
+        assertThat(member.getRestTemplate()).isNotSameAs(restTemplate);
+        assertThat(owner.getRestTemplate()).isSameAs(restTemplate);
+    }
+
+    @Test
+    public void addingSameConnectionAgainKeepsPool() throws Exception {
+        TaxiiConnectionRegistry registry = new TaxiiConnectionRegistry();
+        TaxiiConnection connection = connection();
+        registry.add("feed", connection);
+        Object restTemplate = connection.getRestTemplate();
+        Object pool = connection.getConnectionManager();
+
+        registry.add("feed", connection);
+        assertThat(connection.getRestTemplate()).isSameAs(restTemplate);
+        assertThat(connection.getConnectionManager()).isSameAs(pool);
+    }
+
+    private static TaxiiConnection connection() throws Exception {
+        TaxiiConnection connection = new TaxiiConnection();
+        connection.setDiscoveryUri(new URI("http://taxii.example.com/discovery"));
+        connection.setRequestsPerMinute(60);
+        connection.setMaxResponseBytes(1000000);
+        return connection;
+    }
+}
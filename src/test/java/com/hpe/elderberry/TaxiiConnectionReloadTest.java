@@ -0,0 +1,96 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Base64.getEncoder;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.springframework.http.HttpMethod.GET;
+
+public class TaxiiConnectionReloadTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reloadsCredentials() throws Exception {
+        List<String> authorizations = new CopyOnWriteArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            URI uri = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/taxii/discovery");
+            TaxiiConnection conn = new TaxiiConnection();
+            conn.setDiscoveryUri(uri);
+            conn.setUsername("before");
+            conn.setPassword("secret");
+
+            RestTemplate template = conn.getRestTemplate();
+            template.execute(uri, GET, null, response -> null);
+
+            conn.setUsername("after");
+            conn.reload();
+            template.execute(uri, GET, null, response -> null);
+
+            assertThat(conn.getRestTemplate()).isSameAs(template);
+            assertThat(authorizations).containsExactly(basic("before:secret"), basic("after:secret"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void reloadsModifiedKeyStore() throws Exception {
+        File keyStoreFile = folder.newFile("client.jks");
+        KeyStore empty = KeyStore.getInstance("JKS");
+        empty.load(null);
+        try (OutputStream out = new FileOutputStream(keyStoreFile)) {
+            empty.store(out, "changeit".toCharArray());
+        }
+
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setDiscoveryUri(new URI("https://taxii.example.com/taxii/discovery"));
+        conn.setKeyStoreFile(keyStoreFile);
+        conn.setKeyStorePassword("changeit");
+        conn.setKeyStore(null, "");
+        conn.getRestTemplate();
+        KeyStore loaded = conn.getKeyStore();
+
+        assertThat(conn.reloadIfModified()).isFalse();
+
+        assertThat(keyStoreFile.setLastModified(keyStoreFile.lastModified() + 10000)).isTrue();
+        assertThat(conn.reloadIfModified()).isTrue();
+        assertThat(conn.getKeyStore()).isNotSameAs(loaded);
+        assertThat(conn.reloadIfModified()).isFalse();
+    }
+
+    private static String basic(String credentials) {
+        return "Basic " + getEncoder().encodeToString(credentials.getBytes(UTF_8));
+    }
+}
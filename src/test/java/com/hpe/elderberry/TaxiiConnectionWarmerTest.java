@@ -0,0 +1,56 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+
+import static java.util.Collections.singletonList;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TaxiiConnectionWarmerTest {
+    @Test
+    public void opensPooledConnections() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            TaxiiConnection conn = new TaxiiConnection();
+            conn.setDiscoveryUri(new URI("http://127.0.0.1:" + server.getLocalPort() + "/taxii/discovery"));
+            conn.setMaxConnectionsPerRoute(5);
+
+            TaxiiConnectionWarmer warmer = new TaxiiConnectionWarmer();
+            warmer.setTaxiiConnection(conn);
+            warmer.setEndpoints(singletonList(new URI("http://127.0.0.1:" + server.getLocalPort() + "/taxii/poll")));
+            warmer.setConnectionsPerHost(3);
+            warmer.setFailOnError(true);
+            warmer.start();
+
+            assertThat(warmer.isRunning()).isTrue();
+            HttpRoute route = new HttpRoute(new HttpHost("127.0.0.1", server.getLocalPort(), "http"), null, false);
+            assertThat(conn.getConnectionManager().getStats(route).getAvailable()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void toleratesUnreachableHosts() throws Exception {
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setDiscoveryUri(new URI("http://unresolvable.invalid/taxii/discovery"));
+
+        TaxiiConnectionWarmer warmer = new TaxiiConnectionWarmer();
+        warmer.setTaxiiConnection(conn);
+        warmer.setTimeoutMillis(5000);
+        warmer.start();
+
+        assertThat(warmer.isRunning()).isTrue();
+        assertThat(conn.getRestTemplate()).isNotNull();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+
+import java.net.URI;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mitre.taxii.Versions.VID_TAXII_HTTPS_10;
+import static org.mitre.taxii.Versions.VID_TAXII_HTTP_10;
+import static org.mitre.taxii.Versions.VID_TAXII_SERVICES_10;
+import static org.mitre.taxii.Versions.VID_TAXII_SERVICES_11;
+
+public class TaxiiHeadersTest {
+    @Test
+    public void protocolFollowsTargetScheme() throws Exception {
+        assertThat(TaxiiHeaders.taxii11(new URI("http://example.com/poll")).getFirst("X-TAXII-Protocol"))
+                .isEqualTo(VID_TAXII_HTTP_10);
+        assertThat(TaxiiHeaders.taxii11(new URI("https://example.com/poll")).getFirst("X-TAXII-Protocol"))
+                .isEqualTo(VID_TAXII_HTTPS_10);
+        assertThat(TaxiiHeaders.taxii10(new URI("HTTPS://example.com/poll")).getFirst("X-TAXII-Protocol"))
+                .isEqualTo(VID_TAXII_HTTPS_10);
+    }
+
+    @Test
+    public void servicesFollowVersion() throws Exception {
+        URI target = new URI("http://example.com/discovery");
+        assertThat(TaxiiHeaders.taxii10(target).getFirst("X-TAXII-Services")).isEqualTo(VID_TAXII_SERVICES_10);
+        assertThat(TaxiiHeaders.taxii11(target).getFirst("X-TAXII-Services")).isEqualTo(VID_TAXII_SERVICES_11);
+    }
+
+    @Test
+    public void headersAreShared() throws Exception {
+        HttpHeaders first = TaxiiHeaders.taxii11(new URI("https://a.example.com/poll"));
+        HttpHeaders second = TaxiiHeaders.taxii11(new URI("https://b.example.com/poll"));
+        assertThat(first).isSameAs(second);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void headersAreReadOnly() throws Exception {
+        TaxiiHeaders.taxii11(new URI("http://example.com/poll")).add("X-Other", "value");
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mitre.taxii.messages.xml11.ContentBlock;
+import org.mitre.taxii.messages.xml11.InboxMessage;
+import org.mitre.taxii.messages.xml11.StatusMessage;
+import org.springframework.http.HttpEntity;
+import org.springframework.web.client.HttpClientErrorException;
+
+import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.springframework.http.HttpStatus.PAYLOAD_TOO_LARGE;
+
+public class TaxiiInboxReceiverTest {
+    private TaxiiConnection conn;
+
+    private TaxiiInboxReceiver receiver;
+
+    @Before
+    public void setUp() throws Exception {
+        conn = new TaxiiConnection();
+        conn.setDiscoveryUri(new URI("http://127.0.0.1/taxii"));
+        receiver = new TaxiiInboxReceiver();
+        receiver.setTaxiiConnection(conn);
+        receiver.setBindAddress("127.0.0.1");
+    }
+
+    @After
+    public void tearDown() {
+        receiver.stop();
+    }
+
+    @Test
+    public void deliversContentBlocks() throws Exception {
+        List<String> received = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(2);
+        receiver.setSinks(singletonList((message, block) -> {
+            received.add(message.getMessageId() + "/" + block.getMessage());
+            latch.countDown();
+        }));
+        receiver.start();
+
+        StatusMessage status = push(new InboxMessage().withMessageId("1")
+                .withContentBlocks(new ContentBlock().withMessage("a"), new ContentBlock().withMessage("b")));
+
+        assertThat(status.getStatusType()).isEqualTo("SUCCESS");
+        assertThat(status.getInResponseTo()).isEqualTo("1");
+        assertThat(latch.await(5, SECONDS)).isTrue();
+        assertThat(received).containsExactly("1/a", "1/b");
+        assertThat(receiver.getReceivedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void asksToRetryWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch delivering = new CountDownLatch(1);
+        receiver.setQueueCapacity(1);
+        receiver.setWorkers(1);
+        receiver.setRetryWaitSeconds(7);
+        receiver.setSinks(singletonList((message, block) -> {
+            delivering.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        receiver.start();
+
+        // the first message blocks the worker, the second fills the queue
+        assertThat(push(message("1")).getStatusType()).isEqualTo("SUCCESS");
+        assertThat(delivering.await(5, SECONDS)).isTrue();
+        assertThat(push(message("2")).getStatusType()).isEqualTo("SUCCESS");
+
+        StatusMessage status = push(message("3"));
+        assertThat(status.getStatusType()).isEqualTo("RETRY");
+        assertThat(status.getStatusDetail().getDetails().get(0).getName()).isEqualTo("ESTIMATED_WAIT");
+        assertThat(status.getStatusDetail().getDetails().get(0).getContent()).containsOnly("7");
+        assertThat(receiver.getRejectedCount()).isEqualTo(1);
+
+        release.countDown();
+    }
+
+    @Test
+    public void rejectsOversizedRequests() throws Exception {
+        receiver.setMaxRequestBytes(1024);
+        receiver.start();
+
+        InboxMessage large = new InboxMessage().withMessageId("1")
+                .withContentBlocks(new ContentBlock().withMessage(new String(new char[4096]).replace('\0', 'x')));
+        try {
+            push(large);
+            fail("expected the request to be rejected");
+        } catch (HttpClientErrorException e) {
+            assertThat(e.getStatusCode()).isEqualTo(PAYLOAD_TOO_LARGE);
+        }
+
+        // without a content length the body is counted as it's read
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        conn.getMarshaller().marshal(large, new StreamResult(body));
+        HttpURLConnection http = (HttpURLConnection) new URL("http://127.0.0.1:" + receiver.getPort() +
+                "/taxii/inbox").openConnection();
+        http.setDoOutput(true);
+        http.setChunkedStreamingMode(256);
+        try (OutputStream out = http.getOutputStream()) {
+            body.writeTo(out);
+        }
+        assertThat(http.getResponseCode()).isEqualTo(PAYLOAD_TOO_LARGE.value());
+
+        assertThat(receiver.getOversizedCount()).isEqualTo(2);
+        assertThat(receiver.getReceivedCount()).isZero();
+        assertThat(push(message("2")).getStatusType()).isEqualTo("SUCCESS");
+    }
+
+    @Test
+    public void asksToRetryWhenQueuedBytesAreFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch delivering = new CountDownLatch(1);
+        receiver.setMaxQueuedBytes(1500);
+        receiver.setWorkers(1);
+        receiver.setSinks(singletonList((message, block) -> {
+            delivering.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        receiver.start();
+
+        // each message is several hundred bytes, the queued bytes fill up long before the queue capacity
+        assertThat(push(message("1")).getStatusType()).isEqualTo("SUCCESS");
+        assertThat(delivering.await(5, SECONDS)).isTrue();
+        String status = "SUCCESS";
+        for (int i = 2; i < 10 && status.equals("SUCCESS"); i++) {
+            status = push(message(Integer.toString(i))).getStatusType();
+        }
+        assertThat(status).isEqualTo("RETRY");
+        assertThat(receiver.getQueuedBytes()).isGreaterThan(0).isLessThanOrEqualTo(1500);
+
+        release.countDown();
+    }
+
+    @Test
+    public void rejectsMalformedContentLength() throws Exception {
+        receiver.start();
+
+        try (Socket socket = new Socket("127.0.0.1", receiver.getPort())) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), US_ASCII);
+            out.write("POST /taxii/inbox HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: lots\r\n\r\n");
+            out.flush();
+            String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(), US_ASCII))
+                    .readLine();
+            assertThat(statusLine).startsWith("HTTP/1.1 400");
+        }
+
+        assertThat(push(message("1")).getStatusType()).isEqualTo("SUCCESS");
+    }
+
+    @Test
+    public void releasesQueuedBytesWhenSinkThrowsError() throws Exception {
+        receiver.setWorkers(1);
+        receiver.setSinks(singletonList((message, block) -> {
+            throw new AssertionError("sink failed");
+        }));
+        receiver.start();
+
+        assertThat(push(message("1")).getStatusType()).isEqualTo("SUCCESS");
+
+        long deadline = System.nanoTime() + SECONDS.toNanos(5);
+        while (receiver.getQueuedBytes() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(receiver.getQueuedBytes()).isZero();
+    }
+
+    private InboxMessage message(String id) {
+        return new InboxMessage().withMessageId(id).withContentBlocks(new ContentBlock().withMessage(id));
+    }
+
+    private StatusMessage push(InboxMessage message) throws Exception {
+        URI inbox = new URI("http://127.0.0.1:" + receiver.getPort() + "/taxii/inbox");
+        return conn.getRestTemplate().postForObject(inbox, new HttpEntity<>(message, TaxiiHeaders.taxii11(inbox)),
+                StatusMessage.class);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+
+import static com.hpe.elderberry.TaxiiTimeoutException.Phase.DEADLINE;
+import static com.hpe.elderberry.TaxiiTimeoutException.Phase.READ;
+import static com.hpe.elderberry.TaxiiTimeoutException.Phase.TLS_HANDSHAKE;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class TaxiiTimeoutTest {
+    @Test
+    public void deadlineAbortsSlowResponse() throws Exception {
+        ExecutorService executor = newCachedThreadPool();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            // a server that keeps the response alive, one byte at a time, the read idle timeout never expires
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 100; i++) {
+                    out.write(' ');
+                    out.flush();
+                    Thread.sleep(50);
+                }
+            } catch (Exception e) {
+                // the client aborted
+            }
+        });
+        server.start();
+
+        try {
+            TaxiiConnection conn = connection(new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/taxii"));
+            conn.setSocketTimeoutMillis(1000);
+            Taxii11Template template = new Taxii11Template();
+            template.setTaxiiConnection(conn);
+            template.setDeadlineMillis(300);
+
+            long start = currentTimeMillis();
+            try {
+                template.discover();
+                fail("expected a timeout");
+            } catch (TaxiiTimeoutException e) {
+                assertThat(e.getPhase()).isEqualTo(DEADLINE);
+            }
+
+            assertThat(currentTimeMillis() - start).isLessThan(3000);
+            assertThat(conn.getTimeoutCount(DEADLINE)).isEqualTo(1);
+            assertThat(conn.getTimeoutCount(READ)).isEqualTo(0);
+        } finally {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reportsReadTimeout() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            acceptInBackground(server);
+            TaxiiConnection conn = connection(new URI("http://127.0.0.1:" + server.getLocalPort() + "/taxii"));
+            conn.setSocketTimeoutMillis(200);
+            Taxii11Template template = new Taxii11Template();
+            template.setTaxiiConnection(conn);
+
+            try {
+                template.discover();
+                fail("expected a timeout");
+            } catch (TaxiiTimeoutException e) {
+                assertThat(e.getPhase()).isEqualTo(READ);
+            }
+
+            assertThat(conn.getTimeoutCount(READ)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void reportsTlsHandshakeTimeout() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            acceptInBackground(server);
+            TaxiiConnection conn = connection(new URI("https://127.0.0.1:" + server.getLocalPort() + "/taxii"));
+            conn.setSocketTimeoutMillis(5000);
+            conn.setTlsHandshakeTimeoutMillis(200);
+            Taxii10Template template = new Taxii10Template();
+            template.setTaxiiConnection(conn);
+
+            long start = currentTimeMillis();
+            try {
+                template.discover();
+                fail("expected a timeout");
+            } catch (TaxiiTimeoutException e) {
+                assertThat(e.getPhase()).isEqualTo(TLS_HANDSHAKE);
+            }
+
+            assertThat(currentTimeMillis() - start).isLessThan(3000);
+            assertThat(conn.getTimeoutCount(TLS_HANDSHAKE)).isEqualTo(1);
+        }
+    }
+
+    private TaxiiConnection connection(URI discoveryUri) {
+        TaxiiConnection conn = new TaxiiConnection();
+        conn.setDiscoveryUri(discoveryUri);
+        conn.setConnectTimeoutMillis(1000);
+        return conn;
+    }
+
+    /**
+     * accepts a connection and never answers it
+     */
+    private void acceptInBackground(ServerSocket server) {
+        Thread thread = new Thread(() -> {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    server.accept();
+                }
+            } catch (Exception e) {
+                // the server socket closed
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * (c) Copyright 2015 Hewlett Packard Enterprise Development LP Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.hpe.elderberry;
+
+import org.junit.Test;
+
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.Random;
+
+import static com.hpe.elderberry.TaxiiTimestamps.toEpochMillis;
+import static com.hpe.elderberry.TaxiiTimestamps.toInstant;
+import static com.hpe.elderberry.TaxiiTimestamps.toXmlGregorianCalendar;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TaxiiTimestampsTest {
+    @Test
+    public void calendarsRoundTrip() throws Exception {
+        DatatypeFactory factory = DatatypeFactory.newInstance();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // between 1900 and 2100, with whole milliseconds
+            Instant instant = Instant.ofEpochMilli(-2208988800000L + (long) (random.nextDouble() * 6311433600000L));
+            XMLGregorianCalendar calendar = toXmlGregorianCalendar(instant);
+
+            assertThat(toInstant(calendar)).isEqualTo(instant);
+            assertThat(toEpochMillis(calendar)).isEqualTo(instant.toEpochMilli());
+            assertThat(factory.newXMLGregorianCalendar(calendar.toXMLFormat()).toGregorianCalendar().getTimeInMillis())
+                    .isEqualTo(instant.toEpochMilli());
+        }
+    }
+
+    @Test
+    public void epochDaysMatchTheCalendar() {
+        for (LocalDate date = LocalDate.of(1600, 1, 1); date.getYear() < 2400; date = date.plusDays(1)) {
+            assertThat(TaxiiTimestamps.epochDay(date.getYear(), date.getMonthValue(), date.getDayOfMonth()))
+                    .isEqualTo(date.toEpochDay());
+        }
+    }
+
+    @Test
+    public void readsOffsetsAndFractions() throws Exception {
+        DatatypeFactory factory = DatatypeFactory.newInstance();
+
+        assertThat(toInstant(factory.newXMLGregorianCalendar("2015-06-01T14:30:00.5+02:00")))
+                .isEqualTo(Instant.parse("2015-06-01T12:30:00.500Z"));
+        assertThat(toInstant(factory.newXMLGregorianCalendar("2015-06-01T12:30:00.123456789Z")))
+                .isEqualTo(Instant.parse("2015-06-01T12:30:00.123456789Z"));
+        // no time zone is UTC
+        assertThat(toEpochMillis(factory.newXMLGregorianCalendar("2015-06-01T12:30:00")))
+                .isEqualTo(Instant.parse("2015-06-01T12:30:00Z").toEpochMilli());
+        assertThat(toInstant(null)).isNull();
+        assertThat(toXmlGregorianCalendar((Date) null)).isNull();
+    }
+
+    @Test
+    public void keepsSubMillisecondPrecision() {
+        Instant instant = Instant.parse("2015-06-01T12:30:00.123456Z");
+        assertThat(toInstant(toXmlGregorianCalendar(instant))).isEqualTo(instant);
+    }
+}